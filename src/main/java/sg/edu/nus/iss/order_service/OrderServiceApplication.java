@@ -3,10 +3,14 @@ package sg.edu.nus.iss.order_service;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration;
 import org.springframework.boot.autoconfigure.mongo.MongoAutoConfiguration;
+import org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration;
 
 
-@SpringBootApplication(exclude = {DataSourceAutoConfiguration.class, MongoAutoConfiguration.class})
+//mongo clients are built by MongoSingleton and ReactiveMongoManager, not by spring boot
+@SpringBootApplication(exclude = {DataSourceAutoConfiguration.class, MongoAutoConfiguration.class,
+		MongoReactiveAutoConfiguration.class, MongoReactiveDataAutoConfiguration.class})
 public class OrderServiceApplication {
 
 	public static void main(String[] args) {
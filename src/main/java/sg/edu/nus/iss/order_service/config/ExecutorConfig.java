@@ -0,0 +1,41 @@
+package sg.edu.nus.iss.order_service.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Configuration
+public class ExecutorConfig {
+    private static final Logger log = LoggerFactory.getLogger(ExecutorConfig.class);
+
+    @Value("${io.executor.max-concurrency:32}")
+    private int ioMaxConcurrency;
+
+    @Value("${outbox.dispatcher.max-concurrency:8}")
+    private int outboxMaxConcurrency;
+
+    /*
+    * Bounded pool of virtual threads for blocking downstream calls (product, profile and
+    * delivery services) that are fanned out from a single request.
+    */
+    @Bean(name = "ioExecutor", destroyMethod = "shutdown")
+    public ExecutorService ioExecutor() {
+        log.info("Creating io executor with max concurrency {}", ioMaxConcurrency);
+        return Executors.newFixedThreadPool(ioMaxConcurrency, Thread.ofVirtual().name("io-", 0).factory());
+    }
+
+    /*
+    * Separate bounded pool for the outbox dispatcher, so a backlog of retried events never takes the
+    * io executor's threads away from checkout and order listings.
+    */
+    @Bean(name = "outboxExecutor", destroyMethod = "shutdown")
+    public ExecutorService outboxExecutor() {
+        log.info("Creating outbox executor with max concurrency {}", outboxMaxConcurrency);
+        return Executors.newFixedThreadPool(outboxMaxConcurrency, Thread.ofVirtual().name("outbox-", 0).factory());
+    }
+}
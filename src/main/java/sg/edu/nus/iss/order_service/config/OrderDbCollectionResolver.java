@@ -2,11 +2,20 @@ package sg.edu.nus.iss.order_service.config;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.utils.ApplicationConstants;
 import sg.edu.nus.iss.order_service.utils.Constants;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 @Component
 public class OrderDbCollectionResolver extends Constants {
+    public static final String ARCHIVE_STORAGE = "archive";
+    public static final String SINGLE_COLLECTION_STORAGE = "single";
+    private static final List<String> ACTIVE_STATUSES = getActiveStatusNames();
+    private static final List<String> CLOSED_STATUSES = List.of(ApplicationConstants.COMPLETED, ApplicationConstants.CANCELLED);
 
     @Value("${"+ORDER_COLLECTION+"}")
     private String orderCollection;
@@ -14,6 +23,8 @@ public class OrderDbCollectionResolver extends Constants {
     private String completedOrdersCollection;
     @Value("${"+CANCELLED_ORDERS_COLL+"}")
     private String cancelledOrdersCollection;
+    @Value("${"+ORDER_STORAGE_MODE+":"+ARCHIVE_STORAGE+"}")
+    private String storageMode = ARCHIVE_STORAGE;
     /*
     * Strategy design pattern used here.
     * The OrderCollectionResolver class acts as a strategy for determining
@@ -22,15 +33,56 @@ public class OrderDbCollectionResolver extends Constants {
     *              the collection name dynamically
     * Strategy :- The OrderCollectionResolver class encapsulates the logic for
     *               resolving the collection name based on the order status.
+    * With mongo.order.storage-mode=single every status resolves to the order collection, closing an order
+    * then only changes its status instead of moving the document to an archive collection.
     */
     public String resolve(String status) {
-        switch (status) {
-            case ApplicationConstants.COMPLETED:
-                return completedOrdersCollection;
-            case ApplicationConstants.CANCELLED:
-                return cancelledOrdersCollection;
-            default:
-                return orderCollection;
+        if (isSingleCollection()) {
+            return orderCollection;
+        }
+        return isClosed(status) ? getArchiveCollection(status) : orderCollection;
+    }
+
+    //the archive collection of a closed status whatever the storage mode, e.g. to migrate the orders out of it
+    public String getArchiveCollection(String status) {
+        return ApplicationConstants.COMPLETED.equals(status) ? completedOrdersCollection : cancelledOrdersCollection;
+    }
+
+    public boolean isSingleCollection() {
+        return SINGLE_COLLECTION_STORAGE.equalsIgnoreCase(storageMode);
+    }
+
+    //every collection holding orders, for reads and indexes spanning all of them
+    public List<String> getOrderCollections() {
+        if (isSingleCollection()) {
+            return List.of(orderCollection);
+        }
+        return List.of(orderCollection, completedOrdersCollection, cancelledOrdersCollection);
+    }
+
+    /**
+     * Statuses of an order that is still in progress, i.e. every status but the closed ones. Listed explicitly
+     * rather than as $nin of the closed ones, so the filter matches the partial index of active orders.
+     */
+    public static List<String> getActiveStatuses() {
+        return ACTIVE_STATUSES;
+    }
+
+    public static List<String> getClosedStatuses() {
+        return CLOSED_STATUSES;
+    }
+
+    public static boolean isClosed(Object status) {
+        return status != null && CLOSED_STATUSES.contains(status.toString());
+    }
+
+    private static List<String> getActiveStatusNames() {
+        List<String> statuses = new ArrayList<>();
+        for (OrderStatus status : OrderStatus.values()) {
+            if (status != OrderStatus.INVALID && status != OrderStatus.COMPLETED && status != OrderStatus.CANCELLED) {
+                statuses.add(status.name());
+            }
         }
+        return Collections.unmodifiableList(statuses);
     }
 }
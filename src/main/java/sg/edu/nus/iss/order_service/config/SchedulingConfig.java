@@ -0,0 +1,12 @@
+package sg.edu.nus.iss.order_service.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/*
+* Enables the background jobs of the service, such as the outbox dispatcher.
+*/
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
@@ -2,6 +2,7 @@ package sg.edu.nus.iss.order_service.config;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.web.SecurityFilterChain;
@@ -28,8 +29,10 @@ public class SecurityConfig {
             .csrf(csrf -> csrf.disable())  // Since behind reverse proxy
             .authorizeHttpRequests(auth -> auth
                 .requestMatchers("/actuator/**").denyAll()  // Block actuator endpoints
+                .requestMatchers("/admin/**").hasRole("ADMIN")  // Pool/index stats and storage migration
                 .anyRequest().permitAll()
-            );
+            )
+            .httpBasic(Customizer.withDefaults());  // Admin user from spring.security.user.*
             
         return http.build();
     }
@@ -0,0 +1,85 @@
+package sg.edu.nus.iss.order_service.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.swagger.v3.core.util.Json;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import sg.edu.nus.iss.order_service.db.IndexManager;
+import sg.edu.nus.iss.order_service.service.OrderStorageMigrator;
+import sg.edu.nus.iss.order_service.utils.Constants;
+import sg.edu.nus.iss.order_service.utils.HttpClientRegistry;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/admin")
+@Tag(name = "Admin", description = "Operational insight into the order service")
+public class AdminController extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(AdminController.class);
+    private final ObjectMapper mapper = Json.mapper();
+
+    private final HttpClientRegistry httpClientRegistry;
+    private final IndexManager indexManager;
+    private final OrderStorageMigrator orderStorageMigrator;
+
+    @Autowired
+    public AdminController(HttpClientRegistry httpClientRegistry, IndexManager indexManager,
+                           OrderStorageMigrator orderStorageMigrator) {
+        this.httpClientRegistry = httpClientRegistry;
+        this.indexManager = indexManager;
+        this.orderStorageMigrator = orderStorageMigrator;
+    }
+
+    @GetMapping("/http-pools")
+    @Operation(summary = "Retrieve connection pool stats for downstream http clients")
+    public ResponseEntity<JsonNode> getHttpPoolStats() {
+        log.info("Retrieving connection pool stats for downstream http clients");
+        ObjectNode response = mapper.createObjectNode();
+        httpClientRegistry.getPoolStats().forEach((client, stats) -> {
+            ObjectNode statsNode = response.putObject(client);
+            statsNode.put("leased", stats.getLeased());
+            statsNode.put("pending", stats.getPending());
+            statsNode.put("available", stats.getAvailable());
+            statsNode.put("max", stats.getMax());
+        });
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/indexes")
+    @Operation(summary = "Retrieve usage stats for the indexes on the order and cart collections")
+    public ResponseEntity<Map<String, List<Document>>> getIndexStats() {
+        log.info("Retrieving index usage stats");
+        return ResponseEntity.ok(indexManager.getIndexStats());
+    }
+
+    @PostMapping("/orders/storage/migrate")
+    @Operation(summary = "Move archived completed and cancelled orders into the order collection for single collection storage")
+    public ResponseEntity<JsonNode> migrateOrderStorage() {
+        log.info("Migrating archived orders to single collection storage");
+        if (!orderStorageMigrator.canMigrate()) {
+            ObjectNode errResp = mapper.createObjectNode();
+            errResp.put(MESSAGE, "Order storage is not in single collection mode");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(errResp);
+        }
+        Map<String, Long> migrated = orderStorageMigrator.migrateToSingleCollection();
+        if (migrated == null) {
+            ObjectNode errResp = mapper.createObjectNode();
+            errResp.put(MESSAGE, "Migration of archived orders failed, it can be rerun to resume");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errResp);
+        }
+        return ResponseEntity.ok(mapper.valueToTree(migrated));
+    }
+}
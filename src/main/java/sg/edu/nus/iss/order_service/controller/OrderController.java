@@ -6,18 +6,31 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.swagger.v3.core.util.Json;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import sg.edu.nus.iss.order_service.db.BsonJsonTranscoder;
 import sg.edu.nus.iss.order_service.exception.ResourceNotFoundException;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
 import sg.edu.nus.iss.order_service.service.OrderService;
+import sg.edu.nus.iss.order_service.strategy.order.OrderPaging;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/orders")
 @Tag(name = "Orders", description = "Manage orders in Shopsmart Application")
@@ -70,30 +83,58 @@ public class OrderController extends Constants {
         }
     }
 
-    @GetMapping("/{orderId}")
+    /*
+    * Hottest read of the service (order tracking polls it), so the order is not decoded: its raw BSON is
+    * transcoded straight onto the response stream, giving the same JSON as the Order model.
+    */
+    @GetMapping(value = "/{orderId}", produces = MediaType.APPLICATION_JSON_VALUE)
     @Operation(summary = "Retrieve order by orderId")
-    public ResponseEntity<JsonNode> getOrderByOrderId(@PathVariable String orderId) {
+    public void getOrderByOrderId(@PathVariable String orderId, HttpServletResponse response) throws IOException {
         log.info("Retrieving order by orderId {}", orderId);
-        Response orderResp = orderService.getOrderByOrderId(orderId);
-        if(orderResp==null){
-            log.error("Some exception happened trying to find order with orderId {}", orderId);
-            throw new ResourceNotFoundException("Some error occurred while fetching order by orderId " + orderId);
-        }else if (FAILURE.equalsIgnoreCase(orderResp.getStatus())){
+        RawBsonDocument order = orderService.getRawOrderByOrderId(orderId);
+        if(order==null){
             log.error("Order with ID {} not found", orderId);
             throw new ResourceNotFoundException("Order with ID " + orderId + " not found");
-        } else{
-            log.info("Order with ID {} found. Order: {}", orderId, orderResp.getData());
-            return ResponseEntity.ok(orderResp.getData());
         }
+        log.info("Order with ID {} found", orderId);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        BsonJsonTranscoder.transcode(order, response.getOutputStream());
+    }
+
+    //returned as a future, so with mongo.driver.mode=reactive no request thread waits while the order is read
+    @GetMapping("/{orderId}/status")
+    @Operation(summary = "Retrieve the current status of an order")
+    public CompletableFuture<ResponseEntity<JsonNode>> getOrderStatusByOrderId(@PathVariable String orderId) {
+        log.info("Retrieving order status by orderId {}", orderId);
+        return orderService.getOrderStatusByOrderId(orderId).thenApply(statusResp -> {
+            if(statusResp==null || FAILURE.equalsIgnoreCase(statusResp.getStatus())){
+                log.error("Order with ID {} not found", orderId);
+                throw new ResourceNotFoundException("Order with ID " + orderId + " not found");
+            }
+            return ResponseEntity.ok(statusResp.getData());
+        });
     }
 
     //here assumption is that this api will be called by the session profile only and hence that profile id will be needed
     @GetMapping("/{listType}/profiles/{profile-type}/id")
     @Operation(summary = "Retrieve orders list for a profile type based on listing type")
     public ResponseEntity<JsonNode> getOrdersListByProfileId(@PathVariable String listType, @PathVariable("profile-type") String profileType,
-                                                             @RequestParam("user-id") String id) {
+                                                             @RequestParam("user-id") String id,
+                                                             @RequestParam(value = "limit", required = false) Integer limit,
+                                                             @RequestParam(value = "page-token", required = false) String pageToken,
+                                                             @RequestParam(value = "sort", required = false, defaultValue = SORT_DESC) String sort) {
         log.info("Retrieving {} orders for profileType {} with ID {}", listType, profileType, id);
-        Response ordersListResp = orderService.getOrdersListByProfileId(listType,profileType, id);
+        //paged as {orders, nextPageToken} once a limit or page token is passed, the full list otherwise
+        OrderPageRequest page = null;
+        if (limit != null || pageToken != null) {
+            page = new OrderPageRequest();
+            page.setLimit(limit == null ? DEFAULT_PAGE_LIMIT : limit);
+            page.setPageToken(pageToken);
+            page.setSort(sort);
+            OrderPaging.validate(page);
+        }
+        Response ordersListResp = orderService.getOrdersListByProfileId(listType,profileType, id, page);
         if (ordersListResp == null) {
             log.error("Some exception happened trying to get {} orders for profileType {} with ID {}", listType, profileType, id);
             throw new ResourceNotFoundException("Some exception happened trying to get orders with ID " + id);
@@ -106,11 +147,25 @@ public class OrderController extends Constants {
         }
     }
 
+    //bulk export of the orders as NDJSON, written out as they are read instead of being collected first
+    @GetMapping(value = "/{listType}/profiles/{profile-type}/id/stream", produces = APPLICATION_NDJSON)
+    @Operation(summary = "Stream orders list for a profile type based on listing type as NDJSON")
+    public ResponseEntity<StreamingResponseBody> streamOrdersListByProfileId(@PathVariable String listType,
+                                                                              @PathVariable("profile-type") String profileType,
+                                                                              @RequestParam("user-id") String id) {
+        log.info("Streaming {} orders for profileType {} with ID {}", listType, profileType, id);
+        if (utils.getProfileIdentifierFieldBasedOnRole(profileType).isEmpty()) {
+            throw new IllegalArgumentException("Invalid profile type: " + profileType);
+        }
+        StreamingResponseBody body = out -> orderService.streamOrdersListByProfileId(listType, profileType, id, out);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON)).body(body);
+    }
+
     @GetMapping("/activeOrdersForDelivery")
     @Operation(summary = "Retrieve all active orders marked for delivery")
-    public ResponseEntity<JsonNode> getActiveOrdersForDelivery() {
-        log.info("Retrieving all active orders for delivery and in READY state");
-        Response activeOrdersListResp = orderService.getActiveOrdersForDelivery();
+    public ResponseEntity<JsonNode> getActiveOrdersForDelivery(@RequestParam(value = "pincode", required = false) List<String> pincodes) {
+        log.info("Retrieving all active orders for delivery and in READY state near pincodes {}", pincodes);
+        Response activeOrdersListResp = orderService.getActiveOrdersForDelivery(pincodes);
         if (activeOrdersListResp == null) {
             log.error("Some exception happened trying to get all active orders marked for delivery and in READY state");
             throw new ResourceNotFoundException("Some exception happened trying to get all active orders for delivery and in READY state");
@@ -123,6 +178,44 @@ public class OrderController extends Constants {
         }
     }
 
+    /*
+    * Push based feed of the orders ready for delivery: a snapshot event with all of them, then add and remove events
+    * as orders become ready or get accepted, instead of polling activeOrdersForDelivery. Like the poll, only the
+    * orders near the given pincodes when passed.
+    */
+    @GetMapping(value = "/activeOrdersForDelivery/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Subscribe to the active orders marked for delivery")
+    public ResponseEntity<SseEmitter> subscribeToActiveOrdersForDelivery(@RequestParam(value = "pincode", required = false) List<String> pincodes) {
+        log.info("Subscribing to active orders for delivery and in READY state near pincodes {}", pincodes);
+        SseEmitter subscriber = orderService.subscribeToDispatchBoard(pincodes);
+        if (subscriber == null) {
+            log.error("Dispatch board is not enabled, active orders for delivery can only be polled");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(subscriber);
+    }
+
+    //leases a READY order to the delivery partner, who then accepts it with DELIVERY_ACCEPTED before the lease expires
+    @PutMapping("/{orderId}/claim")
+    @Operation(summary = "Claim a ready order for delivery by a delivery partner")
+    public ResponseEntity<JsonNode> claimOrderForDelivery(@PathVariable String orderId, @RequestParam("user-id") String deliveryPartnerId) {
+        log.info("Claiming orderId {} for delivery partner with ID {}", orderId, deliveryPartnerId);
+        ObjectNode response = mapper.createObjectNode();
+        Response claimResp = orderService.claimOrderForDelivery(orderId, deliveryPartnerId);
+        if(claimResp==null || FAILURE.equalsIgnoreCase(claimResp.getStatus())){
+            log.error("Failed to claim orderId {} for delivery partner with ID {}", orderId, deliveryPartnerId);
+            response.put(MESSAGE, "Failed to claim order for orderId " + orderId);
+            return ResponseEntity.badRequest().body(response);
+        }else if(CONFLICT.equalsIgnoreCase(claimResp.getStatus())){
+            log.error("OrderId {} not claimed for delivery partner with ID {} : {}", orderId, deliveryPartnerId, claimResp.getMessage());
+            response.put(MESSAGE, claimResp.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        }else{
+            log.info("OrderId {} claimed for delivery partner with ID {}", orderId, deliveryPartnerId);
+            return ResponseEntity.ok(claimResp.getData());
+        }
+    }
+
     @PutMapping("/{orderId}/{status}")
     @Operation(summary = "Update order status by orderId")
     public ResponseEntity<JsonNode> updateOrderStatus(@PathVariable String orderId, @PathVariable OrderStatus status,
@@ -139,6 +232,11 @@ public class OrderController extends Constants {
             log.error("Failed to update order status {} for orderId {}", status, orderId);
             response.put(MESSAGE, "Failed to update order status " + status + " for orderId " + orderId);
             return ResponseEntity.badRequest().body(response);
+        }else if(CONFLICT.equalsIgnoreCase(updateResp.getStatus())){
+            //the order is not in a status to move from, e.g. another delivery partner accepted it first
+            log.error("Order status {} conflicts with the current status for orderId {} : {}", status, orderId, updateResp.getMessage());
+            response.put(MESSAGE, updateResp.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
         }else{
             log.info("Order status updated for orderId {} for status {}", orderId, status);
             response.put(MESSAGE, "Order status updated for orderId " + orderId);
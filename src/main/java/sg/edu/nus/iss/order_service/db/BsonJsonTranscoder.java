@@ -0,0 +1,106 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.swagger.v3.core.util.Json;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+* Writes a RawBsonDocument as JSON straight from its bytes, reading one BSON value at a time into the JSON
+* generator, so neither a Document, a model object nor a JsonNode is built on the way. The output matches what
+* the service mapper writes for the same model: Decimal128 as a plain number and null fields left out.
+*/
+public final class BsonJsonTranscoder {
+    private static final JsonFactory JSON_FACTORY = Json.mapper().getFactory();
+
+    private BsonJsonTranscoder() {
+    }
+
+    /**
+     * Transcode the document to JSON on the output stream. The stream is flushed but left open.
+     *
+     * @param document The raw document as read from mongo
+     * @param out      The stream to write the JSON to
+     * @throws IOException if writing to the stream fails
+     */
+    public static void transcode(RawBsonDocument document, OutputStream out) throws IOException {
+        try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+             JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            writeDocument(reader, generator);
+        }
+    }
+
+    private static void writeDocument(BsonReader reader, JsonGenerator generator) throws IOException {
+        reader.readStartDocument();
+        generator.writeStartObject();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            generator.writeFieldName(name);
+            writeValue(reader, generator);
+        }
+        reader.readEndDocument();
+        generator.writeEndObject();
+    }
+
+    private static void writeArray(BsonReader reader, JsonGenerator generator) throws IOException {
+        reader.readStartArray();
+        generator.writeStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            writeValue(reader, generator);
+        }
+        reader.readEndArray();
+        generator.writeEndArray();
+    }
+
+    private static void writeValue(BsonReader reader, JsonGenerator generator) throws IOException {
+        BsonType type = reader.getCurrentBsonType();
+        switch(type){
+            case DOCUMENT:
+                writeDocument(reader, generator);
+                break;
+            case ARRAY:
+                writeArray(reader, generator);
+                break;
+            case STRING:
+                generator.writeString(reader.readString());
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(reader.readBoolean());
+                break;
+            case INT32:
+                generator.writeNumber(reader.readInt32());
+                break;
+            case INT64:
+                generator.writeNumber(reader.readInt64());
+                break;
+            case DOUBLE:
+                generator.writeNumber(reader.readDouble());
+                break;
+            case DECIMAL128:
+                generator.writeNumber(reader.readDecimal128().bigDecimalValue());
+                break;
+            case DATE_TIME:
+                generator.writeNumber(reader.readDateTime());
+                break;
+            case NULL:
+                reader.readNull();
+                generator.writeNull();
+                break;
+            default:
+                throw new BsonInvalidOperationException("Cannot transcode BSON type " + type + " to JSON");
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Declares the indexes every hot query of the service depends on, creates them on boot (createIndex is a no-op
+* for an index that already exists) and then explains each hot query shape to verify the planner actually
+* uses an index. A COLLSCAN either logs a warning or, with mongo.indexes.fail-on-collscan, stops the boot.
+*/
+@Component
+public class IndexManager extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(IndexManager.class);
+    private static final String COLLSCAN = "COLLSCAN";
+    private static final String PROBE_VALUE = "index-probe";
+
+    private final MongoManager mongoManager;
+    private final OrderDbCollectionResolver collectionResolver;
+
+    @Value("${"+ORDER_DB+"}")
+    private String orderDb;
+
+    @Value("${"+ORDER_COLLECTION+"}")
+    private String orderColl;
+
+    @Value("${"+OUTBOX_COLL+":outbox}")
+    private String outboxColl = "outbox";
+
+    @Value("${"+CART_DB+"}")
+    private String cartDb;
+
+    @Value("${"+CART_COLL+"}")
+    private String cartColl;
+
+    @Value("${mongo.indexes.enabled:true}")
+    private boolean indexesEnabled = true;
+
+    @Value("${mongo.indexes.fail-on-collscan:false}")
+    private boolean failOnCollscan = false;
+
+    @Value("${"+CLOSED_ORDERS_TTL_DAYS+":0}")
+    private long closedOrdersTtlDays = 0;
+
+    @Value("${"+DISPATCHED_EVENTS_TTL_DAYS+":7}")
+    private long dispatchedEventsTtlDays = 7;
+
+    @Autowired
+    public IndexManager(MongoManager mongoManager, OrderDbCollectionResolver collectionResolver) {
+        this.mongoManager = mongoManager;
+        this.collectionResolver = collectionResolver;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexes() {
+        if(!indexesEnabled){
+            log.info("Index provisioning disabled, skipping index creation and verification.");
+            return;
+        }
+        for(IndexSpec spec : getIndexSpecs()){
+            createIndex(spec);
+        }
+        List<String> collScans = new ArrayList<>();
+        for(QueryShape shape : getQueryShapes()){
+            if(isCollScan(shape)){
+                collScans.add(shape.toString());
+            }
+        }
+        if(collScans.isEmpty()){
+            log.info("All hot query shapes are served by an index.");
+            return;
+        }
+        log.warn("Query shapes resolving to a COLLSCAN : {}", collScans);
+        if(failOnCollscan){
+            throw new IllegalStateException("Query shapes resolving to a COLLSCAN: " + collScans);
+        }
+    }
+
+    /**
+     * Usage stats of every index on the collections managed by the service, as reported by $indexStats.
+     *
+     * @return per collection, the index name with the number of ops served since the index was loaded
+     */
+    public Map<String, List<Document>> getIndexStats() {
+        Map<String, List<Document>> stats = new LinkedHashMap<>();
+        for(String[] dbAndColl : getManagedCollections()){
+            List<Document> collStats = new ArrayList<>();
+            try{
+                for(Document stat : getCollection(dbAndColl[0], dbAndColl[1]).aggregate(List.of(new Document("$indexStats", new Document())))){
+                    Document accesses = stat.get("accesses", Document.class);
+                    Document indexStat = new Document("name", stat.getString("name"));
+                    indexStat.put("key", stat.get("key"));
+                    indexStat.put("ops", accesses == null ? null : accesses.get("ops"));
+                    indexStat.put("since", accesses == null ? null : accesses.get("since"));
+                    collStats.add(indexStat);
+                }
+            }catch(Exception ex){
+                log.error("Exception occurred while reading index stats for coll : {}, {}", dbAndColl[1], ex.getMessage());
+            }
+            stats.put(dbAndColl[1], collStats);
+        }
+        return stats;
+    }
+
+    private List<IndexSpec> getIndexSpecs() {
+        List<IndexSpec> specs = new ArrayList<>();
+        for(String coll : collectionResolver.getOrderCollections()){
+            specs.add(new IndexSpec(orderDb, coll, Indexes.ascending(ORDER_ID), new IndexOptions().unique(true)));
+            if(collectionResolver.isSingleCollection()){
+                //the partial indexes below serve every profile listing, a full index would only add write cost
+                continue;
+            }
+            //listings sort on createdDate with orderId as tie breaker, so both trail the profile field
+            specs.add(new IndexSpec(orderDb, coll, Indexes.compoundIndex(Indexes.ascending(CUSTOMER_ID),
+                    Indexes.descending(CREATED_DATE, ORDER_ID)), new IndexOptions()));
+            specs.add(new IndexSpec(orderDb, coll, Indexes.compoundIndex(Indexes.ascending(MERCHANT_ID),
+                    Indexes.descending(CREATED_DATE, ORDER_ID)), new IndexOptions()));
+            //only orders picked by a delivery partner carry the field
+            specs.add(new IndexSpec(orderDb, coll, Indexes.compoundIndex(Indexes.ascending(DELIVERY_PARTNER_ID),
+                    Indexes.descending(CREATED_DATE, ORDER_ID)), new IndexOptions().sparse(true)));
+        }
+        //the ready delivery orders of a few pickup zones are one index range each
+        specs.add(new IndexSpec(orderDb, orderColl, Indexes.ascending(STATUS, USE_DELIVERY, PICKUP_ZONE), new IndexOptions()));
+        //only claimed ready orders carry the field, the claim sweeper reads the expired ones
+        specs.add(new IndexSpec(orderDb, orderColl, Indexes.ascending(CLAIM_EXPIRES_AT), new IndexOptions().sparse(true)));
+        if(collectionResolver.isSingleCollection()){
+            specs.addAll(getSingleCollectionIndexSpecs());
+        }
+        specs.add(new IndexSpec(orderDb, outboxColl, Indexes.ascending(EVENT_ID), new IndexOptions().unique(true)));
+        specs.add(new IndexSpec(orderDb, outboxColl, Indexes.ascending(STATUS, NEXT_ATTEMPT_AT), new IndexOptions()));
+        //only dispatched events carry dispatchedAt, failed ones stay for inspection
+        if(dispatchedEventsTtlDays > 0){
+            specs.add(new IndexSpec(orderDb, outboxColl, Indexes.ascending(DISPATCHED_AT),
+                    new IndexOptions().expireAfter(dispatchedEventsTtlDays, TimeUnit.DAYS)));
+        }
+        //the unique cart index is ensured by CartService, the cart writes depend on it
+        return specs;
+    }
+
+    /*
+    * With every order in one collection, the per status listings are served by partial indexes that only hold the
+    * orders of their status group, so they stay as small as the archive collections' indexes were. The active index
+    * leads with the sort keys as its orders' statuses are read as one $in group, the closed index leads with the
+    * status so each closed status is one sorted range. Partial filters with $in need mongo 6.0 or newer.
+    * Closed orders carry closedAt, which the optional TTL index expires them on.
+    */
+    private List<IndexSpec> getSingleCollectionIndexSpecs() {
+        List<IndexSpec> specs = new ArrayList<>();
+        Document activeFilter = new Document(STATUS, new Document(OPERATOR_IN, OrderDbCollectionResolver.getActiveStatuses()));
+        Document closedFilter = new Document(STATUS, new Document(OPERATOR_IN, OrderDbCollectionResolver.getClosedStatuses()));
+        for(String profileField : List.of(CUSTOMER_ID, MERCHANT_ID, DELIVERY_PARTNER_ID)){
+            specs.add(new IndexSpec(orderDb, orderColl, Indexes.compoundIndex(Indexes.ascending(profileField),
+                    Indexes.descending(CREATED_DATE, ORDER_ID), Indexes.ascending(STATUS)),
+                    new IndexOptions().name(profileField + "_active").partialFilterExpression(activeFilter)));
+            specs.add(new IndexSpec(orderDb, orderColl, Indexes.compoundIndex(Indexes.ascending(profileField),
+                    Indexes.ascending(STATUS), Indexes.descending(CREATED_DATE, ORDER_ID)),
+                    new IndexOptions().name(profileField + "_closed").partialFilterExpression(closedFilter)));
+        }
+        if(closedOrdersTtlDays > 0){
+            specs.add(new IndexSpec(orderDb, orderColl, Indexes.ascending(CLOSED_AT),
+                    new IndexOptions().expireAfter(closedOrdersTtlDays, TimeUnit.DAYS)));
+        }
+        return specs;
+    }
+
+    private List<QueryShape> getQueryShapes() {
+        List<QueryShape> shapes = new ArrayList<>();
+        shapes.add(new QueryShape(cartDb, cartColl, new Document(CUSTOMER_ID, PROBE_VALUE)));
+        shapes.add(new QueryShape(orderDb, orderColl, new Document(ORDER_ID, PROBE_VALUE)));
+        //a probe status would fall outside every partial filter, single collection listings are probed with real ones
+        List<String> statuses = collectionResolver.isSingleCollection() ? List.of(READY, COMPLETED) : List.of(PROBE_VALUE);
+        for(String coll : collectionResolver.getOrderCollections()){
+            for(String status : statuses){
+                shapes.add(new QueryShape(orderDb, coll, new Document(CUSTOMER_ID, PROBE_VALUE).append(STATUS, status)));
+                shapes.add(new QueryShape(orderDb, coll, new Document(MERCHANT_ID, PROBE_VALUE).append(STATUS, status)));
+                shapes.add(new QueryShape(orderDb, coll, new Document(DELIVERY_PARTNER_ID, PROBE_VALUE).append(STATUS, status)));
+            }
+        }
+        shapes.add(new QueryShape(orderDb, orderColl, new Document(STATUS, READY).append(USE_DELIVERY, true)));
+        shapes.add(new QueryShape(orderDb, orderColl, new Document(STATUS, READY).append(USE_DELIVERY, true)
+                .append(PICKUP_ZONE, new Document(OPERATOR_IN, List.of(PROBE_VALUE)))));
+        shapes.add(new QueryShape(orderDb, orderColl, new Document(CUSTOMER_ID, PROBE_VALUE)
+                .append(STATUS, new Document(OPERATOR_IN, OrderDbCollectionResolver.getActiveStatuses()))));
+        shapes.add(new QueryShape(orderDb, outboxColl, new Document(STATUS, PENDING)
+                .append(NEXT_ATTEMPT_AT, new Document(OPERATOR_LTE, 0L))));
+        return shapes;
+    }
+
+    private List<String[]> getManagedCollections() {
+        List<String[]> collections = new ArrayList<>();
+        for(String coll : collectionResolver.getOrderCollections()){
+            collections.add(new String[]{orderDb, coll});
+        }
+        collections.add(new String[]{orderDb, outboxColl});
+        collections.add(new String[]{cartDb, cartColl});
+        return collections;
+    }
+
+    private void createIndex(IndexSpec spec) {
+        try{
+            String name = getCollection(spec.dbName, spec.collectionName).createIndex(spec.keys, spec.options);
+            log.info("Index {} ensured on coll : {}", name, spec.collectionName);
+        }catch(Exception ex){
+            log.error("Exception occurred while creating index {} on coll : {}, {}", spec.keys, spec.collectionName, ex.getMessage());
+        }
+    }
+
+    private boolean isCollScan(QueryShape shape) {
+        try{
+            Document explain = getCollection(shape.dbName, shape.collectionName).find(shape.query)
+                    .explain(ExplainVerbosity.QUERY_PLANNER);
+            Document queryPlanner = explain.get("queryPlanner", Document.class);
+            return queryPlanner != null && hasStage(queryPlanner.get("winningPlan", Document.class), COLLSCAN);
+        }catch(Exception ex){
+            log.error("Exception occurred while explaining query {} on coll : {}, {}", shape.query, shape.collectionName, ex.getMessage());
+            return false;
+        }
+    }
+
+    //walks the plan tree, plans nest their children under inputStage or inputStages
+    private boolean hasStage(Document plan, String stage) {
+        if(plan == null){
+            return false;
+        }
+        if(stage.equals(plan.getString("stage"))){
+            return true;
+        }
+        if(hasStage(plan.get("inputStage", Document.class), stage) || hasStage(plan.get("queryPlan", Document.class), stage)){
+            return true;
+        }
+        List<Document> inputStages = plan.getList("inputStages", Document.class);
+        if(inputStages != null){
+            for(Document inputStage : inputStages){
+                if(hasStage(inputStage, stage)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private MongoCollection<Document> getCollection(String dbName, String collectionName) {
+        MongoClient mongoClient = mongoManager.getMongoClient(dbName);
+        return mongoClient.getDatabase(dbName).getCollection(collectionName);
+    }
+
+    private static final class IndexSpec {
+        private final String dbName;
+        private final String collectionName;
+        private final Bson keys;
+        private final IndexOptions options;
+
+        private IndexSpec(String dbName, String collectionName, Bson keys, IndexOptions options) {
+            this.dbName = dbName;
+            this.collectionName = collectionName;
+            this.keys = keys;
+            this.options = options;
+        }
+    }
+
+    private static final class QueryShape {
+        private final String dbName;
+        private final String collectionName;
+        private final Document query;
+
+        private QueryShape(String dbName, String collectionName, Document query) {
+            this.dbName = dbName;
+            this.collectionName = collectionName;
+            this.query = query;
+        }
+
+        @Override
+        public String toString() {
+            return collectionName + " " + query.keySet();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+* Lazily creates one MongoClient per database and caches the MongoDatabase and MongoCollection handles built on it,
+* so a query after the first one on a collection is only two map reads. The maps are ConcurrentHashMaps and every
+* reader sees a handle fully built without taking a lock. Creating a client connects and starts its monitor threads,
+* so it is not done inside computeIfAbsent, which would block the other writers of the map bin and pin a virtual
+* thread to its carrier. It is double checked under a ReentrantLock instead: the client for a database is still
+* created exactly once however many threads ask for it.
+*
+* Databases can share a client: the client owner function names the database whose client serves a database
+* (itself by default), so several logical databases on one cluster use one pool and one set of monitor threads.
+* The database customizer then applies the settings that differ per database on the shared client.
+*/
+public class MongoClientRegistry {
+    private final Function<String, String> clientOwner;
+    private final Function<String, MongoClient> clientFactory;
+    private final BiFunction<String, MongoDatabase, MongoDatabase> databaseCustomizer;
+    private final Lock clientLock = new ReentrantLock();
+    private final Map<String, MongoClient> clients = new ConcurrentHashMap<>();
+    private final Map<String, MongoClient> dbClients = new ConcurrentHashMap<>();
+    private final Map<String, MongoDatabase> databases = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, MongoCollection<Document>>> collections = new ConcurrentHashMap<>();
+    private final Map<ReadPreference, Map<String, Map<String, MongoCollection<Document>>>> readPreferenceCollections = new ConcurrentHashMap<>();
+
+    public MongoClientRegistry(Function<String, MongoClient> clientFactory) {
+        this(Function.identity(), clientFactory, (dbName, database) -> database);
+    }
+
+    /**
+     * @param clientOwner        Maps a database to the database whose client it uses
+     * @param clientFactory      Creates the client of an owner database
+     * @param databaseCustomizer Applies per database settings to the database handle
+     */
+    public MongoClientRegistry(Function<String, String> clientOwner, Function<String, MongoClient> clientFactory,
+                               BiFunction<String, MongoDatabase, MongoDatabase> databaseCustomizer) {
+        this.clientOwner = clientOwner;
+        this.clientFactory = clientFactory;
+        this.databaseCustomizer = databaseCustomizer;
+    }
+
+    public MongoClient getMongoClient(String dbName) {
+        MongoClient client = dbClients.get(dbName);
+        if (client != null) {
+            return client;
+        }
+        String owner = clientOwner.apply(dbName);
+        client = clients.get(owner);
+        if (client == null) {
+            clientLock.lock();
+            try {
+                client = clients.get(owner);
+                if (client == null) {
+                    client = clientFactory.apply(owner);
+                    clients.put(owner, client);
+                }
+            } finally {
+                clientLock.unlock();
+            }
+        }
+        MongoClient existing = dbClients.putIfAbsent(dbName, client);
+        return existing == null ? client : existing;
+    }
+
+    public MongoDatabase getDatabase(String dbName) {
+        MongoDatabase database = databases.get(dbName);
+        if (database == null) {
+            MongoClient client = getMongoClient(dbName);
+            database = databases.computeIfAbsent(dbName, name -> databaseCustomizer.apply(name, client.getDatabase(name)));
+        }
+        return database;
+    }
+
+    public MongoCollection<Document> getCollection(String dbName, String collectionName) {
+        return getCollection(collections, dbName, collectionName, null);
+    }
+
+    /**
+     * Collection handle reading with the given read preference instead of the database default, cached like the
+     * default handles.
+     *
+     * @param readPreference The read preference, null for the database default
+     */
+    public MongoCollection<Document> getCollection(String dbName, String collectionName, ReadPreference readPreference) {
+        if (readPreference == null) {
+            return getCollection(dbName, collectionName);
+        }
+        Map<String, Map<String, MongoCollection<Document>>> preferenceCollections = readPreferenceCollections.get(readPreference);
+        if (preferenceCollections == null) {
+            preferenceCollections = readPreferenceCollections.computeIfAbsent(readPreference, preference -> new ConcurrentHashMap<>());
+        }
+        return getCollection(preferenceCollections, dbName, collectionName, readPreference);
+    }
+
+    private MongoCollection<Document> getCollection(Map<String, Map<String, MongoCollection<Document>>> cache,
+                                                    String dbName, String collectionName, ReadPreference readPreference) {
+        Map<String, MongoCollection<Document>> dbCollections = cache.get(dbName);
+        if (dbCollections == null) {
+            dbCollections = cache.computeIfAbsent(dbName, name -> new ConcurrentHashMap<>());
+        }
+        MongoCollection<Document> collection = dbCollections.get(collectionName);
+        if (collection == null) {
+            //the client is resolved first, only handle building runs inside computeIfAbsent
+            if (readPreference == null) {
+                MongoDatabase database = getDatabase(dbName);
+                collection = dbCollections.computeIfAbsent(collectionName, database::getCollection);
+            } else {
+                MongoCollection<Document> defaultCollection = getCollection(dbName, collectionName);
+                collection = dbCollections.computeIfAbsent(collectionName, name -> defaultCollection.withReadPreference(readPreference));
+            }
+        }
+        return collection;
+    }
+
+    //closes every client created so far, handles asked for afterwards open new clients
+    public void close() {
+        clientLock.lock();
+        try {
+            collections.clear();
+            readPreferenceCollections.clear();
+            databases.clear();
+            dbClients.clear();
+            for (MongoClient client : clients.values()) {
+                client.close();
+            }
+            clients.clear();
+        } finally {
+            clientLock.unlock();
+        }
+    }
+}
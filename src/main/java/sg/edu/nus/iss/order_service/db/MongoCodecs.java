@@ -0,0 +1,84 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bson.types.Decimal128;
+import sg.edu.nus.iss.order_service.model.Cart;
+import sg.edu.nus.iss.order_service.model.Item;
+import sg.edu.nus.iss.order_service.model.Order;
+
+import java.math.BigDecimal;
+
+/*
+* Codec registry for the mongo clients. On top of the driver defaults it maps Order, Cart and Item (with
+* OrderStatus as its name) straight from and to BSON, so typed reads and writes skip the intermediate
+* Document and Jackson conversions. BigDecimal is stored as Decimal128.
+*/
+public final class MongoCodecs {
+    private static final CodecRegistry CODEC_REGISTRY = CodecRegistries.fromRegistries(
+            CodecRegistries.fromCodecs(new BigDecimalCodec()),
+            MongoClientSettings.getDefaultCodecRegistry(),
+            CodecRegistries.fromProviders(PojoCodecProvider.builder()
+                    .register(Order.class, Cart.class, Item.class)
+                    .build()));
+
+    private MongoCodecs() {
+    }
+
+    public static CodecRegistry getCodecRegistry() {
+        return CODEC_REGISTRY;
+    }
+
+    //for documents read untyped, e.g. the full document of a change stream event
+    public static <T> T decode(Document document, Class<T> type) {
+        BsonDocument bson = document.toBsonDocument(BsonDocument.class, CODEC_REGISTRY);
+        return CODEC_REGISTRY.get(type).decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+    }
+
+    /*
+    * Writes Decimal128, but reads any numeric BSON type so amounts written as double or int by older
+    * documents or other clients still decode instead of failing the whole read.
+    */
+    static final class BigDecimalCodec implements Codec<BigDecimal> {
+        @Override
+        public void encode(BsonWriter writer, BigDecimal value, EncoderContext encoderContext) {
+            writer.writeDecimal128(new Decimal128(value));
+        }
+
+        @Override
+        public BigDecimal decode(BsonReader reader, DecoderContext decoderContext) {
+            BsonType type = reader.getCurrentBsonType();
+            switch(type){
+                case DECIMAL128:
+                    return reader.readDecimal128().bigDecimalValue();
+                case DOUBLE:
+                    return BigDecimal.valueOf(reader.readDouble());
+                case INT32:
+                    return BigDecimal.valueOf(reader.readInt32());
+                case INT64:
+                    return BigDecimal.valueOf(reader.readInt64());
+                case STRING:
+                    return new BigDecimal(reader.readString());
+                default:
+                    throw new BsonInvalidOperationException("Cannot decode BigDecimal from BSON type " + type);
+            }
+        }
+
+        @Override
+        public Class<BigDecimal> getEncoderClass() {
+            return BigDecimal.class;
+        }
+    }
+}
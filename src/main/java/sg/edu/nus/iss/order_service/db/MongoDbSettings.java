@@ -0,0 +1,152 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoDatabase;
+import org.springframework.core.env.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Client settings of one database, read from the properties under its prefix (mongo.order, mongo.cart):
+*   pool.min-size, pool.max-size, pool.max-wait-ms   connection pool sizing and how long a checkout may wait
+*   connect-timeout-ms, socket-timeout-ms            socket level timeouts
+*   compressors                                      wire compression in order of preference (zstd, snappy, zlib)
+*   read-preference, write-concern                   defaults of every operation on the database
+*   listing.read-preference                          read preference of the order listing reads
+* Anything not set keeps the value from the connection string or the driver default.
+*/
+public class MongoDbSettings {
+    private final Integer minPoolSize;
+    private final Integer maxPoolSize;
+    private final Long maxWaitMs;
+    private final Integer connectTimeoutMs;
+    private final Integer socketTimeoutMs;
+    private final List<MongoCompressor> compressors;
+    private final ReadPreference readPreference;
+    private final ReadPreference listingReadPreference;
+    private final WriteConcern writeConcern;
+
+    private MongoDbSettings(Environment environment, String prefix) {
+        this.minPoolSize = environment.getProperty(prefix + ".pool.min-size", Integer.class);
+        this.maxPoolSize = environment.getProperty(prefix + ".pool.max-size", Integer.class);
+        this.maxWaitMs = environment.getProperty(prefix + ".pool.max-wait-ms", Long.class);
+        this.connectTimeoutMs = environment.getProperty(prefix + ".connect-timeout-ms", Integer.class);
+        this.socketTimeoutMs = environment.getProperty(prefix + ".socket-timeout-ms", Integer.class);
+        this.compressors = getCompressors(environment.getProperty(prefix + ".compressors", String[].class));
+        this.readPreference = getReadPreference(environment.getProperty(prefix + ".read-preference"));
+        ReadPreference listing = getReadPreference(environment.getProperty(prefix + ".listing.read-preference"));
+        this.listingReadPreference = listing != null ? listing : readPreference;
+        this.writeConcern = getWriteConcern(environment.getProperty(prefix + ".write-concern"));
+    }
+
+    public static MongoDbSettings from(Environment environment, String prefix) {
+        return new MongoDbSettings(environment, prefix);
+    }
+
+    /**
+     * The read preference of the order listing reads, null to use the database default.
+     */
+    public ReadPreference getListingReadPreference() {
+        return listingReadPreference;
+    }
+
+    public void apply(MongoClientSettings.Builder builder) {
+        builder.applyToConnectionPoolSettings(pool -> {
+            if (minPoolSize != null) {
+                pool.minSize(minPoolSize);
+            }
+            if (maxPoolSize != null) {
+                pool.maxSize(maxPoolSize);
+            }
+            if (maxWaitMs != null) {
+                pool.maxWaitTime(maxWaitMs, TimeUnit.MILLISECONDS);
+            }
+        });
+        builder.applyToSocketSettings(socket -> {
+            if (connectTimeoutMs != null) {
+                socket.connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            if (socketTimeoutMs != null) {
+                socket.readTimeout(socketTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+        });
+        if (!compressors.isEmpty()) {
+            builder.compressorList(compressors);
+        }
+        if (readPreference != null) {
+            builder.readPreference(readPreference);
+        }
+        if (writeConcern != null) {
+            builder.writeConcern(writeConcern);
+        }
+    }
+
+    //the per database defaults, for a database handle on a client that was built with another database's settings
+    public MongoDatabase apply(MongoDatabase database) {
+        MongoDatabase customized = database;
+        if (readPreference != null) {
+            customized = customized.withReadPreference(readPreference);
+        }
+        if (writeConcern != null) {
+            customized = customized.withWriteConcern(writeConcern);
+        }
+        return customized;
+    }
+
+    //the same defaults on a database handle of the reactive streams driver
+    public com.mongodb.reactivestreams.client.MongoDatabase apply(com.mongodb.reactivestreams.client.MongoDatabase database) {
+        com.mongodb.reactivestreams.client.MongoDatabase customized = database;
+        if (readPreference != null) {
+            customized = customized.withReadPreference(readPreference);
+        }
+        if (writeConcern != null) {
+            customized = customized.withWriteConcern(writeConcern);
+        }
+        return customized;
+    }
+
+    private static List<MongoCompressor> getCompressors(String[] names) {
+        List<MongoCompressor> compressors = new ArrayList<>();
+        if (names == null) {
+            return compressors;
+        }
+        for (String name : names) {
+            switch (name.trim().toLowerCase()) {
+                case "zstd":
+                    compressors.add(MongoCompressor.createZstdCompressor());
+                    break;
+                case "snappy":
+                    compressors.add(MongoCompressor.createSnappyCompressor());
+                    break;
+                case "zlib":
+                    compressors.add(MongoCompressor.createZlibCompressor());
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid mongo compressor: " + name);
+            }
+        }
+        return compressors;
+    }
+
+    private static ReadPreference getReadPreference(String name) {
+        return name == null || name.isBlank() ? null : ReadPreference.valueOf(name.trim());
+    }
+
+    private static WriteConcern getWriteConcern(String name) {
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+        WriteConcern writeConcern = WriteConcern.valueOf(name.trim());
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Invalid mongo write concern: " + name);
+        }
+        return writeConcern;
+    }
+}
@@ -1,28 +1,94 @@
 package sg.edu.nus.iss.order_service.db;
 
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import sg.edu.nus.iss.order_service.utils.MongoConstants;
+import sg.edu.nus.iss.order_service.utils.SingleFlight;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Service
 public class MongoManager {
     private static final Logger log = LoggerFactory.getLogger(MongoManager.class);
 
+    private final MongoClientRegistry clientRegistry = MongoSingleton.getRegistry();
+
+    @Value("${mongo.transactions.enabled:true}")
+    private boolean transactionsEnabled = true;
+
+    @Value("${mongo.transactions.max-commit-ms:5000}")
+    private long maxCommitMs = 5000;
+
+    @Value("${mongo.stream.batch-size:500}")
+    private int streamBatchSize = 500;
+
+    @Value("${mongo.single-flight.enabled:true}")
+    private boolean singleFlightEnabled = true;
+
+    @Value("${mongo.single-flight.max-wait-ms:2000}")
+    private long singleFlightMaxWaitMs = 2000;
+
+    /*
+    * Concurrent identical single document reads of the read only endpoints, e.g. order tracking polls of a hot order,
+    * share one query. The raw BSON read is immutable, every caller decodes its own copy of it.
+    */
+    private final SingleFlight<List<Object>, RawBsonDocument> findFlight;
+
+    @Autowired
+    public MongoManager(ObjectProvider<MeterRegistry> meterRegistryProvider) {
+        this.findFlight = new SingleFlight<>("mongo.find", meterRegistryProvider.getIfAvailable(SimpleMeterRegistry::new),
+                raw -> raw);
+    }
+
     public MongoClient getMongoClient(String dbName) {
-        return MongoSingleton.getMongoClient(dbName);
+        return clientRegistry.getMongoClient(dbName);
+    }
+
+    /**
+     * Read preference for order listings on the database (mongo.*.listing.read-preference), to pass to the read
+     * methods taking one. Listings tolerate the replication lag of a secondary, single order reads do not.
+     */
+    public ReadPreference getListingReadPreference(String dbName) {
+        return MongoSingleton.getListingReadPreference(dbName);
     }
 
     /**
@@ -35,13 +101,7 @@ public class MongoManager {
      */
     public Document findDocument(Document query, String dbName, String collectionName) {
         try{
-            MongoClient mongoClient = getMongoClient(dbName);
-            if(mongoClient==null){
-                log.error("findDocument :: Unable to get mongo client for DB : {} and coll : {}", dbName, collectionName);
-                return null;
-            }
-            MongoDatabase database = mongoClient.getDatabase(dbName);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoCollection<Document> collection = getCollection(dbName, collectionName);
             return collection.find(query).first();
         } catch(Exception ex){
             log.error("findDocument :: Exception occurred while finding document in collection: {}", ex.getMessage());
@@ -61,13 +121,7 @@ public class MongoManager {
     public Document findOneAndUpdate(Document query, Document update, String dbName, String collectionName,
                                      boolean upsert, boolean returnUpdatedDoc) {
         try{
-            MongoClient mongoClient = getMongoClient(dbName);
-            if(mongoClient==null){
-                log.error("updateDocument :: Unable to get mongo client for DB : {} and coll : {}", dbName, collectionName);
-                return null;
-            }
-            MongoDatabase database = mongoClient.getDatabase(dbName);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoCollection<Document> collection = getCollection(dbName, collectionName);
 
             FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
             options.returnDocument(returnUpdatedDoc ? ReturnDocument.AFTER : ReturnDocument.BEFORE);
@@ -90,13 +144,7 @@ public class MongoManager {
      */
     public boolean deleteDocument(Document query, String dbName, String collectionName) {
         try{
-            MongoClient mongoClient = getMongoClient(dbName);
-            if(mongoClient==null){
-                log.error("deleteDocument :: Unable to get mongo client for DB : {} and coll : {}", dbName, collectionName);
-                return false;
-            }
-            MongoDatabase database = mongoClient.getDatabase(dbName);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoCollection<Document> collection = getCollection(dbName, collectionName);
             return collection.deleteOne(query).wasAcknowledged();
         }catch(Exception ex){
             log.error("deleteDocument :: Exception occurred while deleting document in collection: {}", ex.getMessage());
@@ -106,13 +154,7 @@ public class MongoManager {
 
     public boolean insertDocument(Document document, String dbName, String collectionName) {
         try{
-            MongoClient mongoClient = getMongoClient(dbName);
-            if(mongoClient==null){
-                log.error("insertDocument :: Unable to get mongo client for DB : {} and coll : {}", dbName, collectionName);
-                return false;
-            }
-            MongoDatabase database = mongoClient.getDatabase(dbName);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoCollection<Document> collection = getCollection(dbName, collectionName);
             return collection.insertOne(document).wasAcknowledged();
         }catch(Exception ex){
             log.error("insertDocument :: Exception occurred while inserting document in collection: {}", ex.getMessage());
@@ -121,14 +163,16 @@ public class MongoManager {
     }
 
     public List<Document> findAllDocuments(Document query, String dbName, String collectionName) {
+        return findAllDocuments(query, dbName, collectionName, (ReadPreference) null);
+    }
+
+    /**
+     * findAllDocuments reading with the given read preference, e.g. getListingReadPreference for order listings
+     * that may be served by a secondary. A null read preference uses the database default.
+     */
+    public List<Document> findAllDocuments(Document query, String dbName, String collectionName, ReadPreference readPreference) {
         try{
-            MongoClient mongoClient = getMongoClient(dbName);
-            if (mongoClient == null) {
-                log.error("findAllDocuments :: Unable to get mongo client for DB : {} and coll : {}", dbName, collectionName);
-                return null;
-            }
-            MongoDatabase database = mongoClient.getDatabase(dbName);
-            MongoCollection<Document> collection = database.getCollection(collectionName);
+            MongoCollection<Document> collection = getCollection(dbName, collectionName, readPreference);
             List<Document> documents = new ArrayList<>();
             try (MongoCursor<Document> cursor = collection.find(query).iterator()) {
                 while (cursor.hasNext()) {
@@ -141,4 +185,426 @@ public class MongoManager {
             return null;
         }
     }
+
+    /**
+     * Run a unit of work inside a multi-document transaction on the given database. The work receives the
+     * session to pass on to the session aware write methods. The driver retries the whole work on a transient
+     * transaction error and the commit on an unknown commit result, both within max-commit-ms. A work returning
+     * false aborts the transaction, so a chain of session aware writes commits all or nothing.
+     * When transactions are disabled (standalone mongo in local runs) the work is run with a null session.
+     * The transaction may span several databases as long as they share the client (see MongoSingleton.getClientOwner).
+     *
+     * @param dbName The name of the database
+     * @param work   The writes to run in the transaction
+     * @return The result of the work, or null if the transaction was aborted
+     */
+    public <T> T executeInTransaction(String dbName, Function<ClientSession, T> work) {
+        if(!transactionsEnabled){
+            try{
+                return work.apply(null);
+            }catch(Exception ex){
+                log.error("executeInTransaction :: Exception occurred while running work without transaction: {}", ex.getMessage());
+                return null;
+            }
+        }
+        MongoClient mongoClient = getMongoClient(dbName);
+        if(mongoClient==null){
+            log.error("executeInTransaction :: Unable to get mongo client for DB : {}", dbName);
+            return null;
+        }
+        try(ClientSession session = mongoClient.startSession()){
+            return session.withTransaction(() -> {
+                T result = work.apply(session);
+                if(Boolean.FALSE.equals(result)){
+                    throw new TransactionAbortedException();
+                }
+                return result;
+            }, getTransactionOptions());
+        }catch(TransactionAbortedException ex){
+            log.error("executeInTransaction :: A write of the transaction failed, transaction aborted");
+            return null;
+        }catch(Exception ex){
+            log.error("executeInTransaction :: Exception occurred, transaction aborted: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    //reads of the transaction see majority committed data and its writes are acknowledged by a majority on commit
+    private TransactionOptions getTransactionOptions() {
+        return TransactionOptions.builder()
+                .readPreference(ReadPreference.primary())
+                .readConcern(ReadConcern.MAJORITY)
+                .writeConcern(WriteConcern.MAJORITY)
+                .maxCommitTime(maxCommitMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Whether both databases are served by the same client, so a transaction on one may also write to the other.
+     */
+    public boolean sharesClient(String dbName, String otherDbName) {
+        return getMongoClient(dbName) == getMongoClient(otherDbName);
+    }
+
+    /**
+     * Insert a document as part of a transaction. Exceptions are not swallowed here so that the
+     * surrounding transaction gets aborted, a null session falls back to the plain insert.
+     */
+    public boolean insertDocument(ClientSession session, Document document, String dbName, String collectionName) {
+        if(session == null){
+            return insertDocument(document, dbName, collectionName);
+        }
+        return getCollection(dbName, collectionName).insertOne(session, document).wasAcknowledged();
+    }
+
+    /**
+     * Delete a document as part of a transaction, a null session falls back to the plain delete. Within a
+     * transaction this is true only if a document was deleted, so moving a document that a concurrent request
+     * already moved aborts the transaction instead of committing a duplicate.
+     */
+    public boolean deleteDocument(ClientSession session, Document query, String dbName, String collectionName) {
+        if(session == null){
+            return deleteDocument(query, dbName, collectionName);
+        }
+        return getCollection(dbName, collectionName).deleteOne(session, query).getDeletedCount() > 0;
+    }
+
+    /**
+     * Update the first document matching the query, as part of a transaction when a session is given. True only
+     * if a document matched, so a query that also checks the current state fails once that state has changed.
+     * Exceptions are not swallowed, the caller runs this within executeInTransaction.
+     */
+    public boolean updateDocument(ClientSession session, Document query, Document update, String dbName, String collectionName) {
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        UpdateResult result = session == null ? collection.updateOne(query, update) : collection.updateOne(session, query, update);
+        return result.getMatchedCount() > 0;
+    }
+
+    /**
+     * Update the first document matching the query and return it as updated, or null if none matched. Part of a
+     * transaction when a session is given. With a query on the current state as well this is a compare and set,
+     * of two concurrent requests expecting the same state only one gets the document back.
+     * Exceptions are not swallowed, so a failed write is not mistaken for a query that matched nothing.
+     */
+    public Document findOneAndUpdate(ClientSession session, Document query, Document update, String dbName, String collectionName) {
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        return session == null ? collection.findOneAndUpdate(query, update, options)
+                : collection.findOneAndUpdate(session, query, update, options);
+    }
+
+    /**
+     * findOneAndUpdate with an update pipeline, for updates that set a field from other fields of the document
+     */
+    public Document findOneAndUpdate(ClientSession session, Document query, List<Document> pipeline, String dbName, String collectionName) {
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        return session == null ? collection.findOneAndUpdate(query, pipeline, options)
+                : collection.findOneAndUpdate(session, query, pipeline, options);
+    }
+
+    /**
+     * Replace or insert each document by its key field in one unordered bulk write, so writing the same
+     * documents again leaves the collection unchanged. The _id is left out of the replacement, a document
+     * keeps the _id it already has in the collection. Exceptions are not swallowed.
+     *
+     * @param keyField The unique field identifying a document, e.g. orderId
+     * @return The number of documents matched or inserted
+     */
+    public int upsertDocuments(ClientSession session, List<Document> documents, String keyField, String dbName, String collectionName) {
+        if(documents.isEmpty()){
+            return 0;
+        }
+        List<ReplaceOneModel<Document>> replacements = new ArrayList<>();
+        for(Document document : documents){
+            Document replacement = new Document(document);
+            replacement.remove(MongoConstants.MONGO_ID);
+            replacements.add(new ReplaceOneModel<>(new Document(keyField, document.get(keyField)), replacement,
+                    new ReplaceOptions().upsert(true)));
+        }
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+        BulkWriteResult result = session == null ? collection.bulkWrite(replacements, options)
+                : collection.bulkWrite(session, replacements, options);
+        return result.getMatchedCount() + result.getUpserts().size();
+    }
+
+    /**
+     * Update every document matching the query, as part of a transaction when a session is given.
+     * Exceptions are not swallowed.
+     *
+     * @return The number of modified documents
+     */
+    public long updateDocuments(ClientSession session, Document query, Document update, String dbName, String collectionName) {
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        UpdateResult result = session == null ? collection.updateMany(query, update) : collection.updateMany(session, query, update);
+        return result.getModifiedCount();
+    }
+
+    /**
+     * Delete every document matching the query, as part of a transaction when a session is given.
+     * Exceptions are not swallowed.
+     *
+     * @return The number of deleted documents
+     */
+    public long deleteDocuments(ClientSession session, Document query, String dbName, String collectionName) {
+        MongoCollection<Document> collection = getCollection(dbName, collectionName);
+        DeleteResult result = session == null ? collection.deleteMany(query) : collection.deleteMany(session, query);
+        return result.getDeletedCount();
+    }
+
+    /**
+     * Find documents matching the query in sort order, reading at most limit documents
+     *
+     * @param query          The query document to find the matching documents
+     * @param sort           The sort to apply, null for natural order
+     * @param limit          Max number of documents to return
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return The found documents, or null on failure
+     */
+    public List<Document> findDocuments(Document query, Document sort, int limit, String dbName, String collectionName) {
+        return findDocuments(query, sort, limit, dbName, collectionName, null);
+    }
+
+    public List<Document> findDocuments(Document query, Document sort, int limit, String dbName, String collectionName,
+                                        ReadPreference readPreference) {
+        try{
+            MongoCollection<Document> collection = getCollection(dbName, collectionName, readPreference);
+            List<Document> documents = new ArrayList<>();
+            collection.find(query).sort(sort).limit(limit).into(documents);
+            return documents;
+        }catch(Exception ex){
+            log.error("findDocuments :: Exception occurred while finding documents in collection: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hand every document matching the query to the action as the cursor yields it, in sort order. Only one
+     * cursor batch is held in memory at a time, for reads too large to collect into a list.
+     *
+     * @param query          The query document to find the matching documents
+     * @param sort           The sort to apply, null for natural order
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @param action         Called for each found document, an exception thrown by it stops the read
+     * @return true if the cursor was read to the end, false on failure
+     */
+    public boolean forEachDocument(Document query, Document sort, String dbName, String collectionName, Consumer<Document> action) {
+        return forEachDocument(query, sort, dbName, collectionName, null, action);
+    }
+
+    public boolean forEachDocument(Document query, Document sort, String dbName, String collectionName,
+                                   ReadPreference readPreference, Consumer<Document> action) {
+        try{
+            MongoCollection<Document> collection = getCollection(dbName, collectionName, readPreference);
+            try (MongoCursor<Document> cursor = collection.find(query).sort(sort).batchSize(streamBatchSize).iterator()) {
+                while (cursor.hasNext()) {
+                    action.accept(cursor.next());
+                }
+            }
+            return true;
+        }catch(Exception ex){
+            log.error("forEachDocument :: Exception occurred while reading documents from collection: {}", ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Open a cursor over the documents matching the query in sort order, for callers that read lazily or merge
+     * several cursors. The caller owns the cursor and must close it.
+     *
+     * @param query          The query document to find the matching documents
+     * @param sort           The sort to apply, null for natural order
+     * @param limit          Max number of documents to read, 0 for no limit
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return The open cursor with its first batch fetched, or null on failure
+     */
+    public MongoCursor<Document> findCursor(Document query, Document sort, int limit, String dbName, String collectionName) {
+        return findCursor(query, sort, limit, dbName, collectionName, null);
+    }
+
+    public MongoCursor<Document> findCursor(Document query, Document sort, int limit, String dbName, String collectionName,
+                                            ReadPreference readPreference) {
+        try{
+            MongoCollection<Document> collection = getCollection(dbName, collectionName, readPreference);
+            int batchSize = limit > 0 ? Math.min(limit, streamBatchSize) : streamBatchSize;
+            return collection.find(query).sort(sort).limit(limit).batchSize(batchSize).iterator();
+        }catch(Exception ex){
+            log.error("findCursor :: Exception occurred while opening cursor on collection: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /*
+    * Typed variants of the methods above. The collection is read and written through the registered codecs
+    * (see MongoCodecs), so documents are decoded straight into the model class without a Document copy.
+    */
+
+    public <T> T findDocument(Document query, String dbName, String collectionName, Class<T> type) {
+        try{
+            MongoCollection<T> collection = getCollection(dbName, collectionName, type);
+            return collection.find(query).first();
+        } catch(Exception ex){
+            log.error("findDocument :: Exception occurred while finding {} in collection: {}", type.getSimpleName(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Find a document and keep it as the raw BSON bytes the server sent, for reads that are only passed on
+     * (see BsonJsonTranscoder) and never need to be decoded into a Document or model.
+     *
+     * @param query          The query document to find the matching document
+     * @param projection     The fields to return, null for the whole document
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return The found raw document, or null if no match is found or on failure
+     */
+    public RawBsonDocument findRawDocument(Document query, Document projection, String dbName, String collectionName) {
+        try{
+            MongoCollection<RawBsonDocument> collection = getCollection(dbName, collectionName, RawBsonDocument.class);
+            return collection.find(query).projection(projection).first();
+        }catch(Exception ex){
+            log.error("findRawDocument :: Exception occurred while finding document in collection: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Like findRawDocument, but concurrent identical reads share one query. A caller joining a read already in flight
+     * may not see a write that completed after that read started, so it is only meant for read only endpoints polled
+     * by clients, never for a read that has to see the caller's own writes.
+     *
+     * @param query          The query document to find the matching document
+     * @param projection     The fields to return, null for the whole document
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return The found raw document, or null if no match is found or on failure
+     */
+    public RawBsonDocument findRawDocumentCoalesced(Document query, Document projection, String dbName, String collectionName) {
+        if(!singleFlightEnabled){
+            return findRawDocument(query, projection, dbName, collectionName);
+        }
+        try{
+            MongoCollection<RawBsonDocument> collection = getCollection(dbName, collectionName, RawBsonDocument.class);
+            //keyed on the encoded query, so values only equal once typed, e.g. an int and a long, are told apart
+            CodecRegistry codecRegistry = collection.getCodecRegistry();
+            List<Object> key = Arrays.asList(dbName, collectionName, encode(query, codecRegistry),
+                    projection == null ? null : encode(projection, codecRegistry));
+            return findFlight.execute(key, singleFlightMaxWaitMs, () -> collection.find(query).projection(projection).first());
+        }catch(Exception ex){
+            log.error("findRawDocumentCoalesced :: Exception occurred while finding document in collection: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    public <T> List<T> findAllDocuments(Document query, String dbName, String collectionName, Class<T> type) {
+        try{
+            MongoCollection<T> collection = getCollection(dbName, collectionName, type);
+            return collection.find(query).batchSize(streamBatchSize).into(new ArrayList<>());
+        }catch(Exception ex){
+            log.error("findAllDocuments :: Exception occurred while finding all {} in collection: {}", type.getSimpleName(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Insert a typed document, as part of a transaction when a session is given. Like the session aware insert
+     * above, exceptions within a transaction are not swallowed so that the transaction gets aborted.
+     */
+    public <T> boolean insertDocument(ClientSession session, T document, String dbName, String collectionName, Class<T> type) {
+        if(session != null){
+            return getCollection(dbName, collectionName, type).insertOne(session, document).wasAcknowledged();
+        }
+        try{
+            MongoCollection<T> collection = getCollection(dbName, collectionName, type);
+            return collection.insertOne(document).wasAcknowledged();
+        }catch(Exception ex){
+            log.error("insertDocument :: Exception occurred while inserting {} in collection: {}", type.getSimpleName(), ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Create an index on the collection, a no-op when an index with the same keys and options already exists
+     *
+     * @param keys           The index keys
+     * @param options        The index options, e.g. unique
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return true if the index exists after the call, false otherwise
+     */
+    public boolean createIndex(Bson keys, IndexOptions options, String dbName, String collectionName) {
+        try{
+            String name = getCollection(dbName, collectionName).createIndex(keys, options);
+            log.info("createIndex :: Index {} ensured on collection: {}", name, collectionName);
+            return true;
+        }catch(Exception ex){
+            log.error("createIndex :: Exception occurred while creating index {} on collection: {}, {}", keys, collectionName, ex.getMessage());
+            return false;
+        }
+    }
+
+    public <T> T findOneAndUpdate(Document query, Document update, String dbName, String collectionName,
+                                  boolean upsert, boolean returnUpdatedDoc, Class<T> type) {
+        try{
+            MongoCollection<T> collection = getCollection(dbName, collectionName, type);
+            FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
+            options.returnDocument(returnUpdatedDoc ? ReturnDocument.AFTER : ReturnDocument.BEFORE);
+            options.upsert(upsert);
+            return collection.findOneAndUpdate(query, update, options);
+        }catch(Exception ex) {
+            log.error("updateDocument :: Exception occurred while updating {} in collection: {}", type.getSimpleName(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open a change stream on the collection, the changes carrying the current version of the changed document.
+     * Needs a replica set. Like findCursor the caller owns the cursor and must close it, but exceptions are not
+     * swallowed: the caller decides whether to resume after the last token or start over.
+     *
+     * @param pipeline       The stages filtering the changes, e.g. a $match on the operationType
+     * @param resumeToken    The token of the last change handled to resume after, null to start from now
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return The open change stream cursor
+     */
+    public MongoChangeStreamCursor<ChangeStreamDocument<Document>> watchCollection(List<Document> pipeline, BsonDocument resumeToken,
+                                                                               String dbName, String collectionName) {
+        ChangeStreamIterable<Document> changes = getCollection(dbName, collectionName).watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP);
+        if(resumeToken != null){
+            changes = changes.resumeAfter(resumeToken);
+        }
+        return changes.cursor();
+    }
+
+    //the BSON bytes the document is sent as, compared by content
+    private static ByteBuffer encode(Document document, CodecRegistry codecRegistry) {
+        return new RawBsonDocument(document, codecRegistry.get(Document.class)).getByteBuffer().asNIO();
+    }
+
+    private MongoCollection<Document> getCollection(String dbName, String collectionName) {
+        return clientRegistry.getCollection(dbName, collectionName);
+    }
+
+    private MongoCollection<Document> getCollection(String dbName, String collectionName, ReadPreference readPreference) {
+        return clientRegistry.getCollection(dbName, collectionName, readPreference);
+    }
+
+    //the typed view shares the cached collection handle, it only swaps the document class used by the codecs
+    private <T> MongoCollection<T> getCollection(String dbName, String collectionName, Class<T> type) {
+        return getCollection(dbName, collectionName).withDocumentClass(type);
+    }
+
+    //thrown out of the transaction body to make withTransaction abort instead of commit
+    private static final class TransactionAbortedException extends RuntimeException {
+        private TransactionAbortedException() {
+            super(null, null, false, false);
+        }
+    }
 }
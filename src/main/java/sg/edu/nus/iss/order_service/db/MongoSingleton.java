@@ -3,26 +3,31 @@ package sg.edu.nus.iss.order_service.db;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.bson.UuidRepresentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 import sg.edu.nus.iss.order_service.config.MongoConfig;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.MongoConstants;
 
-import java.util.HashMap;
-import java.util.Map;
-
 @Component
 public class MongoSingleton extends Constants {
     private static final Logger log = LoggerFactory.getLogger(MongoSingleton.class);
-    private static final Map<String, MongoClient> mongoClients = new HashMap<>();
+    private static final MongoClientRegistry registry = new MongoClientRegistry(MongoSingleton::getClientOwner,
+            MongoSingleton::createMongoClient, (dbName, database) -> getDbSettings(dbName).apply(database));
 
     @Value("${"+MONGO_SRV+"}")
     private String mongoSrvVal;
@@ -45,6 +50,9 @@ public class MongoSingleton extends Constants {
     @Value("${"+CART_DB_PASSWORD+"}")
     private String cartDbPasswordVal;
 
+    @Value("${"+CART_ISOLATED_CLIENT+":false}")
+    private boolean cartIsolatedClientVal = false;
+
     private static String mongoSrv;
     private static String orderDb;
     private static String orderDbUsername;
@@ -52,6 +60,16 @@ public class MongoSingleton extends Constants {
     private static String cartDb;
     private static String cartDbUsername;
     private static String cartDbPassword;
+    private static MongoDbSettings orderDbSettings;
+    private static MongoDbSettings cartDbSettings;
+    private static MeterRegistry meterRegistry;
+    private static boolean cartIsolatedClient;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistryProvider;
 
     @PostConstruct
     private void init() {
@@ -62,6 +80,15 @@ public class MongoSingleton extends Constants {
         cartDb = this.cartDbVal;
         cartDbUsername = this.cartDbUsernameVal;
         cartDbPassword = this.cartDbPasswordVal;
+        orderDbSettings = MongoDbSettings.from(environment, ORDER_DB_SETTINGS);
+        cartDbSettings = MongoDbSettings.from(environment, CART_DB_SETTINGS);
+        meterRegistry = meterRegistryProvider.getIfAvailable();
+        cartIsolatedClient = this.cartIsolatedClientVal;
+        if (!orderDb.equals(getClientOwner(cartDb))) {
+            log.info("Cart DB gets a mongo client of its own.");
+        } else {
+            log.info("Cart DB shares the mongo client of Order DB.");
+        }
     }
 
     private MongoSingleton() {
@@ -69,25 +96,50 @@ public class MongoSingleton extends Constants {
     }
 
     public static MongoClient getMongoClient(String dbName) {
-        log.debug("Entering getMongoClient method.");
-        // First check (outside synchronized block) to avoid unnecessary locking
-        if (!mongoClients.containsKey(dbName)) {
-            synchronized (MongoSingleton.class) {
-                // Second check (inside synchronized block) to ensure only one thread creates the MongoClient
-                if (!mongoClients.containsKey(dbName)) {
-                    // Initialize MongoClient for the specified database
-                    mongoClients.put(dbName, createMongoClient(dbName));
-                }
-            }
+        return registry.getMongoClient(dbName);
+    }
+
+    /*
+    * Clients, databases and collections are created once on first use and then served from the registry
+    * without locking.
+    */
+    public static MongoClientRegistry getRegistry() {
+        return registry;
+    }
+
+    /*
+    * Database whose client serves the given one. The cart DB lives on the same cluster as the order DB in every
+    * environment so far, and a second client there only doubles the connections, monitor threads and heartbeats
+    * per pod. It shares the order DB client whenever both connect with the same identity, unless
+    * mongo.cart.isolated-client asks for a client of its own. A shared client is built with the order DB pool,
+    * timeout and compression settings, the cart DB read preference and write concern still apply to its handles.
+    */
+    static String getClientOwner(String dbName) {
+        if (cartDb.equals(dbName) && !cartIsolatedClient && getClientIdentity(cartDb).equals(getClientIdentity(orderDb))) {
+            return orderDb;
         }
-        return mongoClients.get(dbName);
+        return dbName;
     }
 
     /*
-    * Uses Builder Design Pattern
+    * What a client of the database connects to and authenticates as. The per DB credentials are not applied (see
+    * getMongoClientSettings), both DBs authenticate with the connection string, so that is their whole identity.
+    * It has to take in the credentials if those get applied again.
     */
+    private static String getClientIdentity(String dbName) {
+        return mongoSrv;
+    }
+
     private static MongoClient createMongoClient(String dbName) {
         log.debug("Entering createMongoClient method.");
+        return MongoClients.create(getMongoClientSettings(dbName));
+    }
+
+    /*
+    * Uses Builder Design Pattern. Shared with the reactive clients of ReactiveMongoManager, so both driver modes
+    * connect the same way.
+    */
+    static MongoClientSettings getMongoClientSettings(String dbName) {
         ConnectionString connectionString = new ConnectionString(mongoSrv);
         if (orderDb.equals(dbName)) {
             log.info("Setting mongo client for Order DB.");
@@ -95,39 +147,79 @@ public class MongoSingleton extends Constants {
 //            MongoCredential credential = MongoCredential.createCredential(
 //                    orderDbUsername, orderDb, orderDbPassword.toCharArray());
 
-            MongoClientSettings settings = MongoClientSettings.builder()
+            MongoClientSettings settings = applyDbSettings(MongoClientSettings.builder()
                     .applyConnectionString(connectionString)
                     .uuidRepresentation(UuidRepresentation.STANDARD)
+                    .codecRegistry(MongoCodecs.getCodecRegistry()), orderDbSettings)
 //                    .credential(credential)
                     .build();
 
-            return MongoClients.create(settings);
+            return settings;
         } else if (cartDb.equals(dbName)) {
             log.info("Setting mongo client for Cart DB.");
             // Connection for cart DB
 //            MongoCredential credential = MongoCredential.createCredential(
 //                    cartDbUsername, cartDb, cartDbPassword.toCharArray());
 
-            MongoClientSettings settings = MongoClientSettings.builder()
+            MongoClientSettings settings = applyDbSettings(MongoClientSettings.builder()
                     .applyConnectionString(connectionString)
                     .uuidRepresentation(UuidRepresentation.STANDARD)
+                    .codecRegistry(MongoCodecs.getCodecRegistry()), cartDbSettings)
 //                    .credential(credential)
                     .build();
 
-            return MongoClients.create(settings);
+            return settings;
         } else {
             log.error("Unable to identify mongo Db to setup mongo client.");
             throw new IllegalArgumentException("Invalid database name: " + dbName);
         }
     }
 
+    /**
+     * Read preference for the order listing reads of the given database, which can be served by secondaries.
+     *
+     * @param dbName The name of the database
+     * @return the listing read preference
+     */
+    public static ReadPreference getListingReadPreference(String dbName) {
+        return getDbSettings(dbName).getListingReadPreference();
+    }
+
+    /**
+     * A database handle of the reactive streams driver with the read preference and write concern of the database.
+     *
+     * @param dbName   The name of the database
+     * @param database The database handle of the client
+     * @return the customized database handle
+     */
+    static com.mongodb.reactivestreams.client.MongoDatabase applyDbSettings(String dbName,
+                                                                            com.mongodb.reactivestreams.client.MongoDatabase database) {
+        return getDbSettings(dbName).apply(database);
+    }
+
+    private static MongoDbSettings getDbSettings(String dbName) {
+        if (orderDb.equals(dbName)) {
+            return orderDbSettings;
+        } else if (cartDb.equals(dbName)) {
+            return cartDbSettings;
+        }
+        throw new IllegalArgumentException("Invalid database name: " + dbName);
+    }
+
+    //pool, timeouts, compression, read preference and write concern of the database, plus the actuator metrics
+    private static MongoClientSettings.Builder applyDbSettings(MongoClientSettings.Builder builder, MongoDbSettings dbSettings) {
+        dbSettings.apply(builder);
+        if (meterRegistry != null) {
+            builder.addCommandListener(new MongoMetricsCommandListener(meterRegistry));
+            builder.applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry)));
+        }
+        return builder;
+    }
+
     @PreDestroy
     public void closeAllClients() {
         log.info("Starting closing of all mongoClients.");
-        for (MongoClient client : mongoClients.values()) {
-            client.close();
-        }
-        mongoClients.clear();
+        registry.close();
         log.info("All MongoClient connections closed.");
     }
 }
@@ -0,0 +1,210 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+* Non blocking counterpart of MongoManager on the reactive streams driver, enabled with mongo.driver.mode=reactive.
+* Every method returns at once with a future completed by the driver's event loop, so a caller (e.g. a controller
+* returning the future to spring mvc) does not hold a thread while the query runs. Failures are logged and
+* complete the future with the same value the blocking method returns on failure.
+*/
+@Service
+@ConditionalOnProperty(name = "mongo.driver.mode", havingValue = "reactive")
+public class ReactiveMongoManager {
+    private static final Logger log = LoggerFactory.getLogger(ReactiveMongoManager.class);
+    private final Lock clientLock = new ReentrantLock();
+    private final Map<String, MongoClient> mongoClients = new ConcurrentHashMap<>();
+    private final Map<String, MongoDatabase> databases = new ConcurrentHashMap<>();
+
+    /*
+    * Shared between databases the same way as the blocking clients (see MongoSingleton.getClientOwner). Created under
+    * a lock rather than in computeIfAbsent, so a slow client creation never blocks lookups of other map entries.
+    */
+    public MongoClient getMongoClient(String dbName) {
+        String owner = MongoSingleton.getClientOwner(dbName);
+        MongoClient client = mongoClients.get(owner);
+        if (client == null) {
+            clientLock.lock();
+            try {
+                client = mongoClients.get(owner);
+                if (client == null) {
+                    client = MongoClients.create(MongoSingleton.getMongoClientSettings(owner));
+                    mongoClients.put(owner, client);
+                }
+            } finally {
+                clientLock.unlock();
+            }
+        }
+        return client;
+    }
+
+    //with the read preference and write concern of the database, its client may be built with another db's settings
+    public MongoDatabase getDatabase(String dbName) {
+        MongoDatabase database = databases.get(dbName);
+        if (database == null) {
+            MongoClient client = getMongoClient(dbName);
+            database = databases.computeIfAbsent(dbName, name -> MongoSingleton.applyDbSettings(name, client.getDatabase(name)));
+        }
+        return database;
+    }
+
+    /**
+     * Find a document in a specific collection within a database
+     *
+     * @param query          The query document to find the matching document
+     * @param dbName         The name of the database
+     * @param collectionName The name of the collection
+     * @return Future of the found document, or of null if no match is found or on failure
+     */
+    public CompletableFuture<Document> findDocument(Document query, String dbName, String collectionName) {
+        return first(() -> getCollection(dbName, collectionName).find(query).first(), null)
+                .exceptionally(ex -> {
+                    log.error("findDocument :: Exception occurred while finding document in collection: {}", ex.getMessage());
+                    return null;
+                });
+    }
+
+    public CompletableFuture<List<Document>> findAllDocuments(Document query, String dbName, String collectionName) {
+        return all(() -> getCollection(dbName, collectionName).find(query))
+                .exceptionally(ex -> {
+                    log.error("findAllDocuments :: Exception occurred while finding all documents in collection: {}", ex.getMessage());
+                    return null;
+                });
+    }
+
+    public CompletableFuture<Boolean> insertDocument(Document document, String dbName, String collectionName) {
+        return first(() -> getCollection(dbName, collectionName).insertOne(document), null)
+                .thenApply(result -> result != null && result.wasAcknowledged())
+                .exceptionally(ex -> {
+                    log.error("insertDocument :: Exception occurred while inserting document in collection: {}", ex.getMessage());
+                    return false;
+                });
+    }
+
+    public CompletableFuture<Boolean> deleteDocument(Document query, String dbName, String collectionName) {
+        return first(() -> getCollection(dbName, collectionName).deleteOne(query), null)
+                .thenApply(result -> result != null && result.wasAcknowledged())
+                .exceptionally(ex -> {
+                    log.error("deleteDocument :: Exception occurred while deleting document in collection: {}", ex.getMessage());
+                    return false;
+                });
+    }
+
+    public CompletableFuture<Document> findOneAndUpdate(Document query, Document update, String dbName, String collectionName,
+                                                        boolean upsert, boolean returnUpdatedDoc) {
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions();
+        options.returnDocument(returnUpdatedDoc ? ReturnDocument.AFTER : ReturnDocument.BEFORE);
+        options.upsert(upsert);
+        return first(() -> getCollection(dbName, collectionName).findOneAndUpdate(query, update, options), null)
+                .exceptionally(ex -> {
+                    log.error("updateDocument :: Exception occurred while updating document in collection: {}", ex.getMessage());
+                    return null;
+                });
+    }
+
+    @PreDestroy
+    public void closeAllClients() {
+        log.info("Starting closing of all reactive mongoClients.");
+        clientLock.lock();
+        try {
+            databases.clear();
+            for (MongoClient client : mongoClients.values()) {
+                client.close();
+            }
+            mongoClients.clear();
+        } finally {
+            clientLock.unlock();
+        }
+    }
+
+    private MongoCollection<Document> getCollection(String dbName, String collectionName) {
+        return getDatabase(dbName).getCollection(collectionName);
+    }
+
+    //completes with the first item of the publisher, or the default value if it completes empty
+    private static <T> CompletableFuture<T> first(Supplier<Publisher<T>> publisher, T defaultValue) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        subscribe(future, publisher, new FutureSubscriber<>(future, 1L) {
+            @Override
+            public void onNext(T item) {
+                future.complete(item);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(defaultValue);
+            }
+        });
+        return future;
+    }
+
+    private static <T> CompletableFuture<List<T>> all(Supplier<Publisher<T>> publisher) {
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        List<T> items = new ArrayList<>();
+        subscribe(future, publisher, new FutureSubscriber<>(future, Long.MAX_VALUE) {
+            @Override
+            public void onNext(T item) {
+                items.add(item);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(items);
+            }
+        });
+        return future;
+    }
+
+    //a failure to even create the publisher (e.g. an unknown db) fails the future instead of the caller
+    private static <T> void subscribe(CompletableFuture<?> future, Supplier<Publisher<T>> publisher, Subscriber<T> subscriber) {
+        try{
+            publisher.get().subscribe(subscriber);
+        }catch(Exception ex){
+            future.completeExceptionally(ex);
+        }
+    }
+
+    //the reactive streams spec signals onNext, onError and onComplete serially, so no locking is needed
+    private abstract static class FutureSubscriber<T> implements Subscriber<T> {
+        private final CompletableFuture<?> future;
+        private final long demand;
+
+        private FutureSubscriber(CompletableFuture<?> future, long demand) {
+            this.future = future;
+            this.demand = demand;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.request(demand);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            future.completeExceptionally(throwable);
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class Order {
     private String updatedBy;
     private boolean useRewards = false;
     private boolean useDelivery = false;
+    //pincode prefix of the merchant, delivery partners pick up the orders of the zones near them
+    private String pickupZone;
     private BigDecimal rewardsAmountUsed;
     private BigDecimal customerRewardsPointsUsed;
 }
@@ -0,0 +1,14 @@
+package sg.edu.nus.iss.order_service.model;
+
+import lombok.Data;
+
+@Data
+public class OrderPageRequest {
+    /*
+    * limit is the page size, pageToken the opaque continuation token handed out with the previous page
+    * (null for the first page) and sort the createdDate direction, asc or desc.
+    */
+    private int limit;
+    private String pageToken;
+    private String sort;
+}
@@ -0,0 +1,13 @@
+package sg.edu.nus.iss.order_service.model;
+
+/*
+* Remote side-effects of an order change, recorded in the outbox along with the change
+* and delivered later by the outbox dispatcher.
+*/
+public enum OutboxEventType {
+    CUSTOMER_REWARD_POINTS_UPDATE,
+    MERCHANT_EARNINGS_UPDATE,
+    DELIVERY_STATUS_UPDATE,
+    PRODUCT_STOCK_RELEASE,
+    PRODUCT_STOCK_RECONCILE
+}
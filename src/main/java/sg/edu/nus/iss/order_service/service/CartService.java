@@ -2,12 +2,19 @@ package sg.edu.nus.iss.order_service.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
 import sg.edu.nus.iss.order_service.db.MongoManager;
 import sg.edu.nus.iss.order_service.model.Cart;
@@ -16,9 +23,9 @@ import sg.edu.nus.iss.order_service.model.Response;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
 
 @Service
 public class CartService extends Constants {
@@ -34,128 +41,186 @@ public class CartService extends Constants {
     @Value("${"+CART_COLL+"}")
     private String cartColl;
 
+    @Value("${cart.update.max-attempts:3}")
+    private int cartUpdateAttempts = 3;
+
     @Autowired
     public CartService(MongoManager mongoManager, Utils utils){
         this.mongoManager = mongoManager;
         this.utils = utils;
     }
 
+    /*
+    * The create-cart step of addItemToCart relies on a duplicate key error when a concurrent request inserted the
+    * customer's cart first, so the unique index is ensured on boot whatever mongo.indexes.enabled is set to. It runs
+    * ahead of the IndexManager's query plan checks, which verify the cart lookup uses it.
+    */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void ensureCustomerIdIndex() {
+        if(!mongoManager.createIndex(Indexes.ascending(CUSTOMER_ID), new IndexOptions().unique(true), cartDb, cartColl)){
+            log.error("Unique index on {} not ensured for coll : {}, concurrent first adds may create duplicate carts", CUSTOMER_ID, cartColl);
+        }
+    }
+
+    /*
+    * Cart mutations are applied server side in a single atomic update, so concurrent requests for the same
+    * cart cannot overwrite each other's changes. Quantity of an existing product is bumped with a positional
+    * $inc, a new product is $push-ed only while it is still absent, and a new cart is inserted when none exists.
+    * A miss on all three means a concurrent request changed the cart in between, so the steps are retried.
+    * Product ids are stored lower-cased, so the same product sent in another case is bumped instead of added twice.
+    */
     //right now assumption is that always matching merchant id will be provided.
     public Response addItemToCart(String customerId, Item item, String merchantId) {
         log.info("Adding item {} to cart for customer with ID {}", item, customerId);
-        Cart cart = getCartByCustomerId(customerId);
-        if(cart==null){
+        for(int attempt = 1; attempt <= cartUpdateAttempts; attempt++){
+            if(incrementItemQuantity(customerId, item) != null){
+                log.info("Item quantity updated successfully in cart for customer with ID {}", customerId);
+                return utils.getSuccessResponse("Item added successfully in cart", null);
+            }
+            if(pushNewItem(customerId, item) != null){
+                log.info("New item added successfully in cart for customer with ID {}", customerId);
+                return utils.getSuccessResponse("Item added successfully in cart", null);
+            }
             log.info("Cart for customer with ID {} not found. Creating new cart.", customerId);
-            cart = new Cart();
+            Cart cart = new Cart();
             cart.setCustomerId(customerId);
             cart.setMerchantId(merchantId);
-            cart.setCartItems(List.of(item));
+            cart.setCartItems(List.of(getNormalizedItem(item)));
             cart.setCreatedAt(System.currentTimeMillis());
             cart.setUpdatedAt(System.currentTimeMillis());
             log.info("Create cart for customer with ID {}, merchant id {} and products : {}", customerId, merchantId, List.of(item));
-            boolean result = createCart(cart);
-            if(result){
+            if(createCart(cart)){
                 log.info("Cart created successfully for customer with ID {} for add item", customerId);
                 return utils.getSuccessResponse("Cart created successfully to add new item", null);
-            }else{
-                log.error("Failed to create cart for customer with ID {} for add item", customerId);
-                return utils.getFailedResponse("Failed to create new cart to add item");
-            }
-        } else {
-            log.info("Cart for customer with ID {} found. Adding item {} to cart.", customerId, item);
-            boolean updated = false;
-            for(Item i : cart.getCartItems()){
-                if(i.getProductId() == item.getProductId()){
-                    i.setQuantity(i.getQuantity() + item.getQuantity());
-                    updated = true;
-                }
-            }
-            if(!updated){
-                List<Item> currentItems = cart.getCartItems();
-                currentItems.add(item);
-                cart.setCartItems(currentItems);
-            }
-            Document query = new Document(CUSTOMER_ID, customerId);
-
-            List<Document> itemDocuments = cart.getCartItems().stream()
-                    .map(itemEle -> mapper.convertValue(itemEle, Document.class))
-                    .collect(Collectors.toList());
-
-            Document updateDoc = new Document(CART_ITEMS, itemDocuments);
-            updateDoc.put(UPDATED_AT, System.currentTimeMillis());
-            Document update = new Document("$set", updateDoc);
-            log.info("Updating cart for customer with ID {}, with update document : {}", customerId, mapper.convertValue(update, JsonNode.class));
-            Document result = mongoManager.findOneAndUpdate(query, update, cartDb, cartColl, true, false);
-            if(result!=null){
-                log.info("Cart updated successfully for customer with ID {}", customerId);
-                return utils.getSuccessResponse("Item added successfully in cart", null);
-            }else{
-                log.error("Failed to update cart for customer with ID {}", customerId);
-                return utils.getFailedResponse("Failed to add item in cart");
             }
+            log.info("Cart for customer with ID {} changed concurrently, attempt {} of {}", customerId, attempt, cartUpdateAttempts);
         }
+        log.error("Failed to add item to cart for customer with ID {} after {} attempts", customerId, cartUpdateAttempts);
+        return utils.getFailedResponse("Failed to create new cart to add item");
+    }
+
+    private Document incrementItemQuantity(String customerId, Item item){
+        Document query = new Document(CUSTOMER_ID, customerId);
+        query.put(CART_ITEMS.concat(DOT).concat(PRODUCT_ID), getProductIdMatch(item.getProductId()));
+        Document update = new Document(OPERATOR_INC, new Document(CART_ITEMS.concat(DOT).concat(OPERATOR_POSITIONAL)
+                .concat(DOT).concat(QUANTITY), item.getQuantity()));
+        update.put(OPERATOR_SET, new Document(UPDATED_AT, System.currentTimeMillis()));
+        log.debug("Incrementing item quantity in cart for customer with ID {}, with update document : {}", customerId, update);
+        return mongoManager.findOneAndUpdate(query, update, cartDb, cartColl, false, true);
+    }
+
+    private Document pushNewItem(String customerId, Item item){
+        Document query = new Document(CUSTOMER_ID, customerId);
+        List<String> spellings = getProductIdSpellings(item.getProductId());
+        query.put(CART_ITEMS.concat(DOT).concat(PRODUCT_ID), spellings.size() == 1
+                ? new Document(OPERATOR_NE, spellings.get(0)) : new Document(OPERATOR_NIN, spellings));
+        Document update = new Document(OPERATOR_PUSH, new Document(CART_ITEMS, mapper.convertValue(getNormalizedItem(item), Document.class)));
+        update.put(OPERATOR_SET, new Document(UPDATED_AT, System.currentTimeMillis()));
+        log.debug("Pushing new item in cart for customer with ID {}, with update document : {}", customerId, update);
+        return mongoManager.findOneAndUpdate(query, update, cartDb, cartColl, false, true);
     }
 
+    /*
+    * Quantity is decremented atomically in place. Only when it drops to zero or below is the item pulled
+    * out, and the cart itself is deleted only if it is still empty at that point.
+    */
     //have a similar method to remove same product from all carts of a particular merchant
     public Response removeItemFromCart(String customerId, Item item) {
         log.info("Removing item {} to cart for customer with ID {}", item, customerId);
+        Document query = new Document(CUSTOMER_ID, customerId);
+        query.put(CART_ITEMS.concat(DOT).concat(PRODUCT_ID), getProductIdMatch(item.getProductId()));
+        Document update = new Document(OPERATOR_INC, new Document(CART_ITEMS.concat(DOT).concat(OPERATOR_POSITIONAL)
+                .concat(DOT).concat(QUANTITY), -item.getQuantity()));
+        update.put(OPERATOR_SET, new Document(UPDATED_AT, System.currentTimeMillis()));
+        log.debug("Updating cart for customer with ID {}, with update document : {} to remove it", customerId, update);
+        Document updatedCart = mongoManager.findOneAndUpdate(query, update, cartDb, cartColl, false, true);
+        if(updatedCart == null){
+            return getRemoveItemFailure(customerId, item);
+        }
+        if(getItemQuantity(updatedCart, item.getProductId()) > 0){
+            log.info("Cart updated successfully for removing item for customer with ID {}", customerId);
+            return utils.getSuccessResponse("Item removed successfully", null);
+        }
+
+        Document pullQuery = new Document(PRODUCT_ID, getProductIdMatch(item.getProductId()));
+        pullQuery.put(QUANTITY, new Document(OPERATOR_LTE, 0));
+        Document pull = new Document(OPERATOR_PULL, new Document(CART_ITEMS, pullQuery));
+        Document pulledCart = mongoManager.findOneAndUpdate(new Document(CUSTOMER_ID, customerId), pull, cartDb, cartColl, false, true);
+        if(pulledCart == null){
+            log.error("Failed to pull item {} out of cart for customer with ID {}", item.getProductId(), customerId);
+            return utils.getFailedResponse("Failed to remove item");
+        }
+        List<?> remainingItems = pulledCart.get(CART_ITEMS, List.class);
+        if(remainingItems != null && !remainingItems.isEmpty()){
+            log.info("Item {} removed from cart for customer with ID {}", item.getProductId(), customerId);
+            return utils.getSuccessResponse("Item removed successfully", null);
+        }
+        log.info("Cart is empty after removing last item for customer with ID {}. So deleting the cart.", customerId);
+        Document emptyCartQuery = new Document(CUSTOMER_ID, customerId);
+        emptyCartQuery.put(CART_ITEMS, new Document(OPERATOR_SIZE, 0));
+        if(mongoManager.deleteDocument(emptyCartQuery, cartDb, cartColl)){
+            log.info("Cart deleted/emptied successfully for customer with ID {}", customerId);
+            return utils.getSuccessResponse("Cart deleted/emptied successfully", null);
+        }
+        log.error("Failed to delete/empty cart for customer with ID {}", customerId);
+        return utils.getFailedResponse("Failed to delete/empty cart");
+    }
+
+    private static Item getNormalizedItem(Item item){
+        Item normalized = new Item(normalizeProductId(item.getProductId()), item.getQuantity());
+        normalized.setPrice(item.getPrice());
+        return normalized;
+    }
+
+    private static String normalizeProductId(String productId){
+        return productId == null ? null : productId.toLowerCase(Locale.ROOT);
+    }
+
+    //carts written before ids were lower-cased may still hold an id in the case it was sent in
+    private static List<String> getProductIdSpellings(String productId){
+        String normalized = normalizeProductId(productId);
+        return normalized == null || normalized.equals(productId) ? Collections.singletonList(normalized) : List.of(normalized, productId);
+    }
+
+    private static Object getProductIdMatch(String productId){
+        List<String> spellings = getProductIdSpellings(productId);
+        return spellings.size() == 1 ? spellings.get(0) : new Document(OPERATOR_IN, spellings);
+    }
+
+    private int getItemQuantity(Document cartDoc, String productId){
+        Cart cart = mapper.convertValue(cartDoc, Cart.class);
+        for(Item curr : cart.getCartItems()){
+            if(curr.getProductId().equalsIgnoreCase(productId)){
+                return curr.getQuantity();
+            }
+        }
+        return 0;
+    }
+
+    //the update only reports a miss, so the cart is read once on this path to tell the caller why
+    private Response getRemoveItemFailure(String customerId, Item item){
         Cart cart = getCartByCustomerId(customerId);
         if(cart==null){
             log.info("Cart for customer with ID {} not found. So no action required.", customerId);
             return utils.getFailedResponse("Cart not found for provided customer ID");
-        } else {
-            log.info("Cart for customer with ID {} found. Starting to remove item {} to cart.", customerId, item);
-            boolean updated = false;
-            List<Item> updatedCart = new ArrayList<>();
-            for(Item curr : cart.getCartItems()){
-                if(curr.getProductId().equalsIgnoreCase(item.getProductId())){
-                    int newQuantity = curr.getQuantity() - item.getQuantity();
-                    if(newQuantity>0){
-                        curr.setQuantity(newQuantity);
-                        updatedCart.add(curr);
-                    }
-                    updated = true;
-                } else {
-                    updatedCart.add(curr);
-                }
-            }
-            if(!updated){
-                log.info("Item {} not found in cart for customer with ID {}. So no action required.", item, customerId);
-                return utils.getFailedResponse("Item not found in cart for provided customer ID");
-            }
-            if(updatedCart.isEmpty()){
-                log.info("Cart is empty after removing last item for customer with ID {}. So deleting the cart.", customerId);
-                return deleteCartByCustomerId(customerId);
-            }
-            Document query = new Document(CUSTOMER_ID, customerId);
-
-            List<Document> itemDocuments = updatedCart.stream()
-                    .map(itemEle -> mapper.convertValue(itemEle, Document.class))
-                    .collect(Collectors.toList());
-
-            Document updateDoc = new Document(CART_ITEMS, itemDocuments);
-            updateDoc.put(UPDATED_AT, System.currentTimeMillis());
-            Document update = new Document("$set", updateDoc);
-            log.info("Updating cart for customer with ID {}, with update document : {} to remove it", customerId,
-                    mapper.convertValue(update, JsonNode.class));
-            Document result = mongoManager.findOneAndUpdate(query, update, cartDb, cartColl, true, false);
-            if(result!=null){
-                log.info("Cart updated successfully for removing item for customer with ID {}", customerId);
-                return utils.getSuccessResponse("Item removed successfully", null);
-            }else{
+        }
+        for(Item curr : cart.getCartItems()){
+            if(curr.getProductId().equalsIgnoreCase(item.getProductId())){
                 log.error("Failed to update cart for removing item for customer with ID {}", customerId);
                 return utils.getFailedResponse("Failed to remove item");
             }
         }
+        log.info("Item {} not found in cart for customer with ID {}. So no action required.", item, customerId);
+        return utils.getFailedResponse("Item not found in cart for provided customer ID");
     }
 
     public Cart getCartByCustomerId(String customerId) {
         log.info("Getting cart for customer with ID {}", customerId);
         Document query = new Document(CUSTOMER_ID, customerId);
-        Document cartDoc = mongoManager.findDocument(query, cartDb, cartColl);
-        if(cartDoc!=null){
+        Cart cart = mongoManager.findDocument(query, cartDb, cartColl, Cart.class);
+        if(cart!=null){
             log.info("Found cart for customer with ID {}", customerId);
-            Cart cart = mapper.convertValue(cartDoc, Cart.class);
             log.debug("Number of items in cart is : {}", cart.getCartItems().size());
             return cart;
         }else{
@@ -184,8 +249,7 @@ public class CartService extends Constants {
 //            log.info("Cart for customer with ID {} already exists", cart.getCustomerId());
 //            return false;
 //        }
-        Document cartDoc = mapper.convertValue(cart, Document.class);
-        return mongoManager.insertDocument(cartDoc, cartDb, cartColl);
+        return mongoManager.insertDocument(null, cart, cartDb, cartColl, Cart.class);
     }
 
 
@@ -203,4 +267,19 @@ public class CartService extends Constants {
             return utils.getFailedResponse("Failed to delete/empty cart");
         }
     }
+
+    /**
+     * Delete the cart as part of a transaction on another database, e.g. together with the order created from it.
+     * Only possible when the cart database shares that database's client, see sharesClientWith.
+     *
+     * @return true if the cart was deleted, false if there was none to delete so that the transaction aborts
+     */
+    public boolean deleteCartByCustomerId(ClientSession session, String customerId) {
+        log.info("Deleting cart for customer with ID {} in transaction", customerId);
+        return mongoManager.deleteDocument(session, new Document(CUSTOMER_ID, customerId), cartDb, cartColl);
+    }
+
+    public boolean sharesClientWith(String dbName) {
+        return mongoManager.sharesClient(cartDb, dbName);
+    }
 }
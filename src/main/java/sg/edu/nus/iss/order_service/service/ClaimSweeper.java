@@ -0,0 +1,32 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/*
+* Releases the claims delivery partners let expire without accepting the order. Expired claims do not block other
+* partners anyway, clearing them puts the orders back on the dispatch board. Every pod sweeps, the release is
+* idempotent.
+*/
+@Component
+public class ClaimSweeper {
+    private static final Logger log = LoggerFactory.getLogger(ClaimSweeper.class);
+
+    private final OrderService orderService;
+
+    @Autowired
+    public ClaimSweeper(OrderService orderService) {
+        this.orderService = orderService;
+    }
+
+    @Scheduled(fixedDelayString = "${orders.claim.sweep-interval-ms:30000}")
+    public void releaseExpiredClaims(){
+        long released = orderService.releaseExpiredClaims();
+        if(released > 0){
+            log.info("Released {} expired delivery claims", released);
+        }
+    }
+}
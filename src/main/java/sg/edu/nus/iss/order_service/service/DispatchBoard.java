@@ -0,0 +1,447 @@
+package sg.edu.nus.iss.order_service.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.swagger.v3.core.util.Json;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import sg.edu.nus.iss.order_service.db.MongoCodecs;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.Order;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* The READY orders opted for delivery, kept in memory from one change stream on the orders collection per pod
+* instead of delivery partners polling the collection. The stream is opened before the snapshot is read, so no
+* change in between is missed, and resumed after the last change on errors. When the change history to resume
+* from is gone the board is reloaded and every subscriber gets the new snapshot.
+* Subscribers get a snapshot event with all orders on the board, then an add event with the order for every order
+* that became ready for delivery (or changed while ready) and a remove event with its orderId for every order that
+* left the board. A subscriber passing pickup zones only gets the orders of these zones. Needs a replica set, so it
+* is only enabled with orders.dispatch-board.enabled=true.
+* An order claimed by a delivery partner is off the board until its lease expires, the rule the claim itself and the
+* Mongo fallback listing apply, whether the claim sweeper has cleared the expired claim yet or not.
+* Events are queued per subscriber under the lock, keeping their order, and sent once the lock is released, so a
+* slow subscriber never holds up the board readers.
+*/
+@Component
+@ConditionalOnProperty(name = "orders.dispatch-board.enabled", havingValue = "true")
+public class DispatchBoard extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(DispatchBoard.class);
+    private static final String SNAPSHOT_EVENT = "snapshot";
+    private static final String ADD_EVENT = "add";
+    private static final String REMOVE_EVENT = "remove";
+    //ChangeStreamFatalError and ChangeStreamHistoryLost, the stream cannot be resumed from the token
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private final ObjectMapper mapper = Json.mapper();
+
+    private final MongoManager mongoManager;
+
+    //keyed by _id, the only field a delete event carries. Guarded by the lock together with the subscribers, so a
+    //subscriber gets its snapshot and then every change after it, in order. Not synchronized, the board is also
+    //read from virtual threads
+    private final Map<String, Order> readyOrders = new LinkedHashMap<>();
+    //the lease ends of the claimed orders on the board, until they expire
+    private final Map<String, Long> claimExpiries = new HashMap<>();
+    private long nextClaimExpiry = Long.MAX_VALUE;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean synced = false;
+    private volatile boolean running = false;
+    private Thread watcher;
+    private BsonDocument resumeToken;
+
+    @Value("${"+ORDER_DB+"}")
+    private String orderDb;
+
+    @Value("${"+ORDER_COLLECTION+"}")
+    private String orderColl;
+
+    //clients reconnect after a timeout and get a fresh snapshot
+    @Value("${orders.dispatch-board.subscriber-timeout-ms:1800000}")
+    private long subscriberTimeoutMs = 1800000;
+
+    @Value("${orders.dispatch-board.retry-ms:5000}")
+    private long retryMs = 5000;
+
+    @Autowired
+    public DispatchBoard(MongoManager mongoManager) {
+        this.mongoManager = mongoManager;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        running = true;
+        watcher = Thread.ofPlatform().daemon().name("dispatch-board").start(this::watch);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if(watcher != null){
+            watcher.interrupt();
+        }
+        for(Subscriber subscriber : subscribers){
+            subscriber.emitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    //false until the first snapshot is loaded, and again while the board is reloaded
+    public boolean isSynced() {
+        return synced;
+    }
+
+    public List<Order> getReadyOrders() {
+        return getReadyOrders(null);
+    }
+
+    //the ready orders of the pickup zones, all of them for no zones
+    public List<Order> getReadyOrders(Set<String> pickupZones) {
+        lock.lock();
+        try{
+            releaseExpiredClaims(System.currentTimeMillis());
+            return getOrders(pickupZones);
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public SseEmitter subscribe(Set<String> pickupZones) {
+        SseEmitter emitter = new SseEmitter(subscriberTimeoutMs);
+        register(emitter, pickupZones);
+        return emitter;
+    }
+
+    void register(SseEmitter emitter, Set<String> pickupZones) {
+        Subscriber subscriber = new Subscriber(emitter, pickupZones);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(ex -> subscribers.remove(subscriber));
+        lock.lock();
+        try{
+            //a subscriber registered before the first snapshot gets it once loaded
+            if(synced){
+                releaseExpiredClaims(System.currentTimeMillis());
+                enqueue(subscriber, SNAPSHOT_EVENT, mapper.valueToTree(getOrders(pickupZones)));
+            }
+            subscribers.add(subscriber);
+        }finally{
+            lock.unlock();
+        }
+        flush(subscriber);
+        log.info("Dispatch board subscriber registered for pickup zones {}, subscribers: {}", pickupZones, subscribers.size());
+    }
+
+    private void watch() {
+        while(running){
+            try(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor =
+                        mongoManager.watchCollection(getChangesPipeline(), resumeToken, orderDb, orderColl)){
+                if(resumeToken == null && !resync()){
+                    throw new IllegalStateException("Failed to load the ready orders for delivery");
+                }
+                log.info("Dispatch board watching the changes of the orders collection");
+                while(running){
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if(change != null){
+                        onChange(change.getOperationTypeString(), change.getDocumentKey(), change.getFullDocument());
+                    }
+                    //no change comes in when a lease runs out, the orders are put back on the board here
+                    onClaimsExpired();
+                    //also moves on while no change matches, so a resume does not replay what the server already filtered
+                    if(cursor.getResumeToken() != null){
+                        resumeToken = cursor.getResumeToken();
+                    }
+                }
+            }catch(Exception ex){
+                if(!running){
+                    return;
+                }
+                if(isResumeLost(ex)){
+                    log.error("Change stream of the orders collection cannot be resumed, reloading the dispatch board", ex);
+                    resumeToken = null;
+                    synced = false;
+                }else{
+                    log.error("Change stream of the orders collection failed, resuming in {} ms", retryMs, ex);
+                }
+                try{
+                    Thread.sleep(retryMs);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //replaces the board with the ready orders for delivery now in the collection and sends it to every subscriber
+    boolean resync() {
+        List<Document> orderDocs = mongoManager.findAllDocuments(getReadyForDeliveryQuery(), orderDb, orderColl);
+        if(orderDocs == null){
+            return false;
+        }
+        lock.lock();
+        try{
+            readyOrders.clear();
+            claimExpiries.clear();
+            nextClaimExpiry = Long.MAX_VALUE;
+            long now = System.currentTimeMillis();
+            for(Document orderDoc : orderDocs){
+                String key = getKey(orderDoc.get(MONGO_ID));
+                readyOrders.put(key, MongoCodecs.decode(orderDoc, Order.class));
+                setClaimExpiry(key, orderDoc, now);
+            }
+            synced = true;
+            for(Subscriber subscriber : subscribers){
+                enqueue(subscriber, SNAPSHOT_EVENT, mapper.valueToTree(getOrders(subscriber.pickupZones)));
+            }
+        }finally{
+            lock.unlock();
+        }
+        flush();
+        log.info("Dispatch board loaded with {} ready orders for delivery", orderDocs.size());
+        return true;
+    }
+
+    //the full document is the current version of the order, null once it is deleted
+    void onChange(String operationType, BsonDocument documentKey, Document fullDocument) {
+        if(documentKey == null){
+            //drop, rename or invalidate of the collection, the stream ends and the board is reloaded on the next one
+            throw new IllegalStateException("Change stream of the orders collection invalidated by " + operationType);
+        }
+        String key = getKey(documentKey.get(MONGO_ID));
+        lock.lock();
+        try{
+            long now = System.currentTimeMillis();
+            releaseExpiredClaims(now);
+            boolean wasOnBoard = readyOrders.containsKey(key) && !claimExpiries.containsKey(key);
+            if(fullDocument != null && isReadyForDelivery(fullDocument)){
+                Order order = MongoCodecs.decode(fullDocument, Order.class);
+                readyOrders.put(key, order);
+                setClaimExpiry(key, fullDocument, now);
+                if(!claimExpiries.containsKey(key)){
+                    broadcast(ADD_EVENT, order, mapper.valueToTree(order));
+                }else if(wasOnBoard){
+                    broadcast(REMOVE_EVENT, order, mapper.createObjectNode().put(ORDER_ID, order.getOrderId()));
+                }
+            }else{
+                Order removed = readyOrders.remove(key);
+                claimExpiries.remove(key);
+                if(removed != null && wasOnBoard){
+                    broadcast(REMOVE_EVENT, removed, mapper.createObjectNode().put(ORDER_ID, removed.getOrderId()));
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+        flush();
+    }
+
+    //puts the orders whose claim ran out back on the board and tells the subscribers
+    void onClaimsExpired() {
+        lock.lock();
+        try{
+            releaseExpiredClaims(System.currentTimeMillis());
+        }finally{
+            lock.unlock();
+        }
+        flush();
+    }
+
+    //called under the lock. A lease ending before now is expired, as in the claimable query of the order states
+    private void releaseExpiredClaims(long now) {
+        if(nextClaimExpiry >= now){
+            return;
+        }
+        nextClaimExpiry = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Long>> claims = claimExpiries.entrySet().iterator();
+        while(claims.hasNext()){
+            Map.Entry<String, Long> claim = claims.next();
+            if(claim.getValue() < now){
+                claims.remove();
+                Order order = readyOrders.get(claim.getKey());
+                broadcast(ADD_EVENT, order, mapper.valueToTree(order));
+            }else{
+                nextClaimExpiry = Math.min(nextClaimExpiry, claim.getValue());
+            }
+        }
+    }
+
+    //called under the lock, an order claimed on a lease already expired is on the board
+    private void setClaimExpiry(String key, Document orderDoc, long now) {
+        Object claimExpiresAt = orderDoc.get(CLAIM_EXPIRES_AT);
+        if(claimExpiresAt instanceof Number && ((Number) claimExpiresAt).longValue() >= now){
+            long expiry = ((Number) claimExpiresAt).longValue();
+            claimExpiries.put(key, expiry);
+            nextClaimExpiry = Math.min(nextClaimExpiry, expiry);
+        }else{
+            claimExpiries.remove(key);
+        }
+    }
+
+    //called under the lock
+    private List<Order> getOrders(Set<String> pickupZones) {
+        List<Order> orders = new ArrayList<>();
+        for(Map.Entry<String, Order> entry : readyOrders.entrySet()){
+            if(!claimExpiries.containsKey(entry.getKey()) && isInZones(entry.getValue(), pickupZones)){
+                orders.add(entry.getValue());
+            }
+        }
+        return orders;
+    }
+
+    //queues the event of the order for the subscribers of its pickup zone, called under the lock
+    private void broadcast(String eventName, Order order, JsonNode data) {
+        for(Subscriber subscriber : subscribers){
+            if(isInZones(order, subscriber.pickupZones)){
+                enqueue(subscriber, eventName, data);
+            }
+        }
+    }
+
+    //called under the lock, so the events of a subscriber are queued in the order of the board changes
+    private void enqueue(Subscriber subscriber, String eventName, JsonNode data) {
+        subscriber.pending.add(new PendingEvent(eventName, SseEmitter.event().name(eventName).data(data, MediaType.APPLICATION_JSON)));
+    }
+
+    //called without the lock
+    private void flush() {
+        for(Subscriber subscriber : subscribers){
+            flush(subscriber);
+        }
+    }
+
+    /*
+    * Sends the queued events of the subscriber. One thread sends them at a time, in order, a thread finding another
+    * one sending leaves the events it queued to it. The queue is checked again after the send lock is released, so
+    * an event queued in between is not left behind.
+    */
+    private void flush(Subscriber subscriber) {
+        while(!subscriber.pending.isEmpty() && subscriber.sendLock.tryLock()){
+            try{
+                PendingEvent event;
+                while((event = subscriber.pending.poll()) != null){
+                    if(!send(subscriber, event)){
+                        subscriber.pending.clear();
+                        return;
+                    }
+                }
+            }finally{
+                subscriber.sendLock.unlock();
+            }
+        }
+    }
+
+    private boolean send(Subscriber subscriber, PendingEvent event) {
+        try{
+            subscriber.emitter.send(event.builder);
+            return true;
+        }catch(Exception ex){
+            log.info("Dropping dispatch board subscriber, failed to send {} event: {}", event.name, ex.getMessage());
+            subscribers.remove(subscriber);
+            subscriber.emitter.completeWithError(ex);
+            return false;
+        }
+    }
+
+    private static boolean isInZones(Order order, Set<String> pickupZones) {
+        return pickupZones == null || pickupZones.isEmpty() || pickupZones.contains(order.getPickupZone());
+    }
+
+    private boolean isResumeLost(Exception ex) {
+        if(ex instanceof IllegalStateException){
+            return true;
+        }
+        if(ex instanceof MongoServerException){
+            int code = ((MongoServerException) ex).getCode();
+            return code == CHANGE_STREAM_FATAL_ERROR || code == CHANGE_STREAM_HISTORY_LOST;
+        }
+        return false;
+    }
+
+    private static boolean isReadyForDelivery(Document orderDoc) {
+        return READY.equals(String.valueOf(orderDoc.get(STATUS))) && Boolean.TRUE.equals(orderDoc.get(USE_DELIVERY));
+    }
+
+    //claimed orders included, they are put back on the board when their lease expires
+    private static Document getReadyForDeliveryQuery() {
+        return new Document(STATUS, READY).append(USE_DELIVERY, true);
+    }
+
+    //inserts, replaces and deletes, and the updates that can move an order on or off the board, claims included
+    private static List<Document> getChangesPipeline() {
+        List<Document> matches = new ArrayList<>();
+        matches.add(new Document("operationType", new Document(OPERATOR_IN, List.of("insert", "replace", "delete"))));
+        matches.add(new Document("updateDescription.updatedFields." + STATUS, new Document(OPERATOR_EXISTS, true)));
+        matches.add(new Document("updateDescription.updatedFields." + USE_DELIVERY, new Document(OPERATOR_EXISTS, true)));
+        matches.add(new Document("updateDescription.updatedFields." + CLAIMED_BY, new Document(OPERATOR_EXISTS, true)));
+        matches.add(new Document("updateDescription.updatedFields." + CLAIM_EXPIRES_AT, new Document(OPERATOR_EXISTS, true)));
+        matches.add(new Document("updateDescription.removedFields", CLAIM_EXPIRES_AT));
+        return List.of(new Document(OPERATOR_MATCH, new Document(OPERATOR_OR, matches)));
+    }
+
+    private static String getKey(Object id) {
+        if(id instanceof BsonObjectId){
+            return ((BsonObjectId) id).getValue().toHexString();
+        }
+        if(id instanceof ObjectId){
+            return ((ObjectId) id).toHexString();
+        }
+        if(id instanceof BsonValue && ((BsonValue) id).isString()){
+            return ((BsonValue) id).asString().getValue();
+        }
+        return String.valueOf(id);
+    }
+
+    private static final class Subscriber {
+        private final SseEmitter emitter;
+        private final Set<String> pickupZones;
+        private final Queue<PendingEvent> pending = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock sendLock = new ReentrantLock();
+
+        private Subscriber(SseEmitter emitter, Set<String> pickupZones) {
+            this.emitter = emitter;
+            this.pickupZones = pickupZones;
+        }
+    }
+
+    private static final class PendingEvent {
+        private final String name;
+        private final SseEmitter.SseEventBuilder builder;
+
+        private PendingEvent(String name, SseEmitter.SseEventBuilder builder) {
+            this.name = name;
+            this.builder = builder;
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package sg.edu.nus.iss.order_service.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.util.UriComponentsBuilder;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.db.ReactiveMongoManager;
 import sg.edu.nus.iss.order_service.model.*;
 import sg.edu.nus.iss.order_service.strategy.context.OrderTypeStrategyContext;
 import sg.edu.nus.iss.order_service.strategy.context.ProfileTypeStrategyContext;
@@ -25,35 +33,69 @@ import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 import sg.edu.nus.iss.order_service.utils.WSUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class OrderService extends Constants {
     private static final Logger log = LoggerFactory.getLogger(OrderService.class);
     private final ObjectMapper mapper = Json.mapper();
+    private static final Document ORDER_PROJECTION = getOrderProjection();
+    private static final long STOCK_UPDATE_CONNECT_TIMEOUT_MS = 1000;
 
     private final CartService cartService;
     private final MongoManager mongoManager;
     private final WSUtils wsUtils;
     private final Utils utils;
+    private final OutboxService outboxService;
     private final OrderTypeStrategyContext orderTypeStrategyContext;
     private final ProfileTypeStrategyContext profileTypeStrategyContext;
+    private final ExecutorService ioExecutor;
+    private final OrderDbCollectionResolver collectionResolver;
+    private final OrderStateRegistry stateRegistry;
+    private final ProductCatalogCache productCatalogCache;
     @Value("${"+ORDER_DB+"}")
     private String orderDb;
 
     @Value("${"+ORDER_COLLECTION+"}")
     private String orderColl;
 
-    @Value("${"+COMPLETED_ORDERS_COLL+"}")
-    private String completedOrderColl;
-
-    @Value("${"+CANCELLED_ORDERS_COLL+"}")
-    private String cancelledOrderColl;
-
     @Value("${product.service.url}")
     private String productServiceUrl = "http://product-service:95/"; //http://product-service:95/
 
+    @Value("${product.service.url.batch-update:}")
+    private String productBatchUpdateUrl;
+
+    @Value("${product.service.lookup.timeout-ms:10000}")
+    private long productLookupTimeoutMs = 10000;
+
+    @Value("${profile.service.rewards.timeout-ms:10000}")
+    private long rewardsLookupTimeoutMs = 10000;
+
+    @Value("${product.service.stock-update.deadline-ms:10000}")
+    private long stockUpdateDeadlineMs = 10000;
+
+    @Value("${orders.page.max-limit:100}")
+    private int maxPageLimit = 100;
+
+    @Value("${orders.pickup-zone.prefix-length:2}")
+    private int pickupZonePrefixLength = 2;
+
+    @Value("${orders.claim.lease-ms:60000}")
+    private long claimLeaseMs = 60000;
+
     private OrderTypeStrategy completedOrderStrategy;
 
 
@@ -74,8 +116,17 @@ public class OrderService extends Constants {
 
     private ProfileTypeStrategy deliveryPartnerProfileStrategy;
 
+    //only present with mongo.driver.mode=reactive
+    @Autowired(required = false)
+    private ReactiveMongoManager reactiveMongoManager;
+
+    //only present with orders.dispatch-board.enabled=true
+    @Autowired(required = false)
+    private DispatchBoard dispatchBoard;
+
     @Autowired
     public OrderService(CartService cartService, MongoManager mongoManager, WSUtils wsUtils, Utils utils,
+                        OutboxService outboxService,
                         OrderTypeStrategyContext orderTypeStrategyContext,
                         ProfileTypeStrategyContext profileTypeStrategyContext,
                         @Qualifier("COMPLETED") OrderTypeStrategy completedOrderStrategy,
@@ -84,11 +135,16 @@ public class OrderService extends Constants {
                         @Qualifier("ALL") OrderTypeStrategy allOrderStrategy,
                         @Qualifier("customer") ProfileTypeStrategy customerProfileStrategy,
                         @Qualifier("merchant") ProfileTypeStrategy merchantProfileStrategy,
-                        @Qualifier("deliveryPartner") ProfileTypeStrategy deliveryPartnerProfileStrategy) {
+                        @Qualifier("deliveryPartner") ProfileTypeStrategy deliveryPartnerProfileStrategy,
+                        @Qualifier("ioExecutor") ExecutorService ioExecutor,
+                        OrderDbCollectionResolver collectionResolver,
+                        OrderStateRegistry stateRegistry,
+                        ProductCatalogCache productCatalogCache) {
         this.cartService = cartService;
         this.mongoManager = mongoManager;
         this.wsUtils = wsUtils;
         this.utils = utils;
+        this.outboxService = outboxService;
         this.orderTypeStrategyContext = orderTypeStrategyContext;
         this.profileTypeStrategyContext = profileTypeStrategyContext;
         this.completedOrderStrategy = completedOrderStrategy;
@@ -98,6 +154,10 @@ public class OrderService extends Constants {
         this.customerProfileStrategy = customerProfileStrategy;
         this.merchantProfileStrategy = merchantProfileStrategy;
         this.deliveryPartnerProfileStrategy = deliveryPartnerProfileStrategy;
+        this.ioExecutor = ioExecutor;
+        this.collectionResolver = collectionResolver;
+        this.stateRegistry = stateRegistry;
+        this.productCatalogCache = productCatalogCache;
     }
 
     public Response createOrderFromCart(String customerId, boolean useRewards, boolean useDelivery){
@@ -107,6 +167,14 @@ public class OrderService extends Constants {
             log.error("No items found in cart for customer: {}, so no order to be created", customerId);
             return utils.getFailedResponse("No items found in cart for customer: ".concat(customerId).concat(", so no order to be created"));
         }
+        //product details and reward points do not depend on each other, so both lookups start as soon as the cart is loaded.
+        //They run as plain tasks, cancelling one interrupts its thread and so aborts the call it is blocked on.
+        long lookupsStartedAt = System.currentTimeMillis();
+        Future<List<Product>> productDetailsLookup = ioExecutor.submit(() -> getProductDetailsForItems(cart.getCartItems()));
+        Future<JsonNode> rewardsLookup = useRewards
+                ? ioExecutor.submit(() -> utils.getRewardPointsOffsetForCustomer(customerId))
+                : CompletableFuture.completedFuture(null);
+
         Order order = new Order();
         order.setOrderId(UUID.randomUUID().toString());
         order.setCustomerId(customerId);
@@ -119,26 +187,27 @@ public class OrderService extends Constants {
         order.setUseRewards(useRewards);
         order.setUseDelivery(useDelivery);
 
-        List<Product> productDetails = getProductDetailsForItems(cart.getCartItems());
+        List<Product> productDetails = awaitProductDetails(productDetailsLookup, lookupsStartedAt, customerId);
         if(productDetails == null || productDetails.isEmpty()){
             log.error("Failed to get product details or found non matching products for items in cart for customer: {}", customerId);
+            rewardsLookup.cancel(true);
             return utils.getFailedResponse("Failed to get product details or found non matching products for items in cart for customer: ".concat(customerId));
         }
 
         List<Item> cartItemsWithPrice = updatedCartItemsListBasedOnProductDetails(productDetails, cart.getCartItems());
         order.setOrderItems(cartItemsWithPrice);
         order.setTotalPrice(calculateTotalPrice(cartItemsWithPrice));
+        order.setPickupZone(getPickupZone(productDetails));
 
         //fetch customer reward points to offset
         if(order.isUseRewards()){
-            JsonNode rewrdsObject = utils.getRewardPointsOffsetForCustomer(order.getCustomerId());
+            JsonNode rewrdsObject = awaitRewardPoints(rewardsLookup, lookupsStartedAt, customerId);
             if(rewrdsObject!=null){
                 BigDecimal rewardPointsAmountOffset = rewrdsObject.get("rewardAmount").decimalValue();
                 BigDecimal rewardsPoints = rewrdsObject.get("rewardPoints").decimalValue();
                 order.setRewardsAmountUsed(rewardPointsAmountOffset);
                 order.setCustomerRewardsPointsUsed(rewardsPoints);
                 order.setTotalPrice(order.getTotalPrice().subtract(rewardPointsAmountOffset));
-                utils.updateCustomerRewardPoints(order.getOrderId(), order.getCustomerId(), BigDecimal.ZERO);
             } else {
                 order.setRewardsAmountUsed(BigDecimal.ZERO);
                 order.setCustomerRewardsPointsUsed(BigDecimal.ZERO);
@@ -150,66 +219,370 @@ public class OrderService extends Constants {
 
         log.info("Order to be created : {}", order);
 
-        Document insertDocument = mapper.convertValue(order, Document.class);
-        boolean result = mongoManager.insertDocument(insertDocument, orderDb, orderColl);
-        if(result){
-            log.info("Order created successfully for customer: {}", customerId);
-            cartService.deleteCartByCustomerId(customerId);
-            List<ProductUpdateReqModel> productsToBeUpdated = generateProductUpdateReqObts(productDetails, cart.getCartItems());
-            //url will be merchants/{merchantId}/products/{productId}
-            String url = productServiceUrl.concat("merchants");
-            int errorCounts = 0;
-            for(ProductUpdateReqModel reqProd : productsToBeUpdated){
-                log.info("Updating stock for productId: {}", reqProd.getProductId());
-                //this url has now changed where merchant id is now needed as request params.
-//                String reqUrl = url.concat(SLASH).concat(reqProd.getMerchantId().toString()).concat(SLASH)
-//                        .concat("products").concat(SLASH).concat(reqProd.getProductId().toString());
-                String reqUrl = url.concat(SLASH).concat("products").concat(SLASH).concat(reqProd.getProductId().toString());
-                UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(reqUrl);
-                uriBuilder.queryParam("user-id", reqProd.getMerchantId().toString());
-                reqUrl = uriBuilder.toUriString();
-                JsonNode payload = mapper.convertValue(reqProd, JsonNode.class);
-                try{
-                    Response response = wsUtils.makeWSCallObject(reqUrl, payload, new HashMap<>(), HttpMethod.PUT, 1000, 30000);
-                    if(SUCCESS.equalsIgnoreCase(response.getStatus())){
-                        log.info("Product stock updated successfully for productId: {}", reqProd.getProductId());
-                    }else{
-                        log.error("Failed to update product stock for productId: {}", reqProd.getProductId());
-                        errorCounts++;
-                    }
-                }catch(Exception ex){
-                    log.error("Exception occurred while updating stock for productId: {}", reqProd.getProductId());
-                    errorCounts++;
-                }
+        //stock is reserved first, its outcome decides whether the order can be placed at all. Product service takes the
+        //absolute stock, so it is computed from the stock read right now rather than the cached product details
+        List<Product> productStocks = fetchProductStocks(productDetails);
+        if(productStocks.size() < productDetails.size()){
+            log.error("Failed to read the stock of the products in cart for customer: {}, so order is not created", customerId);
+            return utils.getFailedResponse("Failed to create order for customer: ".concat(customerId));
+        }
+        List<ProductUpdateReqModel> productsToBeUpdated = generateProductUpdateReqObts(productStocks, cart.getCartItems());
+        Map<ProductUpdateReqModel, StockUpdateOutcome> stockUpdates = updateProductStocks(order.getOrderId(), productsToBeUpdated,
+                cart.getMerchantId());
+        List<ProductUpdateReqModel> updatedProducts = new ArrayList<>();
+        //the unconfirmed updates may have gone through, they are settled by the outbox before their stock is handed back
+        List<ProductUpdateReqModel> unconfirmedProducts = new ArrayList<>();
+        for(Map.Entry<ProductUpdateReqModel, StockUpdateOutcome> stockUpdate : stockUpdates.entrySet()){
+            if(stockUpdate.getValue() == StockUpdateOutcome.APPLIED){
+                updatedProducts.add(stockUpdate.getKey());
+            }else if(stockUpdate.getValue() == StockUpdateOutcome.UNCONFIRMED){
+                unconfirmedProducts.add(stockUpdate.getKey());
             }
-            if(errorCounts>0){
-                //TODO :: have to revert the counts of stock which were reduced.
-                //TODO :: also explore if you can restore cart as well.
-                log.error("Failed to update stock for {} products out of {}, so deleting previously created order",
-                        errorCounts, productsToBeUpdated.size());
-                deleteOrder(order.getOrderId());
-                return utils.getFailedResponse("Failed to create order for customer: ".concat(customerId));
+        }
+        if(updatedProducts.size() < productsToBeUpdated.size()){
+            log.error("Failed to update stock for {} products out of {}, so order is not created and cart is kept",
+                    productsToBeUpdated.size() - updatedProducts.size(), productsToBeUpdated.size());
+            revertProductStocks(order.getOrderId(), updatedProducts, cart.getCartItems());
+            reconcileProductStocks(order.getOrderId(), unconfirmedProducts, cart.getMerchantId(), cart.getCartItems());
+            return utils.getFailedResponse("Failed to create order for customer: ".concat(customerId));
+        }
+
+        //the order and the redemption of reward points used by it are committed together, and so is the cart delete
+        //when the cart db is on the order db's client. A cart already checked out by a concurrent request then
+        //deletes nothing and aborts the order, otherwise the cart can only be deleted after the commit.
+        boolean redeemRewards = order.getCustomerRewardsPointsUsed().signum() > 0;
+        boolean deleteCartInTransaction = cartService.sharesClientWith(orderDb);
+        Boolean result = mongoManager.executeInTransaction(orderDb, session ->
+                mongoManager.insertDocument(session, order, orderDb, orderColl, Order.class)
+                        && (!redeemRewards || outboxService.enqueueRewardPointsUpdate(session, order.getOrderId(), customerId, BigDecimal.ZERO))
+                        && (!deleteCartInTransaction || cartService.deleteCartByCustomerId(session, customerId)));
+        if(Boolean.TRUE.equals(result)){
+            log.info("Order created successfully for customer: {}", customerId);
+            if(!deleteCartInTransaction){
+                cartService.deleteCartByCustomerId(customerId);
             }
             return utils.getSuccessResponse("Order created successfully for customer: ".concat(customerId).concat(" with orderId: ").concat(order.getOrderId()), null);
         }else{
             log.error("Failed to create order for customer: {}", customerId);
+            revertProductStocks(order.getOrderId(), updatedProducts, cart.getCartItems());
             return utils.getFailedResponse("Failed to create order for customer: ".concat(customerId));
         }
     }
 
+    private List<Product> awaitProductDetails(Future<List<Product>> productDetailsLookup, long startedAt, String customerId){
+        List<Product> productDetails = await(productDetailsLookup, startedAt + productLookupTimeoutMs);
+        if(productDetails == null){
+            log.error("Product details lookup failed or timed out after {} ms for customer: {}", productLookupTimeoutMs, customerId);
+            return new ArrayList<>();
+        }
+        return productDetails;
+    }
+
+    //reward points are optional for checkout, a failed or slow lookup just means no offset is applied
+    private JsonNode awaitRewardPoints(Future<JsonNode> rewardsLookup, long startedAt, String customerId){
+        JsonNode rewardPoints = await(rewardsLookup, startedAt + rewardsLookupTimeoutMs);
+        if(rewardPoints == null){
+            log.error("Reward points lookup failed or timed out after {} ms for customer: {}", rewardsLookupTimeoutMs, customerId);
+        }
+        return rewardPoints;
+    }
+
+    //the result of the lookup, or null if it failed or did not finish by the deadline, in which case it is cancelled
+    private <T> T await(Future<T> lookup, long deadlineAt){
+        try{
+            return lookup.get(Math.max(deadlineAt - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }catch(TimeoutException ex){
+            lookup.cancel(true);
+            return null;
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            lookup.cancel(true);
+            return null;
+        }catch(ExecutionException | CancellationException ex){
+            return null;
+        }
+    }
+
+    /*
+    * Stock updates are either collapsed into one batch call, when product service exposes a batch url,
+    * or fanned out concurrently on the io executor. Every call gets a connect and response timeout that fit in the
+    * overall deadline, and one not started before the deadline is not sent at all. A call that timed out or is still
+    * running at the deadline may yet be applied by product service, so it is reported as unconfirmed to be settled.
+    * Each call carries an idempotency key of the order, and of the product unless it is the batch call.
+    */
+    private Map<ProductUpdateReqModel, StockUpdateOutcome> updateProductStocks(String orderId, List<ProductUpdateReqModel> productsToBeUpdated,
+                                                                          String merchantId){
+        long deadlineAt = System.currentTimeMillis() + stockUpdateDeadlineMs;
+        long connectTimeout = Math.min(STOCK_UPDATE_CONNECT_TIMEOUT_MS, stockUpdateDeadlineMs / 2);
+        long readTimeout = stockUpdateDeadlineMs - connectTimeout;
+        if(isBatchStockUpdate()){
+            return updateProductStocksInBatch(productsToBeUpdated, merchantId, orderId, connectTimeout, readTimeout);
+        }
+        Map<ProductUpdateReqModel, CompletableFuture<StockUpdateOutcome>> updates = new LinkedHashMap<>();
+        for(ProductUpdateReqModel reqProd : productsToBeUpdated){
+            String reservationKey = getReservationKey(orderId, reqProd);
+            updates.put(reqProd, CompletableFuture.supplyAsync(
+                    () -> reserveProductStock(reqProd, reservationKey, deadlineAt, connectTimeout, readTimeout), ioExecutor));
+        }
+        try{
+            CompletableFuture.allOf(updates.values().toArray(new CompletableFuture[0]))
+                    .get(Math.max(deadlineAt - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }catch(TimeoutException ex){
+            log.error("Stock updates did not finish within {} ms for {} products", stockUpdateDeadlineMs, productsToBeUpdated.size());
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for stock updates of {} products", productsToBeUpdated.size());
+        }catch(ExecutionException ex){
+            log.error("Exception occurred while waiting for stock updates", ex);
+        }
+        Map<ProductUpdateReqModel, StockUpdateOutcome> outcomes = new LinkedHashMap<>();
+        for(Map.Entry<ProductUpdateReqModel, CompletableFuture<StockUpdateOutcome>> update : updates.entrySet()){
+            CompletableFuture<StockUpdateOutcome> future = update.getValue();
+            if(!future.isDone()){
+                //the call is not stopped by abandoning the future, it may still go through
+                log.error("Stock update for productId: {} still running at the deadline", update.getKey().getProductId());
+                outcomes.put(update.getKey(), StockUpdateOutcome.UNCONFIRMED);
+            }else if(future.isCompletedExceptionally()){
+                outcomes.put(update.getKey(), StockUpdateOutcome.UNCONFIRMED);
+            }else{
+                outcomes.put(update.getKey(), future.join());
+            }
+        }
+        return outcomes;
+    }
+
+    private StockUpdateOutcome reserveProductStock(ProductUpdateReqModel reqProd, String reservationKey, long deadlineAt,
+                                                   long connectTimeout, long readTimeout){
+        if(System.currentTimeMillis() >= deadlineAt){
+            log.error("Stock update for productId: {} not started before the deadline, not sending it", reqProd.getProductId());
+            return StockUpdateOutcome.FAILED;
+        }
+        long startedAt = System.currentTimeMillis();
+        if(updateProductStock(reqProd, reservationKey, connectTimeout, readTimeout)){
+            return StockUpdateOutcome.APPLIED;
+        }
+        //failing only once the response timeout ran out, the update may have been applied without an answer
+        return System.currentTimeMillis() - startedAt >= readTimeout ? StockUpdateOutcome.UNCONFIRMED : StockUpdateOutcome.FAILED;
+    }
+
+    private boolean updateProductStock(ProductUpdateReqModel reqProd, String idempotencyKey, long connectTimeout, long readTimeout){
+        log.info("Updating stock for productId: {}", reqProd.getProductId());
+        //url will be merchants/products/{productId}
+        //this url has now changed where merchant id is now needed as request params.
+//        String reqUrl = url.concat(SLASH).concat(reqProd.getMerchantId().toString()).concat(SLASH)
+//                .concat("products").concat(SLASH).concat(reqProd.getProductId().toString());
+        String reqUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH)
+                .concat(reqProd.getProductId().toString());
+        UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(reqUrl);
+        uriBuilder.queryParam("user-id", reqProd.getMerchantId().toString());
+        reqUrl = uriBuilder.toUriString();
+        JsonNode payload = mapper.convertValue(reqProd, JsonNode.class);
+        try{
+            Response response = wsUtils.makeWSCallObject(reqUrl, payload, utils.idempotencyHeaders(idempotencyKey), HttpMethod.PUT,
+                    connectTimeout, readTimeout);
+            if(SUCCESS.equalsIgnoreCase(response.getStatus())){
+                log.info("Product stock updated successfully for productId: {}", reqProd.getProductId());
+                return true;
+            }
+            log.error("Failed to update product stock for productId: {}", reqProd.getProductId());
+            return false;
+        }catch(Exception ex){
+            log.error("Exception occurred while updating stock for productId: {}", reqProd.getProductId());
+            return false;
+        }
+    }
+
+    private Map<ProductUpdateReqModel, StockUpdateOutcome> updateProductStocksInBatch(List<ProductUpdateReqModel> productsToBeUpdated,
+                                                                                 String merchantId, String reservationKey,
+                                                                                 long connectTimeout, long readTimeout){
+        long startedAt = System.currentTimeMillis();
+        StockUpdateOutcome outcome = putProductStocksInBatch(productsToBeUpdated, merchantId, reservationKey, connectTimeout, readTimeout)
+                ? StockUpdateOutcome.APPLIED : StockUpdateOutcome.FAILED;
+        if(outcome == StockUpdateOutcome.FAILED && System.currentTimeMillis() - startedAt >= readTimeout){
+            outcome = StockUpdateOutcome.UNCONFIRMED;
+        }
+        Map<ProductUpdateReqModel, StockUpdateOutcome> outcomes = new LinkedHashMap<>();
+        for(ProductUpdateReqModel reqProd : productsToBeUpdated){
+            outcomes.put(reqProd, outcome);
+        }
+        return outcomes;
+    }
+
+    private boolean putProductStocksInBatch(List<ProductUpdateReqModel> productsToBeUpdated, String merchantId,
+                                            String idempotencyKey, long connectTimeout, long readTimeout){
+        log.info("Updating stock for {} products in one batch call for merchantId: {}", productsToBeUpdated.size(), merchantId);
+        UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(productBatchUpdateUrl);
+        uriBuilder.queryParam("user-id", merchantId);
+        JsonNode payload = mapper.convertValue(productsToBeUpdated, ArrayNode.class);
+        try{
+            Response response = wsUtils.makeWSCallObject(uriBuilder.toUriString(), payload, utils.idempotencyHeaders(idempotencyKey),
+                    HttpMethod.PUT, connectTimeout, readTimeout);
+            if(SUCCESS.equalsIgnoreCase(response.getStatus())){
+                log.info("Product stock updated successfully in batch for {} products", productsToBeUpdated.size());
+                return true;
+            }
+            log.error("Failed to update product stock in batch for {} products", productsToBeUpdated.size());
+            return false;
+        }catch(Exception ex){
+            log.error("Exception occurred while updating stock in batch for {} products", productsToBeUpdated.size());
+            return false;
+        }
+    }
+
+    private boolean isBatchStockUpdate(){
+        return productBatchUpdateUrl != null && !productBatchUpdateUrl.isBlank();
+    }
+
+    private static String getReservationKey(String orderId, ProductUpdateReqModel reqProd){
+        return orderId.concat(":").concat(reqProd.getProductId().toString());
+    }
+
+    /*
+    * Stock already reserved for an order that could not be placed is handed back through the outbox,
+    * so the revert keeps being retried until product service accepts it. The quantity reserved is handed back rather
+    * than the stock read at checkout, which would wipe out the checkouts of others made before the revert lands.
+    */
+    private void revertProductStocks(String orderId, List<ProductUpdateReqModel> updatedProducts, List<Item> cartItems){
+        for(ProductUpdateReqModel reqProd : updatedProducts){
+            int quantity = getReservedQuantity(reqProd, cartItems);
+            if(!outboxService.enqueueProductStockRelease(null, orderId, reqProd.getProductId().toString(), quantity)){
+                log.error("Failed to add stock revert for productId: {} to outbox", reqProd.getProductId());
+            }
+        }
+    }
+
+    //the unconfirmed reservations are settled through the outbox, one event per call they were sent in
+    private void reconcileProductStocks(String orderId, List<ProductUpdateReqModel> unconfirmedProducts, String merchantId,
+                                        List<Item> cartItems){
+        if(unconfirmedProducts.isEmpty()){
+            return;
+        }
+        if(isBatchStockUpdate()){
+            Map<String, Integer> quantities = new LinkedHashMap<>();
+            for(ProductUpdateReqModel reqProd : unconfirmedProducts){
+                quantities.put(reqProd.getProductId().toString(), getReservedQuantity(reqProd, cartItems));
+            }
+            if(!outboxService.enqueueProductStockReconcile(null, orderId, orderId, merchantId, quantities, true)){
+                log.error("Failed to add stock reconcile of the batch for orderId: {} to outbox", orderId);
+            }
+            return;
+        }
+        for(ProductUpdateReqModel reqProd : unconfirmedProducts){
+            Map<String, Integer> quantities = Map.of(reqProd.getProductId().toString(), getReservedQuantity(reqProd, cartItems));
+            if(!outboxService.enqueueProductStockReconcile(null, orderId, getReservationKey(orderId, reqProd), merchantId, quantities, false)){
+                log.error("Failed to add stock reconcile for productId: {} to outbox", reqProd.getProductId());
+            }
+        }
+    }
+
+    private int getReservedQuantity(ProductUpdateReqModel reqProd, List<Item> cartItems){
+        int quantity = 0;
+        for(Item item : cartItems){
+            if(reqProd.getProductId().toString().equalsIgnoreCase(item.getProductId())){
+                quantity += item.getQuantity();
+            }
+        }
+        return quantity;
+    }
+
+    /**
+     * Settles a stock reservation that got no answer, then hands its stock back. The reservation is sent again with
+     * its idempotency key, computed from the stock as it is now: product service answers it from the original call if
+     * that was applied and applies it now if not, so it is applied exactly once before the release. Product service
+     * has to keep the keys for longer than the outbox retries a reconcile.
+     *
+     * @param reservationKey The idempotency key the reservation was sent with
+     * @param merchantId     The merchant of the products
+     * @param quantities     The quantity reserved, by productId
+     * @param batch          Whether the reservation was sent as one batch call
+     * @param idempotencyKey The key of the reconcile, the outbox event id, which keys the release of each product
+     * @return true if the reservation is settled and its stock was handed back
+     */
+    public boolean reconcileProductStocks(String reservationKey, String merchantId, Map<String, Integer> quantities, boolean batch,
+                                          String idempotencyKey){
+        List<Product> products = fetchProductDetails(new ArrayList<>(quantities.keySet()), getNoCacheHeaders());
+        if(products.size() < quantities.size()){
+            log.error("Failed to read the stock of the products of reservation {} to settle it", reservationKey);
+            return false;
+        }
+        List<ProductUpdateReqModel> reservations = new ArrayList<>();
+        for(Product product : products){
+            ProductUpdateReqModel reqProd = getProductUpdateReq(product);
+            reqProd.setAvailableStock(reqProd.getAvailableStock() - quantities.get(product.getProductId().toString()));
+            reservations.add(reqProd);
+        }
+        boolean settled = batch
+                ? putProductStocksInBatch(reservations, merchantId, reservationKey, STOCK_UPDATE_CONNECT_TIMEOUT_MS, 30000)
+                : updateProductStock(reservations.get(0), reservationKey, STOCK_UPDATE_CONNECT_TIMEOUT_MS, 30000);
+        if(!settled){
+            log.error("Failed to settle stock reservation {}", reservationKey);
+            return false;
+        }
+        boolean released = true;
+        for(Map.Entry<String, Integer> quantity : quantities.entrySet()){
+            released &= releaseProductStock(quantity.getKey(), quantity.getValue(), idempotencyKey.concat(":").concat(quantity.getKey()));
+        }
+        return released;
+    }
+
+    /**
+     * Hands the quantity back to the product's stock, as it is now in product service. A retry after a lost answer
+     * sends the same idempotency key, so product service applies the release once even though the stock it is
+     * computed from has changed.
+     *
+     * @param productId      The id of the product
+     * @param quantity       The quantity to add to the stock
+     * @param idempotencyKey The key of the release, the outbox event id
+     * @return true if product service took the stock update
+     */
+    public boolean releaseProductStock(String productId, int quantity, String idempotencyKey){
+        List<Product> products = fetchProductDetails(List.of(productId), getNoCacheHeaders());
+        if(products.isEmpty()){
+            log.error("Failed to read the stock of productId: {} to release {} to it", productId, quantity);
+            return false;
+        }
+        ProductUpdateReqModel reqProd = getProductUpdateReq(products.get(0));
+        reqProd.setAvailableStock(reqProd.getAvailableStock() + quantity);
+        return updateProductStock(reqProd, idempotencyKey, STOCK_UPDATE_CONNECT_TIMEOUT_MS, 30000);
+    }
+
+    //served from the product catalogue cache, only the products missing from it are fetched, all in one call
     private List<Product> getProductDetailsForItems(List<Item> cartItems){
-        String prodIds = "";
+        List<String> productIds = new ArrayList<>();
         for(Item item : cartItems){
-            prodIds = prodIds.concat(item.getProductId()).concat(",");
+            productIds.add(item.getProductId());
         }
-        prodIds = prodIds.substring(0, prodIds.length()-1);
+        return productCatalogCache.getProducts(productIds, this::fetchProductDetails);
+    }
+
+    //the products as they are in product service now, read past the cache and any lookup of them in flight
+    private List<Product> fetchProductStocks(List<Product> products){
+        List<String> productIds = new ArrayList<>();
+        for(Product product : products){
+            productIds.add(product.getProductId().toString());
+        }
+        return fetchProductDetails(productIds, getNoCacheHeaders());
+    }
+
+    private Map<String, String> getNoCacheHeaders(){
+        Map<String, String> headers = new HashMap<>();
+        headers.put(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        return headers;
+    }
+
+    private List<Product> fetchProductDetails(List<String> productIds){
+        return fetchProductDetails(productIds, new HashMap<>());
+    }
+
+    private List<Product> fetchProductDetails(List<String> productIds, Map<String, String> headers){
+        String prodIds = String.join(",", productIds);
         //url will be products/ids with query param as "productIds"
         String productIdsListUrl = productServiceUrl.concat("products/ids");
         UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromHttpUrl(productIdsListUrl);
         uriBuilder.queryParam("productIds", prodIds);
         log.debug("URL to get product details for productIds is : {}", uriBuilder.toUriString());
         try{
-            Response response = wsUtils.makeWSCallObject(uriBuilder.toUriString(), null, new HashMap<>(), HttpMethod.GET, 1000, 30000);
+            Response response = wsUtils.makeWSCallObject(uriBuilder.toUriString(), null, headers, HttpMethod.GET, 1000, 30000);
             if(FAILURE.equalsIgnoreCase(response.getStatus())){
                 log.error("Failed to get product details for productIds: {}", prodIds);
                 return new ArrayList<>();
@@ -245,9 +618,7 @@ public class OrderService extends Constants {
         log.info("Starting generateProductUpdateReqObts, products: {}, cartItems: {}", products, cartItems);
         Map<UUID, ProductUpdateReqModel> productUpdateReqMap = new HashMap<>();
         for(Product prod : products){
-            ProductUpdateReqModel reqModel = mapper.convertValue(prod, ProductUpdateReqModel.class);
-            reqModel.setCategoryId(prod.getCategory().getCategoryId());
-            productUpdateReqMap.put(prod.getProductId(), reqModel);
+            productUpdateReqMap.put(prod.getProductId(), getProductUpdateReq(prod));
         }
         for(Item item : cartItems){
             ProductUpdateReqModel reqModel = productUpdateReqMap.get(UUID.fromString(item.getProductId()));
@@ -258,6 +629,13 @@ public class OrderService extends Constants {
         return  new ArrayList<>(productUpdateReqMap.values());
     }
 
+    //product service takes the whole product on a stock update
+    private ProductUpdateReqModel getProductUpdateReq(Product product){
+        ProductUpdateReqModel reqModel = mapper.convertValue(product, ProductUpdateReqModel.class);
+        reqModel.setCategoryId(product.getCategory().getCategoryId());
+        return reqModel;
+    }
+
     private BigDecimal calculateTotalPrice(List<Item> cartItems) {
         return cartItems.stream()
                 .map(item -> item.getPrice().multiply(new BigDecimal(item.getQuantity())))
@@ -265,28 +643,19 @@ public class OrderService extends Constants {
     }
 
     public Response getOrdersListByProfileId(String listType, String profileType, String id) {
+        return getOrdersListByProfileId(listType, profileType, id, null);
+    }
+
+    /**
+     * Orders of the given list type for a profile. With a page request only one page of orders is read, sorted on
+     * createdDate and returned along with the token for the next page, the page size is capped at orders.page.max-limit.
+     * Without one the full list is returned.
+     */
+    public Response getOrdersListByProfileId(String listType, String profileType, String id, OrderPageRequest page) {
 
         try {
             // Select the appropriate order strategy based on listType
-            OrderTypeStrategy orderTypeStrategy;
-            switch (listType.toUpperCase()) {
-                case "COMPLETED":
-                    orderTypeStrategy = completedOrderStrategy;
-                    log.info("Selected order strategy: COMPLETED");
-                    break;
-                case "ACTIVE":
-                    orderTypeStrategy = activeOrderStrategy;
-                    log.info("Selected order strategy: ACTIVE");
-                    break;
-                case "CANCELLED":
-                    orderTypeStrategy = cancelledOrderStrategy;
-                    log.info("Selected order strategy: CANCELLED");
-                    break;
-                default:
-                    orderTypeStrategy = allOrderStrategy;
-                    log.info("Selected order strategy: ALL");
-                    break;
-            }
+            OrderTypeStrategy orderTypeStrategy = getOrderTypeStrategy(listType);
 
             String formattedId = utils.getProfileIdentifierFieldBasedOnRole(profileType);
             if (formattedId.isEmpty()) {
@@ -294,7 +663,13 @@ public class OrderService extends Constants {
             }
 
             // Fetch orders using the selected order strategy
-            Response ordersData = orderTypeStrategy.getOrders(profileType, id); // Assuming this returns Response, not JsonNode
+            Response ordersData;
+            if (page == null) {
+                ordersData = orderTypeStrategy.getOrders(profileType, id); // Assuming this returns Response, not JsonNode
+            } else {
+                page.setLimit(Math.min(page.getLimit(), maxPageLimit));
+                ordersData = orderTypeStrategy.getOrders(profileType, id, page);
+            }
 
             // Check if no orders were found
             if (ordersData == null || ordersData.getData() == null || ordersData.getData().isEmpty()) {
@@ -311,77 +686,290 @@ public class OrderService extends Constants {
         }
     }
 
+    private OrderTypeStrategy getOrderTypeStrategy(String listType) {
+        OrderTypeStrategy orderTypeStrategy;
+        switch (listType.toUpperCase()) {
+            case "COMPLETED":
+                orderTypeStrategy = completedOrderStrategy;
+                log.info("Selected order strategy: COMPLETED");
+                break;
+            case "ACTIVE":
+                orderTypeStrategy = activeOrderStrategy;
+                log.info("Selected order strategy: ACTIVE");
+                break;
+            case "CANCELLED":
+                orderTypeStrategy = cancelledOrderStrategy;
+                log.info("Selected order strategy: CANCELLED");
+                break;
+            default:
+                orderTypeStrategy = allOrderStrategy;
+                log.info("Selected order strategy: ALL");
+                break;
+        }
+        return orderTypeStrategy;
+    }
+
+    /**
+     * Writes the orders of the given list type for a profile as NDJSON, one order per line, as the Mongo cursor
+     * yields them. No list of orders or JSON tree is built, so memory use does not grow with the number of orders.
+     *
+     * @return true if all orders were written, false if the read failed part way
+     */
+    public boolean streamOrdersListByProfileId(String listType, String profileType, String id, OutputStream out) throws IOException {
+        OrderTypeStrategy orderTypeStrategy = getOrderTypeStrategy(listType);
+        JsonGenerator generator = mapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        long[] count = new long[1];
+        boolean completed = orderTypeStrategy.streamOrders(profileType, id, order -> {
+            try {
+                generator.writeObject(order);
+                generator.writeRaw(NEW_LINE);
+                count[0]++;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        generator.flush();
+        if (completed) {
+            log.info("Streamed {} {} orders for profileType {} with ID {}", count[0], listType, profileType, id);
+        } else {
+            log.error("Streaming {} orders for profileType {} with ID {} stopped after {} orders", listType, profileType, id, count[0]);
+        }
+        return completed;
+    }
+
     public Response getActiveOrdersForDelivery(){
-        log.info("Fetching all active orders available for delivery, having status READY and opted for delivery");
+        return getActiveOrdersForDelivery(null);
+    }
+
+    //only the orders to pick up in the zones of the pincodes, all of them without pincodes
+    public Response getActiveOrdersForDelivery(List<String> pincodes){
+        Set<String> pickupZones = getPickupZones(pincodes);
+        log.info("Fetching all active orders available for delivery, having status READY and opted for delivery in pickup zones {}", pickupZones);
+        if(dispatchBoard != null && dispatchBoard.isSynced()){
+            List<Order> readyOrders = dispatchBoard.getReadyOrders(pickupZones);
+            log.info("Serving active orders for delivery from the dispatch board, count {}", readyOrders.size());
+            if(readyOrders.isEmpty()){
+                return utils.getFailedResponse("No active orders found for delivery having status READY and opted for delivery");
+            }
+            return utils.getSuccessResponse("Active orders found for delivery", mapper.valueToTree(readyOrders));
+        }
         Document query = new Document(STATUS, OrderStatus.READY);
         query.put(USE_DELIVERY, true);
+        //orders claimed by a delivery partner are not offered to the others while the claim lasts
+        query.putAll(OrderState.getClaimableQuery(null, System.currentTimeMillis()));
+        if(!pickupZones.isEmpty()){
+            query.put(PICKUP_ZONE, new Document(OPERATOR_IN, new ArrayList<>(pickupZones)));
+        }
         log.info("Query to fetch active orders for delivery : {} from orders coll", query);
-        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, orderColl);
+        List<Order> orders = mongoManager.findAllDocuments(query, orderDb, orderColl, Order.class);
         if(orders!=null && !orders.isEmpty()){
             log.info("Found active orders for delivery having status READY and opted for delivery, count {}", orders.size());
-            List<Order> orderList = mapper.convertValue(orders, List.class);
-            return utils.getSuccessResponse("Active orders found for delivery",mapper.convertValue(orderList, ArrayNode.class));
+            return utils.getSuccessResponse("Active orders found for delivery", mapper.valueToTree(orders));
         }else{
             log.info("No active orders found for delivery having status READY and opted for delivery");
             return utils.getFailedResponse("No active orders found for delivery having status READY and opted for delivery");
         }
     }
 
+    /*
+    * Leases a ready order to the delivery partner for orders.claim.lease-ms with one conditional update, so of
+    * partners racing for the same order only one wins, and it then accepts the order (DELIVERY_ACCEPTED) within
+    * the lease. Claiming again extends the lease, an expired lease is up for grabs and cleared by the ClaimSweeper.
+    */
+    public Response claimOrderForDelivery(String orderId, String deliveryPartnerId){
+        log.info("Claiming orderId: {} for deliveryPartnerId: {}", orderId, deliveryPartnerId);
+        long now = System.currentTimeMillis();
+        Document query = new Document(ORDER_ID, orderId).append(STATUS, OrderStatus.READY).append(USE_DELIVERY, true);
+        query.putAll(OrderState.getClaimableQuery(deliveryPartnerId, now));
+        Document update = new Document(OPERATOR_SET, new Document(CLAIMED_BY, deliveryPartnerId)
+                .append(CLAIM_EXPIRES_AT, now + claimLeaseMs));
+        Document orderDoc;
+        try{
+            orderDoc = mongoManager.findOneAndUpdate(null, query, update, orderDb, orderColl);
+        }catch(Exception ex){
+            log.error("Exception occurred while claiming orderId: {} for deliveryPartnerId: {}", orderId, deliveryPartnerId, ex);
+            return utils.getFailedResponse("Exception occurred claiming order");
+        }
+        if(orderDoc == null){
+            //only the losing claims read the order, to tell a missing order from a taken one
+            if(mongoManager.findDocument(new Document(ORDER_ID, orderId), orderDb, orderColl) == null){
+                log.error("No order found for orderId: {}", orderId);
+                return utils.getFailedResponse("No order found for orderId: ".concat(orderId));
+            }
+            log.error("OrderId: {} is not ready for delivery or claimed by another delivery partner", orderId);
+            return utils.getConflictResponse("Order for orderId: ".concat(orderId)
+                    .concat(" is not ready for delivery or claimed by another delivery partner"));
+        }
+        log.info("OrderId: {} claimed for deliveryPartnerId: {} until {}", orderId, deliveryPartnerId, orderDoc.get(CLAIM_EXPIRES_AT));
+        ObjectNode claim = mapper.createObjectNode();
+        claim.put(ORDER_ID, orderId);
+        claim.put(CLAIMED_BY, deliveryPartnerId);
+        claim.put(CLAIM_EXPIRES_AT, orderDoc.getLong(CLAIM_EXPIRES_AT));
+        return utils.getSuccessResponse("Order claimed for delivery", claim);
+    }
+
+    //clears the expired claims off the ready orders, putting them back on offer. Returns the number of released orders
+    public long releaseExpiredClaims(){
+        Document query = new Document(STATUS, OrderStatus.READY)
+                .append(CLAIM_EXPIRES_AT, new Document(OPERATOR_LT, System.currentTimeMillis()));
+        try{
+            return mongoManager.updateDocuments(null, query, new Document(OPERATOR_UNSET, OrderState.getClaimRelease()), orderDb, orderColl);
+        }catch(Exception ex){
+            log.error("Exception occurred while releasing expired claims of ready orders", ex);
+            return 0;
+        }
+    }
+
+    //null when the dispatch board is not enabled
+    public SseEmitter subscribeToDispatchBoard(List<String> pincodes){
+        if(dispatchBoard == null){
+            return null;
+        }
+        return dispatchBoard.subscribe(getPickupZones(pincodes));
+    }
+
+    /*
+    * Delivery orders are zoned by the leading digits of the merchant's pincode, with the default prefix length of 2
+    * the postal sector of a Singapore postal code. Null for a blank pincode.
+    */
+    private String getPickupZone(String pincode){
+        if(pincode == null || pincode.isBlank()){
+            return null;
+        }
+        String trimmed = pincode.trim();
+        return trimmed.length() <= pickupZonePrefixLength ? trimmed : trimmed.substring(0, pickupZonePrefixLength);
+    }
+
+    private Set<String> getPickupZones(List<String> pincodes){
+        Set<String> pickupZones = new LinkedHashSet<>();
+        if(pincodes != null){
+            for(String pincode : pincodes){
+                String pickupZone = getPickupZone(pincode);
+                if(pickupZone != null){
+                    pickupZones.add(pickupZone);
+                }
+            }
+        }
+        return pickupZones;
+    }
+
+    //the products of a cart all come from its merchant, the first product with a pincode gives the pickup zone
+    private String getPickupZone(List<Product> productDetails){
+        for(Product product : productDetails){
+            String pickupZone = getPickupZone(product.getPincode());
+            if(pickupZone != null){
+                return pickupZone;
+            }
+        }
+        return null;
+    }
+
     public Response getOrderByOrderId(String orderId){
         log.info("Fetching order by orderId: {}", orderId);
         Document query = new Document(ORDER_ID, orderId);
-        Document resDoc = mongoManager.findDocument(query, orderDb, orderColl);
-        if(resDoc!=null && !resDoc.isEmpty()){
+        Order order = mongoManager.findDocument(query, orderDb, orderColl, Order.class);
+        if(order!=null){
             log.info("Found orders for provided orderId: {}", orderId);
-            Order order = mapper.convertValue(resDoc, Order.class);
-            return utils.getSuccessResponse("Order found for orderId: ".concat(orderId), mapper.convertValue(order, JsonNode.class));
+            return utils.getSuccessResponse("Order found for orderId: ".concat(orderId), mapper.valueToTree(order));
         }else{
             log.info("No orders found for orderId: {}", orderId);
             return utils.getFailedResponse("No orders found for orderId: ".concat(orderId));
         }
     }
 
+    /**
+     * Fast path of getOrderByOrderId for callers that only pass the order on as JSON. The order is kept as the
+     * raw BSON read from mongo, restricted to the Order fields, and is meant to be written out with
+     * BsonJsonTranscoder.
+     *
+     * @param orderId The id of the order
+     * @return the raw order, or null if it is not found or could not be read
+     */
+    public RawBsonDocument getRawOrderByOrderId(String orderId){
+        log.info("Fetching raw order by orderId: {}", orderId);
+        Document query = new Document(ORDER_ID, orderId);
+        //polled by clients tracking the order, concurrent reads of the same order share one query
+        RawBsonDocument order = mongoManager.findRawDocumentCoalesced(query, ORDER_PROJECTION, orderDb, orderColl);
+        if(order==null){
+            log.info("No orders found for orderId: {}", orderId);
+        }
+        return order;
+    }
+
+    /**
+     * Current status of an order, for the order tracking polls. With the reactive driver the future completes on
+     * the driver's event loop and no thread waits on mongo, otherwise the read blocks the caller and the future is
+     * already complete when returned.
+     *
+     * @param orderId The id of the order
+     * @return future of the orderId, status and updatedDate of the order, or of a failed response if not found
+     */
+    public CompletableFuture<Response> getOrderStatusByOrderId(String orderId){
+        log.info("Fetching order status by orderId: {}", orderId);
+        Document query = new Document(ORDER_ID, orderId);
+        CompletableFuture<Document> orderDoc = reactiveMongoManager != null
+                ? reactiveMongoManager.findDocument(query, orderDb, orderColl)
+                : CompletableFuture.completedFuture(mongoManager.findDocument(query, orderDb, orderColl));
+        return orderDoc.thenApply(order -> {
+            if(order==null){
+                log.info("No orders found for orderId: {}", orderId);
+                return utils.getFailedResponse("No orders found for orderId: ".concat(orderId));
+            }
+            ObjectNode orderStatus = mapper.createObjectNode();
+            orderStatus.put(ORDER_ID, orderId);
+            orderStatus.put(STATUS, String.valueOf(order.get(STATUS)));
+            //status transitions set updatedAt, updatedDate is only the time of creation
+            Object updated = order.get(UPDATED_AT) != null ? order.get(UPDATED_AT) : order.get(UPDATED_DATE);
+            orderStatus.put(UPDATED_AT, updated instanceof Number ? ((Number) updated).longValue() : 0L);
+            return utils.getSuccessResponse("Order status found for orderId: ".concat(orderId), orderStatus);
+        });
+    }
+
     public Response updateOrderStatus(String orderId, OrderStatus status, JsonNode payload){
         log.info("Updating order status for orderId: {} to status : {}", orderId, status);
-        Document query = new Document(ORDER_ID, orderId);
-        Document orderDoc = mongoManager.findDocument(query, orderDb, orderColl);
-        if(orderDoc == null){
-            log.error("No order found for orderId: {}", orderId);
-            return utils.getFailedResponse("No order found for orderId: ".concat(orderId));
+        //a status no update moves an order to is rejected before reading the order
+        OrderState state = stateRegistry.getState(status);
+        if(state == null){
+            log.error("Invalid status: {} provided for orderId: {}", status, orderId);
+            return utils.getFailedResponse("Invalid status provided for orderId: ".concat(orderId));
         }
         try {
+            //each state moves the order by a compare and set on its current status, without reading it first
             OrderContext context = new OrderContext();
-            context.setOrderDoc(orderDoc);
             context.setOrderId(orderId);
             context.setPayload(payload);
-            context.setCurrentState(getStateForStatus(status));
-            return context.updateStatus();
-        } catch (IllegalArgumentException ex){
-            log.error("Invalid status provided for orderId: {}", orderId);
-            return utils.getFailedResponse("Invalid status provided for orderId: ".concat(orderId));
+            context.setCurrentState(state);
+            Response response = context.updateStatus();
+            if(response != null && CONFLICT.equals(response.getStatus())){
+                return getTransitionConflict(orderId, status, response);
+            }
+            return response;
         }catch(Exception ex) {
             log.error("Exception occurred while updating order status for orderId: {}", orderId, ex);
             return utils.getFailedResponse("Exception occurred updating order status");
         }
     }
 
-    private OrderState getStateForStatus(OrderStatus status) {
-        switch (status) {
-            case ACCEPTED:
-                return new AcceptedState(mongoManager, utils, orderDb, orderColl);
-            case READY:
-                return new ReadyState(mongoManager, utils, orderDb, orderColl);
-            case DELIVERY_ACCEPTED:
-                return new DeliveryAcceptedState(mongoManager, utils, orderDb, orderColl);
-            case DELIVERY_PICKED_UP:
-                return new DeliveryPickedUpState(mongoManager, utils, orderDb, orderColl);
-            case COMPLETED:
-                return new CompletedState(mongoManager, utils, orderDb, orderColl, completedOrderColl);
-            case CANCELLED:
-                return new CancelledState(mongoManager, utils, orderDb, orderColl, cancelledOrderColl);
-            default:
-                throw new IllegalArgumentException("Invalid status: " + status);
+    //the order was not in a status to move from, only now it is read to tell the caller why
+    private Response getTransitionConflict(String orderId, OrderStatus status, Response conflict) {
+        Document orderDoc = mongoManager.findDocument(new Document(ORDER_ID, orderId), orderDb, orderColl);
+        if(orderDoc == null){
+            log.error("No order found for orderId: {}", orderId);
+            return utils.getFailedResponse("No order found for orderId: ".concat(orderId));
         }
+        //with a single order coll closed orders are found here as well, they take no further status updates
+        if(OrderDbCollectionResolver.isClosed(orderDoc.get(STATUS))){
+            log.error("Order for orderId: {} is already closed with status: {}", orderId, orderDoc.get(STATUS));
+            return utils.getConflictResponse("Order for orderId: ".concat(orderId).concat(" is already closed"));
+        }
+        if(!OrderStateRegistry.isAllowed(orderDoc.get(STATUS), status)){
+            log.error("Order for orderId: {} cannot move from status: {} to status: {}", orderId, orderDoc.get(STATUS), status);
+            return utils.getConflictResponse("Order for orderId: ".concat(orderId).concat(" cannot move from status: ")
+                    .concat(String.valueOf(orderDoc.get(STATUS))).concat(" to status: ").concat(status.toString()));
+        }
+        //the status allows the move, but not the order itself, e.g. a delivery for an order without delivery
+        return conflict;
     }
 
     public boolean deleteOrder(String orderId){
@@ -397,4 +985,22 @@ public class OrderService extends Constants {
             return false;
         }
     }
+
+    //projects the Order fields only, so the raw read returns the same fields the Order model serialises
+    private static Document getOrderProjection(){
+        Document projection = new Document(MONGO_ID, 0);
+        for(Field field : Order.class.getDeclaredFields()){
+            if(!Modifier.isStatic(field.getModifiers())){
+                projection.put(field.getName(), 1);
+            }
+        }
+        return projection;
+    }
+
+    //an unconfirmed stock update timed out or outlived the deadline, product service may or may not have applied it
+    private enum StockUpdateOutcome {
+        APPLIED,
+        FAILED,
+        UNCONFIRMED
+    }
 }
@@ -0,0 +1,114 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* Moves the orders of the completed and cancelled archive collections into the order collection, for switching
+* a deployment to mongo.order.storage-mode=single. Every batch is upserted by orderId and deleted from its archive
+* in one transaction, so the migration can be stopped and rerun at any point without losing or duplicating orders.
+*/
+@Service
+public class OrderStorageMigrator extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(OrderStorageMigrator.class);
+
+    private final MongoManager mongoManager;
+    private final OrderDbCollectionResolver collectionResolver;
+
+    @Value("${"+ORDER_DB+"}")
+    private String orderDb;
+
+    @Value("${"+ORDER_COLLECTION+"}")
+    private String orderColl;
+
+    @Value("${mongo.order.migration.batch-size:500}")
+    private int batchSize = 500;
+
+    @Autowired
+    public OrderStorageMigrator(MongoManager mongoManager, OrderDbCollectionResolver collectionResolver) {
+        this.mongoManager = mongoManager;
+        this.collectionResolver = collectionResolver;
+    }
+
+    //only with single collection storage, else the migrated orders would drop out of the completed and cancelled listings
+    public boolean canMigrate() {
+        return collectionResolver.isSingleCollection();
+    }
+
+    /**
+     * Move every archived order into the order collection
+     *
+     * @return per archive collection the number of orders moved, or null if the migration could not finish
+     */
+    public Map<String, Long> migrateToSingleCollection() {
+        if(!canMigrate()){
+            log.error("Order storage is not in single collection mode, archived orders are not migrated");
+            return null;
+        }
+        Map<String, Long> migrated = new LinkedHashMap<>();
+        for(String status : OrderDbCollectionResolver.getClosedStatuses()){
+            String archiveColl = collectionResolver.getArchiveCollection(status);
+            long count = migrateCollection(status, archiveColl);
+            if(count < 0){
+                return null;
+            }
+            migrated.put(archiveColl, count);
+        }
+        log.info("Archived orders migrated to coll : {}, {}", orderColl, migrated);
+        return migrated;
+    }
+
+    private long migrateCollection(String status, String archiveColl) {
+        long count = 0;
+        while(true){
+            //the migrated batch is deleted from the archive, so the next batch is always the first one left
+            List<Document> batch = mongoManager.findDocuments(new Document(), new Document(MONGO_ID, 1), batchSize, orderDb, archiveColl);
+            if(batch == null){
+                log.error("Failed to read archived orders from coll : {} after migrating {} orders", archiveColl, count);
+                return -1;
+            }
+            if(batch.isEmpty()){
+                return count;
+            }
+            List<String> orderIds = new ArrayList<>();
+            for(Document order : batch){
+                prepareForSingleCollection(order, status);
+                orderIds.add(order.getString(ORDER_ID));
+            }
+            Document archivedQuery = new Document(ORDER_ID, new Document(OPERATOR_IN, orderIds));
+            Boolean moved = mongoManager.executeInTransaction(orderDb, session ->
+                    mongoManager.upsertDocuments(session, batch, ORDER_ID, orderDb, orderColl) == batch.size()
+                            && mongoManager.deleteDocuments(session, archivedQuery, orderDb, archiveColl) == batch.size());
+            if(!Boolean.TRUE.equals(moved)){
+                log.error("Failed to migrate a batch of orders from coll : {} after migrating {} orders", archiveColl, count);
+                return -1;
+            }
+            count += batch.size();
+            log.info("Migrated {} orders from coll : {}", count, archiveColl);
+        }
+    }
+
+    //the archive an order was in was its status, the closing time falls back to the last update for the TTL index
+    private static void prepareForSingleCollection(Document order, String status) {
+        if(!OrderDbCollectionResolver.isClosed(order.get(STATUS))){
+            order.put(STATUS, status);
+        }
+        if(order.get(CLOSED_AT) == null){
+            Object updated = order.get(UPDATED_AT) != null ? order.get(UPDATED_AT) : order.get(UPDATED_DATE);
+            order.put(CLOSED_AT, updated instanceof Number ? new Date(((Number) updated).longValue()) : new Date());
+        }
+    }
+}
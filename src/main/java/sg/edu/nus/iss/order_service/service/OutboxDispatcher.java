@@ -0,0 +1,123 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.model.OutboxEventType;
+import sg.edu.nus.iss.order_service.utils.Constants;
+import sg.edu.nus.iss.order_service.utils.Utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/*
+* Drains the outbox in batches off the request thread, on its own bounded executor. Each due event is claimed when
+* a thread picks it up, so the lease only runs while it is delivered to the downstream service with its event id as
+* idempotency key, and is then marked dispatched, or rescheduled with backoff on failure.
+*/
+@Component
+public class OutboxDispatcher extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(OutboxDispatcher.class);
+
+    private final OutboxService outboxService;
+    private final OrderService orderService;
+    private final Utils utils;
+    private final ExecutorService outboxExecutor;
+
+    @Value("${outbox.dispatcher.batch-size:50}")
+    private int batchSize = 50;
+
+    @Value("${outbox.dispatcher.lease-ms:60000}")
+    private long leaseMs = 60000;
+
+    @Autowired
+    public OutboxDispatcher(OutboxService outboxService, OrderService orderService, Utils utils,
+                            @Qualifier("outboxExecutor") ExecutorService outboxExecutor) {
+        this.outboxService = outboxService;
+        this.orderService = orderService;
+        this.utils = utils;
+        this.outboxExecutor = outboxExecutor;
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.dispatcher.interval-ms:1000}")
+    public void dispatchDueEvents(){
+        List<Document> dueEvents = outboxService.findDueEvents(batchSize);
+        if(dueEvents == null || dueEvents.isEmpty()){
+            return;
+        }
+        log.info("Dispatching {} due outbox events", dueEvents.size());
+        List<CompletableFuture<Void>> dispatches = new ArrayList<>();
+        for(Document event : dueEvents){
+            dispatches.add(CompletableFuture.runAsync(() -> claimAndDispatch(event), outboxExecutor));
+        }
+        CompletableFuture.allOf(dispatches.toArray(new CompletableFuture[0])).join();
+    }
+
+    //claimed only once a thread is free, events queued behind a full pool must not burn their lease waiting
+    private void claimAndDispatch(Document event){
+        Document claimed = outboxService.claim(event, leaseMs);
+        if(claimed == null){
+            log.debug("Outbox event {} already claimed by another dispatcher", event.getString(EVENT_ID));
+            return;
+        }
+        dispatch(claimed);
+    }
+
+    void dispatch(Document event){
+        String eventId = event.getString(EVENT_ID);
+        try{
+            if(deliver(event)){
+                log.info("Outbox event {} of type {} dispatched for orderId: {}", eventId, event.getString(EVENT_TYPE),
+                        event.getString(ORDER_ID));
+                outboxService.markDispatched(event);
+            }else{
+                outboxService.markFailed(event, "Downstream call failed");
+            }
+        }catch(Exception ex){
+            log.error("Exception occurred while dispatching outbox event {}", eventId, ex);
+            outboxService.markFailed(event, ex.getMessage());
+        }
+    }
+
+    private boolean deliver(Document event){
+        String eventId = event.getString(EVENT_ID);
+        String orderId = event.getString(ORDER_ID);
+        Document payload = event.get(PAYLOAD, Document.class);
+        switch(OutboxEventType.valueOf(event.getString(EVENT_TYPE))){
+            case CUSTOMER_REWARD_POINTS_UPDATE:
+                return utils.updateCustomerRewardPoints(orderId, payload.getString(CUSTOMER_ID),
+                        new BigDecimal(payload.getString(AMOUNT)), eventId);
+            case MERCHANT_EARNINGS_UPDATE:
+                return utils.updateMerchantEarnings(orderId, payload.getString(MERCHANT_ID),
+                        new BigDecimal(payload.getString(AMOUNT)), eventId);
+            case DELIVERY_STATUS_UPDATE:
+                Document orderDoc = new Document(ORDER_ID, orderId);
+                orderDoc.put(CUSTOMER_ID, payload.getString(CUSTOMER_ID));
+                return utils.updateDeliveryStatusforOrder(orderDoc, false, payload.getString(DELIVERY_PARTNER_ID),
+                        OrderStatus.valueOf(payload.getString(STATUS)), eventId);
+            case PRODUCT_STOCK_RELEASE:
+                return orderService.releaseProductStock(payload.getString(PRODUCT_ID), payload.getInteger(QUANTITY), eventId);
+            case PRODUCT_STOCK_RECONCILE:
+                Map<String, Integer> quantities = new LinkedHashMap<>();
+                for(Document product : payload.getList(PRODUCTS, Document.class)){
+                    quantities.put(product.getString(PRODUCT_ID), product.getInteger(QUANTITY));
+                }
+                return orderService.reconcileProductStocks(payload.getString(RESERVATION_KEY), payload.getString(MERCHANT_ID),
+                        quantities, payload.getBoolean(BATCH, false), eventId);
+            default:
+                log.error("Unknown outbox event type for event {}", eventId);
+                return false;
+        }
+    }
+}
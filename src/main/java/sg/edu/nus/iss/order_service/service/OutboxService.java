@@ -0,0 +1,170 @@
+package sg.edu.nus.iss.order_service.service;
+
+import com.mongodb.client.ClientSession;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.model.OutboxEventType;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+* Transactional outbox for the remote side-effects of an order change. Events are written to the outbox
+* collection in the orders DB within the same transaction as the order write, and are delivered later by the
+* OutboxDispatcher, so a slow or failing downstream service no longer holds up or loses an order update.
+*/
+@Service
+public class OutboxService extends Constants {
+    private static final Logger log = LoggerFactory.getLogger(OutboxService.class);
+
+    private final MongoManager mongoManager;
+
+    @Value("${"+ORDER_DB+"}")
+    private String orderDb;
+
+    @Value("${"+OUTBOX_COLL+":outbox}")
+    private String outboxColl = "outbox";
+
+    @Value("${outbox.dispatcher.max-attempts:10}")
+    private int maxAttempts = 10;
+
+    @Value("${outbox.dispatcher.backoff-ms:1000}")
+    private long backoffMs = 1000;
+
+    @Value("${outbox.dispatcher.max-backoff-ms:300000}")
+    private long maxBackoffMs = 300000;
+
+    @Autowired
+    public OutboxService(MongoManager mongoManager) {
+        this.mongoManager = mongoManager;
+    }
+
+    public boolean enqueueRewardPointsUpdate(ClientSession session, String orderId, String customerId, BigDecimal amount){
+        Document payload = new Document(CUSTOMER_ID, customerId);
+        payload.put(AMOUNT, amount.toPlainString());
+        return enqueue(session, OutboxEventType.CUSTOMER_REWARD_POINTS_UPDATE, orderId, payload);
+    }
+
+    public boolean enqueueMerchantEarningsUpdate(ClientSession session, String orderId, String merchantId, BigDecimal amount){
+        Document payload = new Document(MERCHANT_ID, merchantId);
+        payload.put(AMOUNT, amount.toPlainString());
+        return enqueue(session, OutboxEventType.MERCHANT_EARNINGS_UPDATE, orderId, payload);
+    }
+
+    public boolean enqueueDeliveryStatusUpdate(ClientSession session, String orderId, String customerId,
+                                               String deliveryPartnerId, OrderStatus status){
+        Document payload = new Document(CUSTOMER_ID, customerId);
+        payload.put(DELIVERY_PARTNER_ID, deliveryPartnerId);
+        payload.put(STATUS, status.name());
+        return enqueue(session, OutboxEventType.DELIVERY_STATUS_UPDATE, orderId, payload);
+    }
+
+    //stock is handed back as the quantity reserved, the dispatcher adds it to the stock product service has by then
+    public boolean enqueueProductStockRelease(ClientSession session, String orderId, String productId, int quantity){
+        Document payload = new Document(PRODUCT_ID, productId);
+        payload.put(QUANTITY, quantity);
+        return enqueue(session, OutboxEventType.PRODUCT_STOCK_RELEASE, orderId, payload);
+    }
+
+    /*
+    * A stock reservation that may or may not have been applied, with the idempotency key it was sent with and the
+    * quantity reserved per product. The dispatcher settles it before handing the stock back, see
+    * OrderService.reconcileProductStocks.
+    */
+    public boolean enqueueProductStockReconcile(ClientSession session, String orderId, String reservationKey, String merchantId,
+                                                Map<String, Integer> quantities, boolean batch){
+        Document payload = new Document(RESERVATION_KEY, reservationKey);
+        payload.put(MERCHANT_ID, merchantId);
+        List<Document> products = new ArrayList<>();
+        quantities.forEach((productId, quantity) -> products.add(new Document(PRODUCT_ID, productId).append(QUANTITY, quantity)));
+        payload.put(PRODUCTS, products);
+        payload.put(BATCH, batch);
+        return enqueue(session, OutboxEventType.PRODUCT_STOCK_RECONCILE, orderId, payload);
+    }
+
+    private boolean enqueue(ClientSession session, OutboxEventType type, String orderId, Document payload){
+        long now = System.currentTimeMillis();
+        Document event = new Document(EVENT_ID, UUID.randomUUID().toString());
+        event.put(EVENT_TYPE, type.name());
+        event.put(ORDER_ID, orderId);
+        event.put(PAYLOAD, payload);
+        event.put(STATUS, PENDING);
+        event.put(ATTEMPTS, 0);
+        event.put(NEXT_ATTEMPT_AT, now);
+        event.put(CREATED_AT, now);
+        log.info("Adding {} event to outbox for orderId: {}", type, orderId);
+        return mongoManager.insertDocument(session, event, orderDb, outboxColl);
+    }
+
+    public List<Document> findDueEvents(int limit){
+        Document query = new Document(STATUS, PENDING);
+        query.put(NEXT_ATTEMPT_AT, new Document(OPERATOR_LTE, System.currentTimeMillis()));
+        return mongoManager.findDocuments(query, new Document(NEXT_ATTEMPT_AT, 1), limit, orderDb, outboxColl);
+    }
+
+    /*
+    * Claims an event by pushing its nextAttemptAt out by the lease, guarded on the value that was read. Only one
+    * dispatcher instance wins the claim, and if that instance dies the event simply becomes due again.
+    */
+    public Document claim(Document event, long leaseMs){
+        Document query = new Document(EVENT_ID, event.getString(EVENT_ID));
+        query.put(STATUS, PENDING);
+        query.put(NEXT_ATTEMPT_AT, event.get(NEXT_ATTEMPT_AT));
+        Document update = new Document(OPERATOR_SET, new Document(NEXT_ATTEMPT_AT, System.currentTimeMillis() + leaseMs));
+        update.put(OPERATOR_INC, new Document(ATTEMPTS, 1));
+        return mongoManager.findOneAndUpdate(query, update, orderDb, outboxColl, false, true);
+    }
+
+    //dispatchedAt is a date for the TTL index that purges dispatched events
+    public void markDispatched(Document event){
+        Document update = new Document(STATUS, DISPATCHED);
+        update.put(UPDATED_AT, System.currentTimeMillis());
+        update.put(DISPATCHED_AT, new Date());
+        complete(event, update);
+    }
+
+    public void markFailed(Document event, String error){
+        int attempts = event.getInteger(ATTEMPTS, 0);
+        Document update = new Document(LAST_ERROR, error);
+        update.put(UPDATED_AT, System.currentTimeMillis());
+        if(attempts >= maxAttempts){
+            log.error("Giving up on outbox event {} of type {} for orderId: {} after {} attempts",
+                    event.getString(EVENT_ID), event.getString(EVENT_TYPE), event.getString(ORDER_ID), attempts);
+            update.put(STATUS, FAILURE);
+        }else{
+            update.put(NEXT_ATTEMPT_AT, System.currentTimeMillis() + getBackoff(attempts));
+        }
+        complete(event, update);
+    }
+
+    /*
+    * Guarded on the nextAttemptAt written by the claim, so a dispatcher whose lease ran out can not overwrite the
+    * outcome of the dispatcher that claimed the event after it.
+    */
+    private void complete(Document event, Document update){
+        Document query = new Document(EVENT_ID, event.getString(EVENT_ID));
+        query.put(STATUS, PENDING);
+        query.put(NEXT_ATTEMPT_AT, event.get(NEXT_ATTEMPT_AT));
+        if(mongoManager.findOneAndUpdate(query, new Document(OPERATOR_SET, update), orderDb, outboxColl, false, true) == null){
+            log.warn("Lease on outbox event {} of type {} for orderId: {} was lost, outcome not recorded",
+                    event.getString(EVENT_ID), event.getString(EVENT_TYPE), event.getString(ORDER_ID));
+        }
+    }
+
+    //exponential backoff doubling from the base delay on every attempt, capped at the max
+    long getBackoff(int attempts){
+        long backoff = backoffMs << Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(backoff, maxBackoffMs);
+    }
+}
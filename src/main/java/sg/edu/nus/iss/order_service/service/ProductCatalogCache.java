@@ -0,0 +1,154 @@
+package sg.edu.nus.iss.order_service.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.model.Product;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/*
+* Read-through cache of the product catalogue in front of product service, keyed by productId, so checkouts of the
+* same products do not fetch them every time. Holds at most max-size products, the least recently used evicted first.
+* Listing prices and categories rarely change, so a product is kept for ttl-ms. Only these display fields are served
+* from the cache, the stock of a cached product is never relied on: checkout reads the stock it reserves from product
+* service.
+* Exports cache.gets (result hit or miss), cache.evictions and cache.size tagged cache=products.
+*/
+@Component
+public class ProductCatalogCache {
+    private static final Logger log = LoggerFactory.getLogger(ProductCatalogCache.class);
+    private static final String CACHE_NAME = "products";
+
+    //access ordered, the eldest entry is the least recently used one
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    @Value("${product.cache.max-size:10000}")
+    private int maxSize = 10000;
+
+    @Value("${product.cache.ttl-ms:600000}")
+    private long ttlMs = 600000;
+
+    @Autowired
+    public ProductCatalogCache(ObjectProvider<MeterRegistry> meterRegistryProvider) {
+        this(meterRegistryProvider.getIfAvailable(SimpleMeterRegistry::new));
+    }
+
+    ProductCatalogCache(MeterRegistry meterRegistry) {
+        this.hits = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cache.gets").tag("cache", CACHE_NAME).tag("result", "miss").register(meterRegistry);
+        this.evictions = Counter.builder("cache.evictions").tag("cache", CACHE_NAME).register(meterRegistry);
+        Gauge.builder("cache.size", this, ProductCatalogCache::size).tag("cache", CACHE_NAME).register(meterRegistry);
+    }
+
+    /**
+     * The products of the ids, the ones not cached fetched with one call of the loader.
+     * As before the cache, the result is empty if the loader finds none of the missing products, e.g. on a failed
+     * call, and misses the ids product service does not know.
+     *
+     * @param productIds The ids of the products
+     * @param loader     Fetches the products of the given ids from product service, empty on failure
+     * @return The found products
+     */
+    public List<Product> getProducts(List<String> productIds, Function<List<String>, List<Product>> loader) {
+        Map<String, Product> products = new LinkedHashMap<>();
+        List<String> missingIds = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try{
+            for(String productId : new LinkedHashSet<>(productIds)){
+                Entry entry = entries.get(productId);
+                if(entry != null && now - entry.loadedAt >= ttlMs){
+                    entries.remove(productId);
+                    evictions.increment();
+                    entry = null;
+                }
+                if(entry != null){
+                    products.put(productId, entry.product);
+                }else{
+                    missingIds.add(productId);
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+        hits.increment(products.size());
+        misses.increment(missingIds.size());
+        if(missingIds.isEmpty()){
+            return new ArrayList<>(products.values());
+        }
+        log.debug("Fetching {} products missing from the cache: {}", missingIds.size(), missingIds);
+        List<Product> loaded = loader.apply(missingIds);
+        if(loaded == null || loaded.isEmpty()){
+            return new ArrayList<>();
+        }
+        put(loaded);
+        for(Product product : loaded){
+            products.put(product.getProductId().toString(), product);
+        }
+        //in the order of the ids
+        List<Product> result = new ArrayList<>();
+        for(String productId : new LinkedHashSet<>(productIds)){
+            if(products.containsKey(productId)){
+                result.add(products.get(productId));
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        lock.lock();
+        try{
+            return entries.size();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void put(List<Product> products) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try{
+            for(Product product : products){
+                entries.put(product.getProductId().toString(), new Entry(product, now));
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while(entries.size() > maxSize && eldest.hasNext()){
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final Product product;
+        private final long loadedAt;
+
+        private Entry(Product product, long loadedAt) {
+            this.product = product;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
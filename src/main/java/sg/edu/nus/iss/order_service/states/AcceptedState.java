@@ -29,21 +29,31 @@ public class AcceptedState extends Constants implements OrderState {
         this.orderColl = orderColl;
     }
 
+    @Override
+    public OrderStatus getStatus() {
+        return OrderStatus.ACCEPTED;
+    }
+
     @Override
     public Response updateStatus(OrderContext orderContext) {
         String orderId = orderContext.getOrderId();
         OrderStatus status = OrderStatus.ACCEPTED;
-        Document query = new Document(ORDER_ID, orderId);
-        Document updateDoc = new Document(STATUS, status);
-        updateDoc.put(UPDATED_AT, System.currentTimeMillis());
-        updateDoc.put(UPDATED_BY, MERCHANT);
-        Document result = mongoManager.findOneAndUpdate(query, new Document("$set", updateDoc), orderDb, orderColl, false, true);
+        //only matches while the order is still in a status it may move from, else a concurrent update got there first
+        Document query = OrderState.getTransitionQuery(orderId, status);
+        Document updateDoc = OrderState.getStatusUpdate(status, MERCHANT);
+        Document result;
+        try{
+            result = mongoManager.findOneAndUpdate(null, query, new Document(OPERATOR_SET, updateDoc), orderDb, orderColl);
+        }catch(Exception ex){
+            log.error("Failed to update order status for orderId: {} to status : {}", orderId, status, ex);
+            return utils.getFailedResponse("Failed to update order status for orderId: ".concat(orderId).concat(" to status : ").concat(status.toString()));
+        }
         if(result != null){
             log.info("Order status updated successfully for orderId: {} to status : {}", orderId, status);
             return utils.getSuccessResponse("Order status updated successfully for orderId: ".concat(orderId).concat(" to status : ").concat(status.toString()), null);
         }else{
-            log.error("Failed to update order status for orderId: {} to status : {}", orderId, status);
-            return utils.getFailedResponse("Failed to update order status for orderId: ".concat(orderId).concat(" to status : ").concat(status.toString()));
+            log.error("Order for orderId: {} is not in a status to move to status : {}", orderId, status);
+            return utils.getConflictResponse("Order for orderId: ".concat(orderId).concat(" is not in a status to move to status : ").concat(status.toString()));
         }
     }
 }
@@ -7,14 +7,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
 import sg.edu.nus.iss.order_service.model.OrderContext;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.service.OutboxService;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.math.BigDecimal;
+import java.util.Date;
 
 @Service
 public class CancelledState extends Constants implements OrderState{
@@ -23,35 +26,60 @@ public class CancelledState extends Constants implements OrderState{
 
     private final String orderDb;
     private final String orderColl;
-    private final String cancelledOrderColl;
+    private final OrderDbCollectionResolver collectionResolver;
     private final MongoManager mongoManager;
     private final Utils utils;
+    private final OutboxService outboxService;
 
-    public CancelledState(MongoManager mongoManager, Utils utils,
-                          @Value("${"+ORDER_DB+"}")String orderDb, @Value("${"+ORDER_COLLECTION+"}")String orderColl,
-                          @Value("${"+CANCELLED_ORDERS_COLL+"}")String cancelledOrderColl) {
+    public CancelledState(MongoManager mongoManager, Utils utils, OutboxService outboxService,
+                          OrderDbCollectionResolver collectionResolver,
+                          @Value("${"+ORDER_DB+"}")String orderDb, @Value("${"+ORDER_COLLECTION+"}")String orderColl) {
         this.mongoManager = mongoManager;
         this.utils = utils;
+        this.outboxService = outboxService;
         this.orderDb = orderDb;
         this.orderColl = orderColl;
-        this.cancelledOrderColl = cancelledOrderColl;
+        this.collectionResolver = collectionResolver;
+    }
+
+    @Override
+    public OrderStatus getStatus() {
+        return OrderStatus.CANCELLED;
     }
 
     @Override
     public Response updateStatus(OrderContext orderContext){
-        Document orderDoc = orderContext.getOrderDoc();
         String orderId = orderContext.getOrderId();
-        Document query = new Document(ORDER_ID, orderId);
-
+        OrderStatus status = OrderStatus.CANCELLED;
+        Document closeUpdate = new Document(OPERATOR_SET, OrderState.getStatusUpdate(status, MERCHANT).append(CLOSED_AT, new Date()));
+        boolean closeInPlace = collectionResolver.isSingleCollection();
+        String cancelledOrderColl = collectionResolver.resolve(CANCELLED);
+        boolean[] conflict = {false};
         try{
-            orderDoc.put(STATUS, OrderStatus.CANCELLED);
-            orderDoc.put(UPDATED_AT, System.currentTimeMillis());
-            orderDoc.put(UPDATED_BY, MERCHANT);
-            mongoManager.insertDocument(orderDoc, orderDb, cancelledOrderColl);
-            mongoManager.deleteDocument(query, orderDb, orderColl);
-            //this will restore the reward points for user.
-            utils.updateCustomerRewardPoints(orderId, orderDoc.get(CUSTOMER_ID, String.class),
-                    mapper.convertValue(orderDoc.get("customerRewardsPointsUsed"), BigDecimal.class));
+            //the order is closed by a compare and set on its status first, so an order already picked up, completed
+            //or cancelled matches nothing and the transaction writes nothing else. It then leaves the order coll in
+            //the same transaction, so it is never in both colls or in neither, or with a single order coll stays in place
+            Boolean cancelled = mongoManager.executeInTransaction(orderDb, session -> {
+                Document orderDoc = mongoManager.findOneAndUpdate(session, OrderState.getTransitionQuery(orderId, status),
+                        closeUpdate, orderDb, orderColl);
+                conflict[0] = orderDoc == null;
+                if(orderDoc == null){
+                    return false;
+                }
+                //this will restore the reward points for user, committed together with the cancelled order.
+                BigDecimal rewardPointsUsed = mapper.convertValue(orderDoc.get("customerRewardsPointsUsed"), BigDecimal.class);
+                return (closeInPlace || mongoManager.insertDocument(session, orderDoc, orderDb, cancelledOrderColl))
+                        && outboxService.enqueueRewardPointsUpdate(session, orderId, orderDoc.get(CUSTOMER_ID, String.class), rewardPointsUsed)
+                        && (closeInPlace || mongoManager.deleteDocument(session, new Document(ORDER_ID, orderId), orderDb, orderColl));
+            });
+            if(!Boolean.TRUE.equals(cancelled) && conflict[0]){
+                log.error("Order for orderId: {} is not in a status to be cancelled", orderId);
+                return utils.getConflictResponse("Order for orderId: ".concat(orderId).concat(" is not in a status to be cancelled"));
+            }
+            if(!Boolean.TRUE.equals(cancelled)){
+                log.error("Failed to move order to cancelled coll for orderId: {}", orderId);
+                return utils.getFailedResponse("Failed to cancel order for orderId: ".concat(orderId));
+            }
             log.info("Order has been cancelled successfully for orderId: {} and kept in cancelled coll", orderId);
             return utils.getSuccessResponse("Order has been cancelled successfully for orderId: ".concat(orderId).concat(" and kept in cancelled coll"), null);
         }catch(Exception ex){
@@ -7,14 +7,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
 import sg.edu.nus.iss.order_service.model.OrderContext;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.service.OutboxService;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 @Service
 public class CompletedState extends Constants implements OrderState{
@@ -23,48 +28,73 @@ public class CompletedState extends Constants implements OrderState{
 
     private final String orderDb;
     private final String orderColl;
-    private final String completedOrderColl;
+    private final OrderDbCollectionResolver collectionResolver;
     private final MongoManager mongoManager;
     private final Utils utils;
+    private final OutboxService outboxService;
 
-    public CompletedState(MongoManager mongoManager, Utils utils,
-                          @Value("${"+ORDER_DB+"}")String orderDb, @Value("${"+ORDER_COLLECTION+"}")String orderColl,
-                          @Value("${"+COMPLETED_ORDERS_COLL+"}")String completedOrderColl) {
+    public CompletedState(MongoManager mongoManager, Utils utils, OutboxService outboxService,
+                          OrderDbCollectionResolver collectionResolver,
+                          @Value("${"+ORDER_DB+"}")String orderDb, @Value("${"+ORDER_COLLECTION+"}")String orderColl) {
         this.mongoManager = mongoManager;
         this.utils = utils;
+        this.outboxService = outboxService;
         this.orderDb = orderDb;
         this.orderColl = orderColl;
-        this.completedOrderColl = completedOrderColl;
+        this.collectionResolver = collectionResolver;
+    }
+
+    @Override
+    public OrderStatus getStatus() {
+        return OrderStatus.COMPLETED;
     }
 
     @Override
     public Response updateStatus(OrderContext orderContext){
-        Document orderDoc = orderContext.getOrderDoc();
         String orderId = orderContext.getOrderId();
-        Document query = new Document(ORDER_ID, orderId);
+        OrderStatus status = OrderStatus.COMPLETED;
+        //the delivery partner completes the order if delivery was opted for, else the merchant handing it over
+        Document closeUpdate = OrderState.getStatusUpdate(status, null);
+        closeUpdate.put(UPDATED_BY, new Document(OPERATOR_COND, Arrays.asList(
+                new Document(OPERATOR_EQ, Arrays.asList("$".concat(USE_DELIVERY), true)), DELIVERY_PARTNER, MERCHANT)));
+        closeUpdate.put(CLOSED_AT, new Date());
+        List<Document> closePipeline = List.of(new Document(OPERATOR_SET, closeUpdate));
+        boolean closeInPlace = collectionResolver.isSingleCollection();
+        String completedOrderColl = collectionResolver.resolve(COMPLETED);
+        boolean[] conflict = {false};
         try{
-            boolean usingDelivery = orderDoc.get(USE_DELIVERY, Boolean.class);
-            if(usingDelivery && orderDoc.containsKey(DELIVERY_PARTNER_ID)){
-                //update delivery service about status change if delivery opted for
-                String deliveryPartnerId = orderDoc.get(DELIVERY_PARTNER_ID, String.class);
-                boolean deliveryStatusRes = utils.updateDeliveryStatusforOrder(orderDoc, false,
-                        deliveryPartnerId, OrderStatus.COMPLETED);
-                if(!deliveryStatusRes){
-                    log.error("Failed to complete delivery for orderId: {} for deliveryPartnerId: {}", orderId, deliveryPartnerId);
-                    return utils.getFailedResponse("Failed to complete delivery for order");
+            //the order is closed by a compare and set on its status first, so an order completed or cancelled by a
+            //concurrent request matches nothing and the transaction writes nothing else. The closed order then
+            //moves to the completed coll, or with a single order coll stays in place, and the earnings, rewards
+            //and delivery updates it triggers are committed together with it
+            Boolean completed = mongoManager.executeInTransaction(orderDb, session -> {
+                Document orderDoc = mongoManager.findOneAndUpdate(session, OrderState.getTransitionQuery(orderId, status),
+                        closePipeline, orderDb, orderColl);
+                conflict[0] = orderDoc == null;
+                if(orderDoc == null){
+                    return false;
                 }
-                log.info("Delivery completed successfully in delivery service for orderId: {} and deliveryPartnerId: {}, updating data in order colls.",
-                        orderId, deliveryPartnerId);
+                boolean usingDelivery = Boolean.TRUE.equals(orderDoc.get(USE_DELIVERY, Boolean.class));
+                //delivery service is told about the completion through the outbox if delivery opted for
+                String deliveryPartnerId = usingDelivery ? orderDoc.get(DELIVERY_PARTNER_ID, String.class) : null;
+                String customerId = orderDoc.get(CUSTOMER_ID, String.class);
+                String merchantId = orderDoc.get(MERCHANT_ID, String.class);
+                BigDecimal orderPrice =  mapper.convertValue(orderDoc.get(TOTAL_PRICE), BigDecimal.class);
+                return (closeInPlace || mongoManager.insertDocument(session, orderDoc, orderDb, completedOrderColl))
+                        && outboxService.enqueueMerchantEarningsUpdate(session, orderId, merchantId, orderPrice)
+                        && outboxService.enqueueRewardPointsUpdate(session, orderId, customerId, orderPrice)
+                        && (deliveryPartnerId == null || outboxService.enqueueDeliveryStatusUpdate(session, orderId,
+                                customerId, deliveryPartnerId, OrderStatus.COMPLETED))
+                        && (closeInPlace || mongoManager.deleteDocument(session, new Document(ORDER_ID, orderId), orderDb, orderColl));
+            });
+            if(!Boolean.TRUE.equals(completed) && conflict[0]){
+                log.error("Order for orderId: {} is not in a status to be completed", orderId);
+                return utils.getConflictResponse("Order for orderId: ".concat(orderId).concat(" is not in a status to be completed"));
+            }
+            if(!Boolean.TRUE.equals(completed)){
+                log.error("Failed to move order to completed coll for orderId: {}", orderId);
+                return utils.getFailedResponse("Failed to complete order for orderId: ".concat(orderId));
             }
-            orderDoc.put(STATUS, OrderStatus.COMPLETED);
-            orderDoc.put(UPDATED_AT, System.currentTimeMillis());
-            orderDoc.put(UPDATED_BY, usingDelivery ? DELIVERY_PARTNER : MERCHANT);
-            mongoManager.insertDocument(orderDoc, orderDb, completedOrderColl);
-            mongoManager.deleteDocument(query, orderDb, orderColl);
-
-            BigDecimal orderPrice =  mapper.convertValue(orderDoc.get(TOTAL_PRICE), BigDecimal.class);
-            utils.updateMerchantEarnings(orderId, orderDoc.get(MERCHANT_ID, String.class),  orderPrice);
-            utils.updateCustomerRewardPoints(orderId, orderDoc.get(CUSTOMER_ID, String.class), orderPrice);
             log.info("Order has been completed successfully for orderId: {} and kept in completed coll", orderId);
             return utils.getSuccessResponse("Order has been completed successfully for orderId: ".concat(orderId).concat(" and kept in completed coll"), null);
         }catch(Exception ex){
@@ -33,41 +33,62 @@ public class DeliveryAcceptedState extends Constants implements OrderState{
         this.orderColl = orderColl;
     }
 
+    @Override
+    public OrderStatus getStatus() {
+        return OrderStatus.DELIVERY_ACCEPTED;
+    }
+
     @Override
     public Response updateStatus(OrderContext orderContext){
-        Document orderDoc = orderContext.getOrderDoc();
         String orderId = orderContext.getOrderId();
-        Document query = new Document(ORDER_ID, orderId);
         OrderStatus status = OrderStatus.DELIVERY_ACCEPTED;
-        if(!orderDoc.containsKey(USE_DELIVERY) || !orderDoc.get(USE_DELIVERY, Boolean.class)){
-            log.error("Attempting to start delivery for orderId: {} without opting for delivery", orderId);
-            return utils.getFailedResponse("Attempting to start delivery for order which didnt opt for delivery");
-        }
         JsonNode payload = orderContext.getPayload();
         if(payload==null || !payload.hasNonNull(DELIVERY_PARTNER_ID)){
             log.error("No delivery partner id found in payload {} for orderId: {} while starting delivery", payload, orderId);
             return utils.getFailedResponse("No delivery partner id provided, unable to start delivery");
         }
         String deliveryPartnerId = payload.get(DELIVERY_PARTNER_ID).asText();
+        //the order is claimed for the delivery partner first, so of partners accepting the same ready order only the
+        //first one matches and creates the delivery record, the others lose without calling the delivery service.
+        //An order leased to another partner (see OrderService.claimOrderForDelivery) is not theirs to accept
+        Document query = OrderState.getTransitionQuery(orderId, status).append(USE_DELIVERY, true);
+        query.putAll(OrderState.getClaimableQuery(deliveryPartnerId, System.currentTimeMillis()));
+        Document updateDoc = OrderState.getStatusUpdate(status, DELIVERY_PARTNER).append(DELIVERY_PARTNER_ID, deliveryPartnerId);
+        log.info("Starting delivery for order: {} using query : {}", orderId, mapper.convertValue(query, JsonNode.class));
+        Document orderDoc;
+        try{
+            Document update = new Document(OPERATOR_SET, updateDoc).append(OPERATOR_UNSET, OrderState.getClaimRelease());
+            orderDoc = mongoManager.findOneAndUpdate(null, query, update, orderDb, orderColl);
+        }catch(Exception ex){
+            log.error("Failed to initiate delivery for order: {},  status : {}", orderId, status, ex);
+            return utils.getFailedResponse("Failed to initiate delivery for order");
+        }
+        if(orderDoc == null){
+            log.error("Order: {} is not ready for delivery, already accepted, claimed by another delivery partner or did not opt for delivery", orderId);
+            return utils.getConflictResponse("Order is not ready for delivery, already accepted, claimed by another delivery partner or did not opt for delivery");
+        }
         boolean deliveryStatusRes = utils.updateDeliveryStatusforOrder(orderDoc, true, deliveryPartnerId, OrderStatus.DELIVERY_ACCEPTED);
         if(!deliveryStatusRes){
             log.error("Failed to start delivery for orderId: {} for deliveryPartnerId: {}", orderId, deliveryPartnerId);
+            releaseOrder(orderId, deliveryPartnerId);
             return utils.getFailedResponse("Failed to start delivery for order");
         }
-        log.info("Delivery record successfully created in delivery service for orderId: {} and deliveryPartnerId: {}, updating data in order colls.",
-                orderId, deliveryPartnerId);
-        Document updateDoc = new Document(STATUS, status);
-        updateDoc.put(DELIVERY_PARTNER_ID, deliveryPartnerId);
-        updateDoc.put(UPDATED_AT, System.currentTimeMillis());
-        updateDoc.put(UPDATED_BY, DELIVERY_PARTNER);
-        log.info("Starting delivery for order: {} using query : {}", orderId, mapper.convertValue(query, JsonNode.class));
-        Document result = mongoManager.findOneAndUpdate(query, new Document("$set", updateDoc), orderDb, orderColl, false, true);
-        if(result != null){
-            log.info("Started delivery flow successfully for order: {} and kept status : {}", orderId, status);
-            return utils.getSuccessResponse("Delivery has been started for the order successfully", null);
-        }else{
-            log.error("Failed to initiate delivery for order: {},  status : {}", orderId, status);
-            return utils.getFailedResponse("Failed to initiate delivery for order");
+        log.info("Started delivery flow successfully for order: {} and kept status : {}", orderId, status);
+        return utils.getSuccessResponse("Delivery has been started for the order successfully", null);
+    }
+
+    //hands the order back to ready for another delivery partner, unless it moved on since
+    private void releaseOrder(String orderId, String deliveryPartnerId) {
+        Document query = new Document(ORDER_ID, orderId).append(STATUS, OrderStatus.DELIVERY_ACCEPTED)
+                .append(DELIVERY_PARTNER_ID, deliveryPartnerId);
+        Document update = new Document(OPERATOR_SET, OrderState.getStatusUpdate(OrderStatus.READY, DELIVERY_PARTNER))
+                .append(OPERATOR_UNSET, new Document(DELIVERY_PARTNER_ID, ""));
+        try{
+            if(mongoManager.findOneAndUpdate(null, query, update, orderDb, orderColl) == null){
+                log.error("Order: {} was not released by deliveryPartnerId: {}, it is no longer accepted by the partner", orderId, deliveryPartnerId);
+            }
+        }catch(Exception ex){
+            log.error("Failed to release order: {} accepted by deliveryPartnerId: {}", orderId, deliveryPartnerId, ex);
         }
     }
 }
@@ -33,34 +33,51 @@ public class DeliveryPickedUpState extends Constants implements OrderState{
         this.orderColl = orderColl;
     }
 
+    @Override
+    public OrderStatus getStatus() {
+        return OrderStatus.DELIVERY_PICKED_UP;
+    }
+
     public Response updateStatus(OrderContext orderContext){
-        Document orderDoc = orderContext.getOrderDoc();
         String orderId = orderContext.getOrderId();
-        Document query = new Document(ORDER_ID, orderId);
         OrderStatus status = OrderStatus.DELIVERY_PICKED_UP;
-        if(!orderDoc.containsKey(USE_DELIVERY) || !orderDoc.get(USE_DELIVERY, Boolean.class) || !orderDoc.containsKey(DELIVERY_PARTNER_ID)){
-            log.error("Delivery not yet started for the order: {} or not opted for delivery", orderId);
-            return utils.getFailedResponse("Delivery has not yet started for this order or not opted for delivery");
+        //only an order accepted by a delivery partner is picked up, and only once
+        Document query = OrderState.getTransitionQuery(orderId, status).append(USE_DELIVERY, true)
+                .append(DELIVERY_PARTNER_ID, new Document(OPERATOR_EXISTS, true));
+        Document updateDoc = OrderState.getStatusUpdate(status, DELIVERY_PARTNER);
+        log.info("Updating delivery status for order: {} using query : {}", orderId, mapper.convertValue(query, JsonNode.class));
+        Document orderDoc;
+        try{
+            orderDoc = mongoManager.findOneAndUpdate(null, query, new Document(OPERATOR_SET, updateDoc), orderDb, orderColl);
+        }catch(Exception ex){
+            log.error("Failed to update delivery status for order: {},  status : {}", orderId, status, ex);
+            return utils.getFailedResponse("Failed to update delivery status for order");
+        }
+        if(orderDoc == null){
+            log.error("Delivery not yet started for the order: {}, already picked up or not opted for delivery", orderId);
+            return utils.getConflictResponse("Delivery has not yet started for this order, is already picked up or not opted for delivery");
         }
         String deliveryPartnerId = orderDoc.get(DELIVERY_PARTNER_ID, String.class);
         boolean deliveryStatusRes = utils.updateDeliveryStatusforOrder(orderDoc, false, deliveryPartnerId, OrderStatus.DELIVERY_PICKED_UP);
         if(!deliveryStatusRes){
             log.error("Failed to update delivery status for orderId: {} for deliveryPartnerId: {} in delivery service", orderId, deliveryPartnerId);
+            revertPickUp(orderId);
             return utils.getFailedResponse("Failed to update delivery status for order");
         }
-        log.info("Delivery record successfully updated in delivery service for orderId: {} and deliveryPartnerId: {}, updating data in order colls.",
-                orderId, deliveryPartnerId);
-        Document updateDoc = new Document(STATUS, status);
-        updateDoc.put(UPDATED_AT, System.currentTimeMillis());
-        updateDoc.put(UPDATED_BY, DELIVERY_PARTNER);
-        log.info("Updating delivery status for order: {} using query : {}", orderId, mapper.convertValue(query, JsonNode.class));
-        Document result = mongoManager.findOneAndUpdate(query, new Document("$set", updateDoc), orderDb, orderColl, false, true);
-        if(result != null){
-            log.info("Successfully update delivery status for order: {} and kept status : {}", orderId, status);
-            return utils.getSuccessResponse("Delivery status has been updated for the order successfully", null);
-        }else{
-            log.error("Failed to update delivery status for order: {},  status : {}", orderId, status);
-            return utils.getFailedResponse("Failed to update delivery status for order");
+        log.info("Successfully update delivery status for order: {} and kept status : {}", orderId, status);
+        return utils.getSuccessResponse("Delivery status has been updated for the order successfully", null);
+    }
+
+    //the delivery service did not take the pick up, so the order stays accepted for the pick up to be retried
+    private void revertPickUp(String orderId) {
+        Document query = new Document(ORDER_ID, orderId).append(STATUS, OrderStatus.DELIVERY_PICKED_UP);
+        Document update = new Document(OPERATOR_SET, OrderState.getStatusUpdate(OrderStatus.DELIVERY_ACCEPTED, DELIVERY_PARTNER));
+        try{
+            if(mongoManager.findOneAndUpdate(null, query, update, orderDb, orderColl) == null){
+                log.error("Pick up of order: {} was not reverted, it is no longer picked up", orderId);
+            }
+        }catch(Exception ex){
+            log.error("Failed to revert pick up of order: {}", orderId, ex);
         }
     }
 }
@@ -1,8 +1,58 @@
 package sg.edu.nus.iss.order_service.states;
 
+import org.bson.Document;
 import sg.edu.nus.iss.order_service.model.OrderContext;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.utils.ApplicationConstants;
+import sg.edu.nus.iss.order_service.utils.MongoConstants;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public interface OrderState {
     Response updateStatus(OrderContext context);
+
+    //the status this state moves an order to, the key of the state in the OrderStateRegistry
+    OrderStatus getStatus();
+
+    /**
+     * Matches the order only while it is in a status it may move to the status from, so an update with this query
+     * is a compare and set: of concurrent transitions of the same order only the first one matches.
+     */
+    static Document getTransitionQuery(String orderId, OrderStatus status) {
+        List<String> expectedStatuses = new ArrayList<>();
+        for (OrderStatus from : OrderStateRegistry.getAllowedFrom(status)) {
+            expectedStatuses.add(from.name());
+        }
+        return new Document(ApplicationConstants.ORDER_ID, orderId)
+                .append(ApplicationConstants.STATUS, new Document(MongoConstants.OPERATOR_IN, expectedStatuses));
+    }
+
+    /**
+     * Matches an order nobody holds a live claim on, or that the delivery partner claimed itself. A claim is a lease:
+     * once expired the order is up for grabs again, whether the claim sweeper cleared it yet or not.
+     * Without a delivery partner only unclaimed orders match.
+     */
+    static Document getClaimableQuery(String deliveryPartnerId, long now) {
+        List<Document> claimable = new ArrayList<>();
+        claimable.add(new Document(ApplicationConstants.CLAIM_EXPIRES_AT, new Document(MongoConstants.OPERATOR_EXISTS, false)));
+        claimable.add(new Document(ApplicationConstants.CLAIM_EXPIRES_AT, new Document(MongoConstants.OPERATOR_LT, now)));
+        if (deliveryPartnerId != null) {
+            claimable.add(new Document(ApplicationConstants.CLAIMED_BY, deliveryPartnerId));
+        }
+        return new Document(MongoConstants.OPERATOR_OR, claimable);
+    }
+
+    //clears the claim of a delivery partner off the order
+    static Document getClaimRelease() {
+        return new Document(ApplicationConstants.CLAIMED_BY, "").append(ApplicationConstants.CLAIM_EXPIRES_AT, "");
+    }
+
+    //the fields every transition sets on the order
+    static Document getStatusUpdate(OrderStatus status, String updatedBy) {
+        return new Document(ApplicationConstants.STATUS, status)
+                .append(ApplicationConstants.UPDATED_AT, System.currentTimeMillis())
+                .append(ApplicationConstants.UPDATED_BY, updatedBy);
+    }
 }
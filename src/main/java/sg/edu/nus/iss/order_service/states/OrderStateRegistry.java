@@ -0,0 +1,77 @@
+package sg.edu.nus.iss.order_service.states;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+* The OrderState beans keyed by the status they move an order to, built once at startup. The states are stateless
+* singletons, so one instance of each serves every status update instead of a new one per request.
+* The transitions table lists for every target status the statuses an order may move to it from, a status without
+* an entry is never a valid target, e.g. CREATED or INVALID.
+*/
+@Component
+public class OrderStateRegistry {
+    private static final Map<OrderStatus, Set<OrderStatus>> TRANSITIONS = getTransitions();
+
+    private final Map<OrderStatus, OrderState> states;
+
+    @Autowired
+    public OrderStateRegistry(List<OrderState> orderStates) {
+        Map<OrderStatus, OrderState> registry = new EnumMap<>(OrderStatus.class);
+        for (OrderState orderState : orderStates) {
+            if (registry.put(orderState.getStatus(), orderState) != null) {
+                throw new IllegalStateException("More than one order state for status: " + orderState.getStatus());
+            }
+        }
+        if (!registry.keySet().equals(TRANSITIONS.keySet())) {
+            throw new IllegalStateException("Order states " + registry.keySet() + " do not match the transitions to " + TRANSITIONS.keySet());
+        }
+        this.states = Collections.unmodifiableMap(registry);
+    }
+
+    //null if no update moves an order to the status
+    public OrderState getState(OrderStatus status) {
+        return status == null ? null : states.get(status);
+    }
+
+    //the statuses an order may be in to move it to the status, empty if it is no valid target. The expected
+    //current status of the compare and set each state updates the order with
+    public static Set<OrderStatus> getAllowedFrom(OrderStatus status) {
+        Set<OrderStatus> from = status == null ? null : TRANSITIONS.get(status);
+        return from == null ? Collections.emptySet() : from;
+    }
+
+    //the current status as read from the order document, i.e. the enum or its name
+    public static boolean isAllowed(Object currentStatus, OrderStatus status) {
+        if (currentStatus == null) {
+            return false;
+        }
+        for (OrderStatus from : getAllowedFrom(status)) {
+            if (from.name().equals(currentStatus.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<OrderStatus, Set<OrderStatus>> getTransitions() {
+        Map<OrderStatus, Set<OrderStatus>> transitions = new EnumMap<>(OrderStatus.class);
+        transitions.put(OrderStatus.ACCEPTED, Collections.unmodifiableSet(EnumSet.of(OrderStatus.CREATED)));
+        transitions.put(OrderStatus.READY, Collections.unmodifiableSet(EnumSet.of(OrderStatus.ACCEPTED)));
+        transitions.put(OrderStatus.DELIVERY_ACCEPTED, Collections.unmodifiableSet(EnumSet.of(OrderStatus.READY)));
+        transitions.put(OrderStatus.DELIVERY_PICKED_UP, Collections.unmodifiableSet(EnumSet.of(OrderStatus.DELIVERY_ACCEPTED)));
+        //picked up by the customer when ready, or delivered once the delivery partner picked it up
+        transitions.put(OrderStatus.COMPLETED, Collections.unmodifiableSet(EnumSet.of(OrderStatus.READY, OrderStatus.DELIVERY_PICKED_UP)));
+        //the merchant can cancel until a delivery partner accepted the order
+        transitions.put(OrderStatus.CANCELLED, Collections.unmodifiableSet(EnumSet.of(OrderStatus.CREATED, OrderStatus.ACCEPTED, OrderStatus.READY)));
+        return Collections.unmodifiableMap(transitions);
+    }
+}
@@ -0,0 +1,66 @@
+package sg.edu.nus.iss.order_service.strategy.order;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/*
+* Lazy k-way merge of cursors that are each already sorted with the same comparator. Only the current head of
+* every cursor is held, so reading n merged orders pulls about n orders from the cursors and never more than
+* their open batches.
+*/
+public class OrderMergeIterator implements Iterator<Document>, AutoCloseable {
+    private final List<MongoCursor<Document>> cursors;
+    private final PriorityQueue<Head> heads;
+
+    public OrderMergeIterator(List<MongoCursor<Document>> cursors, Comparator<Document> comparator) {
+        this.cursors = cursors;
+        this.heads = new PriorityQueue<>(Math.max(cursors.size(), 1), (h1, h2) -> comparator.compare(h1.order, h2.order));
+        for(MongoCursor<Document> cursor : cursors){
+            advance(cursor);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public Document next() {
+        Head head = heads.poll();
+        if(head == null){
+            throw new NoSuchElementException();
+        }
+        advance(head.cursor);
+        return head.order;
+    }
+
+    @Override
+    public void close() {
+        for(MongoCursor<Document> cursor : cursors){
+            cursor.close();
+        }
+    }
+
+    private void advance(MongoCursor<Document> cursor) {
+        if(cursor.hasNext()){
+            heads.add(new Head(cursor.next(), cursor));
+        }
+    }
+
+    private static final class Head {
+        private final Document order;
+        private final MongoCursor<Document> cursor;
+
+        private Head(Document order, MongoCursor<Document> cursor) {
+            this.order = order;
+            this.cursor = cursor;
+        }
+    }
+}
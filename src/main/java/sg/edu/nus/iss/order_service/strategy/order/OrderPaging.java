@@ -0,0 +1,124 @@
+package sg.edu.nus.iss.order_service.strategy.order;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.swagger.v3.core.util.Json;
+import org.bson.Document;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+* Keyset pagination over createdDate with orderId as tie breaker. The page token carries the sort key of the last
+* order returned and the next page is filtered to the orders sorting after it, instead of skipping every earlier
+* order. The profile indexes end in (createdDate, orderId), so the filter bounds the index scan and the sort needs
+* no in memory stage, only limit + 1 orders are read for a page.
+*/
+public final class OrderPaging extends Constants {
+    private static final ObjectMapper mapper = Json.mapper();
+    private static final String TOKEN_SEPARATOR = ":";
+
+    private OrderPaging() {
+    }
+
+    public static void validate(OrderPageRequest page) {
+        if(page.getLimit() <= 0){
+            throw new IllegalArgumentException("limit must be greater than 0");
+        }
+        if(!SORT_ASC.equalsIgnoreCase(page.getSort()) && !SORT_DESC.equalsIgnoreCase(page.getSort())){
+            throw new IllegalArgumentException("sort must be one of asc or desc");
+        }
+        if(page.getPageToken() != null){
+            decodeToken(page.getPageToken());
+        }
+    }
+
+    public static Document getSort(OrderPageRequest page) {
+        return getSort(page.getSort());
+    }
+
+    public static Document getSort(String sortDirection) {
+        int direction = SORT_ASC.equalsIgnoreCase(sortDirection) ? 1 : -1;
+        Document sort = new Document(CREATED_DATE, direction);
+        sort.put(ORDER_ID, direction);
+        return sort;
+    }
+
+    public static Comparator<Document> getComparator(OrderPageRequest page) {
+        return getComparator(page.getSort());
+    }
+
+    //orders documents the same way as getSort does in mongo
+    public static Comparator<Document> getComparator(String sortDirection) {
+        Comparator<Document> comparator = Comparator.<Document>comparingLong(doc -> getCreatedDate(doc))
+                .thenComparing(doc -> doc.getString(ORDER_ID), Comparator.nullsFirst(Comparator.naturalOrder()));
+        return SORT_ASC.equalsIgnoreCase(sortDirection) ? comparator : comparator.reversed();
+    }
+
+    /*
+    * Restricts the query to the orders sorting after the page token, i.e. a later createdDate, or the same
+    * createdDate with a later orderId (earlier for descending sort).
+    */
+    public static Document applyPageToken(Document query, OrderPageRequest page) {
+        if(page.getPageToken() == null){
+            return query;
+        }
+        String[] token = decodeToken(page.getPageToken());
+        long createdDate = Long.parseLong(token[0]);
+        String operator = isAscending(page) ? OPERATOR_GT : OPERATOR_LT;
+        Document sameDate = new Document(CREATED_DATE, createdDate);
+        sameDate.put(ORDER_ID, new Document(operator, token[1]));
+        query.put(OPERATOR_OR, List.of(new Document(CREATED_DATE, new Document(operator, createdDate)), sameDate));
+        return query;
+    }
+
+    /*
+    * Builds the page from orders read with a limit of page limit + 1, the extra order only tells whether there
+    * is a next page and is not returned.
+    */
+    public static JsonNode toPage(List<Document> orders, OrderPageRequest page) {
+        ObjectNode pageNode = mapper.createObjectNode();
+        boolean hasNext = orders.size() > page.getLimit();
+        List<Document> pageOrders = hasNext ? orders.subList(0, page.getLimit()) : orders;
+        pageNode.set(ORDERS, mapper.valueToTree(pageOrders));
+        if(hasNext){
+            pageNode.put(NEXT_PAGE_TOKEN, encodeToken(pageOrders.get(pageOrders.size() - 1)));
+        }else{
+            pageNode.putNull(NEXT_PAGE_TOKEN);
+        }
+        return pageNode;
+    }
+
+    static String encodeToken(Document order) {
+        String token = getCreatedDate(order) + TOKEN_SEPARATOR + order.getString(ORDER_ID);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeToken(String pageToken) {
+        try{
+            String token = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+            String[] parts = token.split(TOKEN_SEPARATOR, 2);
+            Long.parseLong(parts[0]);
+            if(parts.length != 2 || parts[1].isEmpty()){
+                throw new IllegalArgumentException("Invalid page token");
+            }
+            return parts;
+        }catch(IllegalArgumentException ex){
+            throw new IllegalArgumentException("Invalid page token", ex);
+        }
+    }
+
+    private static boolean isAscending(OrderPageRequest page) {
+        return SORT_ASC.equalsIgnoreCase(page.getSort());
+    }
+
+    private static long getCreatedDate(Document order) {
+        Object createdDate = order.get(CREATED_DATE);
+        return createdDate instanceof Number ? ((Number) createdDate).longValue() : 0L;
+    }
+}
@@ -1,8 +1,16 @@
 package sg.edu.nus.iss.order_service.strategy.order;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.Document;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.Response;
 
+import java.util.function.Consumer;
+
 public interface OrderTypeStrategy {
     Response getOrders(String profileType, String profileId);
+
+    Response getOrders(String profileType, String profileId, OrderPageRequest page);
+
+    boolean streamOrders(String profileType, String profileId, Consumer<Document> consumer);
 }
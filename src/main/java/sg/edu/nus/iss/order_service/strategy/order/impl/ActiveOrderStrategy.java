@@ -8,13 +8,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.strategy.order.OrderPaging;
 import sg.edu.nus.iss.order_service.strategy.order.OrderTypeStrategy;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 @Component("ACTIVE")
 public class ActiveOrderStrategy extends Constants implements OrderTypeStrategy {
@@ -42,8 +46,6 @@ public class ActiveOrderStrategy extends Constants implements OrderTypeStrategy
     @Value("${" + CANCELLED_ORDERS_COLL + "}")
     private String cancelledOrderColl;
 
-    private static final String ACTIVE_STATUS = "ACTIVE"; // Filter for active orders
-
     @Override
     public Response getOrders(String profileType, String profileId) {
         logger.info("Fetching active orders for profileType: {} and profileId: {}", profileType, profileId);
@@ -58,10 +60,11 @@ public class ActiveOrderStrategy extends Constants implements OrderTypeStrategy
             return utils.getFailedResponse("Invalid profile type: " + profileType);
         }
 
-        query.append("status", ACTIVE_STATUS); // Filter for active orders
+        query.append(STATUS, getActiveStatusFilter()); // Filter for active orders
         logger.debug("Constructed query: {}", query.toJson());
 
-        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, orderColl);
+        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, orderColl,
+                mongoManager.getListingReadPreference(orderDb));
 
         if (orders == null || orders.isEmpty()) {
             logger.warn("No active orders found for profileType: {} and profileId: {}", profileType, profileId);
@@ -73,6 +76,55 @@ public class ActiveOrderStrategy extends Constants implements OrderTypeStrategy
         return buildSuccessResponse(orders);
     }
 
+    @Override
+    public Response getOrders(String profileType, String profileId, OrderPageRequest page) {
+        logger.info("Fetching page of active orders for profileType: {} and profileId: {}, limit: {}", profileType, profileId, page.getLimit());
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+
+        query.append(STATUS, getActiveStatusFilter()); // Filter for active orders
+        OrderPaging.applyPageToken(query, page);
+        logger.debug("Constructed query: {}", query.toJson());
+
+        // Read one order past the page to know if there is a next page
+        List<Document> orders = mongoManager.findDocuments(query, OrderPaging.getSort(page), page.getLimit() + 1, orderDb, orderColl,
+                mongoManager.getListingReadPreference(orderDb));
+
+        if (orders == null || orders.isEmpty()) {
+            logger.warn("No active orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No active orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved page of active orders for profileType: {} and profileId: {}", profileType, profileId);
+        return utils.getSuccessResponse("Active orders retrieved successfully", OrderPaging.toPage(orders, page));
+    }
+
+    @Override
+    public boolean streamOrders(String profileType, String profileId, Consumer<Document> consumer) {
+        logger.info("Streaming active orders for profileType: {} and profileId: {}", profileType, profileId);
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return false;
+        }
+
+        query.append(STATUS, getActiveStatusFilter());
+        logger.debug("Query built: {}", query.toJson());
+        return mongoManager.forEachDocument(query, OrderPaging.getSort(SORT_DESC), orderDb, orderColl,
+                mongoManager.getListingReadPreference(orderDb), consumer);
+    }
+
+    /*
+    * No order is ever stored with an ACTIVE status, active means any status an order has before it is completed or
+    * cancelled. Needed with a single order collection, where closed orders stay next to the active ones.
+    */
+    private Document getActiveStatusFilter() {
+        return new Document(OPERATOR_IN, OrderDbCollectionResolver.getActiveStatuses());
+    }
+
     private Document createProfileQuery(String profileType, String profileId) {
         Document query = new Document();
 
@@ -1,20 +1,30 @@
 package sg.edu.nus.iss.order_service.strategy.order.impl;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCursor;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.strategy.order.OrderMergeIterator;
+import sg.edu.nus.iss.order_service.strategy.order.OrderPaging;
 import sg.edu.nus.iss.order_service.strategy.order.OrderTypeStrategy;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 @Component("ALL")
 public class AllOrderStrategy extends Constants implements OrderTypeStrategy {
@@ -27,6 +37,13 @@ public class AllOrderStrategy extends Constants implements OrderTypeStrategy {
     @Autowired
     private Utils utils;
 
+    @Autowired
+    private OrderDbCollectionResolver collectionResolver;
+
+    @Autowired
+    @Qualifier("ioExecutor")
+    private ExecutorService ioExecutor;
+
     @Value("${" + ORDER_DB + "}")
     private String orderDb;
 
@@ -58,11 +75,14 @@ public class AllOrderStrategy extends Constants implements OrderTypeStrategy {
 //        query.append("status", ALL_STATUS); // Filter for all orders
         logger.debug("Constructed query: {}", query.toJson());
 
-        // Query MongoDB for matching documents across all collections
+        // Query MongoDB for matching documents across all collections, merged newest first
         List<Document> allOrders = new ArrayList<>();
-        allOrders.addAll(mongoManager.findAllDocuments(query, orderDb, completedOrderColl));
-        allOrders.addAll(mongoManager.findAllDocuments(query, orderDb, cancelledOrderColl));
-        allOrders.addAll(mongoManager.findAllDocuments(query, orderDb, orderColl));
+        try (OrderMergeIterator orders = openMergedCursors(query, SORT_DESC, 0)) {
+            if (orders == null) {
+                return utils.getFailedResponse("Failed to read orders for profileType " + profileType + " and ID " + profileId);
+            }
+            orders.forEachRemaining(allOrders::add);
+        }
 
         // Check if orders were found
         if (allOrders.isEmpty()) {
@@ -77,6 +97,90 @@ public class AllOrderStrategy extends Constants implements OrderTypeStrategy {
         return utils.getSuccessResponse("All orders retrieved successfully", ordersJsonNode);
     }
 
+    @Override
+    public Response getOrders(String profileType, String profileId, OrderPageRequest page) {
+        logger.info("Fetching page of all orders for profileType: {} and profileId: {}, limit: {}", profileType, profileId, page.getLimit());
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+        OrderPaging.applyPageToken(query, page);
+        logger.debug("Constructed query: {}", query.toJson());
+
+        /*
+        * The same keyset range is read from every collection, so the first limit + 1 orders of the merged
+        * result are the page, with the extra order telling whether there is a next page.
+        */
+        List<Document> allOrders = new ArrayList<>();
+        try (OrderMergeIterator orders = openMergedCursors(query, page.getSort(), page.getLimit() + 1)) {
+            if (orders == null) {
+                return utils.getFailedResponse("Failed to read orders for profileType " + profileType + " and ID " + profileId);
+            }
+            while (orders.hasNext() && allOrders.size() <= page.getLimit()) {
+                allOrders.add(orders.next());
+            }
+        }
+
+        if (allOrders.isEmpty()) {
+            logger.warn("No all orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No all orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved page of orders for profileType: {} and profileId: {}", profileType, profileId);
+        return utils.getSuccessResponse("All orders retrieved successfully", OrderPaging.toPage(allOrders, page));
+    }
+
+    @Override
+    public boolean streamOrders(String profileType, String profileId, Consumer<Document> consumer) {
+        logger.info("Streaming all orders for profileType: {} and profileId: {}", profileType, profileId);
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return false;
+        }
+        logger.debug("Constructed query: {}", query.toJson());
+
+        try (OrderMergeIterator orders = openMergedCursors(query, SORT_DESC, 0)) {
+            if (orders == null) {
+                return false;
+            }
+            orders.forEachRemaining(consumer);
+            return true;
+        } catch (Exception ex) {
+            logger.error("Error while streaming orders for profileType: {} and profileId: {}: {}", profileType, profileId, ex.getMessage());
+            return false;
+        }
+    }
+
+    /*
+    * Issues the query against the three order collections concurrently, so opening the cursors takes about as long
+    * as the slowest collection, and merges them lazily in sort order. Returns null if any cursor failed to open.
+    * With a single order collection this is one cursor and the merge passes its orders through.
+    */
+    private OrderMergeIterator openMergedCursors(Document query, String sortDirection, int limit) {
+        Document sort = OrderPaging.getSort(sortDirection);
+        ReadPreference readPreference = mongoManager.getListingReadPreference(orderDb);
+        List<CompletableFuture<MongoCursor<Document>>> opens = new ArrayList<>();
+        for (String coll : collectionResolver.getOrderCollections()) {
+            opens.add(CompletableFuture.supplyAsync(() -> mongoManager.findCursor(query, sort, limit, orderDb, coll,
+                    readPreference), ioExecutor));
+        }
+        List<MongoCursor<Document>> cursors = new ArrayList<>();
+        for (CompletableFuture<MongoCursor<Document>> open : opens) {
+            MongoCursor<Document> cursor = open.join();
+            if (cursor != null) {
+                cursors.add(cursor);
+            }
+        }
+        if (cursors.size() < opens.size()) {
+            logger.error("Unable to open cursors on all order collections for query: {}", query.toJson());
+            cursors.forEach(MongoCursor::close);
+            return null;
+        }
+        return new OrderMergeIterator(cursors, OrderPaging.getComparator(sortDirection));
+    }
+
     private Document createProfileQuery(String profileType, String profileId) {
         Document query = new Document();
 
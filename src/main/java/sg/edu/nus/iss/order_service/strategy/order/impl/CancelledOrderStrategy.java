@@ -7,13 +7,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.strategy.order.OrderPaging;
 import sg.edu.nus.iss.order_service.strategy.order.OrderTypeStrategy;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 @Component("CANCELLED")
 public class CancelledOrderStrategy extends Constants implements OrderTypeStrategy {
@@ -26,6 +30,9 @@ public class CancelledOrderStrategy extends Constants implements OrderTypeStrate
     @Autowired
     private Utils utils;
 
+    @Autowired
+    private OrderDbCollectionResolver collectionResolver;
+
     @Value("${" + ORDER_DB + "}")
     private String orderDb;
 
@@ -44,9 +51,74 @@ public class CancelledOrderStrategy extends Constants implements OrderTypeStrate
     public Response getOrders(String profileType, String profileId) {
         logger.info("Fetching cancelled orders for profileType: {} and profileId: {}", profileType, profileId);
 
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+
+        query.append("status", CANCELLED_STATUS); // Filter for cancelled orders
+        logger.debug("Query built: {}", query.toJson());
+
+        // Query MongoDB for matching documents
+        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, collectionResolver.resolve(CANCELLED),
+                mongoManager.getListingReadPreference(orderDb));
+
+        logger.debug("Retrieved {} cancelled orders", orders.size());
+
+        // Process the results
+        if (orders == null || orders.isEmpty()) {
+            logger.warn("No cancelled orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No cancelled orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved {} cancelled orders for profileType: {} and profileId: {}", orders.size(), profileType, profileId);
+        return utils.getSuccessResponse("Cancelled orders retrieved successfully", utils.convertToJsonNode(orders));
+    }
+
+    @Override
+    public Response getOrders(String profileType, String profileId, OrderPageRequest page) {
+        logger.info("Fetching page of cancelled orders for profileType: {} and profileId: {}, limit: {}", profileType, profileId, page.getLimit());
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+
+        query.append("status", CANCELLED_STATUS);
+        OrderPaging.applyPageToken(query, page);
+        logger.debug("Query built: {}", query.toJson());
+
+        // Read one order past the page to know if there is a next page
+        List<Document> orders = mongoManager.findDocuments(query, OrderPaging.getSort(page), page.getLimit() + 1, orderDb, collectionResolver.resolve(CANCELLED),
+                mongoManager.getListingReadPreference(orderDb));
+
+        if (orders == null || orders.isEmpty()) {
+            logger.warn("No cancelled orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No cancelled orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved page of cancelled orders for profileType: {} and profileId: {}", profileType, profileId);
+        return utils.getSuccessResponse("Cancelled orders retrieved successfully", OrderPaging.toPage(orders, page));
+    }
+
+    @Override
+    public boolean streamOrders(String profileType, String profileId, Consumer<Document> consumer) {
+        logger.info("Streaming cancelled orders for profileType: {} and profileId: {}", profileType, profileId);
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return false;
+        }
+
+        query.append("status", CANCELLED_STATUS);
+        logger.debug("Query built: {}", query.toJson());
+        return mongoManager.forEachDocument(query, OrderPaging.getSort(SORT_DESC), orderDb, collectionResolver.resolve(CANCELLED),
+                mongoManager.getListingReadPreference(orderDb), consumer);
+    }
+
+    private Document createProfileQuery(String profileType, String profileId) {
         Document query = new Document();
 
-        // Build the query based on the profile type
         switch (profileType.toLowerCase()) {
             case "customer":
                 query.append("customerId", profileId);
@@ -62,24 +134,8 @@ public class CancelledOrderStrategy extends Constants implements OrderTypeStrate
                 break;
             default:
                 logger.warn("Invalid profile type: {}", profileType);
-                return utils.getFailedResponse("Invalid profile type: " + profileType);
+                return null; // Invalid profile type
         }
-
-        query.append("status", CANCELLED_STATUS); // Filter for cancelled orders
-        logger.debug("Query built: {}", query.toJson());
-
-        // Query MongoDB for matching documents
-        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, cancelledOrderColl);
-
-        logger.debug("Retrieved {} cancelled orders", orders.size());
-
-        // Process the results
-        if (orders == null || orders.isEmpty()) {
-            logger.warn("No cancelled orders found for profileType: {} and profileId: {}", profileType, profileId);
-            return utils.getFailedResponse("No cancelled orders found for profileType " + profileType + " and ID " + profileId);
-        }
-
-        logger.info("Successfully retrieved {} cancelled orders for profileType: {} and profileId: {}", orders.size(), profileType, profileId);
-        return utils.getSuccessResponse("Cancelled orders retrieved successfully", utils.convertToJsonNode(orders));
+        return query;
     }
 }
@@ -7,13 +7,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderPageRequest;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.strategy.order.OrderPaging;
 import sg.edu.nus.iss.order_service.strategy.order.OrderTypeStrategy;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 @Component("COMPLETED")
 public class CompletedOrderStrategy extends Constants implements OrderTypeStrategy {
@@ -26,6 +30,9 @@ public class CompletedOrderStrategy extends Constants implements OrderTypeStrate
     @Autowired
     private Utils utils;
 
+    @Autowired
+    private OrderDbCollectionResolver collectionResolver;
+
     @Value("${" + ORDER_DB + "}")
     private String orderDb;
 
@@ -44,9 +51,74 @@ public class CompletedOrderStrategy extends Constants implements OrderTypeStrate
     public Response getOrders(String profileType, String profileId) {
         logger.info("Fetching completed orders for profileType: {} and profileId: {}", profileType, profileId);
 
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+
+        query.append("status", COMPLETED_STATUS); // Filter for completed orders
+        logger.debug("Query built: {}", query.toJson());
+
+        // Query MongoDB for matching documents
+        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, collectionResolver.resolve(COMPLETED),
+                mongoManager.getListingReadPreference(orderDb));
+
+        logger.debug("Retrieved {} completed orders", orders.size());
+
+        // Process the results
+        if (orders == null || orders.isEmpty()) {
+            logger.warn("No completed orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No completed orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved {} completed orders for profileType: {} and profileId: {}", orders.size(), profileType, profileId);
+        return utils.getSuccessResponse("Completed orders retrieved successfully", utils.convertToJsonNode(orders));
+    }
+
+    @Override
+    public Response getOrders(String profileType, String profileId, OrderPageRequest page) {
+        logger.info("Fetching page of completed orders for profileType: {} and profileId: {}, limit: {}", profileType, profileId, page.getLimit());
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return utils.getFailedResponse("Invalid profile type: " + profileType);
+        }
+
+        query.append("status", COMPLETED_STATUS);
+        OrderPaging.applyPageToken(query, page);
+        logger.debug("Query built: {}", query.toJson());
+
+        // Read one order past the page to know if there is a next page
+        List<Document> orders = mongoManager.findDocuments(query, OrderPaging.getSort(page), page.getLimit() + 1, orderDb, collectionResolver.resolve(COMPLETED),
+                mongoManager.getListingReadPreference(orderDb));
+
+        if (orders == null || orders.isEmpty()) {
+            logger.warn("No completed orders found for profileType: {} and profileId: {}", profileType, profileId);
+            return utils.getFailedResponse("No completed orders found for profileType " + profileType + " and ID " + profileId);
+        }
+
+        logger.info("Successfully retrieved page of completed orders for profileType: {} and profileId: {}", profileType, profileId);
+        return utils.getSuccessResponse("Completed orders retrieved successfully", OrderPaging.toPage(orders, page));
+    }
+
+    @Override
+    public boolean streamOrders(String profileType, String profileId, Consumer<Document> consumer) {
+        logger.info("Streaming completed orders for profileType: {} and profileId: {}", profileType, profileId);
+
+        Document query = createProfileQuery(profileType, profileId);
+        if (query == null) {
+            return false;
+        }
+
+        query.append("status", COMPLETED_STATUS);
+        logger.debug("Query built: {}", query.toJson());
+        return mongoManager.forEachDocument(query, OrderPaging.getSort(SORT_DESC), orderDb, collectionResolver.resolve(COMPLETED),
+                mongoManager.getListingReadPreference(orderDb), consumer);
+    }
+
+    private Document createProfileQuery(String profileType, String profileId) {
         Document query = new Document();
 
-        // Build the query based on the profile type
         switch (profileType.toLowerCase()) {
             case "customer":
                 query.append("customerId", profileId);
@@ -62,24 +134,8 @@ public class CompletedOrderStrategy extends Constants implements OrderTypeStrate
                 break;
             default:
                 logger.warn("Invalid profile type: {}", profileType);
-                return utils.getFailedResponse("Invalid profile type: " + profileType);
+                return null; // Invalid profile type
         }
-
-        query.append("status", COMPLETED_STATUS); // Filter for completed orders
-        logger.debug("Query built: {}", query.toJson());
-
-        // Query MongoDB for matching documents
-        List<Document> orders = mongoManager.findAllDocuments(query, orderDb, completedOrderColl);
-
-        logger.debug("Retrieved {} completed orders", orders.size());
-
-        // Process the results
-        if (orders == null || orders.isEmpty()) {
-            logger.warn("No completed orders found for profileType: {} and profileId: {}", profileType, profileId);
-            return utils.getFailedResponse("No completed orders found for profileType " + profileType + " and ID " + profileId);
-        }
-
-        logger.info("Successfully retrieved {} completed orders for profileType: {} and profileId: {}", orders.size(), profileType, profileId);
-        return utils.getSuccessResponse("Completed orders retrieved successfully", utils.convertToJsonNode(orders));
+        return query;
     }
 }
@@ -6,8 +6,11 @@ public interface ApplicationConstants {
     String ACTIVE = "ACTIVE";
     String CREATED = "CREATED";
     String READY = "READY";
+    String PENDING = "PENDING";
+    String DISPATCHED = "DISPATCHED";
     String DOT = ".";
     String SLASH = "/";
+    char NEW_LINE = '\n';
     String CUSTOMER_ID = "customerId";
     String CUSTOMER = "customer";
     String MERCHANT = "merchant";
@@ -16,17 +19,43 @@ public interface ApplicationConstants {
     String DELIVERY_PARTNER_ID = "deliveryPartnerId";
     String ORDER_ID = "orderId";
     String PRODUCT_ID = "productId";
+    String QUANTITY = "quantity";
     String ORDER_ITEMS = "orderItems";
     String TOTAL_PRICE = "totalPrice";
     String REWARD_AMOUNT = "rewardAmount";
     String USE_DELIVERY = "useDelivery";
+    String PICKUP_ZONE = "pickupZone";
     String STATUS = "status";
     String CART_ITEMS = "cartItems";
     String CREATED_AT = "createdAt";
+    String CREATED_DATE = "createdDate";
+    String UPDATED_DATE = "updatedDate";
     String UPDATED_AT = "updatedAt";
     String UPDATED_BY = "updatedBy";
+    String CLOSED_AT = "closedAt";
+    String CLAIMED_BY = "claimedBy";
+    String CLAIM_EXPIRES_AT = "claimExpiresAt";
     String CREATED_BY = "createdBy";
     String SUCCESS = "SUCCESS";
     String FAILURE = "FAILURE";
+    String CONFLICT = "CONFLICT";
     String MESSAGE = "message";
+    String IDEMPOTENCY_KEY = "Idempotency-Key";
+    String EVENT_ID = "eventId";
+    String EVENT_TYPE = "type";
+    String PAYLOAD = "payload";
+    String ATTEMPTS = "attempts";
+    String NEXT_ATTEMPT_AT = "nextAttemptAt";
+    String DISPATCHED_AT = "dispatchedAt";
+    String RESERVATION_KEY = "reservationKey";
+    String PRODUCTS = "products";
+    String BATCH = "batch";
+    String LAST_ERROR = "lastError";
+    String AMOUNT = "amount";
+    String ORDERS = "orders";
+    String NEXT_PAGE_TOKEN = "nextPageToken";
+    String SORT_ASC = "asc";
+    String SORT_DESC = "desc";
+    int DEFAULT_PAGE_LIMIT = 20;
+    String APPLICATION_NDJSON = "application/x-ndjson";
 }
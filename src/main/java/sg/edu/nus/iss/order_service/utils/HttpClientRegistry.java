@@ -0,0 +1,160 @@
+package sg.edu.nus.iss.order_service.utils;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import sg.edu.nus.iss.order_service.exception.CustomerResponseErrorHandler;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Registry of pooled RestTemplates, one per downstream (scheme://host:port) and timeout profile.
+ * Every client is backed by its own keep-alive connection pool so product, profile and delivery
+ * service calls reuse TCP connections instead of opening a new one per request.
+ */
+@Component
+public class HttpClientRegistry {
+    private static final Logger log = LoggerFactory.getLogger(HttpClientRegistry.class);
+
+    private final Map<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+    private final RestTemplateBuilder restTemplateBuilder;
+
+    @Value("${ws.client.pool.max-total:100}")
+    private int maxTotal = 100;
+
+    @Value("${ws.client.pool.max-per-route:20}")
+    private int maxPerRoute = 20;
+
+    @Value("${ws.client.pool.idle-evict-ms:30000}")
+    private long idleEvictMs = 30000;
+
+    @Value("${ws.client.pool.time-to-live-ms:300000}")
+    private long timeToLiveMs = 300000;
+
+    @Autowired
+    public HttpClientRegistry(RestTemplateBuilder restTemplateBuilder) {
+        this.restTemplateBuilder = restTemplateBuilder;
+    }
+
+    public RestTemplate getRestTemplate(String url, long connectTimeout, long readTimeout) {
+        ClientKey key = new ClientKey(baseUrlOf(url), connectTimeout, readTimeout);
+        return clients.computeIfAbsent(key, this::createClient).restTemplate;
+    }
+
+    /**
+     * Snapshot of connection pool usage for every registered downstream client.
+     *
+     * @return pool stats keyed by base url and timeout profile
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> stats = new LinkedHashMap<>();
+        clients.forEach((key, client) -> stats.put(key.toString(), client.connectionManager.getTotalStats()));
+        return stats;
+    }
+
+    private PooledClient createClient(ClientKey key) {
+        log.info("Creating pooled http client for {} with maxPerRoute {} and maxTotal {}", key, maxPerRoute, maxTotal);
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxTotal)
+                .setMaxConnPerRoute(maxPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(key.connectTimeout))
+                        .setSocketTimeout(Timeout.ofMilliseconds(key.readTimeout))
+                        .setTimeToLive(TimeValue.ofMilliseconds(timeToLiveMs))
+                        .build())
+                .build();
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(Timeout.ofMilliseconds(key.readTimeout))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleEvictMs))
+                .build();
+        RestTemplate restTemplate = restTemplateBuilder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+                .errorHandler(new CustomerResponseErrorHandler())
+                .build();
+        return new PooledClient(restTemplate, httpClient, connectionManager);
+    }
+
+    private static String baseUrlOf(String url) {
+        URI uri = URI.create(url);
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    @PreDestroy
+    public void closeAllClients() {
+        log.info("Closing {} pooled http clients.", clients.size());
+        clients.values().forEach(client -> client.httpClient.close(CloseMode.GRACEFUL));
+        clients.clear();
+    }
+
+    private static final class ClientKey {
+        private final String baseUrl;
+        private final long connectTimeout;
+        private final long readTimeout;
+
+        private ClientKey(String baseUrl, long connectTimeout, long readTimeout) {
+            this.baseUrl = baseUrl;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout
+                    && baseUrl.equals(other.baseUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseUrl, connectTimeout, readTimeout);
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl + "[connect=" + connectTimeout + "ms,read=" + readTimeout + "ms]";
+        }
+    }
+
+    private static final class PooledClient {
+        private final RestTemplate restTemplate;
+        private final CloseableHttpClient httpClient;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        private PooledClient(RestTemplate restTemplate, CloseableHttpClient httpClient,
+                             PoolingHttpClientConnectionManager connectionManager) {
+            this.restTemplate = restTemplate;
+            this.httpClient = httpClient;
+            this.connectionManager = connectionManager;
+        }
+    }
+}
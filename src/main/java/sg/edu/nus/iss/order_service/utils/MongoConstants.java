@@ -10,11 +10,32 @@ public interface MongoConstants {
     String CART_DB_USERNAME = "mongo.cart.username";
     String CART_DB_PASSWORD = "mongo.cart.password";
     String CART_COLL = "mongo.cart.collection";
+    String ORDER_DB_SETTINGS = "mongo.order";
+    String CART_DB_SETTINGS = "mongo.cart";
+    String CART_ISOLATED_CLIENT = "mongo.cart.isolated-client";
     String COMPLETED_ORDERS_COLL = "mongo.completedOrders.collection";
     String CANCELLED_ORDERS_COLL = "mongo.cancelledOrders.collection";
+    String OUTBOX_COLL = "mongo.outbox.collection";
+    String ORDER_STORAGE_MODE = "mongo.order.storage-mode";
+    String CLOSED_ORDERS_TTL_DAYS = "mongo.order.closed-ttl-days";
+    String DISPATCHED_EVENTS_TTL_DAYS = "mongo.outbox.dispatched-ttl-days";
     String OPERATOR_PUSH = "$push";
     String OPERATOR_SET = "$set";
     String OPERATOR_INC = "$inc";
     String OPERATOR_PULL = "$pull";
     String OPERATOR_POSITIONAL = "$";
+    String OPERATOR_LTE = "$lte";
+    String OPERATOR_NE = "$ne";
+    String OPERATOR_SIZE = "$size";
+    String OPERATOR_LT = "$lt";
+    String OPERATOR_GT = "$gt";
+    String OPERATOR_OR = "$or";
+    String OPERATOR_IN = "$in";
+    String OPERATOR_NIN = "$nin";
+    String OPERATOR_UNSET = "$unset";
+    String OPERATOR_EXISTS = "$exists";
+    String OPERATOR_EQ = "$eq";
+    String OPERATOR_COND = "$cond";
+    String OPERATOR_MATCH = "$match";
+    String MONGO_ID = "_id";
 }
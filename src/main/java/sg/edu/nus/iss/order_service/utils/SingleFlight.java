@@ -0,0 +1,119 @@
+package sg.edu.nus.iss.order_service.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/*
+* Merges concurrent identical calls: the first caller of a key makes the call, the ones arriving while it is in flight
+* wait for its result instead of making the same call again. Every caller, the one making the call included, gets the
+* result through the copier, so a mutable result is not shared between callers. A waiter waits at most max-wait-ms and
+* then makes the call itself, so a slow call never holds up more than it would have without coalescing. A call made by
+* an interrupted caller, e.g. a cancelled lookup, is not shared either, the waiters make the call themselves. A waiter
+* interrupted while waiting fails with a CancellationException and keeps its interrupt status. Nothing is cached, the
+* key is free again as soon as the call returns.
+* Exports singleflight.calls (result leader, coalesced or timeout, the coalesced callers not served by the call in
+* flight),
+* singleflight.in-flight and singleflight.coalescing.ratio, the share of callers served by another caller's call,
+* tagged with the name.
+*/
+public class SingleFlight<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(SingleFlight.class);
+    private static final String NAME_TAG = "name";
+    private static final String CALLS = "singleflight.calls";
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final String name;
+    private final UnaryOperator<V> copier;
+    private final Counter leaders;
+    private final Counter coalesced;
+    private final Counter timeouts;
+
+    public SingleFlight(String name, MeterRegistry meterRegistry, UnaryOperator<V> copier) {
+        this.name = name;
+        this.copier = copier;
+        this.leaders = Counter.builder(CALLS).tag(NAME_TAG, name).tag("result", "leader").register(meterRegistry);
+        this.coalesced = Counter.builder(CALLS).tag(NAME_TAG, name).tag("result", "coalesced").register(meterRegistry);
+        this.timeouts = Counter.builder(CALLS).tag(NAME_TAG, name).tag("result", "timeout").register(meterRegistry);
+        Gauge.builder("singleflight.in-flight", inFlight, Map::size).tag(NAME_TAG, name).register(meterRegistry);
+        Gauge.builder("singleflight.coalescing.ratio", this, SingleFlight::getCoalescingRatio).tag(NAME_TAG, name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * The result of the call for the key, made by this caller or by the one already making it.
+     *
+     * @param key       Identifies the call, equal keys must make the same call
+     * @param maxWaitMs How long to wait for a call in flight before making the call
+     * @param call      The call
+     * @return The result of the call, copied when it was made by another caller
+     */
+    public V execute(K key, long maxWaitMs, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if(running == null){
+            leaders.increment();
+            try{
+                V result = call.get();
+                if(Thread.currentThread().isInterrupted()){
+                    //the call may have been cut short, its outcome is this caller's alone
+                    flight.completeExceptionally(new CancellationException());
+                    return result;
+                }
+                flight.complete(result);
+                return result == null ? null : copier.apply(result);
+            }catch(RuntimeException | Error ex){
+                //the waiters fail with the caller, unless the call failed because the caller was interrupted
+                flight.completeExceptionally(Thread.currentThread().isInterrupted() ? new CancellationException() : ex);
+                throw ex;
+            }finally{
+                inFlight.remove(key, flight);
+            }
+        }
+        coalesced.increment();
+        try{
+            V result = running.get(maxWaitMs, TimeUnit.MILLISECONDS);
+            return result == null ? null : copier.apply(result);
+        }catch(TimeoutException ex){
+            timeouts.increment();
+            log.warn("{} :: Call in flight for {} took over {} ms, making the call", name, key, maxWaitMs);
+            return call.get();
+        }catch(CancellationException ex){
+            timeouts.increment();
+            log.info("{} :: Call in flight for {} was interrupted, making the call", name, key);
+            return call.get();
+        }catch(ExecutionException ex){
+            if(ex.getCause() instanceof RuntimeException){
+                throw (RuntimeException) ex.getCause();
+            }
+            if(ex.getCause() instanceof Error){
+                throw (Error) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }catch(InterruptedException ex){
+            //the caller no longer wants the result, no call is made on its behalf
+            timeouts.increment();
+            Thread.currentThread().interrupt();
+            CancellationException cancelled = new CancellationException(name + " :: Interrupted waiting for the call in flight for " + key);
+            cancelled.initCause(ex);
+            throw cancelled;
+        }
+    }
+
+    public double getCoalescingRatio() {
+        double calls = leaders.count() + coalesced.count();
+        return calls == 0 ? 0 : (coalesced.count() - timeouts.count()) / calls;
+    }
+}
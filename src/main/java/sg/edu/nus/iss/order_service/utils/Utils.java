@@ -21,6 +21,7 @@ import java.math.BigDecimal;
 import java.util.HashMap;
 
 import java.util.List;
+import java.util.Map;
 
 @Service
 public class Utils extends Constants{
@@ -48,6 +49,14 @@ public class Utils extends Constants{
         return response;
     }
 
+    //the update lost against a concurrent change of the same data, e.g. the order is no longer in the expected status
+    public Response getConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
+
     /**
      * Converts a List of Documents to a JsonNode.
      *
@@ -107,7 +116,7 @@ public class Utils extends Constants{
         }
     }
 
-    public void updateCustomerRewardPoints(String orderId, String customerId, BigDecimal orderPrice){
+    public boolean updateCustomerRewardPoints(String orderId, String customerId, BigDecimal orderPrice, String idempotencyKey){
         log.info("Updating customer reward points for orderId: {} and customerId : {}", orderId, customerId);
         //url is /customers/{customer-id}/rewards/{order-price}
         //this url is changed now where we need to provide userId in request param now and not as path variable.
@@ -120,19 +129,21 @@ public class Utils extends Constants{
         url = uriBuilder.toUriString();
         log.debug("URL to update customer reward points is : {}", url);
         try{
-            Response response = wsUtils.makeWSCallString(url, null, new HashMap<>(), HttpMethod.PUT, 1000, 30000);
+            Response response = wsUtils.makeWSCallString(url, null, idempotencyHeaders(idempotencyKey), HttpMethod.PUT, 1000, 30000);
             if(FAILURE.equalsIgnoreCase(response.getStatus())){
                 log.error("Failed to update customer reward points for orderId: {}", orderId);
-            }else{
-                log.info("Customer {} reward points updated successfully for orderId: {} with order amount {}",
-                        customerId, orderId, orderPrice);
+                return false;
             }
+            log.info("Customer {} reward points updated successfully for orderId: {} with order amount {}",
+                    customerId, orderId, orderPrice);
+            return true;
         }catch(Exception ex){
             log.error("Exception occurred while updating customer reward points for orderId: {}", orderId);
+            return false;
         }
     }
 
-    public void updateMerchantEarnings(String orderId, String merchantId, BigDecimal orderPrice){
+    public boolean updateMerchantEarnings(String orderId, String merchantId, BigDecimal orderPrice, String idempotencyKey){
         log.info("Updating merchant earnings for orderId : {} and merchantId {}", orderId, merchantId);
         //url is /merchants/{merchant-id}/rewards/{order-price}
         //this url is changed now where we need to provide userId in request param now and not as path variable.
@@ -145,19 +156,26 @@ public class Utils extends Constants{
         url = uriBuilder.toUriString();
         log.debug("URL to update merchant earnings is : {}", url);
         try{
-            Response response = wsUtils.makeWSCallString(url, null, new HashMap<>(), HttpMethod.PUT, 1000, 30000);
+            Response response = wsUtils.makeWSCallString(url, null, idempotencyHeaders(idempotencyKey), HttpMethod.PUT, 1000, 30000);
             if(FAILURE.equalsIgnoreCase(response.getStatus())){
                 log.error("Failed to update merchant earnings for orderId: {}", orderId);
-            }else{
-                log.info("Merchant {} earnings updated successfully for orderId: {} with order amount {}",
-                        merchantId, orderId, orderPrice);
+                return false;
             }
+            log.info("Merchant {} earnings updated successfully for orderId: {} with order amount {}",
+                    merchantId, orderId, orderPrice);
+            return true;
         }catch(Exception ex){
             log.error("Exception occurred while updating merchant earnings for orderId: {}", orderId);
+            return false;
         }
     }
 
     public boolean updateDeliveryStatusforOrder(Document orderDoc, boolean isCreateNewDelivery, String deliveryPartnerId, OrderStatus status){
+        return updateDeliveryStatusforOrder(orderDoc, isCreateNewDelivery, deliveryPartnerId, status, null);
+    }
+
+    public boolean updateDeliveryStatusforOrder(Document orderDoc, boolean isCreateNewDelivery, String deliveryPartnerId,
+                                                OrderStatus status, String idempotencyKey){
         log.info("Updating delivery status for orderId : {} and deliveryPartnerId {} with status {}", orderDoc.get(ORDER_ID), deliveryPartnerId, status);
         String orderId = orderDoc.get(ORDER_ID, String.class);
         String customerId = orderDoc.get(CUSTOMER_ID, String.class);
@@ -187,7 +205,7 @@ public class Utils extends Constants{
         }
         log.debug("URL to update delivery status is : {} with payload {}", url, payload);
         try{
-            Response response = wsUtils.makeWSCallObject(url, payload, new HashMap<>(), method, 1000, 30000);
+            Response response = wsUtils.makeWSCallObject(url, payload, idempotencyHeaders(idempotencyKey), method, 1000, 30000);
             if(FAILURE.equalsIgnoreCase(response.getStatus())){
                 log.error("Failed to update delivery status for orderId: {} for status {}", orderDoc.get(ORDER_ID), status);
                 return false;
@@ -201,4 +219,16 @@ public class Utils extends Constants{
             return false;
         }
     }
+
+    /*
+    * Calls replayed from the outbox carry the event id, so downstream services can drop duplicates
+    * when a delivery is retried after a timeout.
+    */
+    public Map<String, String> idempotencyHeaders(String idempotencyKey){
+        Map<String, String> headers = new HashMap<>();
+        if(idempotencyKey != null){
+            headers.put(IDEMPOTENCY_KEY, idempotencyKey);
+        }
+        return headers;
+    }
 }
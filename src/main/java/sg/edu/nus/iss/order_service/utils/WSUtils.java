@@ -4,52 +4,80 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.swagger.v3.core.util.Json;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
-import sg.edu.nus.iss.order_service.exception.CustomerResponseErrorHandler;
 import sg.edu.nus.iss.order_service.model.Response;
 
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 @Service
 public class WSUtils extends Constants{
     private static final Logger log = LoggerFactory.getLogger(WSUtils.class);
+    private static final String NO_CACHE = CacheControl.noCache().getHeaderValue();
     private final ObjectMapper mapper = Json.mapper();
 
-    private final RestTemplateBuilder restTemplateBuilder;
+    private final HttpClientRegistry httpClientRegistry;
+    //concurrent GETs of the same url, e.g. checkouts of the same products in a flash sale, share one call
+    private final SingleFlight<List<Object>, Response> getFlight;
+
+    @Value("${ws.single-flight.enabled:true}")
+    private boolean singleFlightEnabled = true;
+
+    @Value("${ws.single-flight.max-wait-ms:5000}")
+    private long singleFlightMaxWaitMs = 5000;
 
     @Autowired
-    public WSUtils(RestTemplateBuilder restTemplateBuilder) {
-        this.restTemplateBuilder = restTemplateBuilder;
+    public WSUtils(HttpClientRegistry httpClientRegistry, ObjectProvider<MeterRegistry> meterRegistryProvider) {
+        this.httpClientRegistry = httpClientRegistry;
+        this.getFlight = new SingleFlight<>("ws.get", meterRegistryProvider.getIfAvailable(SimpleMeterRegistry::new),
+                WSUtils::copyResponse);
     }
 
-    public RestTemplate restTemplateSync(long connectTimeout, long readTimeout) {
-        return restTemplateBuilder.setConnectTimeout(Duration.ofMillis(connectTimeout))
-                .setReadTimeout(Duration.ofMillis(readTimeout))
-                .additionalInterceptors((request, body, execution) -> {
-                    request.getHeaders().set("Transfer-Encoding", "chunked");
-                    return execution.execute(request, body);
-                })
-                .errorHandler(new CustomerResponseErrorHandler())
-                .build();
+    public RestTemplate restTemplateSync(String url, long connectTimeout, long readTimeout) {
+        return httpClientRegistry.getRestTemplate(url, connectTimeout, readTimeout);
     }
 
     public Response makeWSCallObject(String url, JsonNode data, Map<String, String> headers, HttpMethod method,
                                                         long connectTimeout, long readTimeout) {
+        //only reads are merged, a write is made once per caller, and so is a read asking for a fresh answer with no-cache
+        if(singleFlightEnabled && HttpMethod.GET.equals(method) && (data == null || data.isNull() || data.isEmpty())
+                && !NO_CACHE.equals(headers.get(HttpHeaders.CACHE_CONTROL))){
+            List<Object> key = Arrays.asList(url, new HashMap<>(headers));
+            return getFlight.execute(key, singleFlightMaxWaitMs,
+                    () -> callObject(url, data, headers, method, connectTimeout, readTimeout));
+        }
+        return callObject(url, data, headers, method, connectTimeout, readTimeout);
+    }
+
+    //callers are free to change the response they get, each gets its own
+    private static Response copyResponse(Response response) {
+        Response copy = new Response();
+        copy.setStatus(response.getStatus());
+        copy.setMessage(response.getMessage());
+        copy.setData(response.getData() == null ? null : response.getData().deepCopy());
+        return copy;
+    }
+
+    private Response callObject(String url, JsonNode data, Map<String, String> headers, HttpMethod method,
+                                long connectTimeout, long readTimeout) {
         Response resp = new Response();
         ObjectNode responseData = mapper.createObjectNode();
         log.info("ObjectWS :: Handling request for url: {}", url);
-        RestTemplate restTemplate = restTemplateSync(connectTimeout, readTimeout);
+        RestTemplate restTemplate = restTemplateSync(url, connectTimeout, readTimeout);
 
         HttpHeaders httpHeaders = new HttpHeaders();
         headers.forEach(httpHeaders::set);
@@ -130,7 +158,7 @@ public class WSUtils extends Constants{
         Response resp = new Response();
         ObjectNode responseData = mapper.createObjectNode();
         log.info("StringWS :: Handling request for url: {}", url);
-        RestTemplate restTemplate = restTemplateSync(connectTimeout, readTimeout);
+        RestTemplate restTemplate = restTemplateSync(url, connectTimeout, readTimeout);
 
         HttpHeaders httpHeaders = new HttpHeaders();
         headers.forEach(httpHeaders::set);
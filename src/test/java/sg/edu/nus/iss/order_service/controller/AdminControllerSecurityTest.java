@@ -0,0 +1,90 @@
+package sg.edu.nus.iss.order_service.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import sg.edu.nus.iss.order_service.config.SecurityConfig;
+import sg.edu.nus.iss.order_service.db.IndexManager;
+import sg.edu.nus.iss.order_service.service.OrderStorageMigrator;
+import sg.edu.nus.iss.order_service.utils.HttpClientRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(value = AdminController.class, properties = {
+        "spring.security.user.name=admin",
+        "spring.security.user.password=secret",
+        "spring.security.user.roles=ADMIN"
+})
+@Import(SecurityConfig.class)
+class AdminControllerSecurityTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private HttpClientRegistry httpClientRegistry;
+
+    @MockBean
+    private IndexManager indexManager;
+
+    @MockBean
+    private OrderStorageMigrator orderStorageMigrator;
+
+    @Test
+    void testGetHttpPoolStats_Anonymous_Unauthorized() throws Exception {
+        mockMvc.perform(get("/admin/http-pools"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void testGetIndexStats_Anonymous_Unauthorized() throws Exception {
+        mockMvc.perform(get("/admin/indexes"))
+                .andExpect(status().isUnauthorized());
+        verify(indexManager, never()).getIndexStats();
+    }
+
+    @Test
+    void testMigrateOrderStorage_Anonymous_Unauthorized() throws Exception {
+        mockMvc.perform(post("/admin/orders/storage/migrate"))
+                .andExpect(status().isUnauthorized());
+        verify(orderStorageMigrator, never()).canMigrate();
+        verify(orderStorageMigrator, never()).migrateToSingleCollection();
+    }
+
+    @Test
+    void testMigrateOrderStorage_WrongPassword_Unauthorized() throws Exception {
+        mockMvc.perform(post("/admin/orders/storage/migrate")
+                        .header(HttpHeaders.AUTHORIZATION, basic("admin", "guess")))
+                .andExpect(status().isUnauthorized());
+        verify(orderStorageMigrator, never()).migrateToSingleCollection();
+    }
+
+    @Test
+    void testMigrateOrderStorage_Admin_Allowed() throws Exception {
+        when(orderStorageMigrator.canMigrate()).thenReturn(true);
+        when(orderStorageMigrator.migrateToSingleCollection()).thenReturn(Map.of("completedOrders", 1L));
+
+        mockMvc.perform(post("/admin/orders/storage/migrate")
+                        .header(HttpHeaders.AUTHORIZATION, basic("admin", "secret")))
+                .andExpect(status().isOk());
+        verify(orderStorageMigrator).migrateToSingleCollection();
+    }
+
+    private static String basic(String user, String password) {
+        return "Basic " + Base64.getEncoder()
+                .encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,105 @@
+package sg.edu.nus.iss.order_service.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import sg.edu.nus.iss.order_service.db.IndexManager;
+import sg.edu.nus.iss.order_service.service.OrderStorageMigrator;
+import sg.edu.nus.iss.order_service.utils.Constants;
+import sg.edu.nus.iss.order_service.utils.HttpClientRegistry;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AdminControllerTest extends Constants {
+    @Mock
+    private HttpClientRegistry httpClientRegistry;
+
+    @Mock
+    private IndexManager indexManager;
+
+    @Mock
+    private OrderStorageMigrator orderStorageMigrator;
+
+    @InjectMocks
+    private AdminController adminController;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    public void testGetHttpPoolStats_Success() {
+        Map<String, PoolStats> stats = new HashMap<>();
+        stats.put("http://product-service:95[connect=1000ms,read=30000ms]", new PoolStats(2, 0, 3, 20));
+        when(httpClientRegistry.getPoolStats()).thenReturn(stats);
+        ResponseEntity<JsonNode> response = adminController.getHttpPoolStats();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode productPool = response.getBody().get("http://product-service:95[connect=1000ms,read=30000ms]");
+        assertEquals(2, productPool.get("leased").asInt());
+        assertEquals(3, productPool.get("available").asInt());
+        assertEquals(20, productPool.get("max").asInt());
+    }
+
+    @Test
+    public void testGetHttpPoolStats_NoClients() {
+        when(httpClientRegistry.getPoolStats()).thenReturn(new HashMap<>());
+        ResponseEntity<JsonNode> response = adminController.getHttpPoolStats();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody().isEmpty());
+    }
+
+    @Test
+    public void testGetIndexStats_Success() {
+        Map<String, List<Document>> stats = new LinkedHashMap<>();
+        stats.put("orders", List.of(new Document("name", "orderId_1").append("ops", 42L)));
+        when(indexManager.getIndexStats()).thenReturn(stats);
+        ResponseEntity<Map<String, List<Document>>> response = adminController.getIndexStats();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(42L, response.getBody().get("orders").get(0).get("ops"));
+    }
+
+    @Test
+    public void testMigrateOrderStorage_Success() {
+        Map<String, Long> migrated = new LinkedHashMap<>();
+        migrated.put("completedOrders", 12L);
+        migrated.put("cancelledOrders", 3L);
+        when(orderStorageMigrator.canMigrate()).thenReturn(true);
+        when(orderStorageMigrator.migrateToSingleCollection()).thenReturn(migrated);
+        ResponseEntity<JsonNode> response = adminController.migrateOrderStorage();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(12L, response.getBody().get("completedOrders").asLong());
+        assertEquals(3L, response.getBody().get("cancelledOrders").asLong());
+    }
+
+    @Test
+    public void testMigrateOrderStorage_NotSingleCollection() {
+        when(orderStorageMigrator.canMigrate()).thenReturn(false);
+        ResponseEntity<JsonNode> response = adminController.migrateOrderStorage();
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        verify(orderStorageMigrator, never()).migrateToSingleCollection();
+    }
+
+    @Test
+    public void testMigrateOrderStorage_Failure() {
+        when(orderStorageMigrator.canMigrate()).thenReturn(true);
+        when(orderStorageMigrator.migrateToSingleCollection()).thenReturn(null);
+        ResponseEntity<JsonNode> response = adminController.migrateOrderStorage();
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+    }
+}
@@ -2,26 +2,43 @@ package sg.edu.nus.iss.order_service.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.swagger.v3.core.util.Json;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.bson.RawBsonDocument;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import sg.edu.nus.iss.order_service.db.MongoCodecs;
 import sg.edu.nus.iss.order_service.exception.ResourceNotFoundException;
+import sg.edu.nus.iss.order_service.model.Item;
 import sg.edu.nus.iss.order_service.model.Order;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
 import sg.edu.nus.iss.order_service.service.OrderService;
 import sg.edu.nus.iss.order_service.utils.Constants;
+import sg.edu.nus.iss.order_service.utils.Utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class OrderControllerTest extends Constants {
@@ -32,6 +49,9 @@ class OrderControllerTest extends Constants {
     @Mock
     private OrderService orderService;
 
+    @Mock
+    private Utils utils;
+
     @InjectMocks
     private OrderController orderController;
 
@@ -101,35 +121,60 @@ class OrderControllerTest extends Constants {
     }
 
     @Test
-    public void testGetOrderByOrderId_Success() {
+    public void testGetOrderByOrderId_Success() throws Exception {
+        Item item = new Item("product1", 2);
+        item.setPrice(new BigDecimal("10.50"));
         Order order = new Order();
         order.setOrderId("orderId1");
-
-        when(orderService.getOrderByOrderId(anyString()))
-                .thenReturn(getMockedSuccessResponse("Order found", objectMapper.convertValue(order, JsonNode.class)));
-        ResponseEntity<JsonNode> response = orderController.getOrderByOrderId("1");
-        assertEquals(HttpStatus.OK, response.getStatusCode());
-        assertEquals(objectMapper.convertValue(order, JsonNode.class), response.getBody());
+        order.setCustomerId("customer1");
+        order.setOrderItems(List.of(item));
+        order.setTotalPrice(new BigDecimal("21.00"));
+        order.setStatus(OrderStatus.CREATED);
+        order.setCreatedDate(1000L);
+        order.setUseDelivery(true);
+        RawBsonDocument rawOrder = new RawBsonDocument(order, MongoCodecs.getCodecRegistry().get(Order.class));
+
+        when(orderService.getRawOrderByOrderId("1")).thenReturn(rawOrder);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        orderController.getOrderByOrderId("1", response);
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        assertEquals(MediaType.APPLICATION_JSON_VALUE, response.getContentType());
+        //same JSON as the Order model gives
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(order)), objectMapper.readTree(response.getContentAsByteArray()));
     }
 
     @Test
     public void testGetOrderByOrderId_Failure() {
-        when(orderService.getOrderByOrderId(anyString())).thenReturn(getMockedFailedResponse("Order not found"));
+        when(orderService.getRawOrderByOrderId(anyString())).thenReturn(null);
+        MockHttpServletResponse response = new MockHttpServletResponse();
 
         Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getOrderByOrderId("1");
+            orderController.getOrderByOrderId("1", response);
         });
         assertEquals("Order with ID 1 not found", exception.getMessage());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testGetOrderStatusByOrderId_Success() {
+        ObjectNode orderStatus = objectMapper.createObjectNode().put(ORDER_ID, "1").put(STATUS, OrderStatus.READY.name());
+        when(orderService.getOrderStatusByOrderId("1"))
+                .thenReturn(CompletableFuture.completedFuture(getMockedSuccessResponse("Order status found", orderStatus)));
+        ResponseEntity<JsonNode> response = orderController.getOrderStatusByOrderId("1").join();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(orderStatus, response.getBody());
     }
 
     @Test
-    public void testGetOrderByOrderId_NullResp() {
-        when(orderService.getOrderByOrderId(anyString())).thenReturn(null);
+    public void testGetOrderStatusByOrderId_NotFound() {
+        when(orderService.getOrderStatusByOrderId("1"))
+                .thenReturn(CompletableFuture.completedFuture(getMockedFailedResponse("Order not found")));
 
-        Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getOrderByOrderId("1");
+        CompletionException exception = assertThrows(CompletionException.class, () -> {
+            orderController.getOrderStatusByOrderId("1").join();
         });
-        assertEquals("Some error occurred while fetching order by orderId 1", exception.getMessage());
+        assertInstanceOf(ResourceNotFoundException.class, exception.getCause());
+        assertEquals("Order with ID 1 not found", exception.getCause().getMessage());
     }
 
     @Test
@@ -137,67 +182,163 @@ class OrderControllerTest extends Constants {
         List<Order> orderList = new ArrayList<>();
         orderList.add(new Order());
 
-        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString()))
+        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString(), isNull()))
                 .thenReturn(getMockedSuccessResponse("Orders found", objectMapper.convertValue(orderList, JsonNode.class)));
-        ResponseEntity<JsonNode> response = orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1");
+        ResponseEntity<JsonNode> response = orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1", null, null, SORT_DESC);
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertEquals(objectMapper.convertValue(orderList, JsonNode.class), response.getBody());
     }
 
     @Test
     public void testGetOrdersListByProfileId_Failure(){
-        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString()))
+        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString(), isNull()))
                 .thenReturn(getMockedFailedResponse("No orders found"));
 
         Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1");
+            orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1", null, null, SORT_DESC);
         });
         assertEquals("No orders found with ID 1", exception.getMessage());
     }
 
     @Test
     public void testGetOrdersListByProfileId_NullResp(){
-        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString())).thenReturn(null);
+        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString(), isNull())).thenReturn(null);
 
         Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1");
+            orderController.getOrdersListByProfileId(ACTIVE, CUSTOMER, "1", null, null, SORT_DESC);
         });
         assertEquals("Some exception happened trying to get orders with ID 1", exception.getMessage());
     }
 
+    @Test
+    public void testGetOrdersListByProfileId_Paged() {
+        ObjectNode page = objectMapper.createObjectNode();
+        page.set(ORDERS, objectMapper.createArrayNode().add(objectMapper.createObjectNode().put(ORDER_ID, "order1")));
+        page.put(NEXT_PAGE_TOKEN, "token");
+        when(orderService.getOrdersListByProfileId(anyString(), anyString(), anyString(),
+                argThat(req -> req != null && req.getLimit() == 10 && req.getPageToken() == null && SORT_ASC.equals(req.getSort()))))
+                .thenReturn(getMockedSuccessResponse("Orders found", page));
+        ResponseEntity<JsonNode> response = orderController.getOrdersListByProfileId(COMPLETED, MERCHANT, "1", 10, null, SORT_ASC);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("token", response.getBody().get(NEXT_PAGE_TOKEN).asText());
+        assertEquals("order1", response.getBody().get(ORDERS).get(0).get(ORDER_ID).asText());
+    }
+
+    @Test
+    public void testGetOrdersListByProfileId_InvalidPageToken() {
+        Exception exception = assertThrows(IllegalArgumentException.class, () -> {
+            orderController.getOrdersListByProfileId(COMPLETED, MERCHANT, "1", null, "not-a-token", SORT_DESC);
+        });
+        assertEquals("Invalid page token", exception.getMessage());
+        verify(orderService, never()).getOrdersListByProfileId(anyString(), anyString(), anyString(), any());
+    }
+
+    @Test
+    public void testGetOrdersListByProfileId_InvalidLimit() {
+        Exception exception = assertThrows(IllegalArgumentException.class, () -> {
+            orderController.getOrdersListByProfileId(COMPLETED, MERCHANT, "1", 0, null, SORT_DESC);
+        });
+        assertEquals("limit must be greater than 0", exception.getMessage());
+    }
+
+    @Test
+    public void testStreamOrdersListByProfileId_Success() throws Exception {
+        when(utils.getProfileIdentifierFieldBasedOnRole(MERCHANT)).thenReturn(MERCHANT_ID);
+        when(orderService.streamOrdersListByProfileId(eq(COMPLETED), eq(MERCHANT), eq("1"), any())).thenAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(3).write("{\"orderId\":\"order1\"}\n".getBytes(StandardCharsets.UTF_8));
+            return true;
+        });
+        ResponseEntity<StreamingResponseBody> response = orderController.streamOrdersListByProfileId(COMPLETED, MERCHANT, "1");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(APPLICATION_NDJSON, response.getHeaders().getContentType().toString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        assertEquals("{\"orderId\":\"order1\"}\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamOrdersListByProfileId_InvalidProfileType() throws Exception {
+        when(utils.getProfileIdentifierFieldBasedOnRole(anyString())).thenReturn("");
+        Exception exception = assertThrows(IllegalArgumentException.class, () -> {
+            orderController.streamOrdersListByProfileId(COMPLETED, "unknown", "1");
+        });
+        assertEquals("Invalid profile type: unknown", exception.getMessage());
+        verify(orderService, never()).streamOrdersListByProfileId(anyString(), anyString(), anyString(), any());
+    }
+
     @Test
     public void testGetActiveOrdersForDelivery_Success() {
         List<Order> orderList = new ArrayList<>();
         orderList.add(new Order());
 
-        when(orderService.getActiveOrdersForDelivery())
+        when(orderService.getActiveOrdersForDelivery(isNull()))
                 .thenReturn(getMockedSuccessResponse("Active orders found", objectMapper.convertValue(orderList, JsonNode.class)));
-        ResponseEntity<JsonNode> response = orderController.getActiveOrdersForDelivery();
+        ResponseEntity<JsonNode> response = orderController.getActiveOrdersForDelivery(null);
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertEquals(objectMapper.convertValue(orderList, JsonNode.class), response.getBody());
     }
 
     @Test
     public void testGetActiveOrdersForDelivery_Failure(){
-        when(orderService.getActiveOrdersForDelivery())
+        when(orderService.getActiveOrdersForDelivery(isNull()))
                 .thenReturn(getMockedFailedResponse("No active orders found"));
 
         Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getActiveOrdersForDelivery();
+            orderController.getActiveOrdersForDelivery(null);
         });
         assertEquals("No active orders found marked for delivery and in READY state", exception.getMessage());
     }
 
     @Test
     public void testGetActiveOrdersForDelivery_NullResp(){
-        when(orderService.getActiveOrdersForDelivery()).thenReturn(null);
+        when(orderService.getActiveOrdersForDelivery(isNull())).thenReturn(null);
 
         Exception exception = assertThrows(ResourceNotFoundException.class, () -> {
-            orderController.getActiveOrdersForDelivery();
+            orderController.getActiveOrdersForDelivery(null);
         });
         assertEquals("Some exception happened trying to get all active orders for delivery and in READY state", exception.getMessage());
     }
 
+    @Test
+    public void testClaimOrderForDelivery(){
+        ObjectNode claim = objectMapper.createObjectNode();
+        claim.put(ORDER_ID, "order1");
+        claim.put(CLAIMED_BY, "partner1");
+        when(orderService.claimOrderForDelivery("order1", "partner1")).thenReturn(getMockedSuccessResponse("Order claimed", claim));
+        ResponseEntity<JsonNode> response = orderController.claimOrderForDelivery("order1", "partner1");
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(claim, response.getBody());
+    }
+
+    @Test
+    public void testClaimOrderForDelivery_Conflict(){
+        Response conflict = new Response();
+        conflict.setStatus(CONFLICT);
+        conflict.setMessage("Order for orderId: order1 is not ready for delivery or claimed by another delivery partner");
+        when(orderService.claimOrderForDelivery("order1", "partner2")).thenReturn(conflict);
+        ResponseEntity<JsonNode> response = orderController.claimOrderForDelivery("order1", "partner2");
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals(conflict.getMessage(), response.getBody().get(MESSAGE).asText());
+    }
+
+    @Test
+    public void testSubscribeToActiveOrdersForDelivery(){
+        SseEmitter subscriber = new SseEmitter();
+        when(orderService.subscribeToDispatchBoard(isNull())).thenReturn(subscriber);
+        ResponseEntity<SseEmitter> response = orderController.subscribeToActiveOrdersForDelivery(null);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertSame(subscriber, response.getBody());
+        when(orderService.subscribeToDispatchBoard(List.of("123456"))).thenReturn(subscriber);
+        assertSame(subscriber, orderController.subscribeToActiveOrdersForDelivery(List.of("123456")).getBody());
+    }
+
+    @Test
+    public void testSubscribeToActiveOrdersForDelivery_BoardDisabled(){
+        when(orderService.subscribeToDispatchBoard(isNull())).thenReturn(null);
+        ResponseEntity<SseEmitter> response = orderController.subscribeToActiveOrdersForDelivery(null);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+    }
+
     @Test
     public void testUpdateOrderStatus_Success(){
         when(orderService.updateOrderStatus(anyString(), any(), any()))
@@ -217,6 +358,18 @@ class OrderControllerTest extends Constants {
         assertEquals("Failed to update order status READY for orderId order1", response.getBody().get(MESSAGE).asText());
     }
 
+    @Test
+    public void testUpdateOrderStatus_Conflict(){
+        Response conflict = new Response();
+        conflict.setStatus(CONFLICT);
+        conflict.setMessage("Order is not ready for delivery, already accepted or did not opt for delivery");
+        when(orderService.updateOrderStatus(anyString(), any(), any())).thenReturn(conflict);
+
+        ResponseEntity<JsonNode> response = orderController.updateOrderStatus("order1", OrderStatus.DELIVERY_ACCEPTED, null);
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        assertEquals(conflict.getMessage(), response.getBody().get(MESSAGE).asText());
+    }
+
     @Test
     public void testUpdateOrderStatus_NullResp(){
         when(orderService.updateOrderStatus(anyString(), any(), any())).thenReturn(null);
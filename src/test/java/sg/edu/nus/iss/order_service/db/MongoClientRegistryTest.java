@@ -0,0 +1,178 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MongoClientRegistryTest {
+    private static final String[] DB_NAMES = {"orders", "carts"};
+    private static final String[] COLL_NAMES = {"orders", "completedOrders", "cancelledOrders", "outbox", "carts"};
+
+    private final Map<String, AtomicInteger> createdClients = new ConcurrentHashMap<>();
+    private MongoClientRegistry registry;
+
+    @BeforeEach
+    public void setup() {
+        registry = new MongoClientRegistry(this::createMongoClient);
+    }
+
+    @Test
+    public void testGetCollection_CachesHandles() {
+        MongoCollection<Document> collection = registry.getCollection("orders", "orders");
+        assertSame(collection, registry.getCollection("orders", "orders"));
+        assertNotSame(collection, registry.getCollection("orders", "outbox"));
+        assertSame(registry.getDatabase("orders"), registry.getDatabase("orders"));
+        assertEquals(1, createdClients.get("orders").get());
+    }
+
+    @Test
+    public void testGetCollection_ReadPreference() {
+        MongoCollection<Document> collection = registry.getCollection("orders", "orders");
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> secondaryCollection = mock(MongoCollection.class);
+        when(collection.withReadPreference(ReadPreference.secondaryPreferred())).thenReturn(secondaryCollection);
+
+        assertSame(secondaryCollection, registry.getCollection("orders", "orders", ReadPreference.secondaryPreferred()));
+        assertSame(secondaryCollection, registry.getCollection("orders", "orders", ReadPreference.secondaryPreferred()));
+        assertSame(collection, registry.getCollection("orders", "orders", null));
+        verify(collection, times(1)).withReadPreference(ReadPreference.secondaryPreferred());
+    }
+
+    @Test
+    public void testGetMongoClient_SharedClient() {
+        registry = new MongoClientRegistry(dbName -> "orders", this::createMongoClient,
+                (dbName, database) -> "carts".equals(dbName) ? database.withWriteConcern(WriteConcern.W1) : database);
+        MongoClient client = registry.getMongoClient("orders");
+        MongoDatabase cartDatabase = mock(MongoDatabase.class);
+        MongoDatabase cartDatabaseW1 = mock(MongoDatabase.class);
+        when(client.getDatabase("carts")).thenReturn(cartDatabase);
+        when(cartDatabase.withWriteConcern(WriteConcern.W1)).thenReturn(cartDatabaseW1);
+
+        assertSame(client, registry.getMongoClient("carts"));
+        assertEquals(1, createdClients.get("orders").get());
+        assertNull(createdClients.get("carts"));
+        //the cart handle still gets its own database settings on the shared client
+        assertSame(cartDatabaseW1, registry.getDatabase("carts"));
+        registry.close();
+        verify(client, times(1)).close();
+    }
+
+    @Test
+    public void testGetCollection_ConcurrentFirstUse() throws Exception {
+        int threads = 64;
+        int lookups = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<String, MongoCollection<Document>>>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                results.add(executor.submit(() -> {
+                    Map<String, MongoCollection<Document>> seen = new ConcurrentHashMap<>();
+                    start.await();
+                    for (int i = 0; i < lookups; i++) {
+                        String dbName = DB_NAMES[(i + offset) % DB_NAMES.length];
+                        String collName = COLL_NAMES[(i + offset) % COLL_NAMES.length];
+                        MongoCollection<Document> collection = registry.getCollection(dbName, collName);
+                        assertNotNull(collection);
+                        MongoCollection<Document> previous = seen.putIfAbsent(dbName + "." + collName, collection);
+                        assertTrue(previous == null || previous == collection);
+                    }
+                    return seen;
+                }));
+            }
+            start.countDown();
+
+            Map<String, MongoCollection<Document>> expected = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<Map<String, MongoCollection<Document>>> result : results) {
+                Map<String, MongoCollection<Document>> seen = result.get(30, TimeUnit.SECONDS);
+                for (Map.Entry<String, MongoCollection<Document>> entry : seen.entrySet()) {
+                    //every thread got the very same handle for a collection
+                    assertSame(expected.getOrDefault(entry.getKey(), entry.getValue()), entry.getValue());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        //and a single client was ever created per database
+        for (String dbName : DB_NAMES) {
+            assertEquals(1, createdClients.get(dbName).get());
+        }
+    }
+
+    @Test
+    public void testGetMongoClient_SlowClientCreationBlocksNoLookups() throws Exception {
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        registry = new MongoClientRegistry(dbName -> {
+            if ("orders".equals(dbName)) {
+                creating.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return createMongoClient(dbName);
+        });
+        MongoCollection<Document> carts = registry.getCollection("carts", "carts");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<MongoClient> orders = executor.submit(() -> registry.getMongoClient("orders"));
+            Future<MongoClient> ordersWaiter = executor.submit(() -> registry.getMongoClient("orders"));
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+            //handles already built are served while the orders client is being created
+            assertSame(carts, executor.submit(() -> registry.getCollection("carts", "carts")).get(5, TimeUnit.SECONDS));
+            assertSame(carts, registry.getCollection("carts", "carts"));
+            assertFalse(orders.isDone());
+            release.countDown();
+            assertSame(orders.get(5, TimeUnit.SECONDS), ordersWaiter.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, createdClients.get("orders").get());
+    }
+
+    @Test
+    public void testClose() {
+        MongoClient client = registry.getMongoClient("orders");
+        MongoCollection<Document> collection = registry.getCollection("orders", "orders");
+        registry.close();
+        verify(client).close();
+        assertNotSame(collection, registry.getCollection("orders", "orders"));
+        assertEquals(2, createdClients.get("orders").get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private MongoClient createMongoClient(String dbName) {
+        createdClients.computeIfAbsent(dbName, name -> new AtomicInteger()).incrementAndGet();
+        MongoClient client = mock(MongoClient.class);
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(client.getDatabase(dbName)).thenReturn(database);
+        when(database.getCollection(anyString())).thenAnswer(invocation -> mock(MongoCollection.class));
+        return client;
+    }
+}
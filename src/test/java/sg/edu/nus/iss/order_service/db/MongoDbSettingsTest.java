@@ -0,0 +1,84 @@
+package sg.edu.nus.iss.order_service.db;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MongoDbSettingsTest {
+
+    @Test
+    public void testApply() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("mongo.order.pool.min-size", "5")
+                .withProperty("mongo.order.pool.max-size", "100")
+                .withProperty("mongo.order.pool.max-wait-ms", "2000")
+                .withProperty("mongo.order.connect-timeout-ms", "5000")
+                .withProperty("mongo.order.socket-timeout-ms", "30000")
+                .withProperty("mongo.order.compressors", "zstd, snappy")
+                .withProperty("mongo.order.read-preference", "primary")
+                .withProperty("mongo.order.listing.read-preference", "secondaryPreferred")
+                .withProperty("mongo.order.write-concern", "majority");
+        MongoDbSettings dbSettings = MongoDbSettings.from(environment, "mongo.order");
+        MongoClientSettings.Builder builder = MongoClientSettings.builder();
+        dbSettings.apply(builder);
+        MongoClientSettings settings = builder.build();
+
+        assertEquals(5, settings.getConnectionPoolSettings().getMinSize());
+        assertEquals(100, settings.getConnectionPoolSettings().getMaxSize());
+        assertEquals(2000, settings.getConnectionPoolSettings().getMaxWaitTime(TimeUnit.MILLISECONDS));
+        assertEquals(5000, settings.getSocketSettings().getConnectTimeout(TimeUnit.MILLISECONDS));
+        assertEquals(30000, settings.getSocketSettings().getReadTimeout(TimeUnit.MILLISECONDS));
+        assertEquals(2, settings.getCompressorList().size());
+        assertEquals("zstd", settings.getCompressorList().get(0).getName());
+        assertEquals(ReadPreference.primary(), settings.getReadPreference());
+        assertEquals(WriteConcern.MAJORITY, settings.getWriteConcern());
+        assertEquals(ReadPreference.secondaryPreferred(), dbSettings.getListingReadPreference());
+    }
+
+    @Test
+    public void testApply_Defaults() {
+        MongoDbSettings dbSettings = MongoDbSettings.from(new MockEnvironment(), "mongo.cart");
+        MongoClientSettings.Builder builder = MongoClientSettings.builder();
+        dbSettings.apply(builder);
+        MongoClientSettings settings = builder.build();
+
+        MongoClientSettings defaults = MongoClientSettings.builder().build();
+        assertEquals(defaults.getConnectionPoolSettings(), settings.getConnectionPoolSettings());
+        assertTrue(settings.getCompressorList().isEmpty());
+        assertEquals(defaults.getReadPreference(), settings.getReadPreference());
+        assertNull(dbSettings.getListingReadPreference());
+    }
+
+    @Test
+    public void testApply_ReactiveDatabase() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("mongo.order.read-preference", "secondaryPreferred")
+                .withProperty("mongo.order.write-concern", "majority");
+        MongoDatabase database = mock(MongoDatabase.class);
+        MongoDatabase withReadPreference = mock(MongoDatabase.class);
+        MongoDatabase customized = mock(MongoDatabase.class);
+        when(database.withReadPreference(ReadPreference.secondaryPreferred())).thenReturn(withReadPreference);
+        when(withReadPreference.withWriteConcern(WriteConcern.MAJORITY)).thenReturn(customized);
+
+        assertSame(customized, MongoDbSettings.from(environment, "mongo.order").apply(database));
+        //nothing set, the handle of the client is used as it is
+        assertSame(database, MongoDbSettings.from(new MockEnvironment(), "mongo.order").apply(database));
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> MongoDbSettings.from(
+                new MockEnvironment().withProperty("mongo.order.compressors", "lz4"), "mongo.order"));
+        assertThrows(IllegalArgumentException.class, () -> MongoDbSettings.from(
+                new MockEnvironment().withProperty("mongo.order.write-concern", "most"), "mongo.order"));
+    }
+}
@@ -2,10 +2,15 @@ package sg.edu.nus.iss.order_service.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -22,6 +27,11 @@ import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class CartServiceTest extends Constants {
@@ -49,8 +59,8 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testAddItemToCart_EmptyCart_Success(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
-        when(mongoManager.insertDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(true);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
+        when(mongoManager.insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(true);
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item added to cart successfully", objectMapper.createObjectNode()));
         Response response = cartService.addItemToCart("customer1", new Item("item1", 10), "merchant1");
         assertEquals(SUCCESS, response.getStatus());
@@ -59,8 +69,8 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testAddItemToCart_EmptyCart_Failure(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
-        when(mongoManager.insertDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(false);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
+        when(mongoManager.insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(false);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Failed to add item to cart"));
         Response response = cartService.addItemToCart("customer1", new Item("item1", 10), "merchant1");
         assertEquals(FAILURE, response.getStatus());
@@ -69,17 +79,115 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testAddItemToCart_ExistingCart_Success(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(getCart());
         when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(new Document());
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item added to cart successfully", objectMapper.createObjectNode()));
         Response response = cartService.addItemToCart("customer1", new Item("item1", 10), "merchant1");
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Item added to cart successfully", response.getMessage());
+        verify(mongoManager, never()).findDocument(any(), any(), any(), any());
+        verify(mongoManager, times(1)).findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_INC)),
+                eq(cartDb), eq(cartColl), eq(false), anyBoolean());
+    }
+
+    @Test
+    public void testAddItemToCart_NewProduct_Pushed(){
+        when(mongoManager.findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_INC)),
+                eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        when(mongoManager.findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_PUSH)),
+                eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(getCartDocument());
+        when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item added to cart successfully", objectMapper.createObjectNode()));
+        Response response = cartService.addItemToCart("customer1", new Item("item2", 1), "merchant1");
+        assertEquals(SUCCESS, response.getStatus());
+        verify(mongoManager, never()).insertDocument(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void testAddItemToCart_ExistingProduct_IncrementIssued(){
+        when(mongoManager.findOneAndUpdate(any(), any(), eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(getCartDocument());
+        when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item added to cart successfully", objectMapper.createObjectNode()));
+        Response response = cartService.addItemToCart("customer1", new Item("item1", 3), "merchant1");
+        assertEquals(SUCCESS, response.getStatus());
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        ArgumentCaptor<Document> update = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager, times(1)).findOneAndUpdate(query.capture(), update.capture(), eq(cartDb), eq(cartColl), eq(false), eq(true));
+        //only the delta is sent, matched on the product so the positional operator targets its item
+        assertEquals("customer1", query.getValue().getString(CUSTOMER_ID));
+        assertEquals("item1", query.getValue().getString(CART_ITEMS.concat(DOT).concat(PRODUCT_ID)));
+        assertEquals(new Document(CART_ITEMS.concat(DOT).concat(OPERATOR_POSITIONAL).concat(DOT).concat(QUANTITY), 3),
+                update.getValue().get(OPERATOR_INC, Document.class));
+        verify(mongoManager, never()).findDocument(any(), any(), any(), any());
+        verify(mongoManager, never()).insertDocument(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void testAddItemToCart_ProductIdInOtherCase_StoredLowerCased(){
+        when(mongoManager.findOneAndUpdate(any(), any(), eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        when(mongoManager.insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(true);
+        when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Cart created successfully", objectMapper.createObjectNode()));
+        Response response = cartService.addItemToCart("customer1", new Item("ITEM1", 2), "merchant1");
+        assertEquals(SUCCESS, response.getStatus());
+
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        ArgumentCaptor<Document> update = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager, times(2)).findOneAndUpdate(query.capture(), update.capture(), eq(cartDb), eq(cartColl), eq(false), eq(true));
+        //an item stored lower-cased, or in the case it was sent in before, is bumped rather than pushed a second time
+        String productIdField = CART_ITEMS.concat(DOT).concat(PRODUCT_ID);
+        assertEquals(new Document(OPERATOR_IN, List.of("item1", "ITEM1")), query.getAllValues().get(0).get(productIdField));
+        assertEquals(new Document(OPERATOR_NIN, List.of("item1", "ITEM1")), query.getAllValues().get(1).get(productIdField));
+        Document pushed = update.getAllValues().get(1).get(OPERATOR_PUSH, Document.class).get(CART_ITEMS, Document.class);
+        assertEquals("item1", pushed.getString(PRODUCT_ID));
+        verify(mongoManager).insertDocument(isNull(), argThat(cart -> "item1".equals(cart.getCartItems().get(0).getProductId())),
+                eq(cartDb), eq(cartColl), eq(Cart.class));
+    }
+
+    @Test
+    public void testAddItemToCart_CartCreatedConcurrently_Retried(){
+        when(mongoManager.findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_INC)),
+                eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null, getCartDocument());
+        when(mongoManager.findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_PUSH)),
+                eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        //the unique customerId index rejects the insert, another request created the cart first
+        when(mongoManager.insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(false);
+        when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item added to cart successfully", objectMapper.createObjectNode()));
+        Response response = cartService.addItemToCart("customer1", new Item("item1", 1), "merchant1");
+        assertEquals(SUCCESS, response.getStatus());
+
+        InOrder inOrder = inOrder(mongoManager);
+        ArgumentCaptor<Document> pushQuery = ArgumentCaptor.forClass(Document.class);
+        inOrder.verify(mongoManager).findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_INC)),
+                eq(cartDb), eq(cartColl), eq(false), eq(true));
+        inOrder.verify(mongoManager).findOneAndUpdate(pushQuery.capture(), argThat(update -> update != null && update.containsKey(OPERATOR_PUSH)),
+                eq(cartDb), eq(cartColl), eq(false), eq(true));
+        inOrder.verify(mongoManager).insertDocument(isNull(), argThat(cart -> "customer1".equals(cart.getCustomerId())
+                && cart.getCartItems().size() == 1), eq(cartDb), eq(cartColl), eq(Cart.class));
+        inOrder.verify(mongoManager).findOneAndUpdate(any(), argThat(update -> update != null && update.containsKey(OPERATOR_INC)),
+                eq(cartDb), eq(cartColl), eq(false), eq(true));
+        inOrder.verifyNoMoreInteractions();
+        //the push only applies while the product is still absent, and never upserts a second cart
+        assertEquals(new Document(OPERATOR_NE, "item1"), pushQuery.getValue().get(CART_ITEMS.concat(DOT).concat(PRODUCT_ID)));
+    }
+
+    @Test
+    public void testAddItemToCart_AttemptsExhausted_Failure(){
+        when(mongoManager.findOneAndUpdate(any(), any(), eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        when(mongoManager.insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(false);
+        when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Failed to add item to cart"));
+        Response response = cartService.addItemToCart("customer1", new Item("item1", 1), "merchant1");
+        assertEquals(FAILURE, response.getStatus());
+        verify(mongoManager, times(3)).insertDocument(isNull(), any(Cart.class), eq(cartDb), eq(cartColl), eq(Cart.class));
+        verify(mongoManager, times(6)).findOneAndUpdate(any(), any(), eq(cartDb), eq(cartColl), eq(false), eq(true));
+    }
+
+    @Test
+    public void testEnsureCustomerIdIndex_Unique(){
+        cartService.ensureCustomerIdIndex();
+        verify(mongoManager).createIndex(eq(Indexes.ascending(CUSTOMER_ID)), argThat(IndexOptions::isUnique), eq(cartDb), eq(cartColl));
     }
 
     @Test
     public void testAddItemToCart_ExistingCart_Failure(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
         when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Failed to add item to cart"));
         Response response = cartService.addItemToCart("customer1", new Item("item1", 10), "merchant1");
@@ -89,7 +197,7 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testRemoveItemFromCart_EmptyCart(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Cart not found"));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 10));
         assertEquals(FAILURE, response.getStatus());
@@ -98,7 +206,7 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testRemoveItemFromCart_ItemNotInCart(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(getCart());
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Item not in cart"));
         Response response = cartService.removeItemFromCart("customer1", new Item("item3", 10));
         assertEquals(FAILURE, response.getStatus());
@@ -107,7 +215,8 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testRemoveItemFromCart_EmptiedCart(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean()))
+                .thenReturn(getCartDocument(0), getEmptyCartDocument());
         when(mongoManager.deleteDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(true);
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Cart deleted/emptied successfully", objectMapper.createObjectNode()));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 10));
@@ -117,17 +226,29 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testRemoveItemFromCart_Success(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
-        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(new Document());
+        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(getCartDocument(5));
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item removed from cart successfully", objectMapper.createObjectNode()));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 5));
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Item removed from cart successfully", response.getMessage());
+        verify(mongoManager, times(1)).findOneAndUpdate(any(), any(), eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean());
+        verify(mongoManager, never()).findDocument(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testRemoveItemFromCart_ProductIdInOtherCase_Matched(){
+        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(getCartDocument(5));
+        when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Item removed from cart successfully", objectMapper.createObjectNode()));
+        Response response = cartService.removeItemFromCart("customer1", new Item("ITEM1", 5));
+        assertEquals(SUCCESS, response.getStatus());
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(query.capture(), any(), eq(cartDb), eq(cartColl), eq(false), eq(true));
+        assertEquals(new Document(OPERATOR_IN, List.of("item1", "ITEM1")), query.getValue().get(CART_ITEMS.concat(DOT).concat(PRODUCT_ID)));
     }
 
     @Test
     public void testRemoveItemFromCart_Failure(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(getCart());
         when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean())).thenReturn(null);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Failed to remove item from cart"));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 5));
@@ -137,7 +258,7 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testGetCartByCustomerId_Success(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(getCart());
         Cart cart = cartService.getCartByCustomerId("customer1");
         assertEquals("customer1", cart.getCustomerId());
         assertEquals("merchant1", cart.getMerchantId());
@@ -145,14 +266,14 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testGetCartByCustomerId_Failure() {
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
         Cart cart = cartService.getCartByCustomerId("customer1");
         assertNull(cart);
     }
 
     @Test
     public void testFindCartByCustomerId_Success() {
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(getCart());
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Cart found", objectMapper.valueToTree(getCartDocument())));
         Response response = cartService.findCartByCustomerId("customer1");
         assertEquals(SUCCESS, response.getStatus());
@@ -161,7 +282,7 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testFindCartByCustomerId_Failure() {
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl), eq(Cart.class))).thenReturn(null);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Cart not found"));
         Response response = cartService.findCartByCustomerId("customer1");
         assertEquals(FAILURE, response.getStatus());
@@ -170,7 +291,8 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testDeleteCartByCustomerId_Success(){
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean()))
+                .thenReturn(getCartDocument(0), getEmptyCartDocument());
         when(mongoManager.deleteDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(true);
         when(utils.getSuccessResponse(any(), any())).thenReturn(getMockedSuccessResponse("Cart deleted/emptied successfully", objectMapper.createObjectNode()));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 10));
@@ -180,7 +302,8 @@ class CartServiceTest extends Constants {
 
     @Test
     public void testDeleteCartByCustomerId_Failure() {
-        when(mongoManager.findDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(getCartDocument());
+        when(mongoManager.findOneAndUpdate(any(), any(),  eq(cartDb), eq(cartColl), anyBoolean(), anyBoolean()))
+                .thenReturn(getCartDocument(0), getEmptyCartDocument());
         when(mongoManager.deleteDocument(any(), eq(cartDb), eq(cartColl))).thenReturn(false);
         when(utils.getFailedResponse(any())).thenReturn(getMockedFailedResponse("Failed to delete/empty cart"));
         Response response = cartService.removeItemFromCart("customer1", new Item("item1", 10));
@@ -188,9 +311,33 @@ class CartServiceTest extends Constants {
         assertEquals("Failed to delete/empty cart", response.getMessage());
     }
 
+    @Test
+    public void testDeleteCartByCustomerId_InTransaction() {
+        ClientSession session = mock(ClientSession.class);
+        when(mongoManager.deleteDocument(eq(session), any(), eq(cartDb), eq(cartColl))).thenReturn(true, false);
+        assertTrue(cartService.deleteCartByCustomerId(session, "customer1"));
+        //a cart already deleted by a concurrent checkout fails the delete, aborting the transaction
+        assertFalse(cartService.deleteCartByCustomerId(session, "customer1"));
+        verify(mongoManager, times(2)).deleteDocument(eq(session), eq(new Document(CUSTOMER_ID, "customer1")), eq(cartDb), eq(cartColl));
+    }
+
+    private Cart getCart() {
+        return objectMapper.convertValue(getCartDocument(), Cart.class);
+    }
+
     private Document getCartDocument() {
+        return getCartDocument(10);
+    }
+
+    private Document getEmptyCartDocument() {
+        Document cartDocument = getCartDocument();
+        cartDocument.put(CART_ITEMS, new ArrayList<>());
+        return cartDocument;
+    }
+
+    private Document getCartDocument(int quantity) {
         List<Item> cartItems = new ArrayList<>();
-        cartItems.add(new Item("item1",10));
+        cartItems.add(new Item("item1",quantity));
 
         Document cartDocument = new Document();
         cartDocument.put(CUSTOMER_ID, "customer1");
@@ -0,0 +1,253 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.when;
+
+class DispatchBoardTest extends Constants {
+    @Mock
+    private MongoManager mongoManager;
+
+    @InjectMocks
+    private DispatchBoard dispatchBoard;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(dispatchBoard, "orderDb", "orderDb");
+        ReflectionTestUtils.setField(dispatchBoard, "orderColl", "orderColl");
+    }
+
+    @Test
+    public void testResync_SnapshotSentToSubscribers() {
+        CapturingEmitter early = new CapturingEmitter();
+        dispatchBoard.register(early, null);
+        //nothing to send before the board is loaded
+        assertTrue(early.events.isEmpty());
+        assertFalse(dispatchBoard.isSynced());
+
+        ObjectId id = new ObjectId();
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(List.of(getOrderDocument(id, "order1", OrderStatus.READY)));
+        assertTrue(dispatchBoard.resync());
+        assertTrue(dispatchBoard.isSynced());
+        assertEquals(1, dispatchBoard.getReadyOrders().size());
+        assertEquals(new BigDecimal("20.50"), dispatchBoard.getReadyOrders().get(0).getTotalPrice());
+        assertEquals(1, early.events.size());
+        assertTrue(early.events.get(0).startsWith("event:snapshot\n"));
+        assertTrue(early.events.get(0).contains("order1"));
+
+        //a late subscriber gets the snapshot on registration
+        CapturingEmitter late = new CapturingEmitter();
+        dispatchBoard.register(late, null);
+        assertEquals(1, late.events.size());
+        assertTrue(late.events.get(0).contains("order1"));
+    }
+
+    @Test
+    public void testOnChange_AddAndRemoveEvents() {
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(new ArrayList<>());
+        dispatchBoard.resync();
+        CapturingEmitter subscriber = new CapturingEmitter();
+        dispatchBoard.register(subscriber, null);
+
+        ObjectId id = new ObjectId();
+        BsonDocument documentKey = new BsonDocument(MONGO_ID, new BsonObjectId(id));
+        //not yet ready, the order is not on the board
+        dispatchBoard.onChange("update", documentKey, getOrderDocument(id, "order1", OrderStatus.ACCEPTED));
+        assertTrue(dispatchBoard.getReadyOrders().isEmpty());
+
+        dispatchBoard.onChange("update", documentKey, getOrderDocument(id, "order1", OrderStatus.READY));
+        assertEquals("order1", dispatchBoard.getReadyOrders().get(0).getOrderId());
+        //accepted by a delivery partner, off the board
+        dispatchBoard.onChange("update", documentKey, getOrderDocument(id, "order1", OrderStatus.DELIVERY_ACCEPTED));
+        assertTrue(dispatchBoard.getReadyOrders().isEmpty());
+
+        dispatchBoard.onChange("insert", documentKey, getOrderDocument(id, "order1", OrderStatus.READY));
+        //deleted orders only carry their _id
+        dispatchBoard.onChange("delete", documentKey, null);
+        assertTrue(dispatchBoard.getReadyOrders().isEmpty());
+
+        assertEquals(5, subscriber.events.size());
+        assertTrue(subscriber.events.get(0).startsWith("event:snapshot\n"));
+        assertTrue(subscriber.events.get(1).startsWith("event:add\n"));
+        assertTrue(subscriber.events.get(2).startsWith("event:remove\n"));
+        assertTrue(subscriber.events.get(2).contains("{\"orderId\":\"order1\"}"));
+        assertTrue(subscriber.events.get(3).startsWith("event:add\n"));
+        assertTrue(subscriber.events.get(4).startsWith("event:remove\n"));
+    }
+
+    @Test
+    public void testOnChange_OnlyOrdersOfSubscribedPickupZones() {
+        ObjectId nearId = new ObjectId();
+        ObjectId farId = new ObjectId();
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(List.of(
+                getOrderDocument(nearId, "near1", OrderStatus.READY).append(PICKUP_ZONE, "12"),
+                getOrderDocument(farId, "far1", OrderStatus.READY).append(PICKUP_ZONE, "56")));
+        dispatchBoard.resync();
+        CapturingEmitter subscriber = new CapturingEmitter();
+        dispatchBoard.register(subscriber, Set.of("12"));
+        assertFalse(subscriber.events.get(0).contains("far1"));
+        assertTrue(subscriber.events.get(0).contains("near1"));
+        assertEquals(1, dispatchBoard.getReadyOrders(Set.of("56")).size());
+        assertEquals(2, dispatchBoard.getReadyOrders().size());
+
+        dispatchBoard.onChange("delete", new BsonDocument(MONGO_ID, new BsonObjectId(farId)), null);
+        dispatchBoard.onChange("delete", new BsonDocument(MONGO_ID, new BsonObjectId(nearId)), null);
+        assertEquals(2, subscriber.events.size());
+        assertTrue(subscriber.events.get(1).contains("near1"));
+    }
+
+    @Test
+    public void testOnChange_ClaimedOrderOffTheBoard() {
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(new ArrayList<>());
+        dispatchBoard.resync();
+        ObjectId id = new ObjectId();
+        BsonDocument documentKey = new BsonDocument(MONGO_ID, new BsonObjectId(id));
+        dispatchBoard.onChange("insert", documentKey, getOrderDocument(id, "order1", OrderStatus.READY));
+        Document claimed = getOrderDocument(id, "order1", OrderStatus.READY).append(CLAIMED_BY, "partner1")
+                .append(CLAIM_EXPIRES_AT, System.currentTimeMillis() + 60000);
+        dispatchBoard.onChange("update", documentKey, claimed);
+        assertTrue(dispatchBoard.getReadyOrders().isEmpty());
+        //released by the claim sweeper
+        dispatchBoard.onChange("update", documentKey, getOrderDocument(id, "order1", OrderStatus.READY));
+        assertEquals(1, dispatchBoard.getReadyOrders().size());
+    }
+
+    @Test
+    public void testOnClaimsExpired_OrderBackOnTheBoard() throws InterruptedException {
+        ObjectId id = new ObjectId();
+        long claimExpiresAt = System.currentTimeMillis() + 1000;
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(List.of(
+                getOrderDocument(id, "order1", OrderStatus.READY).append(CLAIMED_BY, "partner1").append(CLAIM_EXPIRES_AT, claimExpiresAt)));
+        dispatchBoard.resync();
+        CapturingEmitter subscriber = new CapturingEmitter();
+        dispatchBoard.register(subscriber, null);
+        dispatchBoard.onClaimsExpired();
+        assertTrue(dispatchBoard.getReadyOrders().isEmpty());
+        assertEquals(1, subscriber.events.size());
+
+        //the lease ran out, the order is claimable again before the claim sweeper clears it
+        while(System.currentTimeMillis() <= claimExpiresAt){
+            Thread.sleep(10);
+        }
+        dispatchBoard.onClaimsExpired();
+        assertEquals(1, dispatchBoard.getReadyOrders().size());
+        assertEquals(2, subscriber.events.size());
+        assertTrue(subscriber.events.get(1).startsWith("event:add\n"));
+        assertTrue(subscriber.events.get(1).contains("order1"));
+    }
+
+    @Test
+    public void testOnChange_SlowSubscriberBlocksNoReaders() throws Exception {
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(new ArrayList<>());
+        dispatchBoard.resync();
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CapturingEmitter slow = new CapturingEmitter();
+        dispatchBoard.register(slow, null);
+        slow.sending = sending;
+        slow.release = release;
+
+        ObjectId id = new ObjectId();
+        BsonDocument documentKey = new BsonDocument(MONGO_ID, new BsonObjectId(id));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try{
+            Future<?> change = executor.submit(() -> dispatchBoard.onChange("insert", documentKey, getOrderDocument(id, "order1", OrderStatus.READY)));
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+            //the board is read and joined while the event is still being sent
+            assertEquals(1, dispatchBoard.getReadyOrders().size());
+            CapturingEmitter late = new CapturingEmitter();
+            dispatchBoard.register(late, null);
+            assertEquals(1, late.events.size());
+            release.countDown();
+            change.get(5, TimeUnit.SECONDS);
+        }finally{
+            executor.shutdownNow();
+        }
+        assertEquals(2, slow.events.size());
+    }
+
+    @Test
+    public void testOnChange_FailedSubscriberDropped() {
+        when(mongoManager.findAllDocuments(any(), eq("orderDb"), eq("orderColl"))).thenReturn(new ArrayList<>());
+        dispatchBoard.resync();
+        CapturingEmitter broken = new CapturingEmitter();
+        CapturingEmitter subscriber = new CapturingEmitter();
+        dispatchBoard.register(broken, null);
+        dispatchBoard.register(subscriber, null);
+        broken.failing = true;
+
+        ObjectId id = new ObjectId();
+        BsonDocument documentKey = new BsonDocument(MONGO_ID, new BsonObjectId(id));
+        dispatchBoard.onChange("insert", documentKey, getOrderDocument(id, "order1", OrderStatus.READY));
+        dispatchBoard.onChange("delete", documentKey, null);
+        assertEquals(1, broken.events.size());
+        assertEquals(3, subscriber.events.size());
+        //a dropped collection ends the stream
+        assertThrows(IllegalStateException.class, () -> dispatchBoard.onChange("drop", null, null));
+    }
+
+    private Document getOrderDocument(ObjectId id, String orderId, OrderStatus status) {
+        Document orderDoc = new Document(MONGO_ID, id);
+        orderDoc.put(ORDER_ID, orderId);
+        orderDoc.put(STATUS, status.name());
+        orderDoc.put(USE_DELIVERY, true);
+        orderDoc.put("totalPrice", new Decimal128(new BigDecimal("20.50")));
+        return orderDoc;
+    }
+
+    //records the events sent as their SSE text
+    private static final class CapturingEmitter extends SseEmitter {
+        private final List<String> events = new ArrayList<>();
+        private boolean failing = false;
+        private CountDownLatch sending;
+        private CountDownLatch release;
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if(failing){
+                throw new IOException("Broken pipe");
+            }
+            if(sending != null){
+                sending.countDown();
+                try{
+                    release.await(5, TimeUnit.SECONDS);
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                }
+            }
+            StringBuilder event = new StringBuilder();
+            for(DataWithMediaType data : builder.build()){
+                event.append(data.getData());
+            }
+            events.add(event.toString());
+        }
+    }
+}
@@ -4,32 +4,61 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.client.ClientSession;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.util.UriComponentsBuilder;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.db.ReactiveMongoManager;
 import sg.edu.nus.iss.order_service.model.*;
+import sg.edu.nus.iss.order_service.states.*;
+import sg.edu.nus.iss.order_service.strategy.order.OrderTypeStrategy;
 import sg.edu.nus.iss.order_service.utils.ApplicationConstants;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 import sg.edu.nus.iss.order_service.utils.WSUtils;
 
 
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class OrderServiceTest extends Constants {
@@ -45,6 +74,14 @@ class OrderServiceTest extends Constants {
     Utils utils;
     @Mock
     WSUtils wsUtils;
+    @Mock
+    OutboxService outboxService;
+    @Mock
+    OrderDbCollectionResolver collectionResolver;
+    @Spy
+    ExecutorService ioExecutor = Executors.newFixedThreadPool(4);
+    @Spy
+    ProductCatalogCache productCatalogCache = new ProductCatalogCache(new SimpleMeterRegistry());
 
     @Value("${"+ORDER_DB+"}")
     private String orderDb;
@@ -73,6 +110,27 @@ class OrderServiceTest extends Constants {
     @BeforeEach
     public void setup() {
         MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(orderService, "stateRegistry", new OrderStateRegistry(List.of(
+                new AcceptedState(mongoManager, utils, orderDb, orderColl),
+                new ReadyState(mongoManager, utils, orderDb, orderColl),
+                new DeliveryAcceptedState(mongoManager, utils, orderDb, orderColl),
+                new DeliveryPickedUpState(mongoManager, utils, orderDb, orderColl),
+                new CompletedState(mongoManager, utils, outboxService, collectionResolver, orderDb, orderColl),
+                new CancelledState(mongoManager, utils, outboxService, collectionResolver, orderDb, orderColl))));
+        //run transactional work directly, with the null session falling back to the plain writes like transactions disabled
+        when(mongoManager.executeInTransaction(any(), any()))
+                .thenAnswer(invocation -> invocation.<Function<ClientSession, Object>>getArgument(1).apply(null));
+        when(mongoManager.insertDocument(isNull(), any(), any(), any()))
+                .thenAnswer(invocation -> mongoManager.insertDocument(invocation.<Document>getArgument(1),
+                        invocation.getArgument(2), invocation.getArgument(3)));
+        when(mongoManager.deleteDocument(isNull(), any(), any(), any()))
+                .thenAnswer(invocation -> mongoManager.deleteDocument(invocation.<Document>getArgument(1),
+                        invocation.getArgument(2), invocation.getArgument(3)));
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueDeliveryStatusUpdate(any(), anyString(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueProductStockRelease(any(), anyString(), anyString(), anyInt())).thenReturn(true);
+        when(utils.getConflictResponse(anyString())).thenAnswer(invocation -> getMockedConflictResponse(invocation.getArgument(0)));
     }
 
     @Test
@@ -96,6 +154,7 @@ class OrderServiceTest extends Constants {
         product.setListingPrice(BigDecimal.valueOf(10.0));
         product.setCategory(cat);
         product.setAvailableStock(10);
+        product.setPincode("123456");
 
         List<Product> products = new ArrayList<>();
         products.add(product);
@@ -122,16 +181,22 @@ class OrderServiceTest extends Constants {
                 .concat("products").concat(SLASH).concat(globalUUID.toString()).concat("?user-id=").concat(globalUUID.toString());
 
         when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
-        when(mongoManager.insertDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
         when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(),any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
         when(utils.getRewardPointsOffsetForCustomer(anyString())).thenReturn(rewards);
         when(wsUtils.makeWSCallObject(eq(updateProductUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
-        doNothing().when(utils).updateCustomerRewardPoints(anyString(), anyString(), any());
         when(cartService.deleteCartByCustomerId(anyString())).thenReturn(null);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
         Response response = orderService.createOrderFromCart("customer1", true, true);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order created", response.getMessage());
+        verify(outboxService).enqueueRewardPointsUpdate(any(), anyString(), eq("customer1"), eq(BigDecimal.ZERO));
+        verify(cartService).deleteCartByCustomerId("customer1");
+        //stamped with the postal sector of the merchant's pincode
+        verify(mongoManager).insertDocument(any(), argThat((Order order) -> "12".equals(order.getPickupZone())), eq(orderDb), eq(orderColl), eq(Order.class));
+        //the stock reserved is read past the product cache and any lookup in flight
+        verify(wsUtils).makeWSCallObject(eq(productIdsListUrl), any(), argThat(headers -> "no-cache".equals(headers.get(HttpHeaders.CACHE_CONTROL))),
+                eq(HttpMethod.GET), anyLong(), anyLong());
     }
     @Test
     public void testCreateOrderFromCart_Failure_NoProductsFound(){
@@ -141,7 +206,7 @@ class OrderServiceTest extends Constants {
         String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
 
         when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
-        when(mongoManager.insertDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
         when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(),any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("No products found"));
         Response response = orderService.createOrderFromCart("customer1", true, true);
@@ -176,7 +241,7 @@ class OrderServiceTest extends Constants {
         String updateProductUrl = productServiceUrl.concat("merchants").concat(SLASH).concat(globalUUID.toString()).concat(SLASH)
                 .concat("products").concat(SLASH).concat(globalUUID.toString());
         when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
-        when(mongoManager.insertDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
         when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(),any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
         when(wsUtils.makeWSCallObject(eq(updateProductUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(updateProdResponse);
         when(cartService.deleteCartByCustomerId(anyString())).thenReturn(null);
@@ -187,6 +252,381 @@ class OrderServiceTest extends Constants {
         assertEquals("Failed to create order", response.getMessage());
     }
 
+    @Test
+    public void testCreateOrderFromCart_MultipleItems_StockUpdatedConcurrently() {
+        UUID secondProductId = UUID.randomUUID();
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        products.add(getProduct(secondProductId));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Cart cart = getCartDocument();
+        cart.getCartItems().add(new Item(secondProductId.toString(), 2));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString())
+                .concat(",").concat(secondProductId.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(cart);
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(SUCCESS, response.getStatus());
+        verify(wsUtils, times(2)).makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_BatchStockUpdate_Success() {
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String batchUpdateUrl = productServiceUrl.concat("merchants/products");
+        ReflectionTestUtils.setField(orderService, "productBatchUpdateUrl", batchUpdateUrl);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(eq(batchUpdateUrl.concat("?user-id=").concat(globalUUID.toString())), any(), any(),
+                eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(SUCCESS, response.getStatus());
+        //product details, the fresh stock and one batch update
+        verify(wsUtils, times(3)).makeWSCallObject(anyString(), any(), any(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_Failure_StockUpdateDeadlineExceeded() {
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+        ReflectionTestUtils.setField(orderService, "stockUpdateDeadlineMs", 50L);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong()))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(1000);
+                    return new Response();
+                });
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        //the call fits in the deadline, and as it may still go through after it, it is queued to be settled, not released
+        verify(wsUtils).makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), eq(25L), eq(25L));
+        verify(outboxService).enqueueProductStockReconcile(isNull(), anyString(), endsWith(":".concat(globalUUID.toString())), any(),
+                eq(Map.of(globalUUID.toString(), 10)), eq(false));
+        verify(outboxService, times(0)).enqueueProductStockRelease(any(), anyString(), anyString(), anyInt());
+        verify(mongoManager, times(0)).insertDocument(any(), eq(orderDb), eq(orderColl));
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_Failure_StockUpdateTimedOut_ReconcileQueued() {
+        stubCreateOrderFromCartCalls();
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+        ReflectionTestUtils.setField(orderService, "stockUpdateDeadlineMs", 100L);
+        //the response timeout ran out, product service may have applied the update without answering
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong()))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(invocation.<Long>getArgument(5));
+                    return getMockedFailedResponse("Read timed out");
+                });
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        //the reservation was sent with a key of the order and product, the reconcile sends it again with the same key
+        ArgumentCaptor<String> reservationKey = ArgumentCaptor.forClass(String.class);
+        verify(outboxService).enqueueProductStockReconcile(isNull(), anyString(), reservationKey.capture(), any(),
+                eq(Map.of(globalUUID.toString(), 10)), eq(false));
+        verify(utils).idempotencyHeaders(reservationKey.getValue());
+        verify(outboxService, times(0)).enqueueProductStockRelease(any(), anyString(), anyString(), anyInt());
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_Failure_PartialStockUpdate_RevertQueued() {
+        UUID secondProductId = UUID.randomUUID();
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        products.add(getProduct(secondProductId));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Cart cart = getCartDocument();
+        cart.getCartItems().add(new Item(secondProductId.toString(), 2));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        Response failedResp = new Response();
+        failedResp.setStatus(FAILURE);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString())
+                .concat(",").concat(secondProductId.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(cart);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl.concat(globalUUID.toString())), any(), any(),
+                eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl.concat(secondProductId.toString())), any(), any(),
+                eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(failedResp);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        //the quantity reserved for the order is handed back, not the stock read at checkout
+        verify(outboxService).enqueueProductStockRelease(isNull(), anyString(), eq(globalUUID.toString()), eq(10));
+        verify(outboxService, times(1)).enqueueProductStockRelease(any(), anyString(), anyString(), anyInt());
+        verify(mongoManager, times(0)).insertDocument(any(), eq(orderDb), eq(orderColl));
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_Failure_OrderInsertFailed_RevertQueued() {
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        doReturn(null).when(mongoManager).executeInTransaction(any(), any());
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        verify(outboxService).enqueueProductStockRelease(isNull(), anyString(), anyString(), anyInt());
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_SharedClient_CartDeletedInTransaction() {
+        stubCreateOrderFromCartCalls();
+        when(cartService.sharesClientWith(orderDb)).thenReturn(true);
+        when(cartService.deleteCartByCustomerId(isNull(), eq("customer1"))).thenReturn(true);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(SUCCESS, response.getStatus());
+        verify(cartService).deleteCartByCustomerId(isNull(), eq("customer1"));
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_SharedClient_CartAlreadyCheckedOut() {
+        stubCreateOrderFromCartCalls();
+        when(cartService.sharesClientWith(orderDb)).thenReturn(true);
+        //a concurrent checkout deleted the cart first, so the order is rolled back and the stock reservation reverted
+        when(cartService.deleteCartByCustomerId(isNull(), eq("customer1"))).thenReturn(false);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        verify(outboxService).enqueueProductStockRelease(isNull(), anyString(), anyString(), anyInt());
+        verify(cartService, times(0)).deleteCartByCustomerId(anyString());
+    }
+
+    @Test
+    public void testReleaseProductStock_AddedToCurrentStock() {
+        Product product = getProduct(globalUUID);
+        product.setAvailableStock(3);
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(List.of(product), ArrayNode.class));
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(utils.idempotencyHeaders("event1")).thenReturn(Map.of(IDEMPOTENCY_KEY, "event1"));
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        assertTrue(orderService.releaseProductStock(globalUUID.toString(), 2, "event1"));
+        //other checkouts took the stock down to 3 since, the release only adds its own quantity to that
+        verify(wsUtils).makeWSCallObject(startsWith(updateProductsUrl), argThat(payload -> payload.get("availableStock").asInt() == 5),
+                eq(Map.of(IDEMPOTENCY_KEY, "event1")), eq(HttpMethod.PUT), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_StockReservedFromFreshStock() {
+        Product cachedProduct = getProduct(globalUUID);
+        cachedProduct.setAvailableStock(50);
+        Product freshProduct = getProduct(globalUUID);
+        freshProduct.setAvailableStock(30);
+        Response cachedResp = new Response();
+        cachedResp.setStatus(SUCCESS);
+        cachedResp.setData(objectMapper.convertValue(List.of(cachedProduct), ArrayNode.class));
+        Response freshResp = new Response();
+        freshResp.setStatus(SUCCESS);
+        freshResp.setData(objectMapper.convertValue(List.of(freshProduct), ArrayNode.class));
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+        //the product details are served from the cache, loaded by an earlier checkout
+        productCatalogCache.getProducts(List.of(globalUUID.toString()), productIds -> List.of(cachedProduct));
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(freshResp);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(SUCCESS, response.getStatus());
+        //other checkouts took the stock down to 30 since it was cached, the cart's 10 are taken off that
+        verify(wsUtils).makeWSCallObject(startsWith(updateProductsUrl), argThat(payload -> payload.get("availableStock").asInt() == 20),
+                any(), eq(HttpMethod.PUT), anyLong(), anyLong());
+        verify(wsUtils, times(1)).makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testCreateOrderFromCart_Failure_StockNotRead() {
+        Response failedResp = new Response();
+        failedResp.setStatus(FAILURE);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        productCatalogCache.getProducts(List.of(globalUUID.toString()), productIds -> List.of(getProduct(globalUUID)));
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(failedResp);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to create order"));
+        Response response = orderService.createOrderFromCart("customer1", false, false);
+        assertEquals(FAILURE, response.getStatus());
+        //nothing is reserved from a stock that could not be read
+        verify(wsUtils, times(0)).makeWSCallObject(anyString(), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong());
+        verify(mongoManager, never()).executeInTransaction(anyString(), any());
+    }
+
+    @Test
+    public void testReconcileProductStocks_ReservationSettledThenReleased() {
+        Product product = getProduct(globalUUID);
+        product.setAvailableStock(30);
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(List.of(product), ArrayNode.class));
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+        String reservationKey = "order1:".concat(globalUUID.toString());
+        String releaseKey = "event1:".concat(globalUUID.toString());
+
+        when(utils.idempotencyHeaders(reservationKey)).thenReturn(Map.of(IDEMPOTENCY_KEY, reservationKey));
+        when(utils.idempotencyHeaders(releaseKey)).thenReturn(Map.of(IDEMPOTENCY_KEY, releaseKey));
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        assertTrue(orderService.reconcileProductStocks(reservationKey, globalUUID.toString(), Map.of(globalUUID.toString(), 10),
+                false, "event1"));
+        //the reservation is sent again under its own key, product service answers it from the original if that went through
+        InOrder inOrder = inOrder(wsUtils);
+        inOrder.verify(wsUtils).makeWSCallObject(startsWith(updateProductsUrl), argThat(payload -> payload.get("availableStock").asInt() == 20),
+                eq(Map.of(IDEMPOTENCY_KEY, reservationKey)), eq(HttpMethod.PUT), anyLong(), anyLong());
+        inOrder.verify(wsUtils).makeWSCallObject(startsWith(updateProductsUrl), any(), eq(Map.of(IDEMPOTENCY_KEY, releaseKey)),
+                eq(HttpMethod.PUT), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testReconcileProductStocks_NotSettled_NothingReleased() {
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(List.of(getProduct(globalUUID)), ArrayNode.class));
+        Response failedResp = new Response();
+        failedResp.setStatus(FAILURE);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(failedResp);
+        assertFalse(orderService.reconcileProductStocks("order1:".concat(globalUUID.toString()), globalUUID.toString(),
+                Map.of(globalUUID.toString(), 10), false, "event1"));
+        //only the settling call, the stock is not handed back while the reservation is unknown
+        verify(wsUtils, times(1)).makeWSCallObject(anyString(), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testReleaseProductStock_StockNotRead() {
+        Response failedResp = new Response();
+        failedResp.setStatus(FAILURE);
+        when(wsUtils.makeWSCallObject(anyString(), any(), any(), eq(HttpMethod.GET), anyLong(), anyLong())).thenReturn(failedResp);
+        assertFalse(orderService.releaseProductStock(globalUUID.toString(), 2, "event1"));
+        verify(wsUtils, times(0)).makeWSCallObject(anyString(), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong());
+    }
+
+    private void stubCreateOrderFromCartCalls() {
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+    }
+
+    @Test
+    public void testCreateOrderFromCart_RewardsLookupTimedOut_NoOffsetApplied() throws InterruptedException {
+        List<Product> products = new ArrayList<>();
+        products.add(getProduct(globalUUID));
+        Response prodDetailsResponse = new Response();
+        prodDetailsResponse.setStatus(SUCCESS);
+        prodDetailsResponse.setData(objectMapper.convertValue(products, ArrayNode.class));
+
+        Response successResp = new Response();
+        successResp.setStatus(SUCCESS);
+        String productIdsListUrl = productServiceUrl.concat("products/ids?productIds=").concat(globalUUID.toString());
+        String updateProductsUrl = productServiceUrl.concat("merchants").concat(SLASH).concat("products").concat(SLASH);
+        ReflectionTestUtils.setField(orderService, "rewardsLookupTimeoutMs", 50L);
+
+        when(cartService.getCartByCustomerId(anyString())).thenReturn(getCartDocument());
+        when(mongoManager.insertDocument(any(), any(Order.class), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(true);
+        when(wsUtils.makeWSCallObject(eq(productIdsListUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(prodDetailsResponse);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(utils.getRewardPointsOffsetForCustomer(anyString())).thenAnswer(invocation -> {
+            try{
+                Thread.sleep(5000);
+            }catch(InterruptedException ex){
+                interrupted.countDown();
+            }
+            return objectMapper.createObjectNode();
+        });
+        when(wsUtils.makeWSCallObject(startsWith(updateProductsUrl), any(), any(), eq(HttpMethod.PUT), anyLong(), anyLong())).thenReturn(successResp);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order created", objectMapper.createObjectNode()));
+        Response response = orderService.createOrderFromCart("customer1", true, false);
+        assertEquals(SUCCESS, response.getStatus());
+        verify(outboxService, times(0)).enqueueRewardPointsUpdate(any(), anyString(), anyString(), any());
+        //the lookup is not left running, its blocked call is interrupted
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+
     @Test
     public void testGetOrdersListByProfileId_Failure_UnknownProfileType() {
         when(utils.getProfileIdentifierFieldBasedOnRole(anyString())).thenReturn("");
@@ -238,9 +678,53 @@ class OrderServiceTest extends Constants {
         assertEquals("No orders found", response.getMessage());
     }
 
+    @Test
+    public void testStreamOrdersListByProfileId_MillionOrders() throws Exception {
+        int orderCount = 1_000_000;
+        long[] bytesWrittenAtHalfway = new long[1];
+        CountingOutputStream out = new CountingOutputStream();
+        //stands in for the mongo cursor, yielding synthetic orders one at a time
+        OrderTypeStrategy allOrderStrategy = mock(OrderTypeStrategy.class);
+        when(allOrderStrategy.streamOrders(eq(MERCHANT), eq("merchant1"), any())).thenAnswer(invocation -> {
+            Consumer<Document> consumer = invocation.getArgument(2);
+            for (int i = 0; i < orderCount; i++) {
+                Document order = new Document(ORDER_ID, "order" + i);
+                order.put(MERCHANT_ID, "merchant1");
+                order.put(STATUS, COMPLETED);
+                order.put(TOTAL_PRICE, 10.5);
+                consumer.accept(order);
+                if (i == orderCount / 2) {
+                    bytesWrittenAtHalfway[0] = out.bytes;
+                }
+            }
+            return true;
+        });
+        ReflectionTestUtils.setField(orderService, "allOrderStrategy", allOrderStrategy);
+
+        assertTrue(orderService.streamOrdersListByProfileId("all", MERCHANT, "merchant1", out));
+        assertEquals(orderCount, out.lines);
+        //orders reach the response while the cursor is still being read, nothing is held back until the end
+        assertTrue(bytesWrittenAtHalfway[0] > out.bytes / 3);
+        assertEquals(NEW_LINE, out.lastByte);
+    }
+
+    @Test
+    public void testStreamOrdersListByProfileId_ReadFailed() throws Exception {
+        OrderTypeStrategy completedOrderStrategy = mock(OrderTypeStrategy.class);
+        when(completedOrderStrategy.streamOrders(anyString(), anyString(), any())).thenAnswer(invocation -> {
+            invocation.<Consumer<Document>>getArgument(2).accept(new Document(ORDER_ID, "order1"));
+            return false;
+        });
+        ReflectionTestUtils.setField(orderService, "completedOrderStrategy", completedOrderStrategy);
+        CountingOutputStream out = new CountingOutputStream();
+
+        assertFalse(orderService.streamOrdersListByProfileId(COMPLETED, MERCHANT, "merchant1", out));
+        assertEquals(1, out.lines);
+    }
+
     @Test
     public void testGetActiveOrdersForDelivery_Success() {
-        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl))).thenReturn(List.of(getOrderDocument_withDelivery()));
+        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(List.of(getOrder_withDelivery()));
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Orders found", objectMapper.createObjectNode()));
         Response response = orderService.getActiveOrdersForDelivery();
         assertEquals(SUCCESS, response.getStatus());
@@ -249,16 +733,159 @@ class OrderServiceTest extends Constants {
 
     @Test
     public void testGetActiveOrdersForDelivery_Failure() {
-        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl))).thenReturn(new ArrayList<>());
+        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(new ArrayList<>());
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("No orders found"));
         Response response = orderService.getActiveOrdersForDelivery();
         assertEquals(FAILURE, response.getStatus());
         assertEquals("No orders found", response.getMessage());
     }
 
+    @Test
+    public void testGetActiveOrdersForDelivery_FromDispatchBoard() {
+        DispatchBoard dispatchBoard = mock(DispatchBoard.class);
+        ReflectionTestUtils.setField(orderService, "dispatchBoard", dispatchBoard);
+        when(dispatchBoard.isSynced()).thenReturn(true);
+        when(dispatchBoard.getReadyOrders(any())).thenReturn(List.of(getOrder_withDelivery()));
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+        Response response = orderService.getActiveOrdersForDelivery();
+        assertEquals(SUCCESS, response.getStatus());
+        assertEquals(1, response.getData().size());
+        verify(mongoManager, times(0)).findAllDocuments(any(), any(), any(), eq(Order.class));
+
+        //until the board is loaded the orders are read from the collection
+        when(dispatchBoard.isSynced()).thenReturn(false);
+        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(List.of(getOrder_withDelivery()));
+        assertEquals(SUCCESS, orderService.getActiveOrdersForDelivery().getStatus());
+        verify(mongoManager, times(1)).findAllDocuments(any(), eq(orderDb), eq(orderColl), eq(Order.class));
+    }
+
+    @Test
+    public void testGetActiveOrdersForDelivery_NearPincodes() {
+        when(mongoManager.findAllDocuments(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(List.of(getOrder_withDelivery()));
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Orders found", objectMapper.createObjectNode()));
+        assertEquals(SUCCESS, orderService.getActiveOrdersForDelivery(List.of("123456", "120001", " 560123", "")).getStatus());
+        verify(mongoManager).findAllDocuments(argThat(query -> query.get(PICKUP_ZONE, Document.class).get(OPERATOR_IN).equals(List.of("12", "56"))),
+                eq(orderDb), eq(orderColl), eq(Order.class));
+
+        DispatchBoard dispatchBoard = mock(DispatchBoard.class);
+        ReflectionTestUtils.setField(orderService, "dispatchBoard", dispatchBoard);
+        when(dispatchBoard.isSynced()).thenReturn(true);
+        when(dispatchBoard.getReadyOrders(Set.of("56"))).thenReturn(List.of(getOrder_withDelivery()));
+        assertEquals(SUCCESS, orderService.getActiveOrdersForDelivery(List.of("560123")).getStatus());
+    }
+
+    @Test
+    public void testClaimOrderForDelivery_Success() {
+        ReflectionTestUtils.setField(orderService, "claimLeaseMs", 1000L);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenAnswer(invocation ->
+                new Document(ORDER_ID, "order1").append(CLAIM_EXPIRES_AT,
+                        invocation.<Document>getArgument(2).get(OPERATOR_SET, Document.class).getLong(CLAIM_EXPIRES_AT)));
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+        long before = System.currentTimeMillis();
+        Response response = orderService.claimOrderForDelivery("order1", "partner1");
+        assertEquals(SUCCESS, response.getStatus());
+        assertEquals("partner1", response.getData().get(CLAIMED_BY).asText());
+        assertTrue(response.getData().get(CLAIM_EXPIRES_AT).asLong() >= before + 1000L);
+        verify(mongoManager, times(0)).findDocument(any(), any(), any());
+    }
+
+    @Test
+    public void testClaimOrderForDelivery_ClaimedByAnotherPartner() {
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(new Document(ORDER_ID, "order1"));
+        Response response = orderService.claimOrderForDelivery("order1", "partner1");
+        assertEquals(CONFLICT, response.getStatus());
+        assertEquals("Order for orderId: order1 is not ready for delivery or claimed by another delivery partner", response.getMessage());
+
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getFailedResponse(anyString())).thenAnswer(invocation -> getMockedFailedResponse(invocation.getArgument(0)));
+        assertEquals("No order found for orderId: order1", orderService.claimOrderForDelivery("order1", "partner1").getMessage());
+    }
+
+    /*
+    * Contention benchmark of the claim: partners race for one ready order against a stub updating the order under a
+    * lock like mongo updates one document. One partner wins and keeps renewing, the others only get it once the
+    * lease expired.
+    */
+    @Test
+    public void testClaimOrderForDelivery_PartnersRacing() throws Exception {
+        ReflectionTestUtils.setField(orderService, "claimLeaseMs", 200L);
+        Document storedOrder = new Document(ORDER_ID, "order1").append(STATUS, OrderStatus.READY).append(USE_DELIVERY, true);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenAnswer(invocation -> {
+            Document claim = invocation.<Document>getArgument(2).get(OPERATOR_SET, Document.class);
+            synchronized (storedOrder) {
+                Long expiresAt = storedOrder.getLong(CLAIM_EXPIRES_AT);
+                boolean claimable = expiresAt == null || expiresAt < System.currentTimeMillis()
+                        || claim.getString(CLAIMED_BY).equals(storedOrder.getString(CLAIMED_BY));
+                if (!claimable) {
+                    return null;
+                }
+                storedOrder.putAll(claim);
+                return new Document(storedOrder);
+            }
+        });
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(storedOrder);
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+
+        int partners = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(partners);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Response>> claims = new ArrayList<>();
+        try {
+            for (int i = 0; i < partners; i++) {
+                String partner = "partner" + i;
+                claims.add(executor.submit(() -> {
+                    start.await();
+                    return orderService.claimOrderForDelivery("order1", partner);
+                }));
+            }
+            long started = System.nanoTime();
+            start.countDown();
+            String winner = null;
+            int conflicts = 0;
+            for (Future<Response> claim : claims) {
+                Response response = claim.get(30, TimeUnit.SECONDS);
+                if (SUCCESS.equals(response.getStatus())) {
+                    assertNull(winner);
+                    winner = response.getData().get(CLAIMED_BY).asText();
+                } else {
+                    assertEquals(CONFLICT, response.getStatus());
+                    conflicts++;
+                }
+            }
+            //every claim is decided by one update, no matter how many partners race
+            assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(10));
+            assertNotNull(winner);
+            assertEquals(partners - 1, conflicts);
+            //the winner renews its lease, the others are still locked out
+            assertEquals(SUCCESS, orderService.claimOrderForDelivery("order1", winner).getStatus());
+            String other = "partner0".equals(winner) ? "partner1" : "partner0";
+            assertEquals(CONFLICT, orderService.claimOrderForDelivery("order1", other).getStatus());
+            //once the lease expired the order is up for grabs again
+            synchronized (storedOrder) {
+                storedOrder.put(CLAIM_EXPIRES_AT, System.currentTimeMillis() - 1);
+            }
+            assertEquals(SUCCESS, orderService.claimOrderForDelivery("order1", other).getStatus());
+            assertEquals(other, storedOrder.getString(CLAIMED_BY));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReleaseExpiredClaims() {
+        when(mongoManager.updateDocuments(isNull(), any(), any(), eq(orderDb), eq(orderColl))).thenReturn(2L);
+        assertEquals(2L, orderService.releaseExpiredClaims());
+        when(mongoManager.updateDocuments(isNull(), any(), any(), eq(orderDb), eq(orderColl))).thenThrow(new RuntimeException("timeout"));
+        assertEquals(0L, orderService.releaseExpiredClaims());
+    }
+
     @Test
     public void testGetOrderByOrderId_Success() {
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(getOrder_withDelivery());
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order found", objectMapper.createObjectNode()));
         Response response = orderService.getOrderByOrderId("order1");
         assertEquals(SUCCESS, response.getStatus());
@@ -267,24 +894,105 @@ class OrderServiceTest extends Constants {
 
     @Test
     public void testGetOrderByOrderId_Failure() {
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl), eq(Order.class))).thenReturn(null);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Order not found"));
         Response response = orderService.getOrderByOrderId("order1");
         assertEquals(FAILURE, response.getStatus());
         assertEquals("Order not found", response.getMessage());
     }
 
+    @Test
+    public void testGetRawOrderByOrderId_Success() {
+        RawBsonDocument rawOrder = RawBsonDocument.parse("{\"orderId\": \"order1\"}");
+        when(mongoManager.findRawDocumentCoalesced(any(), any(), eq(orderDb), eq(orderColl))).thenReturn(rawOrder);
+        assertEquals(rawOrder, orderService.getRawOrderByOrderId("order1"));
+        //only the Order fields are read
+        verify(mongoManager).findRawDocumentCoalesced(eq(new Document(ORDER_ID, "order1")), argThat(projection -> projection != null
+                && Integer.valueOf(0).equals(projection.get(MONGO_ID)) && projection.containsKey(TOTAL_PRICE)
+                && projection.containsKey(ORDER_ITEMS) && projection.size() == Order.class.getDeclaredFields().length + 1),
+                eq(orderDb), eq(orderColl));
+    }
+
+    @Test
+    public void testGetRawOrderByOrderId_NotFound() {
+        when(mongoManager.findRawDocumentCoalesced(any(), any(), eq(orderDb), eq(orderColl))).thenReturn(null);
+        assertNull(orderService.getRawOrderByOrderId("order1"));
+    }
+
+    @Test
+    public void testGetOrderStatusByOrderId_Success() {
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+        Response response = orderService.getOrderStatusByOrderId("order1").join();
+        assertEquals(SUCCESS, response.getStatus());
+        assertEquals("order1", response.getData().get(ORDER_ID).asText());
+        assertEquals(OrderStatus.DELIVERY_PICKED_UP.name(), response.getData().get(STATUS).asText());
+    }
+
+    @Test
+    public void testGetOrderStatusByOrderId_NotFound() {
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Order not found"));
+        Response response = orderService.getOrderStatusByOrderId("order1").join();
+        assertEquals(FAILURE, response.getStatus());
+    }
+
+    @Test
+    public void testGetOrderStatusByOrderId_ReactiveDriver() {
+        ReactiveMongoManager reactiveMongoManager = mock(ReactiveMongoManager.class);
+        ReflectionTestUtils.setField(orderService, "reactiveMongoManager", reactiveMongoManager);
+        CompletableFuture<Document> orderDoc = new CompletableFuture<>();
+        when(reactiveMongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(orderDoc);
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+
+        CompletableFuture<Response> response = orderService.getOrderStatusByOrderId("order1");
+        //nothing blocks on the read, the response completes with it
+        assertFalse(response.isDone());
+        orderDoc.complete(new Document(ORDER_ID, "order1").append(STATUS, OrderStatus.READY.name()).append(UPDATED_DATE, 5L));
+        assertEquals(OrderStatus.READY.name(), response.join().getData().get(STATUS).asText());
+        //never transitioned, the time of creation
+        assertEquals(5L, response.join().getData().get(UPDATED_AT).asLong());
+        verify(mongoManager, times(0)).findDocument(any(), any(), any());
+    }
+
+    @Test
+    public void testGetOrderStatusByOrderId_Transitioned_UpdatedAtReturned() {
+        Document order = new Document(ORDER_ID, "order1").append(STATUS, OrderStatus.COMPLETED.name())
+                .append(UPDATED_DATE, 5L).append(UPDATED_AT, 9L);
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(order);
+        when(utils.getSuccessResponse(anyString(), any())).thenAnswer(invocation ->
+                getMockedSuccessResponse(invocation.getArgument(0), invocation.getArgument(1)));
+        Response response = orderService.getOrderStatusByOrderId("order1").join();
+        assertEquals(OrderStatus.COMPLETED.name(), response.getData().get(STATUS).asText());
+        assertEquals(9L, response.getData().get(UPDATED_AT).asLong());
+    }
+
     @Test
     public void testUpdateOrderStatus_InvalidStatus() {
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Invalid status"));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.INVALID, null);
         assertEquals(FAILURE, response.getStatus());
         assertEquals("Invalid status", response.getMessage());
+        //no update moves an order to INVALID, so the order is not even read
+        verify(mongoManager, times(0)).findDocument(any(), any(), any());
+        verify(mongoManager, times(0)).findOneAndUpdate(any(), any(), any(Document.class), any(), any());
+    }
+
+    @Test
+    public void testUpdateOrderStatus_TransitionNotAllowed() {
+        //a ready order was accepted already, so the compare and set on CREATED matches nothing
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
+        Response response = orderService.updateOrderStatus("order1", OrderStatus.ACCEPTED, null);
+        assertEquals(CONFLICT, response.getStatus());
+        assertEquals("Order for orderId: order1 cannot move from status: READY to status: ACCEPTED", response.getMessage());
     }
 
     @Test
     public void testUpdateOrderStatus_NoOrder(){
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
         when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(null);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Order not found"));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.READY, null);
@@ -292,20 +1000,35 @@ class OrderServiceTest extends Constants {
         assertEquals("Order not found", response.getMessage());
     }
 
+    @Test
+    public void testUpdateOrderStatus_OrderAlreadyClosed(){
+        //with a single order coll a completed order is still found, but takes no further status update
+        Document closedOrder = getOrderDocument_withoutDelivery();
+        closedOrder.put(STATUS, COMPLETED);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(closedOrder);
+        Response response = orderService.updateOrderStatus("order1", OrderStatus.CANCELLED, null);
+        assertEquals(CONFLICT, response.getStatus());
+        assertEquals("Order for orderId: order1 is already closed", response.getMessage());
+        verify(mongoManager, times(0)).insertDocument(any(), any(), any());
+        verify(outboxService, times(0)).enqueueRewardPointsUpdate(any(), anyString(), anyString(), any());
+    }
+
     @Test
     public void testUpdateOrderStatus_ReadyStatus_Success(){
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withoutDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.READY, null);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated", response.getMessage());
+        //one round trip, the order is not read before it is updated
+        verify(mongoManager, times(0)).findDocument(any(), any(), any());
     }
 
     @Test
     public void testUpdateOrderStatus_ReadyStatus_Failure(){
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl)))
+                .thenThrow(new IllegalStateException("connection reset"));
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update order status"));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.READY, null);
         assertEquals(FAILURE, response.getStatus());
@@ -313,38 +1036,28 @@ class OrderServiceTest extends Constants {
     }
 
     @Test
-    public void testUpdateOrderStatus_CompletedStatus_FailedDeliveryUpdate(){
-        Response delUpdate = new Response();
-        delUpdate.setStatus(FAILURE);
-        String deliveryUpdateUrl = deliveryServiceUrl.concat("deliveries").concat(SLASH).concat("status");
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
-        when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(delUpdate);
-        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
+    public void testUpdateOrderStatus_CompletedStatus_TransactionFailed(){
+        doReturn(null).when(mongoManager).executeInTransaction(any(), any());
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to complete order"));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.COMPLETED, null);
         assertEquals(FAILURE, response.getStatus());
-        assertEquals("Failed to update delivery status", response.getMessage());
+        assertEquals("Failed to complete order", response.getMessage());
+        verify(mongoManager, times(0)).deleteDocument(any(), eq(orderDb), eq(orderColl));
     }
 
     @Test
     public void testUpdateOrderStatus_CompletedStatus_Success(){
-        Response successResp = new Response();
-        successResp.setStatus(SUCCESS);
-        String deliveryUpdateUrl = deliveryServiceUrl.concat("deliveries").concat(SLASH).concat("status");
-        String profileMerchantUpdate = profileServiceUrl.concat("merchants").concat(SLASH).concat(globalUUID.toString())
-                .concat(SLASH).concat("rewards").concat(SLASH).concat(BigDecimal.valueOf(100.0).toString());
-        String profileCustomerUpdate = profileServiceUrl.concat("customers").concat(SLASH).concat(globalUUID.toString())
-                .concat(SLASH).concat("rewards").concat(SLASH).concat(BigDecimal.valueOf(100.0).toString());
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
-        when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), anyList(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(mongoManager.insertDocument(any(), eq(orderDb), eq(completedOrderColl))).thenReturn(true);
         when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
-        when(wsUtils.makeWSCallString(eq(profileMerchantUpdate), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
-        when(wsUtils.makeWSCallString(eq(profileCustomerUpdate), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
-        when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to completed", objectMapper.createObjectNode()));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.COMPLETED, null);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated to completed", response.getMessage());
+        verify(outboxService).enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any());
+        verify(outboxService).enqueueRewardPointsUpdate(any(), anyString(), anyString(), any());
+        verify(outboxService).enqueueDeliveryStatusUpdate(any(), anyString(), anyString(), anyString(), eq(OrderStatus.COMPLETED));
+        verify(wsUtils, times(0)).makeWSCallObject(anyString(), any(), any(), any(), anyLong(), anyLong());
     }
 
     @Test
@@ -352,7 +1065,7 @@ class OrderServiceTest extends Constants {
         Response delUpdate = new Response();
         delUpdate.setStatus(FAILURE);
         String deliveryUpdateUrl = deliveryServiceUrl.concat("deliveries").concat(SLASH).concat("status");
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(delUpdate);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.DELIVERY_PICKED_UP, null);
@@ -365,9 +1078,8 @@ class OrderServiceTest extends Constants {
         Response successResp = new Response();
         successResp.setStatus(SUCCESS);
         String deliveryUpdateUrl = deliveryServiceUrl.concat("deliveries").concat(SLASH).concat("status");
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withDelivery());
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.DELIVERY_PICKED_UP, null);
@@ -385,7 +1097,7 @@ class OrderServiceTest extends Constants {
         uriBuilder.queryParam("deliveryPersonId", globalUUID.toString());
         uriBuilder.queryParam(CUSTOMER_ID, globalUUID.toString());
         deliveryUpdateUrl=uriBuilder.toUriString();
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument(getOrderDocument_withDelivery(), OrderStatus.DELIVERY_ACCEPTED));
         when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(delUpdate);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
 
@@ -407,9 +1119,8 @@ class OrderServiceTest extends Constants {
         uriBuilder.queryParam("deliveryPersonId", globalUUID.toString());
         uriBuilder.queryParam(CUSTOMER_ID, globalUUID.toString());
         deliveryUpdateUrl=uriBuilder.toUriString();
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument(getOrderDocument_withDelivery(), OrderStatus.DELIVERY_ACCEPTED));
         when(wsUtils.makeWSCallObject(eq(deliveryUpdateUrl), any(), any(), any(), anyLong(), anyLong())).thenReturn(delUpdate);
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withDelivery());
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
 
@@ -423,19 +1134,14 @@ class OrderServiceTest extends Constants {
 
     @Test
     public void testUpdateOrderStatus_Cancelled_Success(){
-        Response successResp = new Response();
-        successResp.setStatus(SUCCESS);
-        String profileCustomerUpdate = profileServiceUrl.concat("customers").concat(SLASH).concat(globalUUID.toString())
-                .concat(SLASH).concat("rewards").concat(SLASH).concat(BigDecimal.valueOf(500.0).toString());
-
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
         when(mongoManager.insertDocument(any(), eq(orderDb), eq(cancelledOrderColl))).thenReturn(true);
         when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
-        when(wsUtils.makeWSCallString(eq(profileCustomerUpdate), any(), any(), any(), anyLong(), anyLong())).thenReturn(successResp);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to cancelled", objectMapper.createObjectNode()));
         Response response = orderService.updateOrderStatus("order1", OrderStatus.CANCELLED, null);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated to cancelled", response.getMessage());
+        verify(outboxService).enqueueRewardPointsUpdate(any(), anyString(), anyString(), any());
     }
 
     @Test
@@ -452,6 +1158,21 @@ class OrderServiceTest extends Constants {
         assertFalse(result);
     }
 
+    private Product getProduct(UUID productId) {
+        Category cat = new Category();
+        cat.setCategoryId(globalUUID);
+        cat.setCategoryName("cat1");
+        cat.setCategoryDescription("cat1 desc");
+
+        Product product = new Product();
+        product.setProductId(productId);
+        product.setMerchantId(globalUUID);
+        product.setListingPrice(BigDecimal.valueOf(10.0));
+        product.setCategory(cat);
+        product.setAvailableStock(10);
+        return product;
+    }
+
     private Cart getCartDocument() {
         List<Item> cartItems = new ArrayList<>();
         cartItems.add(new Item(globalUUID.toString(),10));
@@ -465,6 +1186,15 @@ class OrderServiceTest extends Constants {
         return cart;
     }
 
+    private Order getOrder_withDelivery() {
+        return objectMapper.convertValue(getOrderDocument_withDelivery(), Order.class);
+    }
+
+    private Document getOrderDocument(Document orderDocument, OrderStatus status) {
+        orderDocument.put(STATUS, status);
+        return orderDocument;
+    }
+
     private Document getOrderDocument_withDelivery() {
         List<Item> orderItems = new ArrayList<>();
         Item item1 = new Item(globalUUID.toString(),10);
@@ -518,6 +1248,12 @@ class OrderServiceTest extends Constants {
         response.setMessage(message);
         return response;
     }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
@@ -525,4 +1261,32 @@ class OrderServiceTest extends Constants {
         response.setData(data);
         return response;
     }
-}
\ No newline at end of file
+
+    private static class CountingOutputStream extends OutputStream {
+        private long bytes;
+        private long lines;
+        private int lastByte;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            lastByte = b;
+            if (b == NEW_LINE) {
+                lines++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == NEW_LINE) {
+                    lines++;
+                }
+            }
+            bytes += len;
+            if (len > 0) {
+                lastByte = b[off + len - 1];
+            }
+        }
+    }
+}
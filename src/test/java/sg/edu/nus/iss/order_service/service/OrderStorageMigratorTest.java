@@ -0,0 +1,108 @@
+package sg.edu.nus.iss.order_service.service;
+
+import com.mongodb.client.ClientSession;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OrderStorageMigratorTest extends Constants {
+    private static final String ORDER_DB = "orders";
+    private static final String ORDER_COLL = "orders";
+    private static final String COMPLETED_COLL = "completedOrders";
+    private static final String CANCELLED_COLL = "cancelledOrders";
+
+    @Mock
+    private MongoManager mongoManager;
+    @Mock
+    private OrderDbCollectionResolver collectionResolver;
+
+    @InjectMocks
+    private OrderStorageMigrator orderStorageMigrator;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(orderStorageMigrator, "orderDb", ORDER_DB);
+        ReflectionTestUtils.setField(orderStorageMigrator, "orderColl", ORDER_COLL);
+        ReflectionTestUtils.setField(orderStorageMigrator, "batchSize", 2);
+        when(collectionResolver.isSingleCollection()).thenReturn(true);
+        when(collectionResolver.getArchiveCollection(COMPLETED)).thenReturn(COMPLETED_COLL);
+        when(collectionResolver.getArchiveCollection(CANCELLED)).thenReturn(CANCELLED_COLL);
+        when(mongoManager.executeInTransaction(eq(ORDER_DB), any()))
+                .thenAnswer(invocation -> invocation.<Function<ClientSession, Object>>getArgument(1).apply(null));
+    }
+
+    @Test
+    public void testMigrateToSingleCollection_MovesEveryBatch() {
+        List<Document> firstBatch = List.of(getArchivedOrder("order1", COMPLETED, 1000L), getArchivedOrder("order2", null, null));
+        List<Document> secondBatch = List.of(getArchivedOrder("order3", COMPLETED, 3000L));
+        when(mongoManager.findDocuments(any(), any(), eq(2), eq(ORDER_DB), eq(COMPLETED_COLL)))
+                .thenReturn(firstBatch).thenReturn(secondBatch).thenReturn(new ArrayList<>());
+        when(mongoManager.findDocuments(any(), any(), eq(2), eq(ORDER_DB), eq(CANCELLED_COLL))).thenReturn(new ArrayList<>());
+        when(mongoManager.upsertDocuments(isNull(), anyList(), eq(ORDER_ID), eq(ORDER_DB), eq(ORDER_COLL)))
+                .thenAnswer(invocation -> invocation.<List<Document>>getArgument(1).size());
+        when(mongoManager.deleteDocuments(isNull(), any(), eq(ORDER_DB), eq(COMPLETED_COLL))).thenReturn(2L, 1L);
+
+        Map<String, Long> migrated = orderStorageMigrator.migrateToSingleCollection();
+        assertEquals(3L, migrated.get(COMPLETED_COLL));
+        assertEquals(0L, migrated.get(CANCELLED_COLL));
+
+        //the status and the closing time of the TTL index are filled in where the archive did not have them
+        assertEquals(new Date(1000L), firstBatch.get(0).get(CLOSED_AT));
+        assertEquals(COMPLETED, firstBatch.get(1).getString(STATUS));
+        assertNotNull(firstBatch.get(1).get(CLOSED_AT));
+        ArgumentCaptor<Document> deleteQuery = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager, times(2)).deleteDocuments(isNull(), deleteQuery.capture(), eq(ORDER_DB), eq(COMPLETED_COLL));
+        assertEquals(new Document(OPERATOR_IN, List.of("order1", "order2")), deleteQuery.getAllValues().get(0).get(ORDER_ID));
+    }
+
+    @Test
+    public void testMigrateToSingleCollection_BatchNotMoved() {
+        when(mongoManager.findDocuments(any(), any(), eq(2), eq(ORDER_DB), eq(COMPLETED_COLL)))
+                .thenReturn(List.of(getArchivedOrder("order1", COMPLETED, 1000L)));
+        when(mongoManager.upsertDocuments(isNull(), anyList(), eq(ORDER_ID), eq(ORDER_DB), eq(ORDER_COLL))).thenReturn(1);
+        //the order was deleted from the archive in between, the batch is rolled back and the migration stops
+        when(mongoManager.deleteDocuments(isNull(), any(), eq(ORDER_DB), eq(COMPLETED_COLL))).thenReturn(0L);
+        assertNull(orderStorageMigrator.migrateToSingleCollection());
+        verify(mongoManager, times(1)).findDocuments(any(), any(), eq(2), eq(ORDER_DB), eq(COMPLETED_COLL));
+    }
+
+    @Test
+    public void testMigrateToSingleCollection_ArchiveStorage() {
+        when(collectionResolver.isSingleCollection()).thenReturn(false);
+        assertFalse(orderStorageMigrator.canMigrate());
+        assertNull(orderStorageMigrator.migrateToSingleCollection());
+        verify(mongoManager, times(0)).findDocuments(any(), any(), anyInt(), any(), any());
+    }
+
+    private Document getArchivedOrder(String orderId, String status, Long updatedAt) {
+        Document order = new Document(ORDER_ID, orderId);
+        if (status != null) {
+            order.put(STATUS, status);
+        }
+        if (updatedAt != null) {
+            order.put(UPDATED_AT, updatedAt);
+        }
+        return order;
+    }
+}
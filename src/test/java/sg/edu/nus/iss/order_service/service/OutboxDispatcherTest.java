@@ -0,0 +1,149 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.model.OutboxEventType;
+import sg.edu.nus.iss.order_service.utils.Constants;
+import sg.edu.nus.iss.order_service.utils.Utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OutboxDispatcherTest extends Constants {
+    @Mock
+    private OutboxService outboxService;
+    @Mock
+    private OrderService orderService;
+    @Mock
+    private Utils utils;
+    @Spy
+    private ExecutorService outboxExecutor = Executors.newFixedThreadPool(2);
+
+    @InjectMocks
+    private OutboxDispatcher outboxDispatcher;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    public void testDispatchDueEvents_RewardPointsDispatchedWithIdempotencyKey() {
+        Document payload = new Document(CUSTOMER_ID, "customer1");
+        payload.put(AMOUNT, "100.0");
+        Document event = getEvent(OutboxEventType.CUSTOMER_REWARD_POINTS_UPDATE, payload);
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(event));
+        when(outboxService.claim(eq(event), anyLong())).thenReturn(event);
+        when(utils.updateCustomerRewardPoints("order1", "customer1", new BigDecimal("100.0"), event.getString(EVENT_ID))).thenReturn(true);
+        outboxDispatcher.dispatchDueEvents();
+        verify(outboxService).markDispatched(event);
+        verify(outboxService, never()).markFailed(any(), anyString());
+    }
+
+    @Test
+    public void testDispatchDueEvents_DeliveryUpdateFailed_Rescheduled() {
+        Document payload = new Document(CUSTOMER_ID, "customer1");
+        payload.put(DELIVERY_PARTNER_ID, "partner1");
+        payload.put(STATUS, OrderStatus.COMPLETED.name());
+        Document event = getEvent(OutboxEventType.DELIVERY_STATUS_UPDATE, payload);
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(event));
+        when(outboxService.claim(eq(event), anyLong())).thenReturn(event);
+        when(utils.updateDeliveryStatusforOrder(any(), eq(false), eq("partner1"), eq(OrderStatus.COMPLETED),
+                eq(event.getString(EVENT_ID)))).thenReturn(false);
+        outboxDispatcher.dispatchDueEvents();
+        verify(outboxService).markFailed(eq(event), anyString());
+        verify(outboxService, never()).markDispatched(any());
+    }
+
+    @Test
+    public void testDispatchDueEvents_StockReleaseDispatched() {
+        UUID productId = UUID.randomUUID();
+        Document payload = new Document(PRODUCT_ID, productId.toString());
+        payload.put(QUANTITY, 2);
+        Document event = getEvent(OutboxEventType.PRODUCT_STOCK_RELEASE, payload);
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(event));
+        when(outboxService.claim(eq(event), anyLong())).thenReturn(event);
+        when(orderService.releaseProductStock(productId.toString(), 2, event.getString(EVENT_ID))).thenReturn(true);
+        outboxDispatcher.dispatchDueEvents();
+        verify(outboxService).markDispatched(event);
+    }
+
+    @Test
+    public void testDispatchDueEvents_StockReconcileDispatched() {
+        UUID productId = UUID.randomUUID();
+        Document payload = new Document(RESERVATION_KEY, "order1:" + productId);
+        payload.put(MERCHANT_ID, "merchant1");
+        payload.put(PRODUCTS, List.of(new Document(PRODUCT_ID, productId.toString()).append(QUANTITY, 2)));
+        payload.put(BATCH, false);
+        Document event = getEvent(OutboxEventType.PRODUCT_STOCK_RECONCILE, payload);
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(event));
+        when(outboxService.claim(eq(event), anyLong())).thenReturn(event);
+        when(orderService.reconcileProductStocks("order1:" + productId, "merchant1", Map.of(productId.toString(), 2), false,
+                event.getString(EVENT_ID))).thenReturn(true);
+        outboxDispatcher.dispatchDueEvents();
+        verify(outboxService).markDispatched(event);
+    }
+
+    @Test
+    public void testDispatchDueEvents_ClaimedElsewhere_Skipped() {
+        Document event = getEvent(OutboxEventType.MERCHANT_EARNINGS_UPDATE, new Document());
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(event));
+        when(outboxService.claim(eq(event), anyLong())).thenReturn(null);
+        outboxDispatcher.dispatchDueEvents();
+        verify(utils, never()).updateMerchantEarnings(anyString(), anyString(), any(), anyString());
+        verify(outboxService, never()).markDispatched(any());
+    }
+
+    @Test
+    public void testDispatchDueEvents_ClaimedWhenPickedUp() {
+        Document first = getEvent(OutboxEventType.MERCHANT_EARNINGS_UPDATE, new Document(MERCHANT_ID, "merchant1").append(AMOUNT, "10"));
+        Document second = getEvent(OutboxEventType.MERCHANT_EARNINGS_UPDATE, new Document(MERCHANT_ID, "merchant2").append(AMOUNT, "20"));
+        when(outboxService.findDueEvents(anyInt())).thenReturn(List.of(first, second));
+        when(outboxService.claim(any(), anyLong())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(utils.updateMerchantEarnings(anyString(), anyString(), any(), anyString())).thenReturn(true);
+        OutboxDispatcher singleThreaded = new OutboxDispatcher(outboxService, orderService, utils, Executors.newSingleThreadExecutor());
+        singleThreaded.dispatchDueEvents();
+        //the second event waited for the only thread, its lease starts after the first one is done
+        InOrder inOrder = inOrder(outboxService);
+        inOrder.verify(outboxService).claim(eq(first), anyLong());
+        inOrder.verify(outboxService).markDispatched(first);
+        inOrder.verify(outboxService).claim(eq(second), anyLong());
+        inOrder.verify(outboxService).markDispatched(second);
+    }
+
+    @Test
+    public void testDispatchDueEvents_NothingDue() {
+        when(outboxService.findDueEvents(anyInt())).thenReturn(new ArrayList<>());
+        outboxDispatcher.dispatchDueEvents();
+        verify(outboxService, never()).claim(any(), anyLong());
+    }
+
+    private Document getEvent(OutboxEventType type, Document payload) {
+        Document event = new Document(EVENT_ID, UUID.randomUUID().toString());
+        event.put(EVENT_TYPE, type.name());
+        event.put(ORDER_ID, "order1");
+        event.put(PAYLOAD, payload);
+        event.put(STATUS, PENDING);
+        event.put(ATTEMPTS, 1);
+        event.put(NEXT_ATTEMPT_AT, System.currentTimeMillis());
+        return event;
+    }
+}
@@ -0,0 +1,119 @@
+package sg.edu.nus.iss.order_service.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.model.OutboxEventType;
+import sg.edu.nus.iss.order_service.utils.Constants;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OutboxServiceTest extends Constants {
+    @Mock
+    private MongoManager mongoManager;
+
+    @InjectMocks
+    private OutboxService outboxService;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    public void testEnqueueRewardPointsUpdate_PendingEventWritten() {
+        ArgumentCaptor<Document> eventCaptor = ArgumentCaptor.forClass(Document.class);
+        when(mongoManager.insertDocument(isNull(), eventCaptor.capture(), any(), eq("outbox"))).thenReturn(true);
+        assertTrue(outboxService.enqueueRewardPointsUpdate(null, "order1", "customer1", BigDecimal.valueOf(12.5)));
+
+        Document event = eventCaptor.getValue();
+        assertNotNull(event.getString(EVENT_ID));
+        assertEquals(OutboxEventType.CUSTOMER_REWARD_POINTS_UPDATE.name(), event.getString(EVENT_TYPE));
+        assertEquals("order1", event.getString(ORDER_ID));
+        assertEquals(PENDING, event.getString(STATUS));
+        assertEquals(0, event.getInteger(ATTEMPTS));
+        assertEquals("customer1", event.get(PAYLOAD, Document.class).getString(CUSTOMER_ID));
+        assertEquals("12.5", event.get(PAYLOAD, Document.class).getString(AMOUNT));
+    }
+
+    @Test
+    public void testEnqueueDeliveryStatusUpdate_Failure() {
+        when(mongoManager.insertDocument(any(), any(), any(), any())).thenReturn(false);
+        assertFalse(outboxService.enqueueDeliveryStatusUpdate(null, "order1", "customer1", "partner1", OrderStatus.COMPLETED));
+    }
+
+    @Test
+    public void testMarkDispatched_GuardedOnClaim() {
+        Document event = new Document(EVENT_ID, "event1");
+        event.put(ATTEMPTS, 1);
+        event.put(NEXT_ATTEMPT_AT, 5000L);
+        when(mongoManager.findOneAndUpdate(any(), any(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(event);
+        outboxService.markDispatched(event);
+
+        Document claimQuery = new Document(EVENT_ID, "event1").append(STATUS, PENDING).append(NEXT_ATTEMPT_AT, 5000L);
+        ArgumentCaptor<Document> updateCaptor = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(eq(claimQuery), updateCaptor.capture(), any(), eq("outbox"), eq(false), eq(true));
+        Document set = updateCaptor.getValue().get(OPERATOR_SET, Document.class);
+        assertEquals(DISPATCHED, set.getString(STATUS));
+        assertInstanceOf(Date.class, set.get(DISPATCHED_AT));
+    }
+
+    @Test
+    public void testMarkDispatched_LeaseLost_NothingOverwritten() {
+        Document event = new Document(EVENT_ID, "event1");
+        event.put(NEXT_ATTEMPT_AT, 5000L);
+        //reclaimed by another dispatcher, the guard no longer matches
+        when(mongoManager.findOneAndUpdate(any(), any(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(null);
+        assertDoesNotThrow(() -> outboxService.markDispatched(event));
+        verify(mongoManager).findOneAndUpdate(eq(new Document(EVENT_ID, "event1").append(STATUS, PENDING).append(NEXT_ATTEMPT_AT, 5000L)),
+                any(), any(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void testMarkFailed_RescheduledWithBackoff() {
+        Document event = new Document(EVENT_ID, "event1");
+        event.put(ATTEMPTS, 3);
+        event.put(NEXT_ATTEMPT_AT, 5000L);
+        long before = System.currentTimeMillis();
+        outboxService.markFailed(event, "timeout");
+
+        Document claimQuery = new Document(EVENT_ID, "event1").append(STATUS, PENDING).append(NEXT_ATTEMPT_AT, 5000L);
+        ArgumentCaptor<Document> updateCaptor = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(eq(claimQuery), updateCaptor.capture(), any(), eq("outbox"),
+                eq(false), eq(true));
+        Document set = updateCaptor.getValue().get(OPERATOR_SET, Document.class);
+        assertFalse(set.containsKey(STATUS));
+        assertEquals("timeout", set.getString(LAST_ERROR));
+        assertTrue(set.getLong(NEXT_ATTEMPT_AT) >= before + 4000);
+    }
+
+    @Test
+    public void testMarkFailed_GivesUpAfterMaxAttempts() {
+        Document event = new Document(EVENT_ID, "event1");
+        event.put(ATTEMPTS, 10);
+        outboxService.markFailed(event, "timeout");
+
+        ArgumentCaptor<Document> updateCaptor = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(any(), updateCaptor.capture(), any(), any(), anyBoolean(), anyBoolean());
+        assertEquals(FAILURE, updateCaptor.getValue().get(OPERATOR_SET, Document.class).getString(STATUS));
+    }
+
+    @Test
+    public void testGetBackoff_Capped() {
+        assertEquals(1000, outboxService.getBackoff(1));
+        assertEquals(8000, outboxService.getBackoff(4));
+        assertEquals(300000, outboxService.getBackoff(30));
+    }
+}
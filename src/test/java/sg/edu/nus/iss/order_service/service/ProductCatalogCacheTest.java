@@ -0,0 +1,84 @@
+package sg.edu.nus.iss.order_service.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import sg.edu.nus.iss.order_service.model.Product;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProductCatalogCacheTest {
+    private final String productId1 = UUID.randomUUID().toString();
+    private final String productId2 = UUID.randomUUID().toString();
+    private MeterRegistry meterRegistry;
+    private ProductCatalogCache productCatalogCache;
+    private List<List<String>> fetches;
+    private Function<List<String>, List<Product>> loader;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        productCatalogCache = new ProductCatalogCache(meterRegistry);
+        fetches = new ArrayList<>();
+        loader = productIds -> {
+            fetches.add(productIds);
+            List<Product> products = new ArrayList<>();
+            for (String productId : productIds) {
+                products.add(getProduct(productId, 10));
+            }
+            return products;
+        };
+    }
+
+    @Test
+    public void testGetProducts_OnlyMissingProductsFetchedInOneCall() {
+        assertEquals(1, productCatalogCache.getProducts(List.of(productId1), loader).size());
+        List<Product> products = productCatalogCache.getProducts(List.of(productId2, productId1), loader);
+        assertEquals(productId2, products.get(0).getProductId().toString());
+        assertEquals(productId1, products.get(1).getProductId().toString());
+        assertEquals(List.of(List.of(productId1), List.of(productId2)), fetches);
+
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("result", "hit").counter().count());
+        assertEquals(2.0, meterRegistry.get("cache.gets").tag("result", "miss").counter().count());
+        assertEquals(2.0, meterRegistry.get("cache.size").gauge().value());
+    }
+
+    @Test
+    public void testGetProducts_ExpiredAndLeastRecentlyUsedEvicted() {
+        ReflectionTestUtils.setField(productCatalogCache, "maxSize", 1);
+        productCatalogCache.getProducts(List.of(productId1), loader);
+        productCatalogCache.getProducts(List.of(productId2), loader);
+        assertEquals(1, productCatalogCache.size());
+        productCatalogCache.getProducts(List.of(productId1), loader);
+        assertEquals(3, fetches.size());
+
+        ReflectionTestUtils.setField(productCatalogCache, "ttlMs", 0L);
+        productCatalogCache.getProducts(List.of(productId1), loader);
+        assertEquals(4, fetches.size());
+        assertEquals(3.0, meterRegistry.get("cache.evictions").counter().count());
+    }
+
+    @Test
+    public void testGetProducts_FailedFetch() {
+        productCatalogCache.getProducts(List.of(productId1), loader);
+        //as without the cache, the checkout fails when the missing products cannot be fetched
+        assertTrue(productCatalogCache.getProducts(List.of(productId1, productId2), productIds -> new ArrayList<>()).isEmpty());
+        assertEquals(1, productCatalogCache.size());
+    }
+
+    private Product getProduct(String productId, int availableStock) {
+        Product product = new Product();
+        product.setProductId(UUID.fromString(productId));
+        product.setListingPrice(BigDecimal.TEN);
+        product.setAvailableStock(availableStock);
+        return product;
+    }
+}
@@ -2,19 +2,23 @@ package sg.edu.nus.iss.order_service.states;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.ClientSession;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Value;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
 import sg.edu.nus.iss.order_service.model.Item;
 import sg.edu.nus.iss.order_service.model.OrderContext;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.service.OutboxService;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
@@ -22,11 +26,14 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class CancelledStateTest extends Constants {
@@ -36,6 +43,10 @@ class CancelledStateTest extends Constants {
     private MongoManager mongoManager;
     @Mock
     private Utils utils;
+    @Mock
+    private OutboxService outboxService;
+    @Mock
+    private OrderDbCollectionResolver collectionResolver;
 
     @Value("${"+ORDER_DB+"}")
     private String orderDb = "orderDb";
@@ -52,26 +63,101 @@ class CancelledStateTest extends Constants {
     @BeforeEach
     public void setup() {
         MockitoAnnotations.openMocks(this);
-        cancelledState = new CancelledState(mongoManager, utils, orderDb, orderColl, cancelledOrderColl);
+        when(collectionResolver.resolve(CANCELLED)).thenReturn(cancelledOrderColl);
+        cancelledState = new CancelledState(mongoManager, utils, outboxService, collectionResolver, orderDb, orderColl);
+        when(mongoManager.executeInTransaction(eq(orderDb), any()))
+                .thenAnswer(invocation -> invocation.<Function<ClientSession, Object>>getArgument(1).apply(null));
+        when(mongoManager.insertDocument(isNull(), any(), eq(orderDb), eq(cancelledOrderColl)))
+                .thenAnswer(invocation -> mongoManager.insertDocument(invocation.<Document>getArgument(1), orderDb, cancelledOrderColl));
+        when(mongoManager.deleteDocument(isNull(), any(), eq(orderDb), eq(orderColl)))
+                .thenAnswer(invocation -> mongoManager.deleteDocument(invocation.<Document>getArgument(1), orderDb, orderColl));
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl)))
+                .thenReturn(getOrderDocument_withoutDelivery());
     }
 
     @Test
     public void updateStatus_Success() {
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withoutDelivery());
 
         Response successResp = new Response();
         successResp.setStatus(SUCCESS);
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
         when(mongoManager.insertDocument(any(), eq(orderDb), eq(cancelledOrderColl))).thenReturn(true);
         when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
-        doNothing().when(utils).updateCustomerRewardPoints(anyString(), anyString(), any());
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to cancelled", objectMapper.createObjectNode()));
         Response response = cancelledState.updateStatus(orderContext);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated to cancelled", response.getMessage());
+        verify(outboxService).enqueueRewardPointsUpdate(any(), eq("order1"), eq(globalUUID.toString()), eq(BigDecimal.valueOf(500.0)));
+    }
+
+    @Test
+    public void updateStatus_TransactionFailed() {
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        doReturn(null).when(mongoManager).executeInTransaction(eq(orderDb), any());
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to cancel order"));
+        Response response = cancelledState.updateStatus(orderContext);
+        assertEquals(FAILURE, response.getStatus());
+        verify(mongoManager, never()).deleteDocument(any(), eq(orderDb), eq(orderColl));
+    }
+
+    @Test
+    public void updateStatus_AlreadyMoved() {
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        //the order left the order coll in between, so nothing is deleted and the transaction is aborted
+        when(mongoManager.insertDocument(any(), eq(orderDb), eq(cancelledOrderColl))).thenReturn(true);
+        when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(false);
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to cancel order"));
+        Response response = cancelledState.updateStatus(orderContext);
+        assertEquals(FAILURE, response.getStatus());
+        assertEquals("Failed to cancel order", response.getMessage());
+        verify(mongoManager).deleteDocument(isNull(), eq(new Document(ORDER_ID, "order1")), eq(orderDb), eq(orderColl));
+    }
+
+    @Test
+    public void updateStatus_NotCancellable() {
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        //picked up, completed or cancelled by a concurrent request, the compare and set matches nothing
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Order is not in a status to be cancelled"));
+        Response response = cancelledState.updateStatus(orderContext);
+        assertEquals(CONFLICT, response.getStatus());
+        verify(mongoManager, never()).insertDocument(any(), any(), anyString(), anyString());
+        verify(outboxService, never()).enqueueRewardPointsUpdate(any(), anyString(), anyString(), any());
+    }
+
+    @Test
+    public void updateStatus_SingleCollection() {
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        //the order is closed in place by the compare and set instead of being moved to the cancelled coll
+        when(collectionResolver.isSingleCollection()).thenReturn(true);
+        when(collectionResolver.resolve(CANCELLED)).thenReturn(orderColl);
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to cancelled", objectMapper.createObjectNode()));
+        Response response = cancelledState.updateStatus(orderContext);
+        assertEquals(SUCCESS, response.getStatus());
+
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        ArgumentCaptor<Document> update = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(isNull(), query.capture(), update.capture(), eq(orderDb), eq(orderColl));
+        assertEquals(new Document(OPERATOR_IN, List.of(CREATED, OrderStatus.ACCEPTED.name(), READY)), query.getValue().get(STATUS));
+        Document set = update.getValue().get(OPERATOR_SET, Document.class);
+        assertEquals(OrderStatus.CANCELLED, set.get(STATUS));
+        assertEquals(MERCHANT, set.get(UPDATED_BY));
+        assertNotNull(set.get(CLOSED_AT));
+        verify(mongoManager, never()).insertDocument(any(), any(), anyString(), anyString());
+        verify(mongoManager, never()).deleteDocument(any(), any(), anyString(), anyString());
     }
 
     private Document getOrderDocument_withoutDelivery() {
@@ -97,6 +183,18 @@ class CancelledStateTest extends Constants {
         orderDocument.put("customerRewardsPointsUsed", BigDecimal.valueOf(500.0));
         return orderDocument;
     }
+    private Response getMockedFailedResponse(String message) {
+        Response response = new Response();
+        response.setStatus(FAILURE);
+        response.setMessage(message);
+        return response;
+    }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
@@ -2,19 +2,23 @@ package sg.edu.nus.iss.order_service.states;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.ClientSession;
 import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Value;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
 import sg.edu.nus.iss.order_service.db.MongoManager;
 import sg.edu.nus.iss.order_service.model.Item;
 import sg.edu.nus.iss.order_service.model.OrderContext;
 import sg.edu.nus.iss.order_service.model.OrderStatus;
 import sg.edu.nus.iss.order_service.model.Response;
+import sg.edu.nus.iss.order_service.service.OutboxService;
 import sg.edu.nus.iss.order_service.utils.Constants;
 import sg.edu.nus.iss.order_service.utils.Utils;
 
@@ -22,11 +26,13 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class CompletedStateTest extends Constants {
@@ -36,6 +42,10 @@ class CompletedStateTest extends Constants {
     private MongoManager mongoManager;
     @Mock
     private Utils utils;
+    @Mock
+    private OutboxService outboxService;
+    @Mock
+    private OrderDbCollectionResolver collectionResolver;
 
     @Value("${"+ORDER_DB+"}")
     private String orderDb = "orderDb";
@@ -52,41 +62,113 @@ class CompletedStateTest extends Constants {
     @BeforeEach
     public void setup() {
         MockitoAnnotations.openMocks(this);
-        completedState = new CompletedState(mongoManager, utils, orderDb, orderColl, completedOrderColl);
+        when(collectionResolver.resolve(COMPLETED)).thenReturn(completedOrderColl);
+        completedState = new CompletedState(mongoManager, utils, outboxService, collectionResolver, orderDb, orderColl);
+        when(mongoManager.executeInTransaction(eq(orderDb), any()))
+                .thenAnswer(invocation -> invocation.<Function<ClientSession, Object>>getArgument(1).apply(null));
+        when(mongoManager.insertDocument(isNull(), any(), eq(orderDb), eq(completedOrderColl)))
+                .thenAnswer(invocation -> mongoManager.insertDocument(invocation.<Document>getArgument(1), orderDb, completedOrderColl));
+        when(mongoManager.deleteDocument(isNull(), any(), eq(orderDb), eq(orderColl)))
+                .thenAnswer(invocation -> mongoManager.deleteDocument(invocation.<Document>getArgument(1), orderDb, orderColl));
+        when(mongoManager.findOneAndUpdate(isNull(), any(), anyList(), eq(orderDb), eq(orderColl)))
+                .thenReturn(getOrderDocument_withDelivery());
     }
 
     @Test
-    public void testUpdateStatus_CompletedStatus_FailedDeliveryUpdate(){
+    public void testUpdateStatus_CompletedStatus_TransactionFailed(){
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
-        when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(false);
-        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
+        when(mongoManager.insertDocument(any(), eq(orderDb), eq(completedOrderColl))).thenReturn(true);
+        when(outboxService.enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any())).thenReturn(false);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to complete order"));
         Response response = completedState.updateStatus(orderContext);
         assertEquals(FAILURE, response.getStatus());
-        assertEquals("Failed to update delivery status", response.getMessage());
+        assertEquals("Failed to complete order", response.getMessage());
+        verify(mongoManager, never()).deleteDocument(any(), eq(orderDb), eq(orderColl));
     }
 
     @Test
     public void testUpdateStatus_CompletedStatus_Success(){
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
-
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
 
         when(mongoManager.insertDocument(any(), eq(orderDb), eq(completedOrderColl))).thenReturn(true);
         when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(true);
-        when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
-        doNothing().when(utils).updateCustomerRewardPoints(anyString(), anyString(), any());
-        doNothing().when(utils).updateMerchantEarnings(anyString(), anyString(), any());
-        when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueDeliveryStatusUpdate(any(), anyString(), anyString(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to completed", objectMapper.createObjectNode()));
         Response response = completedState.updateStatus(orderContext);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated to completed", response.getMessage());
+        verify(outboxService).enqueueMerchantEarningsUpdate(any(), eq("order1"), eq(globalUUID.toString()), eq(BigDecimal.valueOf(100.0)));
+        verify(outboxService).enqueueRewardPointsUpdate(any(), eq("order1"), eq(globalUUID.toString()), eq(BigDecimal.valueOf(100.0)));
+        verify(outboxService).enqueueDeliveryStatusUpdate(any(), eq("order1"), eq(globalUUID.toString()),
+                eq(globalUUID.toString()), eq(OrderStatus.COMPLETED));
+        verify(utils, never()).updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any());
+        verify(mongoManager).deleteDocument(any(), eq(orderDb), eq(orderColl));
+    }
+
+    @Test
+    public void testUpdateStatus_CompletedStatus_AlreadyMoved(){
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        //the order left the order coll in between, so nothing is deleted and the transaction is aborted
+        when(mongoManager.insertDocument(any(), eq(orderDb), eq(completedOrderColl))).thenReturn(true);
+        when(mongoManager.deleteDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(false);
+        when(outboxService.enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueDeliveryStatusUpdate(any(), anyString(), anyString(), anyString(), any())).thenReturn(true);
+        when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to complete order"));
+        Response response = completedState.updateStatus(orderContext);
+        assertEquals(FAILURE, response.getStatus());
+        assertEquals("Failed to complete order", response.getMessage());
+        verify(mongoManager).deleteDocument(isNull(), eq(new Document(ORDER_ID, "order1")), eq(orderDb), eq(orderColl));
+    }
+
+    @Test
+    public void testUpdateStatus_CompletedStatus_SingleCollection(){
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        //the order is closed in place by the compare and set, matched only while ready or picked up
+        when(collectionResolver.isSingleCollection()).thenReturn(true);
+        when(collectionResolver.resolve(COMPLETED)).thenReturn(orderColl);
+        when(outboxService.enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueRewardPointsUpdate(any(), anyString(), anyString(), any())).thenReturn(true);
+        when(outboxService.enqueueDeliveryStatusUpdate(any(), anyString(), anyString(), anyString(), any())).thenReturn(true);
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated to completed", objectMapper.createObjectNode()));
+        Response response = completedState.updateStatus(orderContext);
+        assertEquals(SUCCESS, response.getStatus());
+
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Document>> pipeline = ArgumentCaptor.forClass(List.class);
+        verify(mongoManager).findOneAndUpdate(isNull(), query.capture(), pipeline.capture(), eq(orderDb), eq(orderColl));
+        assertEquals("order1", query.getValue().get(ORDER_ID));
+        assertEquals(new Document(OPERATOR_IN, List.of(READY, OrderStatus.DELIVERY_PICKED_UP.name())), query.getValue().get(STATUS));
+        Document set = pipeline.getValue().get(0).get(OPERATOR_SET, Document.class);
+        assertEquals(OrderStatus.COMPLETED, set.get(STATUS));
+        //completed by the delivery partner only for an order with delivery
+        assertTrue(set.get(UPDATED_BY, Document.class).containsKey(OPERATOR_COND));
+        assertNotNull(set.get(CLOSED_AT));
+        verify(mongoManager, never()).insertDocument(any(), any(), anyString(), anyString());
+        verify(mongoManager, never()).deleteDocument(any(), any(), anyString(), anyString());
+    }
+
+    @Test
+    public void testUpdateStatus_CompletedStatus_SingleCollection_AlreadyClosed(){
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        when(collectionResolver.isSingleCollection()).thenReturn(true);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), anyList(), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Order is not in a status to be completed"));
+        Response response = completedState.updateStatus(orderContext);
+        assertEquals(CONFLICT, response.getStatus());
+        verify(outboxService, never()).enqueueMerchantEarningsUpdate(any(), anyString(), anyString(), any());
     }
 
     private Document getOrderDocument_withDelivery() {
@@ -119,6 +201,12 @@ class CompletedStateTest extends Constants {
         response.setMessage(message);
         return response;
     }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
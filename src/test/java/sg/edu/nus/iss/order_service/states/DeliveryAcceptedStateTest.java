@@ -7,6 +7,7 @@ import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -24,11 +25,20 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class DeliveryAcceptedStateTest extends Constants {
@@ -61,16 +71,24 @@ class DeliveryAcceptedStateTest extends Constants {
 
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
         orderContext.setPayload(payload);
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(false);
 
         Response response = deliveryAcceptedState.updateStatus(orderContext);
         assertEquals(FAILURE, response.getStatus());
         assertEquals("Failed to update delivery status", response.getMessage());
+
+        //the claimed order is handed back to ready, as long as the partner still holds it
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        ArgumentCaptor<Document> update = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager, times(2)).findOneAndUpdate(isNull(), query.capture(), update.capture(), eq(orderDb), eq(orderColl));
+        assertEquals(OrderStatus.DELIVERY_ACCEPTED, query.getAllValues().get(1).get(STATUS));
+        assertEquals(globalUUID.toString(), query.getAllValues().get(1).get(DELIVERY_PARTNER_ID));
+        assertEquals(OrderStatus.READY, update.getAllValues().get(1).get(OPERATOR_SET, Document.class).get(STATUS));
+        assertTrue(update.getAllValues().get(1).get(OPERATOR_UNSET, Document.class).containsKey(DELIVERY_PARTNER_ID));
     }
 
     @Test
@@ -80,20 +98,98 @@ class DeliveryAcceptedStateTest extends Constants {
 
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
         orderContext.setPayload(payload);
 
-
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
-        doNothing().when(utils).updateCustomerRewardPoints(anyString(), anyString(), any());
-        doNothing().when(utils).updateMerchantEarnings(anyString(), anyString(), any());
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
 
         Response response = deliveryAcceptedState.updateStatus(orderContext);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated", response.getMessage());
+
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(isNull(), query.capture(), any(Document.class), eq(orderDb), eq(orderColl));
+        assertEquals(new Document(OPERATOR_IN, List.of(READY)), query.getValue().get(STATUS));
+        assertEquals(true, query.getValue().get(USE_DELIVERY));
+    }
+
+    @Test
+    public void testUpdateStatus_DelAcceptedStatus_AlreadyAccepted(){
+        ObjectNode payload = objectMapper.createObjectNode();
+        payload.put(DELIVERY_PARTNER_ID, globalUUID.toString());
+
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+        orderContext.setPayload(payload);
+
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Order is already accepted"));
+
+        Response response = deliveryAcceptedState.updateStatus(orderContext);
+        assertEquals(CONFLICT, response.getStatus());
+        verify(utils, never()).updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any());
+    }
+
+    @Test
+    public void testUpdateStatus_DelAcceptedStatus_PartnersRacing() throws Exception {
+        //the order collection keeps a single ready order, updated under a lock like mongo updates one document
+        Document storedOrder = getOrderDocument_withDelivery();
+        storedOrder.put(STATUS, OrderStatus.READY);
+        storedOrder.remove(DELIVERY_PARTNER_ID);
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenAnswer(invocation -> {
+            Document query = invocation.getArgument(1);
+            Document update = invocation.getArgument(2);
+            synchronized (storedOrder) {
+                List<?> expectedStatuses = query.get(STATUS, Document.class).getList(OPERATOR_IN, Object.class);
+                if (!expectedStatuses.contains(storedOrder.get(STATUS).toString())) {
+                    return null;
+                }
+                storedOrder.putAll(update.get(OPERATOR_SET, Document.class));
+                return new Document(storedOrder);
+            }
+        });
+        AtomicInteger deliveriesCreated = new AtomicInteger();
+        when(utils.updateDeliveryStatusforOrder(any(), eq(true), anyString(), eq(OrderStatus.DELIVERY_ACCEPTED))).thenAnswer(invocation -> {
+            deliveriesCreated.incrementAndGet();
+            return true;
+        });
+        when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", null));
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Order is already accepted"));
+
+        int partners = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(partners);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Response>> responses = new ArrayList<>();
+        try {
+            for (int i = 0; i < partners; i++) {
+                ObjectNode payload = objectMapper.createObjectNode();
+                payload.put(DELIVERY_PARTNER_ID, "partner" + i);
+                OrderContext orderContext = new OrderContext();
+                orderContext.setOrderId("order1");
+                orderContext.setPayload(payload);
+                responses.add(executor.submit(() -> {
+                    start.await();
+                    return deliveryAcceptedState.updateStatus(orderContext);
+                }));
+            }
+            start.countDown();
+            int accepted = 0;
+            int conflicts = 0;
+            for (Future<Response> response : responses) {
+                String status = response.get(30, TimeUnit.SECONDS).getStatus();
+                accepted += SUCCESS.equals(status) ? 1 : 0;
+                conflicts += CONFLICT.equals(status) ? 1 : 0;
+            }
+            //exactly one partner gets the order and creates its delivery, all others lose the race
+            assertEquals(1, accepted);
+            assertEquals(partners - 1, conflicts);
+            assertEquals(1, deliveriesCreated.get());
+            assertEquals(OrderStatus.DELIVERY_ACCEPTED, storedOrder.get(STATUS));
+            assertNotNull(storedOrder.get(DELIVERY_PARTNER_ID));
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     private Document getOrderDocument_withDelivery() {
@@ -126,6 +222,12 @@ class DeliveryAcceptedStateTest extends Constants {
         response.setMessage(message);
         return response;
     }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
@@ -7,6 +7,7 @@ import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -27,6 +28,9 @@ import java.util.UUID;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class DeliveryPickedUpStateTest extends Constants {
@@ -59,16 +63,31 @@ class DeliveryPickedUpStateTest extends Constants {
 
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
         orderContext.setPayload(payload);
 
-
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(false);
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update delivery status"));
         Response response = deliveryPickedUpState.updateStatus(orderContext);
         assertEquals(FAILURE, response.getStatus());
         assertEquals("Failed to update delivery status", response.getMessage());
+
+        //the pick up is reverted so it can be retried
+        ArgumentCaptor<Document> update = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager, times(2)).findOneAndUpdate(isNull(), any(), update.capture(), eq(orderDb), eq(orderColl));
+        assertEquals(OrderStatus.DELIVERY_ACCEPTED, update.getAllValues().get(1).get(OPERATOR_SET, Document.class).get(STATUS));
+    }
+
+    @Test
+    public void testUpdateOrderStatus_DelPickedUpStatus_NotAccepted(){
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Delivery has not yet started"));
+        Response response = deliveryPickedUpState.updateStatus(orderContext);
+        assertEquals(CONFLICT, response.getStatus());
+        verify(utils, never()).updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any());
     }
 
     @Test
@@ -78,11 +97,9 @@ class DeliveryPickedUpStateTest extends Constants {
 
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withDelivery());
         orderContext.setPayload(payload);
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withDelivery());
         when(utils.updateDeliveryStatusforOrder(any(), anyBoolean(), anyString(), any())).thenReturn(true);
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
         Response response = deliveryPickedUpState.updateStatus(orderContext);
@@ -120,6 +137,12 @@ class DeliveryPickedUpStateTest extends Constants {
         response.setMessage(message);
         return response;
     }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
@@ -0,0 +1,76 @@
+package sg.edu.nus.iss.order_service.states;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import sg.edu.nus.iss.order_service.config.OrderDbCollectionResolver;
+import sg.edu.nus.iss.order_service.db.MongoManager;
+import sg.edu.nus.iss.order_service.model.OrderStatus;
+import sg.edu.nus.iss.order_service.service.OutboxService;
+import sg.edu.nus.iss.order_service.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderStateRegistryTest {
+    @Mock
+    private MongoManager mongoManager;
+    @Mock
+    private Utils utils;
+    @Mock
+    private OutboxService outboxService;
+    @Mock
+    private OrderDbCollectionResolver collectionResolver;
+
+    private List<OrderState> orderStates;
+    private OrderStateRegistry orderStateRegistry;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        orderStates = new ArrayList<>(List.of(
+                new AcceptedState(mongoManager, utils, "orderDb", "orderColl"),
+                new ReadyState(mongoManager, utils, "orderDb", "orderColl"),
+                new DeliveryAcceptedState(mongoManager, utils, "orderDb", "orderColl"),
+                new DeliveryPickedUpState(mongoManager, utils, "orderDb", "orderColl"),
+                new CompletedState(mongoManager, utils, outboxService, collectionResolver, "orderDb", "orderColl"),
+                new CancelledState(mongoManager, utils, outboxService, collectionResolver, "orderDb", "orderColl")));
+        orderStateRegistry = new OrderStateRegistry(orderStates);
+    }
+
+    @Test
+    public void testGetState_SameInstanceEveryTime() {
+        for (OrderState orderState : orderStates) {
+            assertSame(orderState, orderStateRegistry.getState(orderState.getStatus()));
+        }
+        assertNull(orderStateRegistry.getState(OrderStatus.CREATED));
+        assertNull(orderStateRegistry.getState(OrderStatus.INVALID));
+        assertNull(orderStateRegistry.getState(null));
+    }
+
+    @Test
+    public void testIsAllowed() {
+        assertTrue(orderStateRegistry.isAllowed(OrderStatus.CREATED, OrderStatus.ACCEPTED));
+        //the status as stored in the order document
+        assertTrue(orderStateRegistry.isAllowed("READY", OrderStatus.COMPLETED));
+        assertTrue(orderStateRegistry.isAllowed(OrderStatus.DELIVERY_PICKED_UP, OrderStatus.COMPLETED));
+        assertFalse(orderStateRegistry.isAllowed(OrderStatus.READY, OrderStatus.READY));
+        assertFalse(orderStateRegistry.isAllowed(OrderStatus.DELIVERY_ACCEPTED, OrderStatus.CANCELLED));
+        assertFalse(orderStateRegistry.isAllowed(OrderStatus.COMPLETED, OrderStatus.CANCELLED));
+        assertFalse(orderStateRegistry.isAllowed(OrderStatus.CREATED, OrderStatus.INVALID));
+        assertFalse(orderStateRegistry.isAllowed(null, OrderStatus.ACCEPTED));
+        assertTrue(orderStateRegistry.getAllowedFrom(OrderStatus.CREATED).isEmpty());
+    }
+
+    @Test
+    public void testRegistry_MissingOrDuplicateState() {
+        List<OrderState> duplicate = new ArrayList<>(orderStates);
+        duplicate.add(new ReadyState(mongoManager, utils, "orderDb", "orderColl"));
+        assertThrows(IllegalStateException.class, () -> new OrderStateRegistry(duplicate));
+        //every target of the transitions needs its state
+        assertThrows(IllegalStateException.class, () -> new OrderStateRegistry(orderStates.subList(1, orderStates.size())));
+    }
+}
@@ -6,6 +6,7 @@ import io.swagger.v3.core.util.Json;
 import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -25,6 +26,8 @@ import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class ReadyStateTest extends Constants {
@@ -54,25 +57,41 @@ class ReadyStateTest extends Constants {
     void updateStatus_Success() {
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withoutDelivery());
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(getOrderDocument_withoutDelivery());
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
         when(utils.getSuccessResponse(anyString(), any())).thenReturn(getMockedSuccessResponse("Order status updated", objectMapper.createObjectNode()));
 
         Response response = readyState.updateStatus(orderContext);
         assertEquals(SUCCESS, response.getStatus());
         assertEquals("Order status updated", response.getMessage());
+
+        //a single compare and set on the status the order moves from
+        ArgumentCaptor<Document> query = ArgumentCaptor.forClass(Document.class);
+        verify(mongoManager).findOneAndUpdate(isNull(), query.capture(), any(Document.class), eq(orderDb), eq(orderColl));
+        assertEquals(new Document(ORDER_ID, "order1").append(STATUS, new Document(OPERATOR_IN, List.of("ACCEPTED"))), query.getValue());
+        verify(mongoManager, never()).findDocument(any(), anyString(), anyString());
     }
 
     @Test
     public void updateStatus_Failure(){
         OrderContext orderContext = new OrderContext();
         orderContext.setOrderId("order1");
-        orderContext.setOrderDoc(getOrderDocument_withoutDelivery());
 
-        when(mongoManager.findDocument(any(), eq(orderDb), eq(orderColl))).thenReturn(getOrderDocument_withoutDelivery());
-        when(mongoManager.findOneAndUpdate(any(), any(), eq(orderDb), eq(orderColl), anyBoolean(), anyBoolean())).thenReturn(null);
+        //the order is no longer in the expected status, e.g. a concurrent request moved it first
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl))).thenReturn(null);
+        when(utils.getConflictResponse(anyString())).thenReturn(getMockedConflictResponse("Order is not in a status to move"));
+        Response response = readyState.updateStatus(orderContext);
+        assertEquals(CONFLICT, response.getStatus());
+        assertEquals("Order is not in a status to move", response.getMessage());
+    }
+
+    @Test
+    public void updateStatus_WriteFailed(){
+        OrderContext orderContext = new OrderContext();
+        orderContext.setOrderId("order1");
+
+        when(mongoManager.findOneAndUpdate(isNull(), any(), any(Document.class), eq(orderDb), eq(orderColl)))
+                .thenThrow(new IllegalStateException("connection reset"));
         when(utils.getFailedResponse(anyString())).thenReturn(getMockedFailedResponse("Failed to update order status"));
         Response response = readyState.updateStatus(orderContext);
         assertEquals(FAILURE, response.getStatus());
@@ -108,6 +127,12 @@ class ReadyStateTest extends Constants {
         response.setMessage(message);
         return response;
     }
+    private Response getMockedConflictResponse(String message) {
+        Response response = new Response();
+        response.setStatus(CONFLICT);
+        response.setMessage(message);
+        return response;
+    }
     private Response getMockedSuccessResponse(String message, JsonNode data) {
         Response response = new Response();
         response.setStatus(SUCCESS);
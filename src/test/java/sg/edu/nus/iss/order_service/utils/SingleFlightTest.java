@@ -0,0 +1,171 @@
+package sg.edu.nus.iss.order_service.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+    private MeterRegistry meterRegistry;
+    private SingleFlight<String, List<String>> singleFlight;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        singleFlight = new SingleFlight<>("test", meterRegistry, ArrayList::new);
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testExecute_ConcurrentIdenticalCallsMerged() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for(int i = 0; i < 8; i++){
+            results.add(executor.submit(() -> singleFlight.execute("product1", 10000, () -> {
+                calls.incrementAndGet();
+                await(release);
+                return new ArrayList<>(List.of("product1"));
+            })));
+        }
+        //every caller but the one making the call is waiting on it
+        while(meterRegistry.get("singleflight.calls").tag("result", "coalesced").counter().count() < 7){
+            Thread.sleep(5);
+        }
+        release.countDown();
+        List<List<String>> values = new ArrayList<>();
+        for(Future<List<String>> result : results){
+            values.add(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        for(List<String> value : values){
+            assertEquals(List.of("product1"), value);
+        }
+        //each caller got its own copy
+        values.get(0).clear();
+        assertEquals(1, values.get(1).size());
+        assertEquals(7.0 / 8, meterRegistry.get("singleflight.coalescing.ratio").gauge().value(), 0.0001);
+        assertEquals(0.0, meterRegistry.get("singleflight.in-flight").gauge().value());
+
+        //nothing is cached, a later call is made again
+        singleFlight.execute("product1", 10000, () -> {
+            calls.incrementAndGet();
+            return new ArrayList<>();
+        });
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testExecute_WaitBoundedAndFailureShared() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<List<String>> slow = executor.submit(() -> singleFlight.execute("product1", 10000, () -> {
+            started.countDown();
+            await(release);
+            throw new IllegalStateException("Read timed out");
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        //a waiter gives up on the slow call and makes its own
+        assertEquals(List.of("own"), singleFlight.execute("product1", 10, () -> List.of("own")));
+        assertEquals(1.0, meterRegistry.get("singleflight.calls").tag("result", "timeout").counter().count());
+
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.execute("product1", 10000, () -> List.of("unused")));
+        while(meterRegistry.get("singleflight.calls").tag("result", "coalesced").counter().count() < 2){
+            Thread.sleep(5);
+        }
+        release.countDown();
+        Exception slowFailure = assertThrows(Exception.class, () -> slow.get(5, TimeUnit.SECONDS));
+        Exception waiterFailure = assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, slowFailure.getCause());
+        assertInstanceOf(IllegalStateException.class, waiterFailure.getCause());
+        //the waiter that gave up is not counted as coalesced
+        assertEquals(1.0 / 3, meterRegistry.get("singleflight.coalescing.ratio").gauge().value(), 0.0001);
+    }
+
+    @Test
+    public void testExecute_CallerGetsCopy() {
+        List<String> callResult = new ArrayList<>(List.of("product1"));
+        List<String> result = singleFlight.execute("product1", 10000, () -> callResult);
+        assertEquals(callResult, result);
+        //the result waiters copy from is not handed out
+        assertNotSame(callResult, result);
+    }
+
+    @Test
+    public void testExecute_InterruptedWaiterFails() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<List<String>> leader = executor.submit(() -> singleFlight.execute("product1", 10000, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return new ArrayList<>(List.of("product1"));
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread.currentThread().interrupt();
+        assertThrows(CancellationException.class, () -> singleFlight.execute("product1", 10000, () -> {
+            calls.incrementAndGet();
+            return new ArrayList<>();
+        }));
+        //no call is made for the interrupted waiter, and it stays interrupted
+        assertTrue(Thread.interrupted());
+        release.countDown();
+        assertEquals(List.of("product1"), leader.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testExecute_InterruptedCallNotShared() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<List<String>> leader = executor.submit(() -> singleFlight.execute("product1", 10000, () -> {
+            started.countDown();
+            try{
+                Thread.sleep(5000);
+                return new ArrayList<>(List.of("product1"));
+            }catch(InterruptedException ex){
+                //like a client call, the failure is turned into a result and the interrupt status restored
+                Thread.currentThread().interrupt();
+                return new ArrayList<>(List.of("interrupted"));
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.execute("product1", 10000, () -> new ArrayList<>(List.of("own"))));
+        while(meterRegistry.get("singleflight.calls").tag("result", "coalesced").counter().count() < 1){
+            Thread.sleep(5);
+        }
+        leader.cancel(true);
+        //the waiter makes its own call instead of taking the cut short one
+        assertEquals(List.of("own"), waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1.0, meterRegistry.get("singleflight.calls").tag("result", "timeout").counter().count());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try{
+            latch.await(5, TimeUnit.SECONDS);
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+}